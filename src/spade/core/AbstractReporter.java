@@ -19,6 +19,7 @@
  */
 package spade.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
@@ -62,9 +63,13 @@ public abstract class AbstractReporter{
 	 * This method is called by the reporters to send vertices to the buffer.
 	 *
 	 * @param vertex The vertex to be sent to the buffer.
-	 * @return True if the buffer accepted the vertex.
+	 * @return True if the buffer accepted the vertex. False if the buffer or the ingest governor rejected it.
 	 */
 	public final boolean putVertex(AbstractVertex vertex){
+		// Shed elements must not count towards (or wait for) the rate limit
+		if(ingestGovernor.isEnabled() && !ingestGovernor.admit(vertex, internalBuffer)){
+			return false;
+		}
 		enforceRateLimit();
 		return internalBuffer.putVertex(vertex);
 	}
@@ -73,9 +78,13 @@ public abstract class AbstractReporter{
 	 * This method is called by the reporters to send edges to the buffer.
 	 *
 	 * @param edge The edge to be sent to the buffer.
-	 * @return True if the buffer accepted the edge.
+	 * @return True if the buffer accepted the edge. False if the buffer or the ingest governor rejected it (shed).
 	 */
 	public final boolean putEdge(AbstractEdge edge){
+		// Shed elements must not count towards (or wait for) the rate limit
+		if(ingestGovernor.isEnabled() && !ingestGovernor.admit(edge, internalBuffer)){
+			return false;
+		}
 		enforceRateLimit();
 		return internalBuffer.putEdge(edge);
 	}
@@ -98,7 +107,20 @@ public abstract class AbstractReporter{
 	//////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 	public final List<String> getWritablePropertyKeys(){
-		return Arrays.asList(propertyNameRateLimit, propertyNameSleepWait, propertyNameWorkableFreeMemory);
+		return Arrays.asList(propertyNameRateLimit, propertyNameSleepWait, propertyNameWorkableFreeMemory,
+				propertyNameIngestRate, propertyNameIngestBurst, propertyNameShedLevel, propertyNameShedBufferSize,
+				propertyNameShedOperations, propertyNameShedPaths);
+	}
+
+	/**
+	 * Keys of the ingest governor properties which can be set at reporter launch time in the reporter arguments,
+	 * the reporter config file, or the AbstractReporter config file.
+	 */
+	public static final List<String> ingestGovernorConfigKeys = Arrays.asList(
+			"ingestRate", "ingestBurst", "shedLevel", "shedBufferSize", "shedOperations", "shedPaths");
+
+	public final IngestGovernor getIngestGovernor(){
+		return ingestGovernor;
 	}
 
 	private final Logger logger = Logger.getLogger(this.getClass().getName());
@@ -112,6 +134,7 @@ public abstract class AbstractReporter{
 			// If number of elements incoming per second exceeds this value then reporter
 			// blocked from adding anything to
 			// internal buffer until the rate of incoming elements drop below this value.
+			// Exclusive with 'ingestrate'.
 			propertyNameRateLimit = "ratelimit",
 			// Time in millis to sleep for while waiting for the rate to drop below the
 			// limit.
@@ -121,7 +144,23 @@ public abstract class AbstractReporter{
 			propertyNameGetRate = "getrate",
 			propertyNamePutRate = "putrate",
 			propertyNameGetCount = "getcount",
-			propertyNamePutCount = "putcount";
+			propertyNamePutCount = "putcount",
+			// Token bucket refill rate (elements per second) of the ingest governor. Exclusive with 'ratelimit'
+			propertyNameIngestRate = "ingestrate",
+			// Token bucket capacity of the ingest governor. Defaults to the rate.
+			propertyNameIngestBurst = "ingestburst",
+			// Number of tiers of low-value elements which can be shed. See IngestGovernor.
+			propertyNameShedLevel = "shedlevel",
+			// Buffer size above which the sheddable elements are shed regardless of the tokens
+			propertyNameShedBufferSize = "shedbuffersize",
+			// Comma-separated list of low-value edge operations
+			propertyNameShedOperations = "shedoperations",
+			// Comma-separated list of path prefixes of artifacts with the lowest value
+			propertyNameShedPaths = "shedpaths",
+			propertyNameShedCount = "shedcount",
+			propertyNameShedStats = "shedstats";
+
+	private final IngestGovernor ingestGovernor = new IngestGovernor(this.getClass().getSimpleName());
 
 	private final Object ratePropertyLock = new Object();
 
@@ -152,6 +191,14 @@ public abstract class AbstractReporter{
 			case propertyNamePutRate:
 			case propertyNameGetCount:
 			case propertyNamePutCount:
+			case propertyNameIngestRate:
+			case propertyNameIngestBurst:
+			case propertyNameShedLevel:
+			case propertyNameShedBufferSize:
+			case propertyNameShedOperations:
+			case propertyNameShedPaths:
+			case propertyNameShedCount:
+			case propertyNameShedStats:
 				return lowerCasePropertyName;
 			default: throw new Exception("Unknown property: '" + propertyName + "'");
 		}
@@ -245,6 +292,33 @@ public abstract class AbstractReporter{
 					return null;
 				}
 			}
+			case propertyNameIngestRate:{
+				final double rate = ingestGovernor.getIngestRate();
+				return rate > 0 ? (long)rate : null;
+			}
+			case propertyNameIngestBurst:{
+				final double burst = ingestGovernor.getIngestBurst();
+				return ingestGovernor.getIngestRate() > 0 ? (long)burst : null;
+			}
+			case propertyNameShedLevel:{
+				return ingestGovernor.getShedLevel();
+			}
+			case propertyNameShedBufferSize:{
+				final int size = ingestGovernor.getShedBufferSize();
+				return size > 0 ? size : null;
+			}
+			case propertyNameShedOperations:{
+				return String.join(",", ingestGovernor.getShedOperations());
+			}
+			case propertyNameShedPaths:{
+				return String.join(",", ingestGovernor.getShedPaths());
+			}
+			case propertyNameShedCount:{
+				return ingestGovernor.getShedCount();
+			}
+			case propertyNameShedStats:{
+				return ingestGovernor.getStats();
+			}
 			default: break;
 		}
 		throw new Exception("Unhandled property: '" + propertyName + "'");
@@ -260,7 +334,9 @@ public abstract class AbstractReporter{
 			case propertyNameGetRate:
 			case propertyNamePutRate:
 			case propertyNameGetCount:
-			case propertyNamePutCount:{
+			case propertyNamePutCount:
+			case propertyNameShedCount:
+			case propertyNameShedStats:{
 				throw new Exception("Unsettable property: '" + propertyName + "'");
 			}
 			case propertyNameRateLimit:{
@@ -269,6 +345,10 @@ public abstract class AbstractReporter{
 					throw new Exception("Invalid value for property '" + propertyName + "': '" + propertyValue + "'. "
 							+ result.toErrorString());
 				}else{
+					if(ingestGovernor.getIngestRate() > 0){
+						throw new Exception("Property '" + propertyName + "' cannot be set with '" + propertyNameIngestRate
+								+ "'. Unset '" + propertyNameIngestRate + "' first");
+					}
 					synchronized(this.ratePropertyLock){
 						this.incomingRateLimitPerSecond = result.result.intValue();
 						this.isRateLimited = 1;
@@ -301,11 +381,69 @@ public abstract class AbstractReporter{
 					return;
 				}
 			}
+			case propertyNameIngestRate:{
+				final long rate = parsePropertyLong(propertyName, propertyValue, 1, Integer.MAX_VALUE);
+				synchronized(this.ratePropertyLock){
+					if(this.isRateLimited == 1){
+						throw new Exception("Property '" + propertyName + "' cannot be set with '" + propertyNameRateLimit
+								+ "'. Unset '" + propertyNameRateLimit + "' first");
+					}
+				}
+				final double currentBurst = ingestGovernor.getIngestRate() > 0 ? ingestGovernor.getIngestBurst() : 0;
+				ingestGovernor.setIngestRate(rate, currentBurst);
+				return;
+			}
+			case propertyNameIngestBurst:{
+				final long burst = parsePropertyLong(propertyName, propertyValue, 1, Integer.MAX_VALUE);
+				if(ingestGovernor.getIngestRate() <= 0){
+					throw new Exception("Property '" + propertyNameIngestRate + "' must be set before '" + propertyName + "'");
+				}
+				ingestGovernor.setIngestRate(ingestGovernor.getIngestRate(), burst);
+				return;
+			}
+			case propertyNameShedLevel:{
+				ingestGovernor.setShedLevel((int)parsePropertyLong(propertyName, propertyValue, 0, IngestGovernor.TIER_NORMAL));
+				return;
+			}
+			case propertyNameShedBufferSize:{
+				ingestGovernor.setShedBufferSize((int)parsePropertyLong(propertyName, propertyValue, 1, Integer.MAX_VALUE));
+				return;
+			}
+			case propertyNameShedOperations:{
+				ingestGovernor.setShedOperations(parsePropertyList(propertyValue));
+				return;
+			}
+			case propertyNameShedPaths:{
+				ingestGovernor.setShedPaths(parsePropertyList(propertyValue));
+				return;
+			}
 			default: break;
 		}
 		throw new Exception("Unhandled property: '" + propertyName + "'");
 	}
 
+	private static final long parsePropertyLong(final String propertyName, final String propertyValue,
+			final long min, final long max) throws Exception{
+		final Result<Long> result = HelperFunctions.parseLong(propertyValue, 10, min, max);
+		if(result.error){
+			throw new Exception("Invalid value for property '" + propertyName + "': '" + propertyValue + "'. "
+					+ result.toErrorString());
+		}
+		return result.result;
+	}
+
+	private static final List<String> parsePropertyList(final String propertyValue){
+		final List<String> list = new ArrayList<String>();
+		if(propertyValue != null){
+			for(final String token : propertyValue.split(",")){
+				if(!token.trim().isEmpty()){
+					list.add(token.trim());
+				}
+			}
+		}
+		return list;
+	}
+
 	public final synchronized void unsetProperty(final String propertyName) throws Exception{
 		final String validPropertyName = validateProperty(propertyName);
 
@@ -317,7 +455,9 @@ public abstract class AbstractReporter{
 			case propertyNameGetRate:
 			case propertyNamePutRate:
 			case propertyNamePutCount:
-			case propertyNameGetCount:{
+			case propertyNameGetCount:
+			case propertyNameShedCount:
+			case propertyNameShedStats:{
 				throw new Exception("Un-unsettable property: '" + propertyName + "'");
 			}
 			case propertyNameRateLimit:{
@@ -333,6 +473,31 @@ public abstract class AbstractReporter{
 					return;
 				}
 			}
+			case propertyNameIngestRate:{
+				ingestGovernor.setIngestRate(0, 0);
+				return;
+			}
+			case propertyNameIngestBurst:{
+				// Back to the default i.e. same as the rate
+				ingestGovernor.setIngestRate(ingestGovernor.getIngestRate(), 0);
+				return;
+			}
+			case propertyNameShedLevel:{
+				ingestGovernor.setShedLevel(0);
+				return;
+			}
+			case propertyNameShedBufferSize:{
+				ingestGovernor.setShedBufferSize(0);
+				return;
+			}
+			case propertyNameShedOperations:{
+				ingestGovernor.setShedOperations(IngestGovernor.defaultShedOperations);
+				return;
+			}
+			case propertyNameShedPaths:{
+				ingestGovernor.setShedPaths(IngestGovernor.defaultShedPaths);
+				return;
+			}
 			default: break;
 		}
 		throw new Exception("Unhandled property: '" + propertyName + "'");
@@ -21,12 +21,19 @@
  */
 package spade.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Implementation of a Bloom-filter, as described here:
@@ -40,30 +47,58 @@ import java.util.Collection;
  * were proposed in comments in his blog:
  * http://blog.locut.us/2008/01/12/a-decent-stand-alone-java-bloom-filter-implementation/
  *
+ * The k bit indices are derived by double hashing (Kirsch-Mitzenmacher) i.e. index(i) = h1 + i * h2 where h1 and h2
+ * are the two halves of a 128-bit hash. If the element is already a 128-bit hash (the hex string or the bytes of a
+ * vertex/edge hash) then it is used as is, otherwise a non-cryptographic hash (MurmurHash3 x64 128) is computed.
+ * Bits are kept in a long array updated with compare-and-swap so the filter can be shared by threads without locking.
+ *
+ * Filters serialized before the double hashing (with the MD5 digest per group of hashes) are still readable, and keep
+ * using the MD5 digest so that the existing bits remain valid.
+ *
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g. String or Integer.
  * @author Magnus Skjegstad <magnus@skjegstad.com>
  */
-public class BloomFilter<E> implements Serializable {
-    private BitSet bitset;
+public class BloomFilter<E> implements ProbabilisticSet<E>, Serializable {
+    private static final long serialVersionUID = -4451498270929112812L;
+
+    /**
+     * Hash functions used to derive the bit indices
+     */
+    public static final int HASH_FUNCTION_LEGACY_MD5 = 0, HASH_FUNCTION_DOUBLE_HASHING = 1;
+
+    // Fields of the original serialized form plus the new ones. 'bitset' is only read (for old filters)
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("bitset", BitSet.class),
+        new ObjectStreamField("bitSetSize", int.class),
+        new ObjectStreamField("bitsPerElement", double.class),
+        new ObjectStreamField("expectedNumberOfFilterElements", int.class),
+        new ObjectStreamField("numberOfAddedElements", int.class),
+        new ObjectStreamField("k", int.class),
+        new ObjectStreamField("words", long[].class),
+        new ObjectStreamField("hashFunction", int.class)
+    };
+
+    private transient AtomicLongArray words;
+    private transient AtomicLong numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int bitSetSize;
     private double bitsPerElement;
     private int expectedNumberOfFilterElements; // expected (maximum) number of elements to be added
-    private int numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
+    private int hashFunction = HASH_FUNCTION_DOUBLE_HASHING;
 
     static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
 
-    static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    static final MessageDigest digestFunction;
-    static { // The digest method is reused between instances
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
+    static final String hashName = "MD5"; // Only used by the legacy hash function
+    private static final ThreadLocal<MessageDigest> digestFunction = new ThreadLocal<MessageDigest>(){
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return java.security.MessageDigest.getInstance(hashName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("Missing digest algorithm: " + hashName, e);
+            }
         }
-        digestFunction = tmp;
-    }
+    };
 
     /**
       * Constructs an empty Bloom filter. The total length of the Bloom filter will be
@@ -78,8 +113,8 @@ public class BloomFilter<E> implements Serializable {
       this.k = k;
       this.bitsPerElement = c;
       this.bitSetSize = (int)Math.ceil(c * n);
-      numberOfAddedElements = 0;
-      this.bitset = new BitSet(bitSetSize);
+      this.numberOfAddedElements = new AtomicLong();
+      this.words = new AtomicLongArray(wordsFor(bitSetSize));
     }
 
     /**
@@ -119,8 +154,34 @@ public class BloomFilter<E> implements Serializable {
      */
     public BloomFilter(int bitSetSize, int expectedNumberOfFilterElements, int actualNumberOfFilterElements, BitSet filterData) {
         this(bitSetSize, expectedNumberOfFilterElements);
-        this.bitset = filterData;
-        this.numberOfAddedElements = actualNumberOfFilterElements;
+        this.words = toWords(filterData, bitSetSize);
+        this.numberOfAddedElements.set(actualNumberOfFilterElements);
+    }
+
+    private static int wordsFor(long bits) {
+        return (int)((bits + 63) >>> 6);
+    }
+
+    private static AtomicLongArray toWords(BitSet bitSet, int bitSetSize) {
+        final long[] array = Arrays.copyOf(bitSet.toLongArray(), wordsFor(bitSetSize));
+        return new AtomicLongArray(array);
+    }
+
+    private long[] snapshotWords() {
+        final long[] array = new long[words.length()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = words.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Returns the hash function used to derive the bit indices. One of HASH_FUNCTION_*.
+     *
+     * @return the hash function.
+     */
+    public int getHashFunction() {
+        return hashFunction;
     }
 
     /**
@@ -159,6 +220,8 @@ public class BloomFilter<E> implements Serializable {
      * digest function is called until the required number of int's are produced. For each call to digest a salt
      * is prepended to the data. The salt is increased by 1 for each call.
      *
+     * This is the legacy (MD5) hash function.
+     *
      * @param data specifies input data.
      * @param hashes number of hashes/int's to produce.
      * @return array of int-sized hashes
@@ -166,21 +229,19 @@ public class BloomFilter<E> implements Serializable {
     public static int[] createHashes(byte[] data, int hashes) {
         int[] result = new int[hashes];
 
+        final MessageDigest digest = digestFunction.get();
         int k = 0;
         byte salt = 0;
         while (k < hashes) {
-            byte[] digest;
-            synchronized (digestFunction) {
-                digestFunction.update(salt);
-                salt++;
-                digest = digestFunction.digest(data);                
-            }
-        
-            for (int i = 0; i < digest.length/4 && k < hashes; i++) {
+            digest.update(salt);
+            salt++;
+            byte[] bytes = digest.digest(data);
+
+            for (int i = 0; i < bytes.length/4 && k < hashes; i++) {
                 int h = 0;
                 for (int j = (i*4); j < (i*4)+4; j++) {
                     h <<= 8;
-                    h |= ((int) digest[j]) & 0xFF;
+                    h |= ((int) bytes[j]) & 0xFF;
                 }
                 result[k] = h;
                 k++;
@@ -189,6 +250,128 @@ public class BloomFilter<E> implements Serializable {
         return result;
     }
 
+    /**
+     * Returns the 128-bit hash of the data as two longs. If the data is already 16 bytes (a vertex/edge hash) then it
+     * is returned as is. Otherwise, MurmurHash3 x64 128.
+     *
+     * @param data specifies input data.
+     * @return array of two longs.
+     */
+    public static long[] createHash128(byte[] data) {
+        if (data.length == 16) {
+            return new long[]{getLong(data, 0), getLong(data, 8)};
+        }
+        return murmur3(data);
+    }
+
+    /**
+     * Returns the 128-bit hash of the string as two longs. If the string is a 32 character hex string (a vertex/edge
+     * hash) then it is parsed without hashing. Equal to createHash128 of the bytes of the hex string.
+     *
+     * @param val specifies the input data.
+     * @return array of two longs.
+     */
+    public static long[] createHash128(String val) {
+        if (val.length() == 32) {
+            long h1 = 0, h2 = 0;
+            boolean valid = true;
+            for (int i = 0; i < 32; i++) {
+                final int digit = Character.digit(val.charAt(i), 16);
+                if (digit < 0) {
+                    valid = false;
+                    break;
+                }
+                if (i < 16) {
+                    h1 = (h1 << 4) | digit;
+                } else {
+                    h2 = (h2 << 4) | digit;
+                }
+            }
+            if (valid) {
+                return new long[]{h1, h2};
+            }
+        }
+        return murmur3(val.getBytes(charset));
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (data[i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset + 7; i >= offset; i--) {
+            value = (value << 8) | (data[i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long[] murmur3(byte[] data) {
+        final long c1 = 0x87c37b91114253d5L, c2 = 0x4cf5ad432745937fL;
+        long h1 = 0, h2 = 0;
+        final int blocks = data.length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLittleEndian(data, i * 16);
+            long k2 = getLongLittleEndian(data, i * 16 + 8);
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0, k2 = 0;
+        final int tail = blocks * 16;
+        switch (data.length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xFFL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xFFL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xFFL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xFFL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xFFL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xFFL) << 8;
+            case 9: k2 ^= (data[tail + 8] & 0xFFL);
+                k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            case 8: k1 ^= (data[tail + 7] & 0xFFL) << 56;
+            case 7: k1 ^= (data[tail + 6] & 0xFFL) << 48;
+            case 6: k1 ^= (data[tail + 5] & 0xFFL) << 40;
+            case 5: k1 ^= (data[tail + 4] & 0xFFL) << 32;
+            case 4: k1 ^= (data[tail + 3] & 0xFFL) << 24;
+            case 3: k1 ^= (data[tail + 2] & 0xFFL) << 16;
+            case 2: k1 ^= (data[tail + 1] & 0xFFL) << 8;
+            case 1: k1 ^= (data[tail] & 0xFFL);
+                k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            default: break;
+        }
+        h1 ^= data.length; h2 ^= data.length;
+        h1 += h2; h2 += h1;
+        h1 = fmix64(h1); h2 = fmix64(h2);
+        h1 += h2; h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    /**
+     * Returns the i'th bit index for the 128-bit hash i.e. (h1 + i * h2) mod m.
+     *
+     * @param hash128 two longs.
+     * @param i index of the hash function.
+     * @param m number of bits.
+     * @return bit index.
+     */
+    public static long getBitIndex(long[] hash128, int i, long m) {
+        return ((hash128[0] + i * hash128[1]) & Long.MAX_VALUE) % m;
+    }
+
     /**
      * Compares the contents of two instances to see if they are equal.
      *
@@ -213,7 +396,10 @@ public class BloomFilter<E> implements Serializable {
         if (this.bitSetSize != other.bitSetSize) {
             return false;
         }
-        if (this.bitset != other.bitset && (this.bitset == null || !this.bitset.equals(other.bitset))) {
+        if (this.hashFunction != other.hashFunction) {
+            return false;
+        }
+        if (!Arrays.equals(snapshotWords(), other.snapshotWords())) {
             return false;
         }
         return true;
@@ -226,7 +412,7 @@ public class BloomFilter<E> implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + (this.bitset != null ? this.bitset.hashCode() : 0);
+        hash = 61 * hash + Arrays.hashCode(snapshotWords());
         hash = 61 * hash + this.expectedNumberOfFilterElements;
         hash = 61 * hash + this.bitSetSize;
         hash = 61 * hash + this.k;
@@ -270,7 +456,7 @@ public class BloomFilter<E> implements Serializable {
      * @return probability of false positives.
      */
     public double getFalsePositiveProbability() {
-        return getFalsePositiveProbability(numberOfAddedElements);
+        return getFalsePositiveProbability(numberOfAddedElements.get());
     }
 
 
@@ -290,8 +476,10 @@ public class BloomFilter<E> implements Serializable {
      * Sets all bits to false in the Bloom filter.
      */
     public void clear() {
-        bitset.clear();
-        numberOfAddedElements = 0;
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0L);
+        }
+        numberOfAddedElements.set(0);
     }
 
     /**
@@ -301,7 +489,11 @@ public class BloomFilter<E> implements Serializable {
      * @param element is an element to register in the Bloom filter.
      */
     public void add(E element) {
-       add(element.toString().getBytes(charset));
+        if (hashFunction == HASH_FUNCTION_DOUBLE_HASHING) {
+            addHash128(createHash128(element.toString()));
+        } else {
+            add(element.toString().getBytes(charset));
+        }
     }
 
     /**
@@ -310,10 +502,36 @@ public class BloomFilter<E> implements Serializable {
      * @param bytes array of bytes to add to the Bloom filter.
      */
     public void add(byte[] bytes) {
-       int[] hashes = createHashes(bytes, k);
-       for (int hash : hashes)
-           bitset.set(Math.abs(hash % bitSetSize), true);
-       numberOfAddedElements ++;
+        if (hashFunction == HASH_FUNCTION_DOUBLE_HASHING) {
+            addHash128(createHash128(bytes));
+        } else {
+            int[] hashes = createHashes(bytes, k);
+            for (int hash : hashes)
+                setBitAtomically(Math.abs(hash % bitSetSize));
+            numberOfAddedElements.incrementAndGet();
+        }
+    }
+
+    void addHash128(long[] hash128) {
+        for (int i = 0; i < k; i++) {
+            setBitAtomically(getBitIndex(hash128, i, bitSetSize));
+        }
+        numberOfAddedElements.incrementAndGet();
+    }
+
+    private void setBitAtomically(long bit) {
+        final int index = (int)(bit >>> 6);
+        final long mask = 1L << (bit & 63);
+        long current;
+        while (((current = words.get(index)) & mask) == 0) {
+            if (words.compareAndSet(index, current, current | mask)) {
+                return;
+            }
+        }
+    }
+
+    private boolean isBitSet(long bit) {
+        return (words.get((int)(bit >>> 6)) & (1L << (bit & 63))) != 0;
     }
 
     /**
@@ -334,7 +552,11 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the element could have been inserted into the Bloom filter.
      */
     public boolean contains(E element) {
-        return contains(element.toString().getBytes(charset));
+        if (hashFunction == HASH_FUNCTION_DOUBLE_HASHING) {
+            return containsHash128(createHash128(element.toString()));
+        } else {
+            return contains(element.toString().getBytes(charset));
+        }
     }
 
     /**
@@ -346,9 +568,21 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the array could have been inserted into the Bloom filter.
      */
     public boolean contains(byte[] bytes) {
+        if (hashFunction == HASH_FUNCTION_DOUBLE_HASHING) {
+            return containsHash128(createHash128(bytes));
+        }
         int[] hashes = createHashes(bytes, k);
         for (int hash : hashes) {
-            if (!bitset.get(Math.abs(hash % bitSetSize))) {
+            if (!isBitSet(Math.abs(hash % bitSetSize))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean containsHash128(long[] hash128) {
+        for (int i = 0; i < k; i++) {
+            if (!isBitSet(getBitIndex(hash128, i, bitSetSize))) {
                 return false;
             }
         }
@@ -375,7 +609,7 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the bit is set, false if it is not.
      */
     public boolean getBit(int bit) {
-        return bitset.get(bit);
+        return isBitSet(bit);
     }
 
     /**
@@ -384,15 +618,112 @@ public class BloomFilter<E> implements Serializable {
      * @param value If true, the bit is set. If false, the bit is cleared.
      */
     public void setBit(int bit, boolean value) {
-        bitset.set(bit, value);
+        if (value) {
+            setBitAtomically(bit);
+        } else {
+            final int index = bit >>> 6;
+            final long mask = 1L << (bit & 63);
+            long current;
+            while (((current = words.get(index)) & mask) != 0) {
+                if (words.compareAndSet(index, current, current & ~mask)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets all bits in the Bloom filter to the given value.
+     * @param value If true, all bits are set. If false, all bits are cleared.
+     */
+    public void setAllBits(boolean value) {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, value ? -1L : 0L);
+        }
+        if (value && (bitSetSize & 63) != 0) {
+            words.set(words.length() - 1, (1L << (bitSetSize & 63)) - 1);
+        }
+    }
+
+    /**
+     * Sets the bits of this Bloom filter to the bitwise OR of this and the other filter.
+     * Both filters must have the same size.
+     * @param other filter to OR with.
+     */
+    public void or(BloomFilter<?> other) {
+        mustBeSameSize(other);
+        for (int i = 0; i < words.length(); i++) {
+            final long otherWord = other.words.get(i);
+            long current;
+            while (((current = words.get(i)) | otherWord) != current) {
+                if (words.compareAndSet(i, current, current | otherWord)) {
+                    break;
+                }
+            }
+        }
     }
 
     /**
-     * Return the bit set used to store the Bloom filter.
+     * Sets the bits of this Bloom filter to the bitwise AND of this and the other filter.
+     * Both filters must have the same size.
+     * @param other filter to AND with.
+     */
+    public void and(BloomFilter<?> other) {
+        mustBeSameSize(other);
+        for (int i = 0; i < words.length(); i++) {
+            final long otherWord = other.words.get(i);
+            long current;
+            while (((current = words.get(i)) & otherWord) != current) {
+                if (words.compareAndSet(i, current, current & otherWord)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of longs used to store the bits
+     */
+    int getWordCount() {
+        return words.length();
+    }
+
+    /**
+     * ORs getWordCount() longs of 'source' starting at 'offset' into this Bloom filter. Used by MatrixFilter.
+     */
+    void orWords(long[] source, int offset) {
+        for (int i = 0; i < words.length(); i++) {
+            final long otherWord = source[offset + i];
+            long current;
+            while (((current = words.get(i)) | otherWord) != current) {
+                if (words.compareAndSet(i, current, current | otherWord)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * ORs the bits of this Bloom filter into getWordCount() longs of 'destination' starting at 'offset'. Used by MatrixFilter.
+     */
+    void orWordsInto(long[] destination, int offset) {
+        for (int i = 0; i < words.length(); i++) {
+            destination[offset + i] |= words.get(i);
+        }
+    }
+
+    private void mustBeSameSize(BloomFilter<?> other) {
+        if (other.bitSetSize != this.bitSetSize) {
+            throw new IllegalArgumentException("Bloom filter size mismatch: " + this.bitSetSize + " != " + other.bitSetSize);
+        }
+    }
+
+    /**
+     * Return a copy of the bits of the Bloom filter. Changes to the returned bit set are not reflected in the filter.
      * @return bit set representing the Bloom filter.
      */
     public BitSet getBitSet() {
-        return bitset;
+        return BitSet.valueOf(snapshotWords());
     }
 
     /**
@@ -412,7 +743,7 @@ public class BloomFilter<E> implements Serializable {
      * @return number of elements added to the Bloom filter.
      */
     public int count() {
-        return this.numberOfAddedElements;
+        return (int)Math.min(Integer.MAX_VALUE, this.numberOfAddedElements.get());
     }
 
     /**
@@ -442,6 +773,45 @@ public class BloomFilter<E> implements Serializable {
      * @return number of bits per element.
      */
     public double getBitsPerElement() {
-        return this.bitSetSize / (double)numberOfAddedElements;
+        return this.bitSetSize / (double)numberOfAddedElements.get();
+    }
+
+    @Override
+    public String getStats() {
+        return "BloomFilter[bits=" + bitSetSize + ", k=" + k + ", count=" + numberOfAddedElements.get()
+                + ", expectedElements=" + expectedNumberOfFilterElements
+                + ", estimatedFalsePositiveProbability=" + String.format("%.9f", getFalsePositiveProbability()) + "]";
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("bitset", null);
+        fields.put("bitSetSize", bitSetSize);
+        fields.put("bitsPerElement", bitsPerElement);
+        fields.put("expectedNumberOfFilterElements", expectedNumberOfFilterElements);
+        fields.put("numberOfAddedElements", count());
+        fields.put("k", k);
+        fields.put("words", snapshotWords());
+        fields.put("hashFunction", hashFunction);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        this.bitSetSize = fields.get("bitSetSize", 0);
+        this.bitsPerElement = fields.get("bitsPerElement", 0.0);
+        this.expectedNumberOfFilterElements = fields.get("expectedNumberOfFilterElements", 0);
+        this.k = fields.get("k", 0);
+        this.numberOfAddedElements = new AtomicLong(fields.get("numberOfAddedElements", 0));
+        final long[] serializedWords = (long[])fields.get("words", null);
+        if (serializedWords != null) {
+            this.words = new AtomicLongArray(Arrays.copyOf(serializedWords, wordsFor(bitSetSize)));
+            this.hashFunction = fields.get("hashFunction", HASH_FUNCTION_DOUBLE_HASHING);
+        } else {
+            // Serialized before double hashing
+            final BitSet bitset = (BitSet)fields.get("bitset", null);
+            this.words = toWords(bitset == null ? new BitSet() : bitset, bitSetSize);
+            this.hashFunction = HASH_FUNCTION_LEGACY_MD5;
+        }
     }
 }
@@ -461,17 +461,22 @@ public class Graph implements Serializable{
 	}
 	
 	public static final Graph importGraphFromDOTFile(final String filePath) throws Exception{
-		final boolean blocking = true, closeReaderOnShutdown = true;
-		final int reportingIntervalSeconds = -1;
-		final boolean logAll = false;
-		
-		final spade.reporter.Graphviz reporter = new spade.reporter.Graphviz();
-		final spade.core.Buffer buffer = new spade.core.Buffer();
-		reporter.setBuffer(buffer);
-		reporter.launchUnsafe(filePath, reportingIntervalSeconds, blocking, closeReaderOnShutdown, logAll);
-		reporter.shutdown();
-		
-		return createGraphFromBuffer(buffer);
+		// Parsed directly into the graph instead of through a reporter buffer to avoid holding all elements twice
+		final Graph graph = new Graph();
+		try(final spade.utility.DotParser parser = new spade.utility.DotParser(
+				new java.io.BufferedReader(new java.io.FileReader(filePath)))){
+			Object element;
+			while((element = parser.next()) != null){
+				if(element instanceof AbstractVertex){
+					graph.putVertex((AbstractVertex)element);
+				}else if(element instanceof AbstractEdge){
+					graph.putEdge((AbstractEdge)element);
+				}
+			}
+		}catch(Exception e){
+			throw new Exception("Failed to import graph from DOT file: '" + filePath + "'", e);
+		}
+		return graph;
 	}
 	
 	public static final Graph importGraphFromJSONFile(final String filePath) throws Exception{
@@ -0,0 +1,301 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.reporter.audit.OPMConstants;
+import spade.utility.HelperFunctions;
+
+/**
+ * Ingest governor for a reporter i.e. a token bucket on the number of elements per second and priority based load
+ * shedding.
+ *
+ * Every element is assigned a tier:
+ * 	0. Edges with a low-value operation (see 'shedOperations') on an artifact under one of 'shedPaths' (like /proc)
+ * 	1. Edges with a low-value operation
+ * 	2. Everything else (vertices, process edges, network edges, and etc). Never shed.
+ *
+ * Elements in a tier less than 'shedLevel' are sheddable. A sheddable element is dropped when there are no tokens
+ * available, and when the buffer size exceeds 'shedBufferSize' (tier 0), or twice of 'shedBufferSize' (tier 1). All
+ * other elements wait for a token.
+ *
+ * Vertices are never shed because edges might reference them.
+ */
+public class IngestGovernor{
+
+	private static final Logger logger = Logger.getLogger(IngestGovernor.class.getName());
+
+	public static final int
+		TIER_LOW_VALUE_PATH = 0,
+		TIER_LOW_VALUE = 1,
+		TIER_NORMAL = 2;
+
+	public static final List<String> defaultShedOperations = Collections.unmodifiableList(Arrays.asList(
+			OPMConstants.OPERATION_READ, OPMConstants.OPERATION_OPEN, OPMConstants.OPERATION_CLOSE,
+			OPMConstants.OPERATION_LSEEK));
+	public static final List<String> defaultShedPaths = Collections.unmodifiableList(Arrays.asList(
+			"/proc/", "/sys/", "/dev/"));
+
+	private static final long maxWaitSliceMillis = 100;
+	private static final long reportingIntervalMillis = 60 * 1000;
+
+	private final String reporterNameForLogging;
+
+	private final Object tokenLock = new Object();
+	// Tokens per second. Non-positive means no limit
+	private volatile double ingestRate = 0;
+	private volatile double ingestBurst = 0;
+	private double tokens = 0;
+	private long lastRefillNanos = System.nanoTime();
+
+	private volatile int shedLevel = 0;
+	private volatile int shedBufferSize = 0;
+	private volatile Set<String> shedOperations = new LinkedHashSet<String>(defaultShedOperations);
+	private volatile String[] shedPaths = defaultShedPaths.toArray(new String[0]);
+
+	// Indexed by tier
+	private final AtomicLongArray admittedCounts = new AtomicLongArray(3);
+	private final AtomicLongArray shedCountsNoTokens = new AtomicLongArray(3);
+	private final AtomicLongArray shedCountsBufferSize = new AtomicLongArray(3);
+	private volatile long waitedMillis = 0;
+	private volatile long lastReportedAtMillis = System.currentTimeMillis();
+
+	public IngestGovernor(final String reporterNameForLogging){
+		this.reporterNameForLogging = reporterNameForLogging;
+	}
+
+	/////////////////////////
+
+	public final void setIngestRate(final double ingestRate, final double ingestBurst){
+		synchronized(tokenLock){
+			refill(System.nanoTime());
+			this.ingestRate = ingestRate;
+			this.ingestBurst = ingestBurst > 0 ? ingestBurst : ingestRate;
+			this.tokens = Math.min(this.tokens, this.ingestBurst);
+		}
+	}
+
+	public final double getIngestRate(){
+		return ingestRate;
+	}
+
+	public final double getIngestBurst(){
+		return ingestBurst;
+	}
+
+	public final void setShedLevel(final int shedLevel){
+		if(shedLevel < 0 || shedLevel > TIER_NORMAL){
+			throw new IllegalArgumentException("Shed level must be in range [0-" + TIER_NORMAL + "]: " + shedLevel);
+		}
+		this.shedLevel = shedLevel;
+	}
+
+	public final int getShedLevel(){
+		return shedLevel;
+	}
+
+	public final void setShedBufferSize(final int shedBufferSize){
+		this.shedBufferSize = shedBufferSize;
+	}
+
+	public final int getShedBufferSize(){
+		return shedBufferSize;
+	}
+
+	public final void setShedOperations(final List<String> shedOperations){
+		this.shedOperations = new LinkedHashSet<String>(shedOperations);
+	}
+
+	public final Set<String> getShedOperations(){
+		return Collections.unmodifiableSet(shedOperations);
+	}
+
+	public final void setShedPaths(final List<String> shedPaths){
+		this.shedPaths = shedPaths.toArray(new String[0]);
+	}
+
+	public final List<String> getShedPaths(){
+		return Collections.unmodifiableList(Arrays.asList(shedPaths));
+	}
+
+	public final boolean isEnabled(){
+		return ingestRate > 0 || (shedLevel > 0 && shedBufferSize > 0);
+	}
+
+	public final long getShedCount(){
+		long total = 0;
+		for(int i = 0; i < shedCountsNoTokens.length(); i++){
+			total += shedCountsNoTokens.get(i) + shedCountsBufferSize.get(i);
+		}
+		return total;
+	}
+
+	public final String getStats(){
+		final StringBuilder builder = new StringBuilder();
+		for(int tier = 0; tier <= TIER_NORMAL; tier++){
+			builder.append("Tier").append(tier).append("[Admitted=").append(admittedCounts.get(tier))
+				.append(", ShedNoTokens=").append(shedCountsNoTokens.get(tier))
+				.append(", ShedBufferSize=").append(shedCountsBufferSize.get(tier)).append("], ");
+		}
+		builder.append("WaitedMillis=").append(waitedMillis);
+		return builder.toString();
+	}
+
+	/////////////////////////
+
+	public final int getTier(final Object element){
+		if(!(element instanceof AbstractEdge)){
+			return TIER_NORMAL;
+		}
+		final AbstractEdge edge = (AbstractEdge)element;
+		final String operation = edge.getAnnotation(OPMConstants.EDGE_OPERATION);
+		if(operation == null || !shedOperations.contains(operation)){
+			return TIER_NORMAL;
+		}
+		if(isUnderShedPath(edge.getChildVertex()) || isUnderShedPath(edge.getParentVertex())){
+			return TIER_LOW_VALUE_PATH;
+		}
+		return TIER_LOW_VALUE;
+	}
+
+	private final boolean isUnderShedPath(final AbstractVertex vertex){
+		if(vertex == null){
+			return false;
+		}
+		final String path = vertex.getAnnotation(OPMConstants.ARTIFACT_PATH);
+		if(path == null){
+			return false;
+		}
+		for(final String shedPath : shedPaths){
+			if(path.startsWith(shedPath)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for a token if the element is not sheddable.
+	 *
+	 * @param element vertex or edge
+	 * @param buffer the reporter's buffer to check the size of
+	 * @return true if the element must be put in the buffer, and false if it must be dropped
+	 */
+	public final boolean admit(final Object element, final Buffer buffer){
+		final int tier = getTier(element);
+		final int currentShedLevel = shedLevel;
+		final boolean sheddable = tier < currentShedLevel;
+
+		if(sheddable){
+			final int currentShedBufferSize = shedBufferSize;
+			if(currentShedBufferSize > 0 && buffer != null){
+				final long bufferSize = buffer.size();
+				if((tier == TIER_LOW_VALUE_PATH && bufferSize > currentShedBufferSize)
+						|| (tier == TIER_LOW_VALUE && bufferSize > 2L * currentShedBufferSize)){
+					shedCountsBufferSize.incrementAndGet(tier);
+					report();
+					return false;
+				}
+			}
+		}
+
+		if(ingestRate > 0){
+			if(sheddable){
+				if(!tryAcquire()){
+					shedCountsNoTokens.incrementAndGet(tier);
+					report();
+					return false;
+				}
+			}else{
+				acquire();
+			}
+		}
+
+		admittedCounts.incrementAndGet(tier);
+		report();
+		return true;
+	}
+
+	private final void refill(final long nowNanos){
+		if(ingestRate > 0){
+			tokens = Math.min(ingestBurst, tokens + ((nowNanos - lastRefillNanos) * ingestRate) / 1e9);
+		}
+		lastRefillNanos = nowNanos;
+	}
+
+	private final boolean tryAcquire(){
+		synchronized(tokenLock){
+			if(ingestRate <= 0){
+				return true;
+			}
+			refill(System.nanoTime());
+			if(tokens >= 1){
+				tokens--;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final void acquire(){
+		long waitStartMillis = 0;
+		while(true){
+			final long sleepMillis;
+			synchronized(tokenLock){
+				if(ingestRate <= 0){ // Unset while waiting
+					break;
+				}
+				refill(System.nanoTime());
+				if(tokens >= 1){
+					tokens--;
+					break;
+				}
+				sleepMillis = Math.max(1, Math.min(maxWaitSliceMillis, (long)Math.ceil(((1 - tokens) * 1000) / ingestRate)));
+			}
+			if(waitStartMillis == 0){
+				waitStartMillis = System.currentTimeMillis();
+			}
+			HelperFunctions.sleepSafe(sleepMillis);
+		}
+		if(waitStartMillis != 0){
+			synchronized(tokenLock){
+				waitedMillis += System.currentTimeMillis() - waitStartMillis;
+			}
+		}
+	}
+
+	private final void report(){
+		final long nowMillis = System.currentTimeMillis();
+		if(nowMillis - lastReportedAtMillis >= reportingIntervalMillis){
+			lastReportedAtMillis = nowMillis;
+			if(getShedCount() > 0 || waitedMillis > 0){
+				logger.log(Level.INFO, "Ingest governor stats for reporter '" + reporterNameForLogging + "': " + getStats());
+			}
+		}
+	}
+}
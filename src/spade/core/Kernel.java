@@ -1022,6 +1022,23 @@ public class Kernel
 
 		reporter.setBuffer(buffer);
 
+		for(final String ingestGovernorKey : AbstractReporter.ingestGovernorConfigKeys){
+			final SimpleEntry<String, String> valueEntry = configMapWithSources.get(ingestGovernorKey);
+			if(valueEntry != null){
+				try{
+					reporter.setProperty(ingestGovernorKey, valueEntry.getKey());
+					logger.log(Level.INFO, "Ingest governor for reporter '" + classNameString + "' set with "
+							+ "'" + ingestGovernorKey + "'='" + valueEntry.getKey() + "' from '" + valueEntry.getValue() + "'");
+				}catch(Throwable t){
+					outputStream.println("error: Invalid ingest governor value '" + ingestGovernorKey + "' = "
+							+ "'" + valueEntry.getKey() + "' from '" + valueEntry.getValue() + "'. " + t.getMessage());
+					logger.log(Level.SEVERE, "error: Invalid ingest governor value '" + ingestGovernorKey + "' = "
+							+ "'" + valueEntry.getKey() + "' from '" + valueEntry.getValue() + "'", t);
+					return;
+				}
+			}
+		}
+
 		final boolean launchResult;
 
 		try{
@@ -0,0 +1,417 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.utility.HelperFunctions;
+
+/**
+ * Bloom filter backed by a memory-mapped file i.e. the bits live off the Java heap and are loaded lazily by the OS.
+ *
+ * File format (native byte order is NOT used, always big-endian):
+ * 	[0-7] magic, [8-11] version, [12-15] hash function, [16-19] k, [20-23] unused, [24-31] size in bits,
+ * 	[32-39] expected number of elements, [40-47] number of added elements, [48-63] unused, [64-...] bits (as longs)
+ *
+ * The file is mapped in segments of at most 1 GB because a single mapping cannot be larger than 2 GB. Bits are set with
+ * a compare-and-set on the (8-byte aligned) word in the mapping so that adds don't block each other. The file is
+ * synced to disk (checkpoint) every 'checkpointIntervalMillis' (if positive) by a daemon thread, and on close. If the
+ * process crashes then only the elements added since the last checkpoint can be lost.
+ *
+ * Uses the same 128-bit double hashing as BloomFilter (HASH_FUNCTION_DOUBLE_HASHING).
+ *
+ * @param <E> Object type that is to be inserted into the Bloom filter
+ */
+public class MappedBloomFilter<E> implements ProbabilisticSet<E>, Closeable{
+
+	private static final Logger logger = Logger.getLogger(MappedBloomFilter.class.getName());
+
+	private static final long MAGIC = 0x5350414445424631L; // 'SPADEBF1'
+	private static final int VERSION = 1;
+
+	private static final int
+		OFFSET_MAGIC = 0,
+		OFFSET_VERSION = 8,
+		OFFSET_HASH_FUNCTION = 12,
+		OFFSET_K = 16,
+		OFFSET_SIZE = 24,
+		OFFSET_EXPECTED_ELEMENTS = 32,
+		OFFSET_COUNT = 40;
+	private static final int HEADER_SIZE = 64;
+
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_BYTES - 1;
+
+	// Atomic access to the words of the mapped segments
+	private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private final String path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] segments;
+
+	private final int k;
+	private final long bitSetSize;
+	private final long expectedNumberOfElements;
+	private final AtomicLong numberOfAddedElements;
+
+	// Held by checkpoint, clear, and close. Not by add
+	private final Object writeLock = new Object();
+	private volatile boolean dirty = false;
+	private volatile boolean closed = false;
+	private final Thread checkpointThread;
+	private volatile long checkpoints = 0;
+	private volatile long lastCheckpointMillis = 0;
+
+	private MappedBloomFilter(final String path, final RandomAccessFile file, final int k, final long bitSetSize,
+			final long expectedNumberOfElements, final long numberOfAddedElements, final boolean create,
+			final long checkpointIntervalMillis) throws IOException{
+		this.path = path;
+		this.file = file;
+		this.channel = file.getChannel();
+		this.k = k;
+		this.bitSetSize = bitSetSize;
+		this.expectedNumberOfElements = expectedNumberOfElements;
+		this.numberOfAddedElements = new AtomicLong(numberOfAddedElements);
+
+		final long dataBytes = getDataBytes(bitSetSize);
+		if(create){
+			file.setLength(HEADER_SIZE + dataBytes); // Sparse on most filesystems i.e. zeroed without writing
+		}
+
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		this.header.order(ByteOrder.BIG_ENDIAN);
+
+		final int segmentCount = (int)((dataBytes + SEGMENT_BYTES - 1) >>> SEGMENT_SHIFT);
+		this.segments = new MappedByteBuffer[segmentCount];
+		for(int i = 0; i < segmentCount; i++){
+			final long offset = (long)i << SEGMENT_SHIFT;
+			final long length = Math.min(SEGMENT_BYTES, dataBytes - offset);
+			this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + offset, length);
+			this.segments[i].order(ByteOrder.BIG_ENDIAN);
+		}
+
+		if(create){
+			header.putLong(OFFSET_MAGIC, MAGIC);
+			header.putInt(OFFSET_VERSION, VERSION);
+			header.putInt(OFFSET_HASH_FUNCTION, BloomFilter.HASH_FUNCTION_DOUBLE_HASHING);
+			header.putInt(OFFSET_K, k);
+			header.putLong(OFFSET_SIZE, bitSetSize);
+			header.putLong(OFFSET_EXPECTED_ELEMENTS, expectedNumberOfElements);
+			header.putLong(OFFSET_COUNT, numberOfAddedElements);
+			header.force();
+		}
+
+		if(checkpointIntervalMillis > 0){
+			this.checkpointThread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					while(!closed){
+						HelperFunctions.sleepSafe(checkpointIntervalMillis);
+						if(!closed && dirty){
+							try{
+								checkpoint();
+							}catch(Exception e){
+								logger.log(Level.WARNING, "Failed to checkpoint Bloom filter: " + MappedBloomFilter.this.path, e);
+							}
+						}
+					}
+				}
+			}, MappedBloomFilter.class.getSimpleName() + "-checkpoint-" + new File(path).getName());
+			this.checkpointThread.setDaemon(true);
+			this.checkpointThread.start();
+		}else{
+			this.checkpointThread = null;
+		}
+	}
+
+	private static long getDataBytes(final long bitSetSize){
+		return ((bitSetSize + 63) >>> 6) << 3;
+	}
+
+	/**
+	 * Creates a new file sized for the given false positive probability and expected elements.
+	 *
+	 * @param path file to create. Must not exist.
+	 * @param falsePositiveProbability the desired false positive probability
+	 * @param expectedNumberOfElements the expected number of elements
+	 * @param checkpointIntervalMillis interval to sync the file to disk after. Non-positive to only sync on close
+	 * @return MappedBloomFilter
+	 * @throws Exception if the file exists or failed to create
+	 */
+	public static <E> MappedBloomFilter<E> create(final String path, final double falsePositiveProbability,
+			final long expectedNumberOfElements, final long checkpointIntervalMillis) throws Exception{
+		if(falsePositiveProbability <= 0 || falsePositiveProbability >= 1){
+			throw new Exception("False positive probability must be in range (0-1): " + falsePositiveProbability);
+		}
+		if(expectedNumberOfElements < 1){
+			throw new Exception("Expected number of elements must be greater than zero: " + expectedNumberOfElements);
+		}
+		final File fileObject = new File(path);
+		if(fileObject.exists()){
+			throw new Exception("Bloom filter file already exists: " + path);
+		}
+		final int k = (int)Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)));
+		final long bitSetSize = (long)Math.ceil((k / Math.log(2)) * expectedNumberOfElements);
+		final RandomAccessFile file = new RandomAccessFile(fileObject, "rw");
+		try{
+			return new MappedBloomFilter<E>(path, file, k, bitSetSize, expectedNumberOfElements, 0, true, checkpointIntervalMillis);
+		}catch(Exception e){
+			try{ file.close(); }catch(Exception e1){}
+			throw new Exception("Failed to create Bloom filter file: " + path, e);
+		}
+	}
+
+	/**
+	 * Opens an existing file created by 'create'. Only the header is read.
+	 *
+	 * @param path file to open
+	 * @param checkpointIntervalMillis interval to sync the file to disk after. Non-positive to only sync on close
+	 * @return MappedBloomFilter
+	 * @throws Exception if the file doesn't exist or has an invalid header
+	 */
+	public static <E> MappedBloomFilter<E> open(final String path, final long checkpointIntervalMillis) throws Exception{
+		final RandomAccessFile file = new RandomAccessFile(new File(path), "rw");
+		try{
+			if(file.length() < HEADER_SIZE){
+				throw new Exception("File too small for header: " + file.length());
+			}
+			file.seek(0);
+			final long magic = file.readLong();
+			if(magic != MAGIC){
+				throw new Exception("Not a Bloom filter file. Invalid magic: " + Long.toHexString(magic));
+			}
+			final int version = file.readInt();
+			if(version != VERSION){
+				throw new Exception("Unsupported version: " + version);
+			}
+			final int hashFunction = file.readInt();
+			if(hashFunction != BloomFilter.HASH_FUNCTION_DOUBLE_HASHING){
+				throw new Exception("Unsupported hash function: " + hashFunction);
+			}
+			final int k = file.readInt();
+			file.seek(OFFSET_SIZE);
+			final long bitSetSize = file.readLong();
+			final long expectedNumberOfElements = file.readLong();
+			final long numberOfAddedElements = file.readLong();
+			if(k < 1 || bitSetSize < 1){
+				throw new Exception("Invalid header [k=" + k + ", size=" + bitSetSize + "]");
+			}
+			if(file.length() < HEADER_SIZE + getDataBytes(bitSetSize)){
+				throw new Exception("File truncated. Expected bytes: " + (HEADER_SIZE + getDataBytes(bitSetSize)) + ", actual: " + file.length());
+			}
+			return new MappedBloomFilter<E>(path, file, k, bitSetSize, expectedNumberOfElements, numberOfAddedElements,
+					false, checkpointIntervalMillis);
+		}catch(Exception e){
+			try{ file.close(); }catch(Exception e1){}
+			throw new Exception("Failed to open Bloom filter file: " + path, e);
+		}
+	}
+
+	/**
+	 * Opens the file if it exists otherwise creates it
+	 *
+	 * @see #open(String, long)
+	 * @see #create(String, double, long, long)
+	 */
+	public static <E> MappedBloomFilter<E> openOrCreate(final String path, final double falsePositiveProbability,
+			final long expectedNumberOfElements, final long checkpointIntervalMillis) throws Exception{
+		if(new File(path).exists()){
+			return open(path, checkpointIntervalMillis);
+		}else{
+			return create(path, falsePositiveProbability, expectedNumberOfElements, checkpointIntervalMillis);
+		}
+	}
+
+	/////////////////////////
+
+	private final boolean isBitSet(final long bitIndex){
+		final long byteOffset = (bitIndex >>> 6) << 3;
+		final long word = segments[(int)(byteOffset >>> SEGMENT_SHIFT)].getLong((int)(byteOffset & SEGMENT_MASK));
+		return (word & (1L << bitIndex)) != 0;
+	}
+
+	private final void setBit(final long bitIndex){
+		final long byteOffset = (bitIndex >>> 6) << 3;
+		final MappedByteBuffer segment = segments[(int)(byteOffset >>> SEGMENT_SHIFT)];
+		final int index = (int)(byteOffset & SEGMENT_MASK);
+		final long mask = 1L << bitIndex;
+		long word;
+		while(((word = (long)WORDS.getVolatile(segment, index)) & mask) == 0){
+			if(WORDS.compareAndSet(segment, index, word, word | mask)){
+				return;
+			}
+		}
+	}
+
+	private final void addHash128(final long[] hash128){
+		ensureOpen();
+		for(int i = 0; i < k; i++){
+			setBit(BloomFilter.getBitIndex(hash128, i, bitSetSize));
+		}
+		numberOfAddedElements.incrementAndGet();
+		dirty = true;
+	}
+
+	private final boolean containsHash128(final long[] hash128){
+		ensureOpen();
+		for(int i = 0; i < k; i++){
+			if(!isBitSet(BloomFilter.getBitIndex(hash128, i, bitSetSize))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final void ensureOpen(){
+		if(closed){
+			throw new IllegalStateException("Bloom filter closed: " + path);
+		}
+	}
+
+	@Override
+	public void add(final E element){
+		addHash128(BloomFilter.createHash128(element.toString()));
+	}
+
+	@Override
+	public void add(final byte[] bytes){
+		addHash128(BloomFilter.createHash128(bytes));
+	}
+
+	@Override
+	public boolean contains(final E element){
+		return containsHash128(BloomFilter.createHash128(element.toString()));
+	}
+
+	@Override
+	public boolean contains(final byte[] bytes){
+		return containsHash128(BloomFilter.createHash128(bytes));
+	}
+
+	/**
+	 * Zeroes all the bits. Touches every page of the file. Not atomic with respect to the concurrent adds.
+	 */
+	@Override
+	public void clear(){
+		ensureOpen();
+		synchronized(writeLock){
+			for(final MappedByteBuffer segment : segments){
+				final int limit = segment.limit();
+				for(int i = 0; i < limit; i += 8){
+					segment.putLong(i, 0L);
+				}
+			}
+			numberOfAddedElements.set(0);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Writes the count to the header and syncs all the modified pages to disk
+	 */
+	public void checkpoint(){
+		synchronized(writeLock){
+			if(closed){
+				return;
+			}
+			dirty = false;
+			header.putLong(OFFSET_COUNT, numberOfAddedElements.get());
+			for(final MappedByteBuffer segment : segments){
+				segment.force();
+			}
+			header.force();
+			checkpoints++;
+			lastCheckpointMillis = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Checkpoints and closes the file. The mappings are released when garbage collected.
+	 */
+	@Override
+	public void close() throws IOException{
+		if(closed){
+			return;
+		}
+		checkpoint();
+		synchronized(writeLock){
+			closed = true;
+		}
+		if(checkpointThread != null){
+			checkpointThread.interrupt();
+		}
+		channel.close();
+		file.close();
+	}
+
+	public boolean isClosed(){
+		return closed;
+	}
+
+	public String getPath(){
+		return path;
+	}
+
+	public int getK(){
+		return k;
+	}
+
+	/**
+	 * @return size in bits
+	 */
+	public long size(){
+		return bitSetSize;
+	}
+
+	public long count(){
+		return numberOfAddedElements.get();
+	}
+
+	public long getExpectedNumberOfElements(){
+		return expectedNumberOfElements;
+	}
+
+	@Override
+	public double getFalsePositiveProbability(){
+		return Math.pow((1 - Math.exp(-k * (double)numberOfAddedElements.get() / (double)bitSetSize)), k);
+	}
+
+	@Override
+	public String getStats(){
+		return "MappedBloomFilter[path=" + path + ", bits=" + bitSetSize + ", k=" + k + ", count=" + count()
+				+ ", expectedElements=" + expectedNumberOfElements
+				+ ", estimatedFalsePositiveProbability=" + String.format("%.9f", getFalsePositiveProbability())
+				+ ", checkpoints=" + checkpoints + ", lastCheckpointMillis=" + lastCheckpointMillis + "]";
+	}
+}
@@ -27,38 +27,36 @@
  */
 package spade.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 
 /*
+ * A matrix of Bloom filters (rows) where a vertex is mapped to k rows. All the rows are stored in a single flat long
+ * array (row-major) so that a row is addressed directly and rows are combined a word (64 bits) at a time.
+ *
+ * The row indices of a vertex and the bit indices in a row are derived using the same double hashing as in
+ * BloomFilter.
+ *
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g.
  * String or Integer. @author Magnus Skjegstad <magnus@skjegstad.com>
  */
 public class MatrixFilter implements Serializable {
 
-    private List<BloomFilter> filterSet;
-    private int filterSetSize;
+    // Changed with the flat matrix (custom serialized form). Instances serialized before can't be read
+    private static final long serialVersionUID = -2298510390713345227L;
+
+    private static final byte SERIALIZED_DENSE = 0, SERIALIZED_SPARSE = 1;
+
+    private int filterSetSize; // number of rows, and the number of bits in each row
+    private int wordsPerRow;
+    private transient long[] matrix;
     private double filtersPerElement;
     private int expectedNumberOfElements; // expected (maximum) number of elements to be added
     private int numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
-    static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
-    static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
-    static final MessageDigest digestFunction;
-
-    static { // The digest method is reused between instances
-        MessageDigest tmp;
-        try {
-            tmp = java.security.MessageDigest.getInstance(hashName);
-        } catch (NoSuchAlgorithmException e) {
-            tmp = null;
-        }
-        digestFunction = tmp;
-    }
 
     /**
      * Constructs an empty Bloom filter. The total length of the Bloom filter
@@ -74,10 +72,12 @@ public class MatrixFilter implements Serializable {
         this.filtersPerElement = c;
         this.filterSetSize = (int) Math.ceil(c * n);
         numberOfAddedElements = 0;
-        this.filterSet = new LinkedList<>();
-        for (int i = 0; i < this.filterSetSize; i++) {
-            this.filterSet.add(new BloomFilter(c, n, k));
+        this.wordsPerRow = (filterSetSize + 63) >>> 6;
+        final long totalWords = (long) filterSetSize * (long) wordsPerRow;
+        if (totalWords > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Matrix too large. Rows: " + filterSetSize + ", words per row: " + wordsPerRow);
         }
+        this.matrix = new long[(int) totalWords];
     }
 
     /**
@@ -112,57 +112,32 @@ public class MatrixFilter implements Serializable {
                 (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)))); // k = ceil(-log_2(false prob.))
     }
 
-    public BloomFilter getAllBloomFilters() {
-        BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
-        result.getBitSet().set(0, result.getBitSet().size() - 1, false);
-        for (int i = 0; i < filterSet.size(); i++) {
-            BloomFilter currentFilter = filterSet.get(i);
-            result.getBitSet().or(currentFilter.getBitSet());
-        }
-        return result;
-    }
-
-    /**
-     * Generates a digest based on the contents of a String.
-     *
-     * @param val specifies the input data.
-     * @param charset specifies the encoding of the input data.
-     * @return digest as long.
-     */
-    public static long createHash(String val, Charset charset) {
-        return createHash(val.getBytes(charset));
+    private BloomFilter<AbstractVertex> newRowBloomFilter() {
+        return new BloomFilter<AbstractVertex>(filtersPerElement, expectedNumberOfElements, k);
     }
 
     /**
-     * Generates a digest based on the contents of a String.
-     *
-     * @param val specifies the input data. The encoding is expected to be
-     * UTF-8.
-     * @return digest as long.
+     * Returns the offsets (in the matrix) of the k rows of the vertex.
      */
-    public static long createHash(String val) {
-        return createHash(val, charset);
-    }
-
-    /**
-     * Generates a digest based on the contents of an array of bytes.
-     *
-     * @param data specifies input data.
-     * @return digest as long.
-     */
-    public static long createHash(byte[] data) {
-        long h = 0;
-        byte[] res;
-
-        synchronized (digestFunction) {
-            res = digestFunction.digest(data);
+    private int[] getRowOffsets(AbstractVertex vertex) {
+        final long[] hash128 = BloomFilter.createHash128(sketchString(vertex));
+        final int[] offsets = new int[k];
+        for (int x = 0; x < k; x++) {
+            offsets[x] = (int) BloomFilter.getBitIndex(hash128, x, filterSetSize) * wordsPerRow;
         }
+        return offsets;
+    }
 
-        for (int i = 0; i < 4; i++) {
-            h <<= 8;
-            h |= ((int) res[i]) & 0xFF;
+    public BloomFilter<AbstractVertex> getAllBloomFilters() {
+        final long[] row = new long[wordsPerRow];
+        for (int offset = 0; offset < matrix.length; offset += wordsPerRow) {
+            for (int i = 0; i < wordsPerRow; i++) {
+                row[i] |= matrix[offset + i];
+            }
         }
-        return h;
+        BloomFilter<AbstractVertex> result = newRowBloomFilter();
+        result.orWords(row, 0);
+        return result;
     }
 
     /**
@@ -189,7 +164,7 @@ public class MatrixFilter implements Serializable {
         if (this.filterSetSize != other.filterSetSize) {
             return false;
         }
-        if (this.filterSet != other.filterSet && (this.filterSet == null || !this.filterSet.equals(other.filterSet))) {
+        if (!Arrays.equals(this.matrix, other.matrix)) {
             return false;
         }
         return true;
@@ -203,7 +178,7 @@ public class MatrixFilter implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + (this.filterSet != null ? this.filterSet.hashCode() : 0);
+        hash = 61 * hash + Arrays.hashCode(this.matrix);
         hash = 61 * hash + this.expectedNumberOfElements;
         hash = 61 * hash + this.filterSetSize;
         hash = 61 * hash + this.k;
@@ -265,7 +240,7 @@ public class MatrixFilter implements Serializable {
      * Sets all bits to false in the Bloom filter.
      */
     public void clear() {
-        filterSet.clear();
+        Arrays.fill(matrix, 0L);
         numberOfAddedElements = 0;
     }
 
@@ -277,38 +252,37 @@ public class MatrixFilter implements Serializable {
      * @param childVertex
      */
     public void add(AbstractVertex parentVertex, AbstractVertex childVertex) {
-        long hash;
-        String valString = sketchString(parentVertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).add(childVertex);
+        final long[] childHash128 = BloomFilter.createHash128(childVertex.toString());
+        for (int offset : getRowOffsets(parentVertex)) {
+            for (int i = 0; i < k; i++) {
+                final long bit = BloomFilter.getBitIndex(childHash128, i, filterSetSize);
+                matrix[offset + (int) (bit >>> 6)] |= 1L << bit;
+            }
         }
         numberOfAddedElements++;
     }
 
-    public void updateAncestors(AbstractVertex vertex, BloomFilter ancestorsToAdd) {
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).getBitSet().or(ancestorsToAdd.getBitSet());
+    public void updateAncestors(AbstractVertex vertex, BloomFilter<AbstractVertex> ancestorsToAdd) {
+        if (ancestorsToAdd.getWordCount() != wordsPerRow) {
+            throw new IllegalArgumentException("Bloom filter size mismatch: " + ancestorsToAdd.size() + " != " + filterSetSize);
+        }
+        for (int offset : getRowOffsets(vertex)) {
+            ancestorsToAdd.orWordsInto(matrix, offset);
         }
         numberOfAddedElements++;
     }
 
-    public BloomFilter get(AbstractVertex vertex) {
-        BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
-        result.getBitSet().set(0, result.getBitSet().size() - 1, true);
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            BloomFilter tempBloomFilter = filterSet.get(Math.abs((int) hash));
-            result.getBitSet().and(tempBloomFilter.getBitSet());
+    public BloomFilter<AbstractVertex> get(AbstractVertex vertex) {
+        final int[] offsets = getRowOffsets(vertex);
+        final long[] row = new long[wordsPerRow];
+        Arrays.fill(row, -1L);
+        for (int offset : offsets) {
+            for (int i = 0; i < wordsPerRow; i++) {
+                row[i] &= matrix[offset + i];
+            }
         }
+        BloomFilter<AbstractVertex> result = newRowBloomFilter();
+        result.orWords(row, 0);
         return result;
     }
 
@@ -322,13 +296,13 @@ public class MatrixFilter implements Serializable {
      * filter.
      */
     public boolean contains(AbstractVertex vertex) {
-        long hash;
-        String valString = sketchString(vertex);
-        for (int x = 0; x < k; x++) {
-            hash = createHash(valString + Integer.toString(x));
-            hash = hash % (long) filterSetSize;
-            if (!filterSet.get(Math.abs((int) hash)).contains(vertex)) {
-                return false;
+        final long[] hash128 = BloomFilter.createHash128(vertex.toString());
+        for (int offset : getRowOffsets(vertex)) {
+            for (int i = 0; i < k; i++) {
+                final long bit = BloomFilter.getBitIndex(hash128, i, filterSetSize);
+                if ((matrix[offset + (int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
             }
         }
         return true;
@@ -386,6 +360,57 @@ public class MatrixFilter implements Serializable {
         return this.filterSetSize / (double) numberOfAddedElements;
     }
 
+    /**
+     * Writes the matrix in the dense form (all words), or in the sparse form (index and value of the non-zero words)
+     * if that is smaller.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int nonZeroWords = 0;
+        for (long word : matrix) {
+            if (word != 0) {
+                nonZeroWords++;
+            }
+        }
+        if ((long) nonZeroWords * 12 < (long) matrix.length * 8) {
+            out.writeByte(SERIALIZED_SPARSE);
+            out.writeInt(nonZeroWords);
+            for (int i = 0; i < matrix.length; i++) {
+                if (matrix[i] != 0) {
+                    out.writeInt(i);
+                    out.writeLong(matrix[i]);
+                }
+            }
+        } else {
+            out.writeByte(SERIALIZED_DENSE);
+            for (long word : matrix) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.matrix = new long[filterSetSize * wordsPerRow];
+        final byte form = in.readByte();
+        if (form == SERIALIZED_SPARSE) {
+            final int nonZeroWords = in.readInt();
+            for (int i = 0; i < nonZeroWords; i++) {
+                final int index = in.readInt();
+                if (index < 0 || index >= matrix.length) {
+                    throw new IOException("Invalid matrix index: " + index);
+                }
+                matrix[index] = in.readLong();
+            }
+        } else if (form == SERIALIZED_DENSE) {
+            for (int i = 0; i < matrix.length; i++) {
+                matrix[i] = in.readLong();
+            }
+        } else {
+            throw new IOException("Invalid serialized matrix form: " + form);
+        }
+    }
+
     public String sketchString(AbstractVertex vertex) {
         String result = "";
         if ((vertex.getAnnotation("source host")).compareTo(vertex.getAnnotation("destination host")) < 0) {
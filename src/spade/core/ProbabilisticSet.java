@@ -0,0 +1,49 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+/**
+ * A set which can return false positives for 'contains' but never false negatives (i.e. a Bloom filter).
+ *
+ * @param <E> Object type that is to be inserted into the set
+ */
+public interface ProbabilisticSet<E>{
+
+	public void add(E element);
+
+	public void add(byte[] bytes);
+
+	public boolean contains(E element);
+
+	public boolean contains(byte[] bytes);
+
+	public void clear();
+
+	/**
+	 * @return current probability of false positives
+	 */
+	public double getFalsePositiveProbability();
+
+	/**
+	 * @return printable stats
+	 */
+	public String getStats();
+
+}
@@ -0,0 +1,250 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scalable Bloom filter (Almeida et al. 2007) i.e. a chain of Bloom filters (slices) where a new slice is added when
+ * the last one reaches its capacity.
+ *
+ * The capacity of slice i is 'initialCapacity * growthFactor^i' and its false positive probability is
+ * 'p0 * tighteningRatio^i' where p0 = maxFalsePositiveProbability * (1 - tighteningRatio). The overall false positive
+ * probability therefore stays below 'maxFalsePositiveProbability' no matter how many elements are added.
+ *
+ * Elements are added to the last slice only. 'contains' checks all slices using the same 128-bit hash. After the max
+ * number of slices the elements keep being added to the last slice (with the false positive probability growing past
+ * the max).
+ *
+ * Thread-safe.
+ *
+ * @param <E> Object type that is to be inserted into the Bloom filter
+ */
+public class ScalableBloomFilter<E> implements ProbabilisticSet<E>, Serializable{
+
+	private static final long serialVersionUID = 5071651985389719414L;
+
+	private static final Logger logger = Logger.getLogger(ScalableBloomFilter.class.getName());
+
+	public static final double defaultGrowthFactor = 2.0, defaultTighteningRatio = 0.5;
+
+	// BloomFilter sizes are ints
+	private static final long maxBitsPerSlice = Integer.MAX_VALUE - 64;
+	private static final int maxSlices = 64;
+
+	private final int initialCapacity;
+	private final double maxFalsePositiveProbability;
+	private final double growthFactor;
+	private final double tighteningRatio;
+
+	// Replaced (not modified) on adding a slice so that it can be read without the lock
+	private volatile List<BloomFilter<E>> slices;
+	private final long[] sliceCapacities;
+	private volatile long lastSliceCount;
+	private boolean loggedMaxSlices = false;
+
+	public ScalableBloomFilter(final double maxFalsePositiveProbability, final int initialCapacity){
+		this(maxFalsePositiveProbability, initialCapacity, defaultGrowthFactor, defaultTighteningRatio);
+	}
+
+	public ScalableBloomFilter(final double maxFalsePositiveProbability, final int initialCapacity,
+			final double growthFactor, final double tighteningRatio){
+		if(maxFalsePositiveProbability <= 0 || maxFalsePositiveProbability >= 1){
+			throw new IllegalArgumentException("False positive probability must be in range (0-1): " + maxFalsePositiveProbability);
+		}
+		if(initialCapacity < 1){
+			throw new IllegalArgumentException("Initial capacity must be greater than zero: " + initialCapacity);
+		}
+		if(growthFactor < 1){
+			throw new IllegalArgumentException("Growth factor must be at least 1: " + growthFactor);
+		}
+		if(tighteningRatio <= 0 || tighteningRatio >= 1){
+			throw new IllegalArgumentException("Tightening ratio must be in range (0-1): " + tighteningRatio);
+		}
+		this.maxFalsePositiveProbability = maxFalsePositiveProbability;
+		this.initialCapacity = initialCapacity;
+		this.growthFactor = growthFactor;
+		this.tighteningRatio = tighteningRatio;
+		this.slices = Collections.emptyList();
+		this.sliceCapacities = new long[maxSlices];
+		addSlice();
+	}
+
+	private final double getSliceFalsePositiveProbability(final int sliceIndex){
+		return Math.max(Double.MIN_NORMAL,
+				maxFalsePositiveProbability * (1 - tighteningRatio) * Math.pow(tighteningRatio, sliceIndex));
+	}
+
+	/**
+	 * Must be called with the lock on 'this'
+	 */
+	private final void addSlice(){
+		final int sliceIndex = slices.size();
+		final double falsePositiveProbability = getSliceFalsePositiveProbability(sliceIndex);
+		final int k = (int)Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)));
+		final double bitsPerElement = k / Math.log(2);
+		long capacity = (long)Math.ceil(initialCapacity * Math.pow(growthFactor, sliceIndex));
+		capacity = Math.max(1, Math.min(capacity, (long)(maxBitsPerSlice / bitsPerElement)));
+
+		final BloomFilter<E> slice = new BloomFilter<E>(bitsPerElement, (int)capacity, k);
+		final List<BloomFilter<E>> newSlices = new ArrayList<BloomFilter<E>>(sliceIndex + 1);
+		newSlices.addAll(slices);
+		newSlices.add(slice);
+		sliceCapacities[sliceIndex] = capacity;
+		lastSliceCount = 0;
+		slices = Collections.unmodifiableList(newSlices);
+	}
+
+	private final void add128(final long[] hash128){
+		final BloomFilter<E> slice;
+		synchronized(this){
+			final int sliceCount = slices.size();
+			if(lastSliceCount >= sliceCapacities[sliceCount - 1]){
+				if(sliceCount < maxSlices){
+					addSlice();
+				}else if(!loggedMaxSlices){
+					loggedMaxSlices = true;
+					logger.log(Level.WARNING, "Max slices (" + maxSlices + ") reached. Adding to the last slice beyond its "
+							+ "capacity. False positive probability will exceed " + maxFalsePositiveProbability);
+				}
+			}
+			lastSliceCount++;
+			slice = slices.get(slices.size() - 1);
+		}
+		slice.addHash128(hash128);
+	}
+
+	private final boolean contains128(final long[] hash128){
+		final List<BloomFilter<E>> current = slices;
+		for(int i = current.size() - 1; i >= 0; i--){
+			if(current.get(i).containsHash128(hash128)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void add(final E element){
+		add128(BloomFilter.createHash128(element.toString()));
+	}
+
+	@Override
+	public void add(final byte[] bytes){
+		add128(BloomFilter.createHash128(bytes));
+	}
+
+	@Override
+	public boolean contains(final E element){
+		return contains128(BloomFilter.createHash128(element.toString()));
+	}
+
+	@Override
+	public boolean contains(final byte[] bytes){
+		return contains128(BloomFilter.createHash128(bytes));
+	}
+
+	/**
+	 * Adds the element if not already contained
+	 *
+	 * @param element element to check and add
+	 * @return true if it was (probably) already contained
+	 */
+	public boolean containsAndAdd(final E element){
+		final long[] hash128 = BloomFilter.createHash128(element.toString());
+		if(contains128(hash128)){
+			return true;
+		}
+		add128(hash128);
+		return false;
+	}
+
+	/**
+	 * @see #containsAndAdd(Object)
+	 */
+	public boolean containsAndAdd(final byte[] bytes){
+		final long[] hash128 = BloomFilter.createHash128(bytes);
+		if(contains128(hash128)){
+			return true;
+		}
+		add128(hash128);
+		return false;
+	}
+
+	@Override
+	public synchronized void clear(){
+		slices = Collections.emptyList();
+		loggedMaxSlices = false;
+		addSlice();
+	}
+
+	public int getSliceCount(){
+		return slices.size();
+	}
+
+	public long count(){
+		long total = 0;
+		for(final BloomFilter<E> slice : slices){
+			total += slice.count();
+		}
+		return total;
+	}
+
+	/**
+	 * @return total bits in all slices
+	 */
+	public long size(){
+		long total = 0;
+		for(final BloomFilter<E> slice : slices){
+			total += slice.size();
+		}
+		return total;
+	}
+
+	public double getMaxFalsePositiveProbability(){
+		return maxFalsePositiveProbability;
+	}
+
+	/**
+	 * @return estimated probability of false positives from the current counts of all slices
+	 */
+	@Override
+	public double getFalsePositiveProbability(){
+		double notFalsePositive = 1;
+		for(final BloomFilter<E> slice : slices){
+			notFalsePositive *= (1 - slice.getFalsePositiveProbability());
+		}
+		return 1 - notFalsePositive;
+	}
+
+	@Override
+	public String getStats(){
+		final List<BloomFilter<E>> current = slices;
+		return "ScalableBloomFilter[slices=" + current.size() + ", count=" + count() + ", bits=" + size()
+				+ ", lastSliceCapacity=" + sliceCapacities[current.size() - 1]
+				+ ", maxFalsePositiveProbability=" + maxFalsePositiveProbability
+				+ ", estimatedFalsePositiveProbability=" + String.format("%.9f", getFalsePositiveProbability()) + "]";
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.filter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractFilter;
+import spade.core.AbstractVertex;
+import spade.core.Settings;
+import spade.filter.window.EdgeWindows;
+import spade.utility.ArgumentFunctions;
+import spade.utility.HelperFunctions;
+
+/**
+ * Coalesces edges with the same child, parent, and values of the 'by' annotations (default: type, operation) within
+ * a window into a single edge i.e. the first edge of the window.
+ *
+ * A window for a key starts with the first edge for the key and ends 'windowMillis' after that. At the end of the
+ * window the first edge is put in the next filter with the annotations 'count', 'last time', and the size annotation
+ * set to the sum of the sizes (see spade.filter.window.EdgeWindows).
+ *
+ * The annotation 'time' of the edge is the time of the first edge.
+ *
+ * At most 'maxEntries' windows are open. The oldest window is closed early when exceeded. All windows are closed on
+ * shutdown.
+ *
+ * The windows and the next filter are only accessed with the lock held (by the caller and the flush thread) so that
+ * the next filter sees one caller at a time, and an edge is never put before the vertices put before it.
+ *
+ * Example command:
+ * 	add filter CoalesceEdges position=1 windowMillis=5000 by=type,operation
+ */
+public class CoalesceEdges extends AbstractFilter{
+
+	private static final Logger logger = Logger.getLogger(CoalesceEdges.class.getName());
+
+	private static final String
+		keyWindowMillis = "windowMillis",
+		keyMaxEntries = "maxEntries",
+		keyBy = "by",
+		keyTimeAnnotation = "timeAnnotation",
+		keySizeAnnotation = "sizeAnnotation",
+		keyReportingIntervalSeconds = "reportingIntervalSeconds";
+
+	public static final String ANNOTATION_COUNT = EdgeWindows.ANNOTATION_COUNT,
+			ANNOTATION_LAST_TIME = EdgeWindows.ANNOTATION_LAST_TIME;
+
+	private static final int CLOSED_WINDOW = 0, CLOSED_OVERFLOW = 1, CLOSED_SHUTDOWN = 2;
+	private static final String[] closedReasonNames = {"window", "overflow", "shutdown"};
+
+	private long windowMillis;
+	private int maxEntries;
+	private String[] by;
+	private String timeAnnotation;
+	private String sizeAnnotation;
+	private long reportingIntervalMillis;
+
+	private final Object lock = new Object();
+	// Ordered by the start of the windows
+	private EdgeWindows windows;
+
+	private volatile boolean shutdown = false;
+	private Thread flushThread;
+
+	@Override
+	public boolean initialize(final String arguments){
+		try{
+			final Map<String, String> map =
+					HelperFunctions.parseKeyValuePairsFrom(arguments, Settings.getDefaultConfigFilePath(this.getClass()), null);
+			this.windowMillis = ArgumentFunctions.mustBeGreaterThanZero(keyWindowMillis, map);
+			this.maxEntries = ArgumentFunctions.mustParseInteger(keyMaxEntries, map);
+			if(this.maxEntries < 1){
+				throw new Exception("'" + keyMaxEntries + "' must be greater than zero: " + this.maxEntries);
+			}
+			final List<String> byList = ArgumentFunctions.mustParseCommaSeparatedValues(keyBy, map);
+			this.by = byList.toArray(new String[0]);
+			this.timeAnnotation = ArgumentFunctions.mustParseNonEmptyString(keyTimeAnnotation, map);
+			this.sizeAnnotation = ArgumentFunctions.mustParseNonEmptyString(keySizeAnnotation, map);
+			this.reportingIntervalMillis = ArgumentFunctions.mustParseLong(keyReportingIntervalSeconds, map) * 1000;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to initialize filter", e);
+			return false;
+		}
+
+		logger.log(Level.INFO, "Arguments: "
+				+ keyWindowMillis + "=" + windowMillis + ", "
+				+ keyMaxEntries + "=" + maxEntries + ", "
+				+ keyBy + "=" + String.join(",", by) + ", "
+				+ keyTimeAnnotation + "=" + timeAnnotation + ", "
+				+ keySizeAnnotation + "=" + sizeAnnotation + ", "
+				+ keyReportingIntervalSeconds + "=" + (reportingIntervalMillis / 1000));
+
+		windows = new EdgeWindows(this, false, maxEntries, closedReasonNames, CLOSED_OVERFLOW, sizeAnnotation,
+				reportingIntervalMillis);
+		flushThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				final long sleepMillis = Math.max(1, Math.min(1000, windowMillis / 4));
+				while(!shutdown){
+					HelperFunctions.sleepSafe(sleepMillis);
+					synchronized(lock){
+						if(!shutdown){
+							windows.closeExpired(System.currentTimeMillis(), windowMillis, CLOSED_WINDOW);
+							printStats(false);
+						}
+					}
+				}
+			}
+		}, CoalesceEdges.class.getSimpleName() + "-flush-thread");
+		flushThread.setDaemon(true);
+		flushThread.start();
+		return true;
+	}
+
+	@Override
+	public void putVertex(final AbstractVertex incomingVertex){
+		synchronized(lock){
+			putInNextFilter(incomingVertex);
+		}
+	}
+
+	private EdgeWindows.Key getKey(final AbstractEdge edge){
+		final StringBuilder builder = new StringBuilder();
+		builder.append(edge.getChildVertex().bigHashCode()).append(',').append(edge.getParentVertex().bigHashCode());
+		for(final String annotation : by){
+			builder.append(',').append(edge.getAnnotation(annotation));
+		}
+		return EdgeWindows.Key.of(builder.toString(), (byte)0);
+	}
+
+	@Override
+	public void putEdge(final AbstractEdge incomingEdge){
+		if(incomingEdge == null){
+			return;
+		}
+		// Computed outside the lock
+		final EdgeWindows.Key key = (incomingEdge.getChildVertex() == null || incomingEdge.getParentVertex() == null)
+				? null : getKey(incomingEdge);
+		final String time = incomingEdge.getAnnotation(timeAnnotation);
+		final Long size = windows.getSize(incomingEdge);
+		synchronized(lock){
+			if(shutdown || key == null){
+				putInNextFilter(incomingEdge);
+				return;
+			}
+			windows.put(key, incomingEdge, time, size, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Must be called with the lock held
+	 */
+	private void printStats(final boolean force){
+		if(windows.isReportDue(force)){
+			logger.log(Level.INFO, windows.getStats());
+		}
+	}
+
+	@Override
+	public boolean shutdown(){
+		synchronized(lock){
+			// Edges put after this are passed through (see 'putEdge')
+			shutdown = true;
+			if(windows != null){
+				windows.closeAll(CLOSED_SHUTDOWN);
+				printStats(true);
+			}
+		}
+		if(flushThread != null){
+			flushThread.interrupt();
+			flushThread = null;
+		}
+		return true;
+	}
+}
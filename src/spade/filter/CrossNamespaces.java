@@ -21,9 +21,12 @@ package spade.filter;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,18 +41,30 @@ import spade.filter.crossnamespaces.CrossMatcher;
 import spade.utility.ArgumentFunctions;
 import spade.utility.HelperFunctions;
 
+/**
+ * Reports reads of artifacts by processes in namespaces other than the namespaces of the writers of the artifacts.
+ * 
+ * Events are converted to JSON and written to the output by a background thread. At most 'reportQueueSize' events
+ * are queued after which the filter waits for the writer.
+ */
 public class CrossNamespaces extends AbstractFilter{
 
 	private static final Logger logger = Logger.getLogger(CrossNamespaces.class.getName());
 	
 	private static final String
 		keyOutput = "output",
-		keyPretty = "pretty";
+		keyPretty = "pretty",
+		keyReportQueueSize = "reportQueueSize";
 
 	private boolean pretty;
 	private String outputPath;
 	private BufferedWriter outputWriter;
 
+	private BlockingQueue<Event> reportQueue;
+	private volatile boolean shutdown = false;
+	private Thread reportWriterThread;
+	private long eventsWritten = 0, eventsFailed = 0;
+
 	private final CrossMatcher matcher = new CrossMatcher();
 
 	@Override
@@ -61,25 +76,64 @@ public class CrossNamespaces extends AbstractFilter{
 			outputPath = ArgumentFunctions.mustParseWritableFilePath(keyOutput, configMap);
 			outputWriter = new BufferedWriter(new FileWriter(outputPath));
 			pretty = ArgumentFunctions.mustParseBoolean(keyPretty, configMap);
+			final int reportQueueSize = ArgumentFunctions.mustParseInteger(keyReportQueueSize, configMap);
+			if(reportQueueSize < 1){
+				throw new Exception("'"+keyReportQueueSize+"' must be greater than zero: " + reportQueueSize);
+			}
+			reportQueue = new ArrayBlockingQueue<Event>(reportQueueSize);
 
 			matcher.initialize(this, configMap);
 
 			logger.log(Level.INFO, "Arguments: "
-					+ "{0}={1}, {2}={3}",
+					+ "{0}={1}, {2}={3}, {4}={5}",
 					new Object[]{
 							keyOutput, outputPath
 							, keyPretty, pretty
+							, keyReportQueueSize, reportQueueSize
 					});
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to read config file: " + configFilePath, e);
 			return false;
 		}
+		reportWriterThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				while(true){
+					final Event event;
+					try{
+						event = reportQueue.poll(1, TimeUnit.SECONDS);
+					}catch(InterruptedException e){
+						continue;
+					}
+					if(event == null){
+						if(shutdown){
+							break;
+						}
+						continue;
+					}
+					writeEvent(event);
+				}
+			}
+		}, CrossNamespaces.class.getSimpleName() + "-report-writer");
+		reportWriterThread.setDaemon(true);
+		reportWriterThread.start();
 		return true;
 	}
 	
 	@Override
 	public boolean shutdown(){
 		matcher.shutdown();
+		shutdown = true;
+		if(reportWriterThread != null){
+			// Drains the queue before exiting
+			try{
+				reportWriterThread.join();
+			}catch(InterruptedException e){
+				logger.log(Level.WARNING, "Interrupted while waiting for the queued events to be written", e);
+			}
+			reportWriterThread = null;
+		}
+		logger.log(Level.INFO, "Events written={0}, failed={1}", new Object[]{eventsWritten, eventsFailed});
 		if(outputWriter != null){
 			try{
 				outputWriter.close();
@@ -112,28 +166,22 @@ public class CrossNamespaces extends AbstractFilter{
 		return object;
 	}
 
-	private final JSONObject createJSONEvent(
-			final long eventId, 
-			final TreeMap<String, String> matchedArtifactAnnotations,
-			final HashSet<TreeMap<String, String>> completeArtifactAnnotationsSet,
-			final HashSet<TreeMap<String, String>> completeOtherWriters,
-			final AbstractVertex readerProcessVertex,
-			final AbstractEdge readEdge) throws Exception{
+	private final JSONObject createJSONEvent(final Event event) throws Exception{
 		final JSONObject eventObject = new JSONObject();
-		eventObject.put("cross-namespace-event-id", String.valueOf(eventId));
-		eventObject.put("read-edge", createJSONObjectFromMap(readEdge.getCopyOfAnnotations()));
-		eventObject.put("artifact", createJSONObjectFromMap(matchedArtifactAnnotations));
+		eventObject.put("cross-namespace-event-id", String.valueOf(event.eventId));
+		eventObject.put("read-edge", createJSONObjectFromMap(event.readEdgeAnnotations));
+		eventObject.put("artifact", createJSONObjectFromMap(event.matchedArtifactAnnotations));
 
 		final JSONArray artifactsArray = new JSONArray();
-		for(final TreeMap<String, String> tmp : completeArtifactAnnotationsSet){
+		for(final TreeMap<String, String> tmp : event.completeArtifactAnnotations){
 			artifactsArray.put(createJSONObjectFromMap(tmp));
 		}
 		eventObject.put("artifacts", artifactsArray);
 
-		eventObject.put("reader", createJSONObjectFromMap(readerProcessVertex.getCopyOfAnnotations()));
+		eventObject.put("reader", createJSONObjectFromMap(event.readerProcessAnnotations));
 		
 		final JSONArray writerArray = new JSONArray();
-		for(final TreeMap<String, String> tmp : completeOtherWriters){
+		for(final TreeMap<String, String> tmp : event.completeOtherWriters){
 			writerArray.put(createJSONObjectFromMap(tmp));
 		}
 		eventObject.put("writers", writerArray);
@@ -150,26 +198,67 @@ public class CrossNamespaces extends AbstractFilter{
 		this.outputWriter.write(eventString + "\n");
 	}
 
-	public final void outputEvent(final long eventId, 
-			final TreeMap<String, String> matchedArtifactAnnotations,
-			final HashSet<TreeMap<String, String>> completeArtifactAnnotationsSet,
-			final HashSet<TreeMap<String, String>> completeOtherWriters,
-			final AbstractVertex readerProcessVertex,
-			final AbstractEdge readEdge){
+	/**
+	 * Called by the report writer thread only
+	 */
+	private final void writeEvent(final Event event){
 		final JSONObject eventObject;
 		try{
-			eventObject = createJSONEvent(eventId, matchedArtifactAnnotations, 
-					completeArtifactAnnotationsSet, completeOtherWriters, readerProcessVertex, readEdge);
+			eventObject = createJSONEvent(event);
 		}catch(Exception e){
+			eventsFailed++;
 			logger.log(Level.WARNING, "Failed to create event as JSON object", e);
 			return;
 		}
 		try{
 			writeJSONEvent(eventObject);
+			eventsWritten++;
 		}catch(Exception e){
+			eventsFailed++;
 			logger.log(Level.WARNING, "Failed to write event", e);
 			return;
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Queues the event for the report writer thread. Waits if the queue is full.
+	 * 
+	 * The arguments must not be modified after the call.
+	 */
+	public final void outputEvent(final long eventId, 
+			final TreeMap<String, String> matchedArtifactAnnotations,
+			final List<TreeMap<String, String>> completeArtifactAnnotations,
+			final List<TreeMap<String, String>> completeOtherWriters,
+			final Map<String, String> readerProcessAnnotations,
+			final Map<String, String> readEdgeAnnotations){
+		final Event event = new Event(eventId, matchedArtifactAnnotations, completeArtifactAnnotations, 
+				completeOtherWriters, readerProcessAnnotations, readEdgeAnnotations);
+		try{
+			reportQueue.put(event);
+		}catch(InterruptedException e){
+			logger.log(Level.WARNING, "Interrupted while queuing event: " + eventId, e);
+		}
+	}
+
+	private static final class Event{
+		private final long eventId;
+		private final TreeMap<String, String> matchedArtifactAnnotations;
+		private final List<TreeMap<String, String>> completeArtifactAnnotations;
+		private final List<TreeMap<String, String>> completeOtherWriters;
+		private final Map<String, String> readerProcessAnnotations;
+		private final Map<String, String> readEdgeAnnotations;
+		private Event(final long eventId, 
+				final TreeMap<String, String> matchedArtifactAnnotations,
+				final List<TreeMap<String, String>> completeArtifactAnnotations,
+				final List<TreeMap<String, String>> completeOtherWriters,
+				final Map<String, String> readerProcessAnnotations,
+				final Map<String, String> readEdgeAnnotations){
+			this.eventId = eventId;
+			this.matchedArtifactAnnotations = matchedArtifactAnnotations;
+			this.completeArtifactAnnotations = completeArtifactAnnotations;
+			this.completeOtherWriters = completeOtherWriters;
+			this.readerProcessAnnotations = readerProcessAnnotations;
+			this.readEdgeAnnotations = readEdgeAnnotations;
+		}
+	}
+}
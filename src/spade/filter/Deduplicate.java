@@ -19,6 +19,11 @@
  */
 package spade.filter;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,9 +33,11 @@ import com.somethingsimilar.opposite_of_a_bloom_filter.ByteArrayFilter;
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.core.ScalableBloomFilter;
 import spade.core.Settings;
 import spade.utility.FileUtility;
 import spade.utility.HelperFunctions;
+import spade.utility.Result;
 
 /**
  * A filter to remove 'most' of the duplicate vertices and edges.
@@ -42,6 +49,11 @@ import spade.utility.HelperFunctions;
  * So, a vertex or an edge is put into the next filter ONLY IF it is not contained in the data structure
  * mentioned above. Since there can be false negatives there can be some duplicates but there would
  * never be a case where we don't put something in the next filter which we haven't seen before.
+ * 
+ * Alternatively, if 'scalableBloomFilter=true', a scalable Bloom filter is used which grows with the number of
+ * elements (instead of being sized up front), and can be saved to and loaded from 'loadSavePath'. Note that a Bloom
+ * filter can return false positives i.e. a vertex or an edge not seen before would NOT be put in the next filter with
+ * the probability 'falsePositiveProbability'.
  *
  */
 public class Deduplicate extends AbstractFilter{
@@ -49,6 +61,10 @@ public class Deduplicate extends AbstractFilter{
 	private Logger logger = Logger.getLogger(this.getClass().getName());
 	
 	private final String ARG_EXPECTEDNUMBEROFELEMENTS_KEY = "expectedNumberOfElements";
+	private final String ARG_SCALABLEBLOOMFILTER_KEY = "scalableBloomFilter";
+	private final String ARG_FALSEPOSITIVEPROBABILITY_KEY = "falsePositiveProbability";
+	private final String ARG_LOADSAVEPATH_KEY = "loadSavePath";
+	private final String ARG_REPORTINGINTERVALSECONDS_KEY = "reportingIntervalSeconds";
 	
 	// Source: https://github.com/jmhodges/opposite_of_a_bloom_filter
 	// Source copyright below:
@@ -57,6 +73,11 @@ public class Deduplicate extends AbstractFilter{
 	// license that can be found in the LICENSE file (in the above-mentioned git).
 	private ByteArrayFilter negativeBloomFilter;
 	
+	private ScalableBloomFilter<String> scalableBloomFilter;
+	private String loadSavePath;
+	private long reportingIntervalMillis;
+	private volatile long lastReportedAtMillis;
+	
 	/**
 	 * Read expectedNumberOfElements from argument, if not found then read from config file. 
 	 * 
@@ -82,6 +103,12 @@ public class Deduplicate extends AbstractFilter{
 		}else{
 			try{
 				Integer expectedNumberOfElements = Integer.parseInt(expectedNumberOfElementsString);
+				final Map<String, String> map = 
+						HelperFunctions.parseKeyValuePairsFrom(arguments, Settings.getDefaultConfigFilePath(this.getClass()), null);
+				final Result<Boolean> scalableResult = HelperFunctions.parseBoolean(map.get(ARG_SCALABLEBLOOMFILTER_KEY));
+				if(!scalableResult.error && scalableResult.result){
+					return initializeScalableBloomFilter(expectedNumberOfElements, map);
+				}
 				negativeBloomFilter = new ByteArrayFilter(expectedNumberOfElements);
 				return true;
 			}catch(Exception e){
@@ -94,10 +121,79 @@ public class Deduplicate extends AbstractFilter{
 		}
 	}
 	
+	@SuppressWarnings("unchecked")
+	private boolean initializeScalableBloomFilter(final int expectedNumberOfElements, final Map<String, String> map) throws Exception{
+		final Result<Double> falsePositiveResult = HelperFunctions.parseDouble(map.get(ARG_FALSEPOSITIVEPROBABILITY_KEY), 0, 1);
+		if(falsePositiveResult.error){
+			logger.log(Level.SEVERE, "Invalid value for '"+ARG_FALSEPOSITIVEPROBABILITY_KEY+"'. " + falsePositiveResult.errorMessage);
+			return false;
+		}
+		final Result<Long> reportingIntervalSecondsResult = 
+				HelperFunctions.parseLong(map.get(ARG_REPORTINGINTERVALSECONDS_KEY), 10, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		if(reportingIntervalSecondsResult.error){
+			logger.log(Level.SEVERE, "Invalid value for '"+ARG_REPORTINGINTERVALSECONDS_KEY+"'. " + reportingIntervalSecondsResult.errorMessage);
+			return false;
+		}
+		reportingIntervalMillis = reportingIntervalSecondsResult.result * 1000;
+		lastReportedAtMillis = System.currentTimeMillis();
+
+		loadSavePath = map.get(ARG_LOADSAVEPATH_KEY);
+		if(HelperFunctions.isNullOrEmpty(loadSavePath)){
+			loadSavePath = null;
+		}else{
+			loadSavePath = loadSavePath.trim();
+			final File file = new File(loadSavePath);
+			if(file.exists()){
+				try(final ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(file))){
+					scalableBloomFilter = (ScalableBloomFilter<String>)objectInputStream.readObject();
+				}catch(Exception e){
+					logger.log(Level.SEVERE, "Invalid scalable Bloom filter file: '" + loadSavePath + "'", e);
+					return false;
+				}
+				logger.log(Level.INFO, "Scalable Bloom filter loaded from '" + loadSavePath + "': " + scalableBloomFilter.getStats());
+			}else{
+				FileUtility.pathMustBeAWritableFile(loadSavePath);
+			}
+		}
+		if(scalableBloomFilter == null){
+			scalableBloomFilter = new ScalableBloomFilter<String>(falsePositiveResult.result, expectedNumberOfElements);
+			logger.log(Level.INFO, "Scalable Bloom filter created: " + scalableBloomFilter.getStats());
+		}
+		return true;
+	}
+	
+	private boolean containsAndAdd(final byte[] hash){
+		if(scalableBloomFilter != null){
+			if(reportingIntervalMillis > 0 && System.currentTimeMillis() - lastReportedAtMillis >= reportingIntervalMillis){
+				lastReportedAtMillis = System.currentTimeMillis();
+				logger.log(Level.INFO, scalableBloomFilter.getStats());
+			}
+			return scalableBloomFilter.containsAndAdd(hash);
+		}
+		return negativeBloomFilter.containsAndAdd(hash);
+	}
+	
+	@Override
+	public boolean shutdown(){
+		if(scalableBloomFilter != null){
+			logger.log(Level.INFO, scalableBloomFilter.getStats());
+			if(loadSavePath != null){
+				try(final ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(loadSavePath))){
+					objectOutputStream.writeObject(scalableBloomFilter);
+					logger.log(Level.INFO, "Scalable Bloom filter saved to '" + loadSavePath + "'");
+				}catch(Exception e){
+					logger.log(Level.SEVERE, "Failed to save scalable Bloom filter to '" + loadSavePath + "'", e);
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
 	@Override
 	public void putVertex(AbstractVertex incomingVertex) {
         boolean contained = false;
-		contained = negativeBloomFilter.containsAndAdd(incomingVertex.bigHashCodeBytes());
+		contained = containsAndAdd(incomingVertex.bigHashCodeBytes());
 		if(!contained){
 			putInNextFilter(incomingVertex);
 		}
@@ -106,7 +202,7 @@ public class Deduplicate extends AbstractFilter{
 	@Override
 	public void putEdge(AbstractEdge incomingEdge) {
         boolean contained = false;
-		contained = negativeBloomFilter.containsAndAdd(incomingEdge.bigHashCodeBytes());
+		contained = containsAndAdd(incomingEdge.bigHashCodeBytes());
 		if(!contained){
 			putInNextFilter(incomingEdge);
 		}
@@ -17,23 +17,21 @@
  along with this program. If not, see <http://www.gnu.org/licenses/>.
  --------------------------------------------------------------------------------
  */
-
 package spade.filter;
 
-import java.math.BigInteger;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.lang.StringUtils;
-
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.core.BloomFilter;
 import spade.core.Settings;
+import spade.utility.ArgumentFunctions;
+import spade.utility.Converter;
 import spade.utility.HelperFunctions;
 import spade.utility.Result;
 import spade.utility.map.external.ExternalMap;
@@ -51,40 +49,45 @@ import spade.utility.map.external.ExternalMapManager;
  * The above mentioned command adds the filter where all the consecutive edges between any two vertices 
  * by the combination of values of 'operation', and 'type' are dropped except the first one.
  * 
+ * The (parent, child) pair is kept as a 128-bit hash and the values of 'by' as a 64-bit hash. Both are written to the
+ * external map store in fixed-width binary form (16 and 8 bytes).
+ * 
+ * Edges are checked one at a time (the lock on 'this') because the external map is not thread-safe.
+ * 
  * NOTE: Assumes the data is coming in order that it is executed.
  */
 public class DropRepeatEdges extends AbstractFilter{
 
 	private final static Logger logger = Logger.getLogger(DropRepeatEdges.class.getName());
 
-	private final static String dropByArgName = "by";
+	private final static String dropByArgName = "by",
+			keyReportingIntervalSeconds = "reportingIntervalSeconds";
 
-	private Set<String> dropBy = new HashSet<String>();
+	private String[] dropBy;
+	private long reportingIntervalMillis;
 
 	private String vertex2VertexMapId = "DropRepeatEdgesMap";
-	private ExternalMap<String, HashMap<String, String>> vertex2VertexAndLastDropByValue;
+	private ExternalMap<EdgeKey, Long> vertex2VertexLastDropByFingerprint;
+
+	// Guarded by 'this'
+	private long edgesIn = 0, edgesPassed = 0, edgesDropped = 0, mapHits = 0, mapMisses = 0;
+	private long lastReportedAtMillis;
 
-	private BigInteger totalDropped = BigInteger.ZERO;
-	
 	private boolean parseArguments(String arguments){
-		Map<String, String> argsMap = HelperFunctions.parseKeyValPairs(arguments);
-		String byArgValue = argsMap.get(dropByArgName);
-		if(HelperFunctions.isNullOrEmpty(byArgValue)){
-			logger.log(Level.SEVERE, "NULL/Empty '"+dropByArgName+"' arg value");
+		try{
+			final Map<String, String> map = 
+					HelperFunctions.parseKeyValuePairsFrom(arguments, Settings.getDefaultConfigFilePath(this.getClass()), null);
+			final List<String> byList = ArgumentFunctions.mustParseCommaSeparatedValues(dropByArgName, map);
+			dropBy = byList.toArray(new String[0]);
+			reportingIntervalMillis = ArgumentFunctions.mustParseLong(keyReportingIntervalSeconds, map) * 1000;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments", e);
 			return false;
-		}else{
-			String tokens [] = byArgValue.split(",");
-			for(String token : tokens){
-				token = token.trim();
-				if(token.isEmpty()){
-					logger.log(Level.SEVERE, "NULL/Empty token in '"+dropByArgName+"' arg value: " + byArgValue);
-					return false;
-				}
-				dropBy.add(token);
-			}
-			logger.log(Level.INFO, String.format("Arguments: ['%s'='%s']", dropByArgName, dropBy));
-			return true;
 		}
+		logger.log(Level.INFO, String.format("Arguments: ['%s'='%s', '%s'='%s']", 
+				dropByArgName, String.join(",", dropBy), 
+				keyReportingIntervalSeconds, reportingIntervalMillis / 1000));
+		return true;
 	}
 
 	@Override
@@ -99,14 +102,16 @@ public class DropRepeatEdges extends AbstractFilter{
 				return false;
 			}else{
 				ExternalMapArgument externalMapArgument = externalMapArgumentResult.result;
-				Result<ExternalMap<String, HashMap<String, String>>> externalMapResult = ExternalMapManager.create(externalMapArgument);
+				Result<ExternalMap<EdgeKey, Long>> externalMapResult = 
+						ExternalMapManager.create(externalMapArgument, new EdgeKeyConverter(), new FingerprintConverter());
 				if(externalMapResult.error){
 					logger.log(Level.SEVERE, "Failed to create external map '"+vertex2VertexMapId+"' from arguments: " + externalMapArgument);
 					logger.log(Level.SEVERE, externalMapResult.toErrorString());
 					return false;
 				}else{
 					logger.log(Level.INFO, vertex2VertexMapId + ": " + externalMapArgument);
-					vertex2VertexAndLastDropByValue = externalMapResult.result;
+					vertex2VertexLastDropByFingerprint = externalMapResult.result;
+					lastReportedAtMillis = System.currentTimeMillis();
 					return true;
 				}
 			}
@@ -117,43 +122,49 @@ public class DropRepeatEdges extends AbstractFilter{
 
 	@Override
 	public boolean shutdown(){
+		synchronized(this){
+			printStats(true);
+		}
 		try{
-			vertex2VertexAndLastDropByValue.close();
+			if(vertex2VertexLastDropByFingerprint != null){
+				vertex2VertexLastDropByFingerprint.close();
+			}
 		}catch(Throwable t){
 			logger.log(Level.SEVERE, "Failed to close external map '"+vertex2VertexMapId+"'", t);
 		}
-		
-		logger.log(Level.INFO, "Total grouped edges: " + totalDropped);
-		
 		return true;
 	}
 
 	/**
-	 * Searches for given keys in the edge and returns the combined value.
-	 * NULL returned otherwise
-	 * 
-	 * @param edge
-	 * @param dropByKeySet
-	 * @return
+	 * Must be called with the lock on 'this'
 	 */
-	private String getDropByValue(AbstractEdge edge, Set<String> dropByKeySet){
-		// Return 'null' if not able to get any value
-		if(edge != null && dropByKeySet != null){
-			String dropByValue = "";
-			for(String dropByKey : dropByKeySet){
-				String dropByKeyValue = edge.getAnnotation(dropByKey);
-				dropByValue += dropByKeyValue + ",";
-			}
-			if(!dropByValue.isEmpty()){
-				return dropByValue;
-			}else{
-				return null;
-			}
-		}else{
-			return null;
+	private void printStats(final boolean force){
+		final long nowMillis = System.currentTimeMillis();
+		if(force || (reportingIntervalMillis > 0 && nowMillis - lastReportedAtMillis >= reportingIntervalMillis)){
+			lastReportedAtMillis = nowMillis;
+			logger.log(Level.INFO, String.format("edgesIn=%d, edgesPassed=%d, edgesDropped=%d, dropRatio=%.4f, "
+					+ "mapHits=%d, mapMisses=%d",
+					edgesIn, edgesPassed, edgesDropped, edgesIn == 0 ? 0.0 : ((double)edgesDropped / edgesIn),
+					mapHits, mapMisses));
 		}
 	}
 
+	private EdgeKey getEdgeKey(final String parentHash, final String childHash){
+		final long[] hash128 = BloomFilter.createHash128(parentHash + "," + childHash);
+		return new EdgeKey(hash128[0], hash128[1]);
+	}
+
+	/**
+	 * Hash of the values of the 'by' annotations in the edge
+	 */
+	private long getDropByFingerprint(final AbstractEdge edge){
+		final StringBuilder builder = new StringBuilder();
+		for(final String dropByKey : dropBy){
+			builder.append(edge.getAnnotation(dropByKey)).append(',');
+		}
+		return BloomFilter.createHash128(builder.toString())[0];
+	}
+
 	@Override
 	public void putVertex(AbstractVertex incomingVertex){
 		super.putInNextFilter(incomingVertex);
@@ -163,37 +174,123 @@ public class DropRepeatEdges extends AbstractFilter{
 	public void putEdge(AbstractEdge incomingEdge){
 		/*
 		 * Checks if the edge is the same as the last one (between these two vertices) based 
-		 * on the aggregated value.
+		 * on the fingerprint of the aggregated value.
 		 */
 		if(incomingEdge != null){
 			AbstractVertex parentVertex = incomingEdge.getParentVertex();
 			AbstractVertex childVertex = incomingEdge.getChildVertex();
 			if(parentVertex != null && childVertex != null){
-				String newDropValue = getDropByValue(incomingEdge, dropBy);
-				boolean put = false;
-				String parentHash = parentVertex.bigHashCode();
-				String childHash = childVertex.bigHashCode();
-				HashMap<String, String> vertex2LastDropValueMap = vertex2VertexAndLastDropByValue.get(parentHash);
-				if(vertex2LastDropValueMap == null){
-					vertex2LastDropValueMap = new HashMap<String, String>();
-					vertex2VertexAndLastDropByValue.put(parentHash, vertex2LastDropValueMap);
-					vertex2LastDropValueMap.put(childHash, newDropValue);
-					put = true;
-				}else{
-					String existingDropValue = vertex2LastDropValueMap.get(childHash);
-					if(!StringUtils.equals(existingDropValue, newDropValue)){
-						vertex2LastDropValueMap.put(childHash, newDropValue);
-						put = true;
+				final EdgeKey key = getEdgeKey(parentVertex.bigHashCode(), childVertex.bigHashCode());
+				final long newFingerprint = getDropByFingerprint(incomingEdge);
+				final boolean put;
+				synchronized(this){
+					edgesIn++;
+					final Long existingFingerprint = vertex2VertexLastDropByFingerprint.get(key);
+					if(existingFingerprint != null){
+						mapHits++;
+					}else{
+						mapMisses++;
+					}
+					put = existingFingerprint == null || existingFingerprint.longValue() != newFingerprint;
+					if(put){
+						edgesPassed++;
+						vertex2VertexLastDropByFingerprint.put(key, newFingerprint);
+					}else{
+						edgesDropped++;
 					}
+					printStats(false);
 				}
-
 				if(put){
 					super.putInNextFilter(incomingEdge);
-				}else{
-					totalDropped = totalDropped.add(BigInteger.ONE);
 				}
 			}
 		}
 	}
 
+	/**
+	 * 128-bit hash of the (parent, child) pair
+	 */
+	private static final class EdgeKey{
+		private static final int BYTES = 16;
+		private final long high, low;
+		private EdgeKey(final long high, final long low){
+			this.high = high;
+			this.low = low;
+		}
+		@Override
+		public int hashCode(){
+			return (int)(high ^ (high >>> 32));
+		}
+		@Override
+		public boolean equals(Object obj){
+			if(this == obj)
+				return true;
+			if(!(obj instanceof EdgeKey))
+				return false;
+			final EdgeKey other = (EdgeKey)obj;
+			return high == other.high && low == other.low;
+		}
+		// Used by the screen
+		@Override
+		public String toString(){
+			return String.format("%016x%016x", high, low);
+		}
+	}
+
+	private static final class EdgeKeyConverter implements Converter<EdgeKey, byte[]>{
+		@Override
+		public byte[] serialize(EdgeKey i) throws Exception{
+			if(i == null){
+				return null;
+			}
+			return ByteBuffer.allocate(EdgeKey.BYTES).putLong(i.high).putLong(i.low).array();
+		}
+		@Override
+		public EdgeKey deserialize(byte[] j) throws Exception{
+			if(j == null){
+				return null;
+			}
+			if(j.length != EdgeKey.BYTES){
+				throw new Exception("Invalid key length: " + j.length);
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(j);
+			return new EdgeKey(buffer.getLong(), buffer.getLong());
+		}
+		@Override
+		public byte[] serializeObject(Object o) throws Exception{
+			return serialize((EdgeKey)o);
+		}
+		@Override
+		public EdgeKey deserializeObject(Object o) throws Exception{
+			return deserialize((byte[])o);
+		}
+	}
+
+	private static final class FingerprintConverter implements Converter<Long, byte[]>{
+		@Override
+		public byte[] serialize(Long i) throws Exception{
+			if(i == null){
+				return null;
+			}
+			return ByteBuffer.allocate(Long.BYTES).putLong(i).array();
+		}
+		@Override
+		public Long deserialize(byte[] j) throws Exception{
+			if(j == null){
+				return null;
+			}
+			if(j.length != Long.BYTES){
+				throw new Exception("Invalid fingerprint length: " + j.length);
+			}
+			return ByteBuffer.wrap(j).getLong();
+		}
+		@Override
+		public byte[] serializeObject(Object o) throws Exception{
+			return serialize((Long)o);
+		}
+		@Override
+		public Long deserializeObject(Object o) throws Exception{
+			return deserialize((byte[])o);
+		}
+	}
 }
@@ -19,10 +19,9 @@
  */
 package spade.filter;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,253 +31,388 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
 import spade.core.Vertex;
+import spade.utility.ArgumentFunctions;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+import spade.utility.map.external.ExternalMap;
+import spade.utility.map.external.ExternalMapArgument;
+import spade.utility.map.external.ExternalMapManager;
 
+/**
+ * Fuses vertices from two reporters (identified by the source reporter annotation) which have the same value (ignoring
+ * case) for a pair of annotations i.e. a rule.
+ *
+ * Elements from the two reporters are buffered in a window of 'windowMillis'. Vertices in the window are indexed by
+ * the values of the rule annotations so finding a match is a hash lookup. A vertex is fused with the oldest unfused
+ * matching vertex from the other reporter. The fused vertex has the annotations of both and replaces them in all
+ * edges. The two vertices are mapped to the fused vertex in an external map so that later vertices and edges are
+ * replaced too.
+ *
+ * Elements leave the window (in the order of arrival) when older than 'windowMillis', or when there are more than
+ * 'maxWindowElements' elements from a reporter, or at shutdown. Elements from other reporters are not buffered.
+ *
+ * Example command:
+ * 	add filter Fusion position=1 leftReporter=Audit rightReporter=Java leftAnnotations=pid rightAnnotations=pid
+ */
 public class Fusion extends AbstractFilter {
 
-    private LinkedList<Object> leftList;
-    private LinkedList<Object> rightList;
-    private Map<AbstractVertex, AbstractVertex> fusedVertices;
-    private Map<RuleIdentifier, RuleIdentifier> rules;
+    private static final Logger logger = Logger.getLogger(Fusion.class.getName());
+
+    private static final String
+            keyLeftReporter = "leftReporter",
+            keyRightReporter = "rightReporter",
+            keyLeftAnnotations = "leftAnnotations",
+            keyRightAnnotations = "rightAnnotations",
+            keyWindowMillis = "windowMillis",
+            keyMaxWindowElements = "maxWindowElements",
+            keyReportingIntervalSeconds = "reportingIntervalSeconds",
+            keyFusedVerticesMapId = "fusedVerticesMapId";
+
+    private static final int LEFT = 0, RIGHT = 1;
+
     private final String configFile = Settings.getDefaultConfigFilePath(this.getClass());
     private final String SOURCE_REPORTER = Settings.getSourceReporter();
-    private int MAX_LIST_LENGTH = 5;
-    private String leftReporter;
-    private String rightReporter;
+    private final String[] reporters = new String[2];
     private String FUSED_SOURCE_REPORTER;
+    // Annotations to match indexed by side and then rule
+    private final String[][] ruleAnnotations = new String[2][];
+    private long windowMillis;
+    private int maxWindowElements;
+    private long reportingIntervalMillis;
+
+    // Elements from the two reporters in the order of arrival
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Buffered>[] windows = new ArrayDeque[]{new ArrayDeque<Buffered>(), new ArrayDeque<Buffered>()};
+    // Unfused vertices in the window indexed by side, rule, and then the value (in lower case) of the rule annotation
+    private HashMap<String, ArrayDeque<BufferedVertex>>[][] indexes;
+    // The hash of a fused vertex to the fused vertex
+    private ExternalMap<String, AbstractVertex> fusedVertices;
 
-    public Fusion() {
-        // The left and right lists are used to store provenance elements from the
-        // two reporters respectively. Elements are added and removed using the queue
-        // interface but the lists are initialized as LinkedLists to allow for
-        // traversal and checking for matching elements
-        leftList = new LinkedList<>();
-        rightList = new LinkedList<>();
-
-        // The fusedVertices is a map containing all the previously-fused vertices.
-        // This is checked when new vertices and edges are received by this filter
-        // for quick replacement
-        fusedVertices = new HashMap<>();
-
-        // The rules map is used to store the rules. This is used in the compare
-        // function
-        rules = new HashMap<>();
-
-        // Read and process the configuration file. Currently, the file syntax is:
-        // -- BEGIN FILE --
-        // <1st reporter>
-        // <2nd reporter>
-        // <1st reporter>.<annotation>=<2nd reporter>.<annotation>
-        // -- EOF --
+    private volatile boolean shutdown = false;
+    private Thread flushThread;
+
+    private long fused = 0, expired = 0, overflowed = 0, unmatched = 0, alreadyFused = 0, forwarded = 0;
+    private long lastReportedAtMillis;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean initialize(final String arguments) {
         try {
-            BufferedReader configReader = new BufferedReader(new FileReader(configFile));
-            leftReporter = configReader.readLine();
-            rightReporter = configReader.readLine();
-            FUSED_SOURCE_REPORTER = leftReporter + " + " + rightReporter;
-            String ruleLine = configReader.readLine();
-            String leftRuleString = ruleLine.split("=")[0].trim();
-            RuleIdentifier leftRule = new RuleIdentifier(leftRuleString);
-            String rightRuleString = ruleLine.split("=")[1].trim();
-            RuleIdentifier rightRule = new RuleIdentifier(rightRuleString);
-            rules.put(leftRule, rightRule);
-            rules.put(rightRule, leftRule);
+            final Map<String, String> map = HelperFunctions.parseKeyValuePairsFrom(arguments, configFile, null);
+            reporters[LEFT] = ArgumentFunctions.mustParseNonEmptyString(keyLeftReporter, map);
+            reporters[RIGHT] = ArgumentFunctions.mustParseNonEmptyString(keyRightReporter, map);
+            if (reporters[LEFT].equalsIgnoreCase(reporters[RIGHT])) {
+                throw new Exception("'" + keyLeftReporter + "' and '" + keyRightReporter + "' must be different");
+            }
+            FUSED_SOURCE_REPORTER = reporters[LEFT] + " + " + reporters[RIGHT];
+            final List<String> leftAnnotations = ArgumentFunctions.mustParseCommaSeparatedValues(keyLeftAnnotations, map);
+            final List<String> rightAnnotations = ArgumentFunctions.mustParseCommaSeparatedValues(keyRightAnnotations, map);
+            if (leftAnnotations.isEmpty() || leftAnnotations.size() != rightAnnotations.size()) {
+                throw new Exception("'" + keyLeftAnnotations + "' and '" + keyRightAnnotations
+                        + "' must have the same non-zero number of values");
+            }
+            ruleAnnotations[LEFT] = leftAnnotations.toArray(new String[0]);
+            ruleAnnotations[RIGHT] = rightAnnotations.toArray(new String[0]);
+            windowMillis = ArgumentFunctions.mustBeGreaterThanZero(keyWindowMillis, map);
+            maxWindowElements = ArgumentFunctions.mustParseInteger(keyMaxWindowElements, map);
+            if (maxWindowElements < 1) {
+                throw new Exception("'" + keyMaxWindowElements + "' must be greater than zero: " + maxWindowElements);
+            }
+            reportingIntervalMillis = ArgumentFunctions.mustParseLong(keyReportingIntervalSeconds, map) * 1000;
+
+            final ExternalMapArgument fusedVerticesMapArgument =
+                    ArgumentFunctions.mustParseExternalMapArgument(keyFusedVerticesMapId, map);
+            final Result<ExternalMap<String, AbstractVertex>> fusedVerticesResult =
+                    ExternalMapManager.create(fusedVerticesMapArgument);
+            if (fusedVerticesResult.error) {
+                throw new Exception("Failed to create external map with id: " + fusedVerticesMapArgument.mapId + ". "
+                        + fusedVerticesResult.toErrorString());
+            }
+            fusedVertices = fusedVerticesResult.result;
+            logger.log(Level.INFO, "External map argument: " + fusedVerticesMapArgument);
         } catch (Exception exception) {
-            Logger.getLogger(Fusion.class.getName()).log(Level.SEVERE, null, exception);
+            logger.log(Level.SEVERE, "Failed to initialize filter", exception);
+            return false;
         }
-    }
 
-    @Override
-    public void putVertex(AbstractVertex incomingVertex) {
-        // The 'compare' boolean flag is used to determine whether the lists needed
-        // to be traversed and checked when the element is added. This is needed
-        // because comparison is unnecessary in the following cases:
-        // 1) When an already-fused vertex is added to the list
-        // 2) When an edge is added to the list
-        boolean compare = true;
-
-        // If this vertex has already been fused before, replace it.
-        if (fusedVertices.containsKey(incomingVertex)) {
-            incomingVertex = fusedVertices.get(incomingVertex);
-            compare = false;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final HashMap<String, ArrayDeque<BufferedVertex>>[][] newIndexes = new HashMap[2][ruleAnnotations[LEFT].length];
+        indexes = newIndexes;
+        for (int side = LEFT; side <= RIGHT; side++) {
+            for (int rule = 0; rule < ruleAnnotations[side].length; rule++) {
+                indexes[side][rule] = new HashMap<String, ArrayDeque<BufferedVertex>>();
+            }
         }
 
-        // Determine the source reporter of the incoming vertex so that it is added
-        // to the appropriate list and the checkLists() function is called on the
-        // correct lists
-        String incomingSource = incomingVertex.getAnnotation(SOURCE_REPORTER);
-        if (incomingSource.equalsIgnoreCase(leftReporter)) {
-            leftList.add(incomingVertex);
-            checkLists(leftList, rightList, compare);
-        } else if (incomingSource.equalsIgnoreCase(rightReporter)) {
-            rightList.add(incomingVertex);
-            checkLists(rightList, leftList, compare);
+        logger.log(Level.INFO, "Arguments: "
+                + keyLeftReporter + "=" + reporters[LEFT] + ", "
+                + keyRightReporter + "=" + reporters[RIGHT] + ", "
+                + keyLeftAnnotations + "=" + String.join(",", ruleAnnotations[LEFT]) + ", "
+                + keyRightAnnotations + "=" + String.join(",", ruleAnnotations[RIGHT]) + ", "
+                + keyWindowMillis + "=" + windowMillis + ", "
+                + keyMaxWindowElements + "=" + maxWindowElements + ", "
+                + keyReportingIntervalSeconds + "=" + (reportingIntervalMillis / 1000));
+
+        lastReportedAtMillis = System.currentTimeMillis();
+        flushThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long sleepMillis = Math.max(1, Math.min(1000, windowMillis / 4));
+                while (!shutdown) {
+                    HelperFunctions.sleepSafe(sleepMillis);
+                    synchronized (Fusion.this) {
+                        if (!shutdown) {
+                            emitExpired(System.currentTimeMillis(), false);
+                            printStats(false);
+                        }
+                    }
+                }
+            }
+        }, Fusion.class.getSimpleName() + "-flush-thread");
+        flushThread.setDaemon(true);
+        flushThread.start();
+        return true;
+    }
+
+    private int getSide(final String source) {
+        if (source == null) {
+            return -1;
+        } else if (source.equalsIgnoreCase(reporters[LEFT])) {
+            return LEFT;
+        } else if (source.equalsIgnoreCase(reporters[RIGHT])) {
+            return RIGHT;
         } else {
-            // If the incoming vertex is from any other reporter, simply forward it
-            putInNextFilter(incomingVertex);
+            return -1;
         }
     }
 
     @Override
-    public void putEdge(AbstractEdge incomingEdge) {
-        // Determine if the source or destination vertices of this edge have been
-        // fused before. If yes, then replace them with the fused vertices
-        if (fusedVertices.containsKey(incomingEdge.getChildVertex())) {
-            incomingEdge.setChildVertex(fusedVertices.get(incomingEdge.getChildVertex()));
+    public synchronized void putVertex(AbstractVertex incomingVertex) {
+        if (incomingVertex == null) {
+            return;
         }
-        if (fusedVertices.containsKey(incomingEdge.getParentVertex())) {
-            incomingEdge.setParentVertex(fusedVertices.get(incomingEdge.getParentVertex()));
+        final int side = getSide(incomingVertex.getAnnotation(SOURCE_REPORTER));
+        if (side < 0) {
+            // If the incoming vertex is from any other reporter, simply forward it
+            forwarded++;
+            putInNextFilter(incomingVertex);
+            return;
+        }
+        // If this vertex has already been fused before then the fused vertex has already been (or will be) sent.
+        if (fusedVertices.contains(incomingVertex.bigHashCode())) {
+            alreadyFused++;
+            return;
         }
 
-        // Determine the source reporter of the incoming vertex so that it is added
-        // to the appropriate list. The checkLists() function is called without
-        // comparison because we do not fuse edges
-        String incomingSource = incomingEdge.getAnnotation(SOURCE_REPORTER);
-        if (incomingSource.equalsIgnoreCase(leftReporter)) {
-            leftList.add(incomingEdge);
-            checkLists(leftList, rightList, false);
-        } else if (incomingSource.equalsIgnoreCase(rightReporter)) {
-            rightList.add(incomingEdge);
-            checkLists(rightList, leftList, false);
-        } else {
-            // If the incoming edge is from any other reporter, forward it
-            putInNextFilter(incomingEdge);
+        final BufferedVertex buffered = new BufferedVertex(System.currentTimeMillis(), incomingVertex);
+        buffered.keys = new String[ruleAnnotations[side].length];
+        for (int rule = 0; rule < ruleAnnotations[side].length; rule++) {
+            final String value = incomingVertex.getAnnotation(ruleAnnotations[side][rule]);
+            buffered.keys[rule] = (value == null) ? null : value.toLowerCase();
         }
-    }
+        addToWindow(side, buffered);
 
-    private void checkLists(LinkedList sourceList, LinkedList destinationList, boolean compare) {
-        // Comparison and fusion is done if the compare flag is set
-        if (compare) {
-            // Get the most recently added element to the source list. This is
-            // compared to all the elements in the other list
-            Object newElement = sourceList.peekLast();
-            if (newElement instanceof AbstractVertex) {
-                AbstractVertex newVertex = (AbstractVertex) newElement;
-                for (int i = 0; i < destinationList.size(); i++) {
-                    Object otherElement = destinationList.get(i);
-                    if (otherElement instanceof AbstractVertex) {
-                        AbstractVertex otherVertex = (AbstractVertex) otherElement;
-                        // This condition is used to check for elements in the list that
-                        // have already been fused in which case comparison and fusion
-                        // is unnecessary
-                        if (!otherVertex.getAnnotation(SOURCE_REPORTER).equalsIgnoreCase(FUSED_SOURCE_REPORTER)
-                                && compare(newVertex, otherVertex)) {
-                            fuseAndReplace(newVertex, otherVertex);
-                        }
-                    }
+        final int otherSide = 1 - side;
+        for (int rule = 0; rule < buffered.keys.length; rule++) {
+            if (buffered.keys[rule] != null) {
+                final ArrayDeque<BufferedVertex> matches = indexes[otherSide][rule].get(buffered.keys[rule]);
+                if (matches != null && !matches.isEmpty()) {
+                    fuse(buffered, side, matches.peekFirst(), otherSide);
+                    return;
                 }
             }
         }
-        // Check if the list size is exceeded. If yes, remove the element from
-        // the head of the list and forward it to the next filter
-        if (sourceList.size() > MAX_LIST_LENGTH) {
-            Object removedElement = sourceList.poll();
-            if (removedElement instanceof AbstractVertex) {
-                putInNextFilter((AbstractVertex) removedElement);
-            } else if (removedElement instanceof AbstractEdge) {
-                putInNextFilter((AbstractEdge) removedElement);
+        for (int rule = 0; rule < buffered.keys.length; rule++) {
+            if (buffered.keys[rule] != null) {
+                ArrayDeque<BufferedVertex> sameKey = indexes[side][rule].get(buffered.keys[rule]);
+                if (sameKey == null) {
+                    sameKey = new ArrayDeque<BufferedVertex>(2);
+                    indexes[side][rule].put(buffered.keys[rule], sameKey);
+                }
+                sameKey.addLast(buffered);
             }
         }
     }
 
-    private boolean compare(AbstractVertex firstVertex, AbstractVertex secondVertex) {
-        // Use the rules map to determine if the two vertices match. First, the
-        // source reporters are checked and then the annotations
-        for (RuleIdentifier currentRule : rules.keySet()) {
-            RuleIdentifier otherRule = rules.get(currentRule);
-            if (firstVertex.getAnnotation(SOURCE_REPORTER).equalsIgnoreCase(currentRule.reporter)
-                    && secondVertex.getAnnotation(SOURCE_REPORTER).equalsIgnoreCase(otherRule.reporter)) {
-                String firstValue = firstVertex.getAnnotation(currentRule.annotation);
-                String secondValue = secondVertex.getAnnotation(currentRule.annotation);
-                if (firstValue != null && secondValue != null && firstValue.equalsIgnoreCase(secondValue)) {
-                    return true;
-                }
-            }
+    @Override
+    public synchronized void putEdge(AbstractEdge incomingEdge) {
+        if (incomingEdge == null) {
+            return;
+        }
+        final int side = getSide(incomingEdge.getAnnotation(SOURCE_REPORTER));
+        if (side < 0) {
+            // If the incoming edge is from any other reporter, forward it
+            forwarded++;
+            replaceFusedVertices(incomingEdge);
+            putInNextFilter(incomingEdge);
+            return;
+        }
+        // Vertices are replaced when the edge leaves the window since they might be fused in the meantime
+        addToWindow(side, new BufferedEdge(System.currentTimeMillis(), incomingEdge));
+    }
+
+    private void addToWindow(final int side, final Buffered buffered) {
+        windows[side].addLast(buffered);
+        while (windows[side].size() > maxWindowElements) {
+            overflowed++;
+            emit(side, windows[side].pollFirst());
         }
-        // If no match is found in the rules map for these two vertices,
-        // return false
-        return false;
     }
 
-    private void fuseAndReplace(AbstractVertex firstVertex, AbstractVertex secondVertex) {
+    private void fuse(final BufferedVertex first, final int firstSide, final BufferedVertex second, final int secondSide) {
         // Create a new fused vertex and add all annotations of the first and second
         // vertices. The 'source reporter' annotation is changed to reflect that
         // this vertex is now fused
-        AbstractVertex fusedVertex = new Vertex();
-        fusedVertex.addAnnotations(firstVertex.getCopyOfAnnotations());
-        fusedVertex.addAnnotations(secondVertex.getCopyOfAnnotations());
+        final AbstractVertex fusedVertex = new Vertex();
+        fusedVertex.addAnnotations(first.vertex.getCopyOfAnnotations());
+        fusedVertex.addAnnotations(second.vertex.getCopyOfAnnotations());
         fusedVertex.addAnnotation(SOURCE_REPORTER, FUSED_SOURCE_REPORTER);
 
-        // Create references to the two lists which are assigned by evaluating
-        // the source reporters for the two vertices. These references are used
-        // when replacing vertices in the lists with the fused vertex
-        LinkedList firstList = null;
-        LinkedList secondList = null;
-        String firstSource = firstVertex.getAnnotation(SOURCE_REPORTER);
-        if (firstSource.equalsIgnoreCase(leftReporter)) {
-            firstList = leftList;
-            secondList = rightList;
-        } else if (firstSource.equalsIgnoreCase(rightReporter)) {
-            firstList = rightList;
-            secondList = leftList;
-        }
+        removeFromIndexes(secondSide, second);
+        final FusedVertex shared = new FusedVertex(fusedVertex);
+        first.fused = shared;
+        second.fused = shared;
 
-        // Replace all occurrences of a vertex in it's list by the fused vertex.
-        // Also, check if the source or destination vertices of any edges in this
-        // list point to the vertex we are replacing. If yes, replace those
-        // references by the fused vertex as well
-        for (int i = 0; i < firstList.size(); i++) {
-            if (firstVertex.equals(firstList.get(i))) {
-                firstList.set(i, fusedVertex);
-            } else if (firstList.get(i) instanceof AbstractEdge) {
-                AbstractEdge tempEdge = (AbstractEdge) firstList.get(i);
-                if (tempEdge.getChildVertex().equals(firstVertex)) {
-                    tempEdge.setChildVertex(fusedVertex);
-                } else if (tempEdge.getParentVertex().equals(firstVertex)) {
-                    tempEdge.setParentVertex(fusedVertex);
+        fusedVertices.put(first.vertex.bigHashCode(), fusedVertex);
+        fusedVertices.put(second.vertex.bigHashCode(), fusedVertex);
+        fused++;
+    }
+
+    private void removeFromIndexes(final int side, final BufferedVertex buffered) {
+        for (int rule = 0; rule < buffered.keys.length; rule++) {
+            if (buffered.keys[rule] != null) {
+                final ArrayDeque<BufferedVertex> sameKey = indexes[side][rule].get(buffered.keys[rule]);
+                if (sameKey != null) {
+                    // Usually the first since the window is in the order of arrival
+                    if (sameKey.peekFirst() == buffered) {
+                        sameKey.pollFirst();
+                    } else {
+                        sameKey.remove(buffered);
+                    }
+                    if (sameKey.isEmpty()) {
+                        indexes[side][rule].remove(buffered.keys[rule]);
+                    }
                 }
             }
         }
-        // Perform the same function for the other vertex and the other list
-        for (int i = 0; i < secondList.size(); i++) {
-            if (secondVertex.equals(secondList.get(i))) {
-                secondList.set(i, fusedVertex);
-            } else if (secondList.get(i) instanceof AbstractEdge) {
-                AbstractEdge tempEdge = (AbstractEdge) secondList.get(i);
-                if (tempEdge.getChildVertex().equals(secondVertex)) {
-                    tempEdge.setChildVertex(fusedVertex);
-                } else if (tempEdge.getParentVertex().equals(secondVertex)) {
-                    tempEdge.setParentVertex(fusedVertex);
-                }
+    }
+
+    private void replaceFusedVertices(final AbstractEdge edge) {
+        final AbstractVertex fusedChild = fusedVertices.get(edge.getChildVertex().bigHashCode());
+        if (fusedChild != null) {
+            edge.setChildVertex(fusedChild);
+        }
+        final AbstractVertex fusedParent = fusedVertices.get(edge.getParentVertex().bigHashCode());
+        if (fusedParent != null) {
+            edge.setParentVertex(fusedParent);
+        }
+    }
+
+    private void emit(final int side, final Buffered buffered) {
+        if (buffered instanceof BufferedVertex) {
+            final BufferedVertex bufferedVertex = (BufferedVertex) buffered;
+            if (bufferedVertex.fused == null) {
+                unmatched++;
+                removeFromIndexes(side, bufferedVertex);
+                putInNextFilter(bufferedVertex.vertex);
+            } else if (!bufferedVertex.fused.sent) {
+                // Sent once for the two vertices
+                bufferedVertex.fused.sent = true;
+                putInNextFilter(bufferedVertex.fused.vertex);
             }
+        } else {
+            final AbstractEdge edge = ((BufferedEdge) buffered).edge;
+            replaceFusedVertices(edge);
+            putInNextFilter(edge);
         }
+    }
 
-        // Finally, add the fused vertex to the map
-        fusedVertices.put(firstVertex, fusedVertex);
-        fusedVertices.put(secondVertex, fusedVertex);
+    /**
+     * Must be called with the lock on 'this'
+     */
+    private void emitExpired(final long nowMillis, final boolean force) {
+        for (int side = LEFT; side <= RIGHT; side++) {
+            while (!windows[side].isEmpty()
+                    && (force || nowMillis - windows[side].peekFirst().arrivalMillis >= windowMillis)) {
+                expired++;
+                emit(side, windows[side].pollFirst());
+            }
+        }
+    }
+
+    /**
+     * Must be called with the lock on 'this'
+     */
+    private void printStats(final boolean force) {
+        final long nowMillis = System.currentTimeMillis();
+        if (force || (reportingIntervalMillis > 0 && nowMillis - lastReportedAtMillis >= reportingIntervalMillis)) {
+            lastReportedAtMillis = nowMillis;
+            logger.log(Level.INFO, "fused=" + fused + ", unmatched=" + unmatched + ", expired=" + expired
+                    + ", overflowed=" + overflowed + ", alreadyFused=" + alreadyFused + ", forwarded=" + forwarded
+                    + ", window[" + reporters[LEFT] + "]=" + windows[LEFT].size()
+                    + ", window[" + reporters[RIGHT] + "]=" + windows[RIGHT].size());
+        }
     }
 
     @Override
     public boolean shutdown() {
-        while (MAX_LIST_LENGTH > 0) {
-            checkLists(leftList, rightList, true);
-            checkLists(rightList, leftList, true);
-            MAX_LIST_LENGTH--;
+        shutdown = true;
+        if (flushThread != null) {
+            flushThread.interrupt();
+            try {
+                flushThread.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            flushThread = null;
+        }
+        synchronized (this) {
+            if (fusedVertices != null) {
+                emitExpired(System.currentTimeMillis(), true);
+                printStats(true);
+                fusedVertices.close();
+                fusedVertices = null;
+            }
         }
         return true;
     }
-}
 
-class RuleIdentifier {
+    private static class Buffered {
+        private final long arrivalMillis;
 
-    public String reporter;
-    public String annotation;
+        private Buffered(final long arrivalMillis) {
+            this.arrivalMillis = arrivalMillis;
+        }
+    }
+
+    private static final class BufferedEdge extends Buffered {
+        private final AbstractEdge edge;
 
-    public RuleIdentifier(String ruleString) {
-        this.reporter = ruleString.split("\\.")[0];
-        this.annotation = ruleString.split("\\.")[1];
+        private BufferedEdge(final long arrivalMillis, final AbstractEdge edge) {
+            super(arrivalMillis);
+            this.edge = edge;
+        }
     }
 
-    public RuleIdentifier(String reporter, String annotation) {
-        this.reporter = reporter;
-        this.annotation = annotation;
+    private static final class BufferedVertex extends Buffered {
+        private final AbstractVertex vertex;
+        // Lower case values of the rule annotations. Null if missing
+        private String[] keys;
+        // Non-null if fused
+        private FusedVertex fused;
+
+        private BufferedVertex(final long arrivalMillis, final AbstractVertex vertex) {
+            super(arrivalMillis);
+            this.vertex = vertex;
+        }
+    }
+
+    private static final class FusedVertex {
+        private final AbstractVertex vertex;
+        private boolean sent = false;
+
+        private FusedVertex(final AbstractVertex vertex) {
+            this.vertex = vertex;
+        }
     }
 }
@@ -19,148 +19,426 @@
  */
 package spade.filter;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
+import spade.core.BloomFilter;
 import spade.core.Edge;
 
+/**
+ * Keeps the graph acyclic by versioning vertices.
+ *
+ * Vertices are kept as dense int ids (assigned in the order they are seen) keyed by the 128-bit hash of the vertex.
+ * Reachability is answered by maintaining a topological order of the ids incrementally (Pearce and Kelly 2006) i.e.
+ * for every edge child->parent 'order[child] &lt; order[parent]'. Inserting an edge which violates the order
+ * searches only the vertices between the two positions, and reorders just those. Memory is linear in the number of
+ * vertices and distinct (child, parent) pairs.
+ *
+ * Vertex objects are not kept. A vertex is put in the next filter (with the annotation 'GFVersion') the first time it
+ * is seen in an edge, using the copy in the edge.
+ */
 public class GraphFinesse extends AbstractFilter {
 
-    // 'ancestors' maps a given vertex to its ancestors.
-    private final Map<AbstractVertex, Set<AbstractVertex>> ancestors;
-    // 'descendants' maps a given vertex to its descendants. We use this to update
-    // the ancestors map when an edge is added.
-    private final Map<AbstractVertex, Set<AbstractVertex>> descendants;
-    // 'passedVertices' maps a given vertex to a boolean indicating whether it has
-    // been passed to the next filter or not.
-    private final Map<AbstractVertex, Boolean> passedVertices;
-    // 'passedEdges' maps a given edge to a boolean indicating whether it has been 
-    // passed to the next filter or not.
-    private final Map<AbstractEdge, Boolean> passedEdges;
-    // 'vertexVersions' maps a given vertex to it's version number.
-    private final Map<AbstractVertex, Integer> vertexVersions;
-    // 'vertexStrings' maps a string representation of a vertex to the actual vertex.
-    private final Map<String, AbstractVertex> vertexStrings;
+    private static final Logger logger = Logger.getLogger(GraphFinesse.class.getName());
+
+    private static final int initialCapacity = 1024;
+    private static final int UNORDERED = Integer.MIN_VALUE;
+
     private final int initialVersion = 0;
     private final String versionAnnotation = "GFVersion";
 
-    public GraphFinesse() {
-        ancestors = new HashMap<>();
-        descendants = new HashMap<>();
-        passedVertices = new HashMap<>();
-        passedEdges = new HashMap<>();
-        vertexVersions = new HashMap<>();
-        vertexStrings = new HashMap<>();
-    }
+    // Maps the hash of a vertex to the id of its latest version.
+    private final Hash128IntMap vertexIds = new Hash128IntMap();
+    // Maps a (child id, parent id) pair to the fingerprint of the annotations of the last edge between them.
+    private final LongLongMap edgeFingerprints = new LongLongMap();
+
+    private int vertexCount = 0;
+    // Indexed by vertex id.
+    private int[] order = new int[initialCapacity];
+    private int[] versions = new int[initialCapacity];
+    private boolean[] passed = new boolean[initialCapacity];
+    private int[][] parents = new int[initialCapacity][];
+    private int[] parentCounts = new int[initialCapacity];
+    private int[][] children = new int[initialCapacity][];
+    private int[] childCounts = new int[initialCapacity];
+    private int[] marks = new int[initialCapacity];
+    private int markEpoch = 0;
+
+    // Next free positions at the two ends of the order.
+    private int minOrder = 0, maxOrder = 1;
+
+    // Scratch space for searches.
+    private final IntList stack = new IntList();
+    private final IntList forward = new IntList();
+    private final IntList backward = new IntList();
+
+    private long edgesIn = 0, edgesOut = 0, duplicateEdges = 0, versionsCreated = 0, reorders = 0,
+            reorderedVertices = 0;
 
     @Override
-    public void putVertex(AbstractVertex incomingVertex) {
-        if (vertexStrings.containsKey(incomingVertex.toString())) {
-            // We've already seen this vertex.
+    public synchronized void putVertex(AbstractVertex incomingVertex) {
+        if (incomingVertex == null) {
             return;
         }
-        AbstractVertex copy = incomingVertex.copyAsVertex();
-        copy.addAnnotation(versionAnnotation, Integer.toString(initialVersion));
-        // For comparison purposes, we store the string representation of the 
-        // original vertex since the filter may change the version.
-        vertexStrings.put(incomingVertex.toString(), copy);
-        passedVertices.put(copy, Boolean.FALSE);
-        vertexVersions.put(copy, initialVersion);
+        getOrCreateId(incomingVertex);
     }
 
     // Given an incoming edge A->B, GF uses the following rules:
-    // 1) If A->B already exists, then it is a duplicate --> discard.
-    // 2) If A exists in the ancestors of B, then this edge will create a
-    //    cycle --> create a new version A' and add edge A'->B.
+    // 1) If A->B already exists with the same annotations as the last one, then
+    //    it is a duplicate --> discard.
+    // 2) If A is reachable from B, then this edge will create a cycle --> create
+    //    a new version A' and add edge A'->B.
     // 3) If rules (1) and (2) are not met, then add the edge as a normal edge.
     @Override
-    public void putEdge(AbstractEdge edge) {
-        AbstractVertex source = vertexStrings.get(edge.getChildVertex().toString());
-        AbstractVertex destination = vertexStrings.get(edge.getParentVertex().toString());
-        AbstractEdge copyEdge = copyEdge(edge);
-        copyEdge.setChildVertex(source);
-        copyEdge.setParentVertex(destination);
+    public synchronized void putEdge(AbstractEdge edge) {
+        if (edge == null || edge.getChildVertex() == null || edge.getParentVertex() == null) {
+            return;
+        }
+        edgesIn++;
+        int source = getOrCreateId(edge.getChildVertex());
+        final int destination = getOrCreateId(edge.getParentVertex());
+        if (order[source] == UNORDERED) {
+            order[source] = --minOrder;
+        }
+        if (order[destination] == UNORDERED) {
+            order[destination] = maxOrder++;
+        }
 
         // Check for rule 1
-        if (passedEdges.containsKey(copyEdge)) // Check for rule 2
-        {
+        final long fingerprint = BloomFilter.createHash128(edge.getCopyOfAnnotations().toString())[0];
+        final long pair = toPair(source, destination);
+        final Long existingFingerprint = edgeFingerprints.get(pair);
+        if (existingFingerprint != null && existingFingerprint.longValue() == fingerprint) {
+            duplicateEdges++;
             return;
         }
 
-        // Check for rule 2
-        if (ancestors.containsKey(destination) && ancestors.get(destination).contains(source)) {
-            // Rule 2 is hit, update the vertex number.
-            int newVersion = vertexVersions.get(source) + 1;
-            source.removeAnnotation(versionAnnotation);
-            source.addAnnotation(versionAnnotation, Integer.toString(newVersion));
-            vertexVersions.put(source, newVersion);
+        if (existingFingerprint == null) {
+            // Check for rule 2
+            if (!insertEdge(source, destination)) {
+                // Rule 2 is hit, create a new version of the source with no edges.
+                source = createVersion(edge.getChildVertex(), source);
+                insertEdge(source, destination);
+            }
         }
-
-        updateAncestors(source, destination);
-        updateDescendants(source, destination);
+        edgeFingerprints.put(toPair(source, destination), fingerprint);
 
         // Pass the edges and vertices.
-        checkVertexCache(source);
-        checkVertexCache(destination);
+        final AbstractVertex sourceCopy = copyVertex(edge.getChildVertex(), source);
+        final AbstractVertex destinationCopy = copyVertex(edge.getParentVertex(), destination);
+        checkVertexCache(source, sourceCopy);
+        checkVertexCache(destination, destinationCopy);
+        final AbstractEdge copyEdge = new Edge(sourceCopy, destinationCopy);
+        copyEdge.addAnnotations(edge.getCopyOfAnnotations());
+        edgesOut++;
         putInNextFilter(copyEdge);
     }
 
-    private void updateAncestors(AbstractVertex source, AbstractVertex destination) {
-        // Update the ancestors for this vertex and its descendants.
-        if (!ancestors.containsKey(source)) {
-            HashSet<AbstractVertex> vertexAncestors = new HashSet<>();
-            vertexAncestors.add(destination);
-            ancestors.put(source, vertexAncestors);
-        }
-        // Update the ancestors for this vertex by adding all the ancestors
-        // of the destination vertex.
-        ancestors.get(source).addAll(ancestors.get(destination));
-        // Update the ancestors of the descendants of this vertex since this
-        // edge may have created new descendants.
-        for (AbstractVertex descendant : descendants.get(source)) {
-            if (ancestors.containsKey(descendant)) {
-                ancestors.get(descendant).add(source);
-                ancestors.get(descendant).addAll(ancestors.get(source));
-            }
+    @Override
+    public synchronized boolean shutdown() {
+        logger.log(Level.INFO, "vertices=" + vertexCount + ", distinctEdges=" + edgeFingerprints.size()
+                + ", edgesIn=" + edgesIn + ", edgesOut=" + edgesOut + ", duplicateEdges=" + duplicateEdges
+                + ", versionsCreated=" + versionsCreated + ", reorders=" + reorders
+                + ", reorderedVertices=" + reorderedVertices);
+        return true;
+    }
+
+    private static long toPair(int source, int destination) {
+        return (((long) source) << 32) | (destination & 0xffffffffL);
+    }
+
+    private int getOrCreateId(AbstractVertex vertex) {
+        final long[] hash = BloomFilter.createHash128(vertex.bigHashCodeBytes());
+        final int existing = vertexIds.get(hash[0], hash[1]);
+        if (existing >= 0) {
+            return existing;
         }
+        final int id = newId(initialVersion);
+        vertexIds.put(hash[0], hash[1], id);
+        return id;
     }
 
-    private void updateDescendants(AbstractVertex source, AbstractVertex destination) {
-        // Update the descendants for this vertex and its ancestors.
-        if (!descendants.containsKey(destination)) {
-            HashSet<AbstractVertex> vertexDescendants = new HashSet<>();
-            vertexDescendants.add(source);
-            descendants.put(destination, vertexDescendants);
+    private int createVersion(AbstractVertex vertex, int id) {
+        final int newId = newId(versions[id] + 1);
+        order[newId] = --minOrder;
+        final long[] hash = BloomFilter.createHash128(vertex.bigHashCodeBytes());
+        vertexIds.put(hash[0], hash[1], newId);
+        versionsCreated++;
+        return newId;
+    }
+
+    private int newId(int version) {
+        if (vertexCount == order.length) {
+            final int capacity = order.length * 2;
+            order = Arrays.copyOf(order, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            passed = Arrays.copyOf(passed, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            parentCounts = Arrays.copyOf(parentCounts, capacity);
+            children = Arrays.copyOf(children, capacity);
+            childCounts = Arrays.copyOf(childCounts, capacity);
+            marks = Arrays.copyOf(marks, capacity);
+        }
+        final int id = vertexCount++;
+        order[id] = UNORDERED;
+        versions[id] = version;
+        return id;
+    }
+
+    /**
+     * Adds the edge source->destination and restores the topological order if required.
+     *
+     * @return false if the edge would create a cycle (and it is not added)
+     */
+    private boolean insertEdge(int source, int destination) {
+        if (source == destination) {
+            return false;
         }
-        // Update the descendants for this vertex by adding all the descendants
-        // of the source vertex.
-        descendants.get(destination).addAll(descendants.get(source));
-        // Update the descendants of the ancestors of this vertex since this
-        // edge may have created new ancestors.
-        for (AbstractVertex ancestor : ancestors.get(source)) {
-            if (descendants.containsKey(ancestor)) {
-                descendants.get(ancestor).add(source);
-                descendants.get(ancestor).addAll(descendants.get(source));
+        final int lowerBound = order[destination];
+        final int upperBound = order[source];
+        if (lowerBound <= upperBound) {
+            // Search forward (towards parents) from the destination for the source among the affected vertices.
+            forward.clear();
+            if (!search(destination, upperBound, true, forward, source)) {
+                return false;
             }
+            backward.clear();
+            search(source, lowerBound, false, backward, -1);
+            reorder();
+        }
+        parents[source] = IntList.add(parents[source], parentCounts[source]++, destination);
+        children[destination] = IntList.add(children[destination], childCounts[destination]++, source);
+        return true;
+    }
+
+    /**
+     * Depth-first search from 'start' limited to the vertices with order less than (forward) or greater than
+     * (backward) the bound.
+     *
+     * @return false if 'target' was reached
+     */
+    private boolean search(int start, int bound, boolean isForward, IntList visited, int target) {
+        final int epoch = ++markEpoch;
+        stack.clear();
+        stack.push(start);
+        marks[start] = epoch;
+        while (stack.size > 0) {
+            final int vertex = stack.pop();
+            visited.push(vertex);
+            final int[] next = isForward ? parents[vertex] : children[vertex];
+            final int nextCount = isForward ? parentCounts[vertex] : childCounts[vertex];
+            for (int i = 0; i < nextCount; i++) {
+                final int n = next[i];
+                if (n == target) {
+                    return false;
+                }
+                if (marks[n] != epoch && (isForward ? order[n] < bound : order[n] > bound)) {
+                    marks[n] = epoch;
+                    stack.push(n);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the vertices found in the backward search before the ones found in the forward search by reusing their
+     * positions.
+     */
+    private void reorder() {
+        final long[] backwardSorted = sortByOrder(backward);
+        final long[] forwardSorted = sortByOrder(forward);
+        final int[] positions = new int[backwardSorted.length + forwardSorted.length];
+        int i = 0;
+        for (long entry : backwardSorted) {
+            positions[i++] = (int) (entry >> 32);
+        }
+        for (long entry : forwardSorted) {
+            positions[i++] = (int) (entry >> 32);
+        }
+        Arrays.sort(positions);
+        i = 0;
+        for (long entry : backwardSorted) {
+            order[(int) entry] = positions[i++];
+        }
+        for (long entry : forwardSorted) {
+            order[(int) entry] = positions[i++];
         }
+        reorders++;
+        reorderedVertices += positions.length;
     }
 
-    private void checkVertexCache(AbstractVertex vertex) {
-        if (Objects.equals(passedVertices.get(vertex), Boolean.FALSE)) {
-            putInNextFilter(vertex);
-            passedVertices.put(vertex, Boolean.TRUE);
+    private long[] sortByOrder(IntList vertices) {
+        final long[] sorted = new long[vertices.size];
+        for (int i = 0; i < vertices.size; i++) {
+            final int vertex = vertices.values[i];
+            sorted[i] = (((long) order[vertex]) << 32) | (vertex & 0xffffffffL);
         }
+        Arrays.sort(sorted);
+        return sorted;
     }
 
-    private AbstractEdge copyEdge(AbstractEdge edge) {
-        AbstractEdge copy = new Edge(edge.getChildVertex(), edge.getParentVertex());
-        copy.addAnnotations(edge.getCopyOfAnnotations());
+    private AbstractVertex copyVertex(AbstractVertex vertex, int id) {
+        AbstractVertex copy = vertex.copyAsVertex();
+        copy.addAnnotation(versionAnnotation, Integer.toString(versions[id]));
         return copy;
     }
+
+    private void checkVertexCache(int id, AbstractVertex copy) {
+        if (!passed[id]) {
+            putInNextFilter(copy);
+            passed[id] = true;
+        }
+    }
+
+    /**
+     * Growable int array.
+     */
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        private void push(int value) {
+            values = add(values, size++, value);
+        }
+
+        private int pop() {
+            return values[--size];
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        private static int[] add(int[] array, int index, int value) {
+            if (array == null) {
+                array = new int[2];
+            } else if (index == array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+            }
+            array[index] = value;
+            return array;
+        }
+    }
+
+    private static int mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (key ^ (key >>> 33));
+    }
+
+    /**
+     * Open addressing map from a 128-bit hash to a non-negative int.
+     */
+    private static final class Hash128IntMap {
+        private long[] highs = new long[initialCapacity];
+        private long[] lows = new long[initialCapacity];
+        // Value + 1 so that 0 is empty.
+        private int[] values = new int[initialCapacity];
+        private int size = 0;
+
+        private int slot(long high, long low) {
+            final int mask = values.length - 1;
+            int slot = mix(high ^ low) & mask;
+            while (values[slot] != 0 && (highs[slot] != high || lows[slot] != low)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * @return value or -1 if not found
+         */
+        private int get(long high, long low) {
+            return values[slot(high, low)] - 1;
+        }
+
+        private void put(long high, long low, int value) {
+            int slot = slot(high, low);
+            if (values[slot] == 0) {
+                if ((size + 1) * 2 > values.length) {
+                    resize();
+                    slot = slot(high, low);
+                }
+                size++;
+                highs[slot] = high;
+                lows[slot] = low;
+            }
+            values[slot] = value + 1;
+        }
+
+        private void resize() {
+            final long[] oldHighs = highs, oldLows = lows;
+            final int[] oldValues = values;
+            highs = new long[oldValues.length * 2];
+            lows = new long[oldValues.length * 2];
+            values = new int[oldValues.length * 2];
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != 0) {
+                    final int slot = slot(oldHighs[i], oldLows[i]);
+                    highs[slot] = oldHighs[i];
+                    lows[slot] = oldLows[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Open addressing map from a non-negative long to a long.
+     */
+    private static final class LongLongMap {
+        // Key + 1 so that 0 is empty.
+        private long[] keys = new long[initialCapacity];
+        private long[] values = new long[initialCapacity];
+        private int size = 0;
+
+        private int slot(long storedKey) {
+            final int mask = keys.length - 1;
+            int slot = mix(storedKey) & mask;
+            while (keys[slot] != 0 && keys[slot] != storedKey) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private Long get(long key) {
+            final int slot = slot(key + 1);
+            return keys[slot] == 0 ? null : values[slot];
+        }
+
+        private void put(long key, long value) {
+            int slot = slot(key + 1);
+            if (keys[slot] == 0) {
+                if ((size + 1) * 2 > keys.length) {
+                    resize();
+                    slot = slot(key + 1);
+                }
+                size++;
+                keys[slot] = key + 1;
+            }
+            values[slot] = value;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void resize() {
+            final long[] oldKeys = keys, oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    final int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
 }
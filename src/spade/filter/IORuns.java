@@ -20,11 +20,9 @@
 package spade.filter;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +31,8 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.edge.opm.Used;
 import spade.edge.opm.WasGeneratedBy;
+import spade.filter.window.EdgeWindows;
+import spade.reporter.audit.OPMConstants;
 import spade.utility.HelperFunctions;
 import spade.utility.LoadableField;
 import spade.utility.LoadableFieldHelper;
@@ -53,27 +53,66 @@ import spade.vertex.opm.Artifact;
  * 
  * The filter is applied to only those artifacts which contain all the above-mentioned annotations specified in arguments
  * as 'key'.
+ * 
+ * A run is the sequence of reads (or writes) by a process on an artifact. A run is closed when:
+ * 	1. No read (or write) was seen for the run for 'idleTimeoutSeconds'
+ * 	2. The process writes (or reads) the artifact i.e. an interleaving operation
+ * 	3. The number of open runs exceeds 'maxOpenRuns' (the least recently used run is closed)
+ * 	4. The filter is shutdown
+ * 
+ * On close, the first edge of the run is put in the next filter with the annotations 'count' and 'last time' (if the
+ * count is greater than 1, see spade.filter.window.EdgeWindows). The annotation 'time' of the edge is the time of the
+ * first edge.
+ * 
+ * The artifact vertices are held (at most 'maxBufferedVertices') until an edge for them is seen, and are dropped if
+ * the edge is part of an already open run.
  */
 public class IORuns extends AbstractFilter {
 
 	private static final Logger logger = Logger.getLogger(IORuns.class.getName());
 	
-	private static final String argNameArtifactKey = "key";
+	private static final String argNameArtifactKey = "key",
+			argNameIdleTimeoutSeconds = "idleTimeoutSeconds",
+			argNameMaxOpenRuns = "maxOpenRuns",
+			argNameMaxBufferedVertices = "maxBufferedVertices",
+			argNameReportingIntervalSeconds = "reportingIntervalSeconds";
+	
+	public static final String ANNOTATION_COUNT = EdgeWindows.ANNOTATION_COUNT,
+			ANNOTATION_LAST_TIME = EdgeWindows.ANNOTATION_LAST_TIME;
+	
+	private static final byte DIRECTION_READ = 0, DIRECTION_WRITE = 1;
+	
+	private static final int CLOSED_IDLE = 0, CLOSED_INTERLEAVED = 1, CLOSED_OVERFLOW = 2, CLOSED_SHUTDOWN = 3;
+	private static final String[] closedReasonNames = {"idle", "interleaved", "overflow", "shutdown"};
 	
 	@LoadableField(name=argNameArtifactKey, optional=false, splitBy=",")
 	private final String[] artifactsKeysArray = null;
 	
-    private final Map<String, HashSet<String>> writes;
-    private final Map<String, HashSet<String>> reads;
-    private final Queue<AbstractVertex> vertexBuffer;
+	@LoadableField(name=argNameIdleTimeoutSeconds, optional=false, min=0)
+	private Long idleTimeoutSeconds = null;
+	
+	@LoadableField(name=argNameMaxOpenRuns, optional=false, min=1, max=Integer.MAX_VALUE)
+	private Integer maxOpenRuns = null;
+	
+	@LoadableField(name=argNameMaxBufferedVertices, optional=false, min=0, max=Integer.MAX_VALUE)
+	private Integer maxBufferedVertices = null;
+	
+	@LoadableField(name=argNameReportingIntervalSeconds, optional=false)
+	private Long reportingIntervalSeconds = null;
 
-    public IORuns() {
-        writes = new HashMap<>();
-        reads = new HashMap<>();
-        vertexBuffer = new LinkedList<>();
-    }
-    
-    private boolean printGlobals(){
+	private final Object lock = new Object();
+	// Ordered by the last edge i.e. the eldest is the least recently used run
+	private EdgeWindows openRuns;
+	// Insertion ordered. Key is the big hash code
+	private final LinkedHashMap<String, AbstractVertex> vertexBuffer = new LinkedHashMap<String, AbstractVertex>();
+	
+	private long idleTimeoutMillis;
+	private volatile boolean shutdown = false;
+	private Thread expiryThread;
+	
+	private long vertexBufferOverflows = 0;
+
+	private boolean printGlobals(){
 		try{
 			String globalsString = LoadableFieldHelper.allLoadableFieldsToString(this);
 			logger.log(Level.INFO, "Arguments: " + globalsString);
@@ -83,8 +122,8 @@ public class IORuns extends AbstractFilter {
 			return false;
 		}
 	}
-    
-    private boolean initGlobals(String arguments){
+	
+	private boolean initGlobals(String arguments){
 		Map<String, String> globalsMap = null;
 		try{
 			globalsMap = HelperFunctions.getGlobalsMapFromConfigAndArguments(this.getClass(), arguments);
@@ -114,99 +153,162 @@ public class IORuns extends AbstractFilter {
 			return false;
 		}
 	}
-    
-    @Override
-    public boolean initialize(String arguments){
-    	if(!initGlobals(arguments)){
+	
+	@Override
+	public boolean initialize(String arguments){
+		if(!initGlobals(arguments)){
 			return false;
-		}else{
-			return true;
 		}
-    }
-    
-    private boolean artifactContainsAllArtifactKeys(AbstractVertex artifact){
-    	for(String artifactKey : artifactsKeysArray){
-    		if(artifact.getAnnotation(artifactKey) == null){
-    			return false;
-    		}
-    	}
-    	return true;
-    }
-    
-    private String getArtifactKeysValues(AbstractVertex vertex){
-    	String value = "";
-    	for(String key : artifactsKeysArray){
-    		value += vertex.getAnnotation(key) + ",";
-    	}
-    	return value;
-    }
-    
-    @Override
-    public void putVertex(AbstractVertex incomingVertex) {
-        if ((incomingVertex instanceof Artifact) && artifactContainsAllArtifactKeys(incomingVertex)) {
-            vertexBuffer.add(incomingVertex);
-        } else {
-            putInNextFilter(incomingVertex);
-        }
-    }
+		idleTimeoutMillis = idleTimeoutSeconds * 1000;
+		openRuns = new EdgeWindows(this, true, maxOpenRuns, closedReasonNames, CLOSED_OVERFLOW, null,
+				reportingIntervalSeconds * 1000);
+		if(idleTimeoutMillis > 0){
+			expiryThread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					final long sleepMillis = Math.max(10, Math.min(1000, idleTimeoutMillis / 2));
+					while(!shutdown){
+						HelperFunctions.sleepSafe(sleepMillis);
+						synchronized(lock){
+							if(!shutdown){
+								closeIdleRuns(System.currentTimeMillis());
+							}
+						}
+					}
+				}
+			}, IORuns.class.getSimpleName() + "-expiry-thread");
+			expiryThread.setDaemon(true);
+			expiryThread.start();
+		}
+		return true;
+	}
+	
+	private boolean artifactContainsAllArtifactKeys(AbstractVertex artifact){
+		for(String artifactKey : artifactsKeysArray){
+			if(artifact.getAnnotation(artifactKey) == null){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private String getArtifactKeysValues(AbstractVertex vertex){
+		final StringBuilder value = new StringBuilder();
+		for(String key : artifactsKeysArray){
+			value.append(vertex.getAnnotation(key)).append(',');
+		}
+		return value.toString();
+	}
+	
+	private EdgeWindows.Key getRunKey(final AbstractVertex processVertex, final AbstractVertex artifactVertex,
+			final byte direction){
+		final String processHash = processVertex.bigHashCode();
+		final String artifactKeysValues = getArtifactKeysValues(artifactVertex);
+		return EdgeWindows.Key.of(processHash + '\u0000' + artifactKeysValues, direction);
+	}
+	
+	@Override
+	public void putVertex(AbstractVertex incomingVertex) {
+		synchronized(lock){
+			if ((incomingVertex instanceof Artifact) && artifactContainsAllArtifactKeys(incomingVertex)) {
+				if(maxBufferedVertices == 0){
+					putInNextFilter(incomingVertex);
+				}else{
+					vertexBuffer.put(incomingVertex.bigHashCode(), incomingVertex);
+					while(vertexBuffer.size() > maxBufferedVertices){
+						final Iterator<AbstractVertex> iterator = vertexBuffer.values().iterator();
+						final AbstractVertex eldest = iterator.next();
+						iterator.remove();
+						vertexBufferOverflows++;
+						putInNextFilter(eldest);
+					}
+				}
+			} else {
+				putInNextFilter(incomingVertex);
+			}
+		}
+	}
+	
+	/**
+	 * Puts the vertex in the next filter if it was buffered
+	 */
+	private void flushBufferedVertex(final AbstractVertex vertex){
+		if(vertex != null && !vertexBuffer.isEmpty()){
+			final AbstractVertex bufferedVertex = vertexBuffer.remove(vertex.bigHashCode());
+			if(bufferedVertex != null){
+				putInNextFilter(bufferedVertex);
+			}
+		}
+	}
 
-    @Override
-    public void putEdge(AbstractEdge incomingEdge) {
-        if ((incomingEdge instanceof Used) && artifactContainsAllArtifactKeys(incomingEdge.getParentVertex())) {
-            Used usedEdge = (Used) incomingEdge;
-            String fileVertexHash = getArtifactKeysValues(usedEdge.getParentVertex());
-            String processVertexHash = Integer.toString(usedEdge.getChildVertex().hashCode());
-            if (!reads.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = new HashSet<>();
-                tempSet.add(processVertexHash);
-                reads.put(fileVertexHash, tempSet);
-            } else {
-                HashSet<String> tempSet = reads.get(fileVertexHash);
-                if (tempSet.contains(processVertexHash)) {
-                    vertexBuffer.remove(usedEdge.getParentVertex());
-                    return;
-                } else {
-                    tempSet.add(processVertexHash);
-                }
-            }
-            vertexBuffer.remove(usedEdge.getParentVertex());
-            putInNextFilter(usedEdge.getParentVertex());
-            putInNextFilter(usedEdge);
-            if (writes.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = writes.get(fileVertexHash);
-                tempSet.remove(processVertexHash);
-            }
-        } else if ((incomingEdge instanceof WasGeneratedBy) && artifactContainsAllArtifactKeys(incomingEdge.getChildVertex())){
-            WasGeneratedBy wgb = (WasGeneratedBy) incomingEdge;
-            String fileVertexHash = getArtifactKeysValues(wgb.getChildVertex());
-            String processVertexHash = Integer.toString(wgb.getParentVertex().hashCode());
-            if (!writes.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = new HashSet<>();
-                tempSet.add(processVertexHash);
-                writes.put(fileVertexHash, tempSet);
-            } else {
-                HashSet<String> tempSet = writes.get(fileVertexHash);
-                if (tempSet.contains(processVertexHash)) {
-                    vertexBuffer.remove(wgb.getChildVertex());
-                    return;
-                } else {
-                    tempSet.add(processVertexHash);
-                }
-            }
-            vertexBuffer.remove(wgb.getChildVertex());
-            putInNextFilter(wgb.getChildVertex());
-            putInNextFilter(wgb);
-            if (reads.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = reads.get(fileVertexHash);
-                tempSet.remove(processVertexHash);
-            }
-        } else {
-            putInNextFilter(incomingEdge);
-        }
-    }
+	@Override
+	public void putEdge(AbstractEdge incomingEdge) {
+		synchronized(lock){
+			final long nowMillis = System.currentTimeMillis();
+			if ((incomingEdge instanceof Used) && artifactContainsAllArtifactKeys(incomingEdge.getParentVertex())) {
+				putRunEdge(incomingEdge, incomingEdge.getChildVertex(), incomingEdge.getParentVertex(), DIRECTION_READ, nowMillis);
+			} else if ((incomingEdge instanceof WasGeneratedBy) && artifactContainsAllArtifactKeys(incomingEdge.getChildVertex())){
+				putRunEdge(incomingEdge, incomingEdge.getParentVertex(), incomingEdge.getChildVertex(), DIRECTION_WRITE, nowMillis);
+			} else {
+				flushBufferedVertex(incomingEdge.getChildVertex());
+				flushBufferedVertex(incomingEdge.getParentVertex());
+				putInNextFilter(incomingEdge);
+			}
+			printStats(false);
+		}
+	}
+	
+	private void putRunEdge(final AbstractEdge edge, final AbstractVertex processVertex, final AbstractVertex artifactVertex,
+			final byte direction, final long nowMillis){
+		// An interleaving operation closes the run in the other direction
+		final EdgeWindows.Key otherKey = getRunKey(processVertex, artifactVertex, 
+				direction == DIRECTION_READ ? DIRECTION_WRITE : DIRECTION_READ);
+		openRuns.close(otherKey, CLOSED_INTERLEAVED);
+		
+		final EdgeWindows.Key key = otherKey.withTag(direction);
+		if(openRuns.isOpen(key)){
+			// Drop the vertex of the repeated edge
+			if(!vertexBuffer.isEmpty()){
+				vertexBuffer.remove(artifactVertex.bigHashCode());
+			}
+		}else{
+			flushBufferedVertex(artifactVertex);
+		}
+		openRuns.put(key, edge, edge.getAnnotation(OPMConstants.EDGE_TIME), null, nowMillis);
+		closeIdleRuns(nowMillis);
+	}
+	
+	private void closeIdleRuns(final long nowMillis){
+		if(idleTimeoutMillis <= 0){
+			return;
+		}
+		openRuns.closeExpired(nowMillis, idleTimeoutMillis, CLOSED_IDLE);
+	}
+	
+	private void printStats(final boolean force){
+		if(openRuns.isReportDue(force)){
+			logger.log(Level.INFO, openRuns.getStats() + String.format(", bufferedVertices=%d, vertexBufferOverflows=%d",
+					vertexBuffer.size(), vertexBufferOverflows));
+		}
+	}
 
-    @Override
-    public boolean shutdown() {
-        return true;
-    }
+	@Override
+	public boolean shutdown() {
+		synchronized(lock){
+			shutdown = true;
+			for(final AbstractVertex vertex : vertexBuffer.values()){
+				putInNextFilter(vertex);
+			}
+			vertexBuffer.clear();
+			if(openRuns != null){
+				openRuns.closeAll(CLOSED_SHUTDOWN);
+				printStats(true);
+			}
+		}
+		if(expiryThread != null){
+			expiryThread.interrupt();
+			expiryThread = null;
+		}
+		return true;
+	}
 }
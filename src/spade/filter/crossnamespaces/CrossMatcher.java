@@ -19,27 +19,41 @@
  */
 package spade.filter.crossnamespaces;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractVertex;
+import spade.core.BloomFilter;
 import spade.filter.CrossNamespaces;
 import spade.utility.ArgumentFunctions;
+import spade.utility.Converter;
 import spade.utility.HelperFunctions;
 import spade.utility.Result;
 import spade.utility.map.external.ExternalMap;
 import spade.utility.map.external.ExternalMapArgument;
 import spade.utility.map.external.ExternalMapManager;
 
+/**
+ * Keeps the writers of each artifact and reports reads of an artifact by a process which doesn't match (by the
+ * process annotations to match) the writers.
+ *
+ * The annotations to match of an artifact are kept as a 128-bit hash (the key), and the annotations to match of a
+ * process as a 64-bit hash. The annotations to report are kept once in a bounded dictionary of tuples by a 64-bit hash.
+ * The state of an artifact is a fixed-width binary record of at most 'maxWritersPerArtifact' writers where writers not
+ * seen for 'writerTimeoutSeconds' are aged out.
+ */
 public class CrossMatcher{
 
 	private static final Logger logger = Logger.getLogger(CrossMatcher.class.getName());
@@ -53,23 +67,38 @@ public class CrossMatcher{
 		keyArtifactAnnotationsToReport = "artifactAnnotationsToReport",
 		keyProcessAnnotationsToReport = "processAnnotationsToReport",
 		keyTypesOfArtifactToProcessEdge = "typesOfArtifactToProcessEdge",
-		keyTypesOfProcessToArtifactEdge = "typesOfProcessToArtifactEdge";
+		keyTypesOfProcessToArtifactEdge = "typesOfProcessToArtifactEdge",
+		keyMaxWritersPerArtifact = "maxWritersPerArtifact",
+		keyWriterTimeoutSeconds = "writerTimeoutSeconds",
+		keyMaxReportTuples = "maxReportTuples";
 	
 	private final Set<String> artifactAnnotationsToMatch = new HashSet<String>();
 	private final Set<String> processAnnotationsToMatch = new HashSet<String>();
 	private final Set<String> artifactAnnotationsToReport = new HashSet<String>();
 	private final Set<String> processAnnotationsToReport = new HashSet<String>();
 
+	// Sorted so that the hashes are independent of the order in the config
+	private String[] sortedArtifactAnnotationsToMatch;
+	private String[] sortedProcessAnnotationsToMatch;
+	private String[] sortedArtifactAnnotationsToMatchAndReport;
+	private String[] sortedProcessAnnotationsToMatchAndReport;
+
 	private final Set<String> typesOfArtifactToProcessEdge = new HashSet<String>();
 	private final Set<String> typesOfProcessToArtifactEdge = new HashSet<String>();
 	
 	private CrossNamespaces filter;
 	private boolean debug;
 	private boolean inMemoryMap;
-	private ExternalMap<Matched, MatchedState> artifactToProcessMap;
-	private Map<Matched, MatchedState> artifactToProcessMapInMemory;
+	private int maxWritersPerArtifact;
+	private long writerTimeoutMillis;
+	private ExternalMap<ArtifactKey, MatchedState> artifactToProcessMap;
+	private Map<ArtifactKey, MatchedState> artifactToProcessMapInMemory;
+
+	// Hash to the annotations to report (along with the annotations to match)
+	private ReportTuples reportTuples;
 
 	private long msgCounter = 0;
+	private long writersAgedOut = 0, writersReplaced = 0, missingReportTuples = 0;
 
 	private final List<String> allValuesMustBeNonEmpty(final List<String> values, final String key) throws Exception{
 		final List<String> result = new ArrayList<String>();
@@ -82,6 +111,12 @@ public class CrossMatcher{
 		return result;
 	}
 
+	private static final String[] sortedUnion(final Set<String> a, final Set<String> b){
+		final TreeSet<String> set = new TreeSet<String>(a);
+		set.addAll(b);
+		return set.toArray(new String[0]);
+	}
+
 	public final void initialize(final CrossNamespaces filter, final Map<String, String> configMap) throws Exception{
 		this.filter = filter;
 		debug = ArgumentFunctions.mustParseBoolean(keyDebug, configMap);
@@ -135,16 +170,32 @@ public class CrossMatcher{
 					);
 		}
 
+		sortedArtifactAnnotationsToMatch = sortedUnion(artifactAnnotationsToMatch, new HashSet<String>());
+		sortedProcessAnnotationsToMatch = sortedUnion(processAnnotationsToMatch, new HashSet<String>());
+		sortedArtifactAnnotationsToMatchAndReport = sortedUnion(artifactAnnotationsToMatch, artifactAnnotationsToReport);
+		sortedProcessAnnotationsToMatchAndReport = sortedUnion(processAnnotationsToMatch, processAnnotationsToReport);
+
+		maxWritersPerArtifact = ArgumentFunctions.mustParseInteger(keyMaxWritersPerArtifact, configMap);
+		if(maxWritersPerArtifact < 1){
+			throw new Exception("'"+keyMaxWritersPerArtifact+"' must be greater than zero: " + maxWritersPerArtifact);
+		}
+		writerTimeoutMillis = ArgumentFunctions.mustParseLong(keyWriterTimeoutSeconds, configMap) * 1000;
+		final int maxReportTuples = ArgumentFunctions.mustParseInteger(keyMaxReportTuples, configMap);
+		if(maxReportTuples < 1){
+			throw new Exception("'"+keyMaxReportTuples+"' must be greater than zero: " + maxReportTuples);
+		}
+		reportTuples = new ReportTuples(maxReportTuples);
+
 		inMemoryMap = ArgumentFunctions.mustParseBoolean(keyInMemory, configMap);
 		
 		if(inMemoryMap){
-			artifactToProcessMapInMemory = new HashMap<Matched, MatchedState>();
+			artifactToProcessMapInMemory = new HashMap<ArtifactKey, MatchedState>();
 		}else{
 			final ExternalMapArgument artifactMapArgument = 
 					ArgumentFunctions.mustParseExternalMapArgument(keyArtifactToProcessMapId, configMap);
 
-			final Result<ExternalMap<Matched, MatchedState>> artifactToProcessMapResult = 
-					ExternalMapManager.create(artifactMapArgument);
+			final Result<ExternalMap<ArtifactKey, MatchedState>> artifactToProcessMapResult = 
+					ExternalMapManager.create(artifactMapArgument, new ArtifactKeyConverter(), new MatchedStateConverter());
 			if(artifactToProcessMapResult.error){
 				throw new Exception("Failed to create external map with id: " + artifactMapArgument.mapId + ". " 
 						+ artifactToProcessMapResult.toErrorString());
@@ -155,7 +206,8 @@ public class CrossMatcher{
 		}
 
 		logger.log(Level.INFO, "Arguments: "
-				+ "{0}={1}, {2}=[{3}], {4}=[{5}], {6}=[{7}], {8}=[{9}], {10}=[{11}], {12}=[{13}], {14}={15}",
+				+ "{0}={1}, {2}=[{3}], {4}=[{5}], {6}=[{7}], {8}=[{9}], {10}=[{11}], {12}=[{13}], {14}={15}, "
+				+ "{16}={17}, {18}={19}, {20}={21}",
 				new Object[]{
 						keyInMemory, inMemoryMap
 						, keyArtifactAnnotationsToMatch, artifactAnnotationsToMatch
@@ -165,17 +217,22 @@ public class CrossMatcher{
 						, keyArtifactAnnotationsToReport, artifactAnnotationsToReport
 						, keyProcessAnnotationsToReport, processAnnotationsToReport
 						, keyDebug, debug
+						, keyMaxWritersPerArtifact, maxWritersPerArtifact
+						, keyWriterTimeoutSeconds, writerTimeoutMillis / 1000
+						, keyMaxReportTuples, maxReportTuples
 				});
 	}
 
-	public final void shutdown(){
+	public final synchronized void shutdown(){
+		logger.log(Level.INFO, "Events={0}, writersAgedOut={1}, writersReplaced={2}, missingReportTuples={3}", 
+				new Object[]{msgCounter, writersAgedOut, writersReplaced, missingReportTuples});
 		if(artifactToProcessMap != null){
 			artifactToProcessMap.close();
 			artifactToProcessMap = null;
 		}
 	}
 
-	private final MatchedState mapGetter(final Matched key){
+	private final MatchedState mapGetter(final ArtifactKey key){
 		if(inMemoryMap){
 			return artifactToProcessMapInMemory.get(key);
 		}else{
@@ -183,7 +240,7 @@ public class CrossMatcher{
 		}
 	}
 	
-	private final void mapPutter(final Matched key, final MatchedState value){
+	private final void mapPutter(final ArtifactKey key, final MatchedState value){
 		if(inMemoryMap){
 			artifactToProcessMapInMemory.put(key, value);
 		}else{
@@ -191,23 +248,55 @@ public class CrossMatcher{
 		}
 	}
 
-	private final Matched getMatchedFor(final AbstractVertex vertex, final Set<String> annotationsToGetSet){
-		final TreeMap<String, String> finalMap = new TreeMap<String, String>();
-		for(final String annotationToGet : annotationsToGetSet){
-			final String annotationValue;
-			if(annotationToGet.equals(AbstractVertex.hashKey)){
-				annotationValue = vertex.bigHashCode();
-			}else{
-				annotationValue = vertex.getAnnotation(annotationToGet);
+	private static final String getAnnotation(final AbstractVertex vertex, final String annotationToGet){
+		if(annotationToGet.equals(AbstractVertex.hashKey)){
+			return vertex.bigHashCode();
+		}else{
+			return vertex.getAnnotation(annotationToGet);
+		}
+	}
+
+	/**
+	 * @return 128-bit hash of the (sorted) annotations present in the vertex or null if none present
+	 */
+	private static final long[] getHashFor(final AbstractVertex vertex, final String[] sortedAnnotationsToGet){
+		final StringBuilder builder = new StringBuilder();
+		boolean found = false;
+		for(final String annotationToGet : sortedAnnotationsToGet){
+			final String annotationValue = getAnnotation(vertex, annotationToGet);
+			if(annotationValue != null){
+				builder.append(annotationToGet).append('\0').append(annotationValue).append('\0');
+				found = true;
 			}
+		}
+		return found ? BloomFilter.createHash128(builder.toString()) : null;
+	}
+
+	private static final TreeMap<String, String> getAnnotationsFor(final AbstractVertex vertex, final String[] annotationsToGet){
+		final TreeMap<String, String> finalMap = new TreeMap<String, String>();
+		for(final String annotationToGet : annotationsToGet){
+			final String annotationValue = getAnnotation(vertex, annotationToGet);
 			if(annotationValue != null){
 				finalMap.put(annotationToGet, annotationValue);
 			}
 		}
-		return new Matched(finalMap);
+		return finalMap;
+	}
+
+	/**
+	 * Adds the annotations to match and report in the vertex to the dictionary if not already added
+	 * 
+	 * @return the id of the tuple
+	 */
+	private final long getReportTupleId(final AbstractVertex vertex, final String[] sortedAnnotationsToMatchAndReport){
+		final long id = getHashFor(vertex, sortedAnnotationsToMatchAndReport)[0];
+		if(!reportTuples.contains(id)){
+			reportTuples.add(id, getAnnotationsFor(vertex, sortedAnnotationsToMatchAndReport));
+		}
+		return id;
 	}
 
-	public final void check(final AbstractEdge edge){
+	public final synchronized void check(final AbstractEdge edge){
 		if(edge != null && edge.getChildVertex() != null && edge.getParentVertex() != null){
 			final String type = edge.type();
 			if(type != null){
@@ -227,16 +316,16 @@ public class CrossMatcher{
 
 	private final void checkRead(final AbstractEdge readEdge, final AbstractVertex readerProcessVertex,
 			final AbstractVertex artifactVertex){
-		final Matched artifactMatched = getMatchedFor(artifactVertex, artifactAnnotationsToMatch);
-		if(artifactMatched.isEmpty()){
+		final long[] artifactHash = getHashFor(artifactVertex, sortedArtifactAnnotationsToMatch);
+		if(artifactHash == null){
 			if(debug){
 				logger.log(Level.WARNING, 
 						"Ignoring vertex (artifact) containing none of the specified artifact annotations to match in edge: " + readEdge);
 			}
 			return;
 		}
-		final Matched readerProcessMatched = getMatchedFor(readerProcessVertex, processAnnotationsToMatch);
-		if(readerProcessMatched.isEmpty()){
+		final long[] readerProcessHash = getHashFor(readerProcessVertex, sortedProcessAnnotationsToMatch);
+		if(readerProcessHash == null){
 			if(debug){
 				logger.log(Level.WARNING, 
 						"Ignoring vertex (process) containing none of the specified process annotations to match in edge: " + readEdge);
@@ -244,58 +333,85 @@ public class CrossMatcher{
 			return;
 		}
 
-		final MatchedState state = mapGetter(artifactMatched);
+		final ArtifactKey artifactKey = new ArtifactKey(artifactHash[0], artifactHash[1]);
+		final MatchedState state = mapGetter(artifactKey);
 		if(state == null){
 			return;
 		}
 
-		final HashMap<Matched, HashSet<Matched>> otherWriters = state.getWritersExceptFor(readerProcessMatched);
-		if(otherWriters.isEmpty()){
+		final long nowMillis = System.currentTimeMillis();
+		boolean put = ageOut(state, nowMillis);
+		if(!state.hasWritersExceptFor(readerProcessHash[0])){
+			if(put){
+				mapPutter(artifactKey, state);
+			}
 			return;
 		}
 
-		final Matched artifactReport = getMatchedFor(artifactVertex, this.artifactAnnotationsToReport);
-		if(!artifactReport.isEmpty()){
-			state.artifactAnnotationsToReport.add(artifactReport);
-			mapPutter(artifactMatched, state);
+		if(!artifactAnnotationsToReport.isEmpty()){
+			if(state.addArtifactTuple(getReportTupleId(artifactVertex, sortedArtifactAnnotationsToMatchAndReport), 
+					maxWritersPerArtifact, reportTuples)){
+				put = true;
+			}
+		}
+		if(put){
+			mapPutter(artifactKey, state);
 		}
 
 		final long eventId = msgCounter++;
-		final TreeMap<String, String> matchedArtifactAnnotations = new TreeMap<>(artifactMatched.annotations);
-		final HashSet<TreeMap<String, String>> completeArtifactAnnotationsSet = new HashSet<>();
-		for(final Matched reportTemp : state.artifactAnnotationsToReport){
-			final TreeMap<String, String> matchedAndReportArtifact = new TreeMap<String, String>(reportTemp.annotations);
-			matchedAndReportArtifact.putAll(artifactMatched.annotations);
-			completeArtifactAnnotationsSet.add(matchedAndReportArtifact);
+		final List<TreeMap<String, String>> completeArtifactAnnotations = new ArrayList<TreeMap<String, String>>();
+		for(int i = 0; i < state.artifactTupleCount; i++){
+			addReportTuple(completeArtifactAnnotations, state.artifactTupleIds[i]);
 		}
-		final HashSet<TreeMap<String, String>> completeOtherWriters = new HashSet<>();
-		for(final Map.Entry<Matched, HashSet<Matched>> entry : otherWriters.entrySet()){
-			for(final Matched tmp : entry.getValue()){
-				final TreeMap<String, String> matchedAndReportOtherWriter = new TreeMap<String, String>(tmp.annotations);
-				matchedAndReportOtherWriter.putAll(entry.getKey().annotations);
-				completeOtherWriters.add(matchedAndReportOtherWriter);
+		final List<TreeMap<String, String>> completeOtherWriters = new ArrayList<TreeMap<String, String>>();
+		final Set<Long> addedWriterTupleIds = new HashSet<Long>();
+		for(int i = 0; i < state.writerCount; i++){
+			if(state.writerHashes[i] != readerProcessHash[0] && addedWriterTupleIds.add(state.writerTupleIds[i])){
+				addReportTuple(completeOtherWriters, state.writerTupleIds[i]);
 			}
 		}
 		filter.outputEvent(eventId,
-				matchedArtifactAnnotations, 
-				completeArtifactAnnotationsSet,
+				getAnnotationsFor(artifactVertex, sortedArtifactAnnotationsToMatch), 
+				completeArtifactAnnotations,
 				completeOtherWriters,
-				readerProcessVertex, 
-				readEdge);
+				readerProcessVertex.getCopyOfAnnotations(), 
+				readEdge.getCopyOfAnnotations());
+	}
+
+	private final void addReportTuple(final List<TreeMap<String, String>> list, final long id){
+		final TreeMap<String, String> tuple = reportTuples.get(id);
+		if(tuple == null){
+			// Referenced by a state from before a restart (the dictionary is not persisted)
+			missingReportTuples++;
+		}else{
+			list.add(tuple);
+		}
+	}
+
+	/**
+	 * @return true if any writer was removed
+	 */
+	private final boolean ageOut(final MatchedState state, final long nowMillis){
+		if(writerTimeoutMillis <= 0){
+			return false;
+		}
+		final int removed = state.removeWritersLastSeenBefore(nowMillis - writerTimeoutMillis, reportTuples);
+		writersAgedOut += removed;
+		return removed > 0;
 	}
 
 	private final void checkWrite(final AbstractEdge writeEdge, final AbstractVertex writerProcessVertex,
 			final AbstractVertex artifactVertex){
-		final Matched artifactMatched = getMatchedFor(artifactVertex, artifactAnnotationsToMatch);
-		if(artifactMatched.isEmpty()){
+		final long[] artifactHash = getHashFor(artifactVertex, sortedArtifactAnnotationsToMatch);
+		if(artifactHash == null){
 			if(debug){
 				logger.log(Level.WARNING, 
 						"Ignoring vertex (artifact) containing none of the specified artifact annotations to match in edge: " + writeEdge);
 			}
 			return;
 		}
-		final Matched writerProcessMatched = getMatchedFor(writerProcessVertex, processAnnotationsToMatch);
-		if(writerProcessMatched.isEmpty()){
+		final long[] writerProcessHash = getHashFor(writerProcessVertex, sortedProcessAnnotationsToMatch);
+		if(writerProcessHash == null){
 			if(debug){
 				logger.log(Level.WARNING, 
 						"Ignoring vertex (process) containing none of the specified process annotations to match in edge: " + writeEdge);
@@ -303,92 +419,324 @@ public class CrossMatcher{
 			return;
 		}
 
-		boolean put = false;
-		
-		MatchedState state = mapGetter(artifactMatched);
+		final ArtifactKey artifactKey = new ArtifactKey(artifactHash[0], artifactHash[1]);
+		MatchedState state = mapGetter(artifactKey);
 		if(state == null){
 			state = new MatchedState();
-			put = true;
 		}
 
-		final Matched artifactReport = getMatchedFor(artifactVertex, this.artifactAnnotationsToReport);
-		if(!artifactReport.isEmpty()){
-			state.artifactAnnotationsToReport.add(artifactReport);
-			put = true;
-		}
+		final long nowMillis = System.currentTimeMillis();
+		ageOut(state, nowMillis);
 
-		final Matched writerProcessReport = getMatchedFor(writerProcessVertex, this.processAnnotationsToReport);
-		if(state.addWriter(writerProcessMatched, writerProcessReport)){
-			put = true;
+		if(!artifactAnnotationsToReport.isEmpty()){
+			state.addArtifactTuple(getReportTupleId(artifactVertex, sortedArtifactAnnotationsToMatchAndReport), 
+					maxWritersPerArtifact, reportTuples);
 		}
-		
-		if(put){
-			mapPutter(artifactMatched, state);
+
+		final long writerTupleId = getReportTupleId(writerProcessVertex, sortedProcessAnnotationsToMatchAndReport);
+		if(state.addWriter(writerProcessHash[0], writerTupleId, nowMillis, maxWritersPerArtifact, reportTuples)){
+			writersReplaced++;
 		}
+		// Always put since the last seen time is updated
+		mapPutter(artifactKey, state);
 	}
 
-	private static class Matched implements Serializable{
-		private static final long serialVersionUID = 6218289689183807202L;
-		private final TreeMap<String, String> annotations = new TreeMap<>();
-		private Matched(final TreeMap<String, String> annotations){
-			this.annotations.putAll(annotations);
-		}
-		private boolean isEmpty(){
-			return this.annotations.isEmpty();
+	/**
+	 * 128-bit hash of the annotations to match of an artifact
+	 */
+	private static final class ArtifactKey{
+		private static final int BYTES = 16;
+		private final long high, low;
+		private ArtifactKey(final long high, final long low){
+			this.high = high;
+			this.low = low;
 		}
 		@Override
 		public int hashCode(){
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + ((annotations == null) ? 0 : annotations.hashCode());
-			return result;
+			return (int)(high ^ (high >>> 32));
 		}
 		@Override
 		public boolean equals(Object obj){
 			if(this == obj)
 				return true;
-			if(obj == null)
-				return false;
-			if(getClass() != obj.getClass())
+			if(!(obj instanceof ArtifactKey))
 				return false;
-			Matched other = (Matched)obj;
-			if(annotations == null){
-				if(other.annotations != null)
-					return false;
-			}else if(!annotations.equals(other.annotations))
-				return false;
-			return true;
+			final ArtifactKey other = (ArtifactKey)obj;
+			return high == other.high && low == other.low;
 		}
+		// Used by the screen. Called for every lookup so not using String.format
 		@Override
 		public String toString(){
-			return "Matched [annotations=" + annotations + "]";
+			final char[] chars = new char[32];
+			for(int i = 0; i < 16; i++){
+				chars[15 - i] = Character.forDigit((int)((high >>> (i * 4)) & 0xf), 16);
+				chars[31 - i] = Character.forDigit((int)((low >>> (i * 4)) & 0xf), 16);
+			}
+			return new String(chars);
+		}
+	}
+
+	/**
+	 * Writers of an artifact as parallel arrays of (process hash, report tuple id, last seen time), and the report
+	 * tuple ids of the artifact.
+	 */
+	private static final class MatchedState{
+		private long[] writerHashes = new long[1];
+		private long[] writerTupleIds = new long[1];
+		private long[] writerLastSeenMillis = new long[1];
+		private int writerCount = 0;
+		private long[] artifactTupleIds = new long[0];
+		private int artifactTupleCount = 0;
+
+		private final boolean hasWritersExceptFor(final long readerHash){
+			for(int i = 0; i < writerCount; i++){
+				if(writerHashes[i] != readerHash){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if the least recently seen writer was replaced because of the bound
+		 */
+		private final boolean addWriter(final long hash, final long tupleId, final long nowMillis, final int maxWriters,
+				final ReportTuples tuples){
+			for(int i = 0; i < writerCount; i++){
+				if(writerHashes[i] == hash && writerTupleIds[i] == tupleId){
+					writerLastSeenMillis[i] = nowMillis;
+					return false;
+				}
+			}
+			if(writerCount >= maxWriters){
+				int oldest = 0;
+				for(int i = 1; i < writerCount; i++){
+					if(writerLastSeenMillis[i] < writerLastSeenMillis[oldest]){
+						oldest = i;
+					}
+				}
+				tuples.release(writerTupleIds[oldest]);
+				tuples.retain(tupleId);
+				writerHashes[oldest] = hash;
+				writerTupleIds[oldest] = tupleId;
+				writerLastSeenMillis[oldest] = nowMillis;
+				return true;
+			}
+			if(writerCount == writerHashes.length){
+				final int capacity = Math.min(maxWriters, writerCount * 2);
+				writerHashes = Arrays.copyOf(writerHashes, capacity);
+				writerTupleIds = Arrays.copyOf(writerTupleIds, capacity);
+				writerLastSeenMillis = Arrays.copyOf(writerLastSeenMillis, capacity);
+			}
+			tuples.retain(tupleId);
+			writerHashes[writerCount] = hash;
+			writerTupleIds[writerCount] = tupleId;
+			writerLastSeenMillis[writerCount] = nowMillis;
+			writerCount++;
+			return false;
+		}
+
+		/**
+		 * @return the number of writers removed
+		 */
+		private final int removeWritersLastSeenBefore(final long millis, final ReportTuples tuples){
+			int kept = 0;
+			for(int i = 0; i < writerCount; i++){
+				if(writerLastSeenMillis[i] >= millis){
+					writerHashes[kept] = writerHashes[i];
+					writerTupleIds[kept] = writerTupleIds[i];
+					writerLastSeenMillis[kept] = writerLastSeenMillis[i];
+					kept++;
+				}else{
+					tuples.release(writerTupleIds[i]);
+				}
+			}
+			final int removed = writerCount - kept;
+			writerCount = kept;
+			return removed;
+		}
+
+		/**
+		 * @return true if added
+		 */
+		private final boolean addArtifactTuple(final long tupleId, final int maxTuples, final ReportTuples tuples){
+			for(int i = 0; i < artifactTupleCount; i++){
+				if(artifactTupleIds[i] == tupleId){
+					return false;
+				}
+			}
+			if(artifactTupleCount == artifactTupleIds.length){
+				if(artifactTupleCount >= maxTuples){
+					// Replace the oldest
+					tuples.release(artifactTupleIds[0]);
+					tuples.retain(tupleId);
+					System.arraycopy(artifactTupleIds, 1, artifactTupleIds, 0, artifactTupleCount - 1);
+					artifactTupleIds[artifactTupleCount - 1] = tupleId;
+					return true;
+				}
+				artifactTupleIds = Arrays.copyOf(artifactTupleIds, Math.min(maxTuples, Math.max(1, artifactTupleCount * 2)));
+			}
+			tuples.retain(tupleId);
+			artifactTupleIds[artifactTupleCount++] = tupleId;
+			return true;
 		}
 	}
 
-	private static class MatchedState implements Serializable{
-		private static final long serialVersionUID = -7996683701728169086L;
-		private final HashSet<Matched> artifactAnnotationsToReport = new HashSet<Matched>();
-		private final HashMap<Matched, HashSet<Matched>> writerAnnotationsMatchedToReport = new HashMap<>();
+	/**
+	 * Dictionary of the report tuples. A tuple is kept as long as any writer or artifact in a MatchedState refers to it
+	 * so that the report does not depend on the bound. Only the tuples not referenced anymore (kept for reuse) are
+	 * bounded, and evicted least recently used first.
+	 * 
+	 * The dictionary is not persisted. References from a state stored in the external map before a restart are not
+	 * counted (and their release may make a tuple unreferenced early).
+	 */
+	private static final class ReportTuples{
+		private static final class ReportTuple{
+			private final TreeMap<String, String> annotations;
+			private int references = 0;
+			private ReportTuple(final TreeMap<String, String> annotations){
+				this.annotations = annotations;
+			}
+		}
 
-		private final HashMap<Matched, HashSet<Matched>> getWritersExceptFor(final Matched reader){
-			final HashMap<Matched, HashSet<Matched>> result = new HashMap<>(writerAnnotationsMatchedToReport);
-			result.remove(reader);
-			return result;
+		private final Map<Long, ReportTuple> referenced = new HashMap<Long, ReportTuple>();
+		private final Map<Long, ReportTuple> unreferenced;
+
+		private ReportTuples(final int maxUnreferenced){
+			unreferenced = new LinkedHashMap<Long, ReportTuple>(16, 0.75f, true){
+				private static final long serialVersionUID = -2317853542212948474L;
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Long, ReportTuple> eldest){
+					return size() > maxUnreferenced;
+				}
+			};
+		}
+
+		private final boolean contains(final long id){
+			return referenced.containsKey(id) || unreferenced.containsKey(id);
+		}
+
+		/**
+		 * Added as unreferenced until retained
+		 */
+		private final void add(final long id, final TreeMap<String, String> annotations){
+			unreferenced.put(id, new ReportTuple(annotations));
+		}
+
+		private final TreeMap<String, String> get(final long id){
+			ReportTuple tuple = referenced.get(id);
+			if(tuple == null){
+				tuple = unreferenced.get(id);
+			}
+			return tuple == null ? null : tuple.annotations;
 		}
 
-		private final boolean addWriter(final Matched matched, final Matched report){
-			boolean updated = false;
-			HashSet<Matched> set = writerAnnotationsMatchedToReport.get(matched);
-			if(set == null){
-				set = new HashSet<Matched>();
-				writerAnnotationsMatchedToReport.put(matched, set);
-				updated = true;
+		private final void retain(final long id){
+			ReportTuple tuple = referenced.get(id);
+			if(tuple == null){
+				tuple = unreferenced.remove(id);
+				if(tuple == null){
+					return;
+				}
+				referenced.put(id, tuple);
 			}
-			if(!report.isEmpty()){
-				set.add(report);
-				updated = true;
+			tuple.references++;
+		}
+
+		private final void release(final long id){
+			final ReportTuple tuple = referenced.get(id);
+			if(tuple != null && --tuple.references == 0){
+				referenced.remove(id);
+				unreferenced.put(id, tuple);
 			}
-			return updated;
+		}
+	}
+
+	private static final class ArtifactKeyConverter implements Converter<ArtifactKey, byte[]>{
+		@Override
+		public byte[] serialize(ArtifactKey i) throws Exception{
+			if(i == null){
+				return null;
+			}
+			return ByteBuffer.allocate(ArtifactKey.BYTES).putLong(i.high).putLong(i.low).array();
+		}
+		@Override
+		public ArtifactKey deserialize(byte[] j) throws Exception{
+			if(j == null){
+				return null;
+			}
+			if(j.length != ArtifactKey.BYTES){
+				throw new Exception("Invalid key length: " + j.length);
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(j);
+			return new ArtifactKey(buffer.getLong(), buffer.getLong());
+		}
+		@Override
+		public byte[] serializeObject(Object o) throws Exception{
+			return serialize((ArtifactKey)o);
+		}
+		@Override
+		public ArtifactKey deserializeObject(Object o) throws Exception{
+			return deserialize((byte[])o);
+		}
+	}
+
+	/**
+	 * Format: writer count (int), artifact tuple count (int), 3 longs per writer, 1 long per artifact tuple
+	 */
+	private static final class MatchedStateConverter implements Converter<MatchedState, byte[]>{
+		@Override
+		public byte[] serialize(MatchedState i) throws Exception{
+			if(i == null){
+				return null;
+			}
+			final ByteBuffer buffer = ByteBuffer.allocate(
+					Integer.BYTES * 2 + Long.BYTES * (i.writerCount * 3 + i.artifactTupleCount));
+			buffer.putInt(i.writerCount).putInt(i.artifactTupleCount);
+			for(int w = 0; w < i.writerCount; w++){
+				buffer.putLong(i.writerHashes[w]).putLong(i.writerTupleIds[w]).putLong(i.writerLastSeenMillis[w]);
+			}
+			for(int a = 0; a < i.artifactTupleCount; a++){
+				buffer.putLong(i.artifactTupleIds[a]);
+			}
+			return buffer.array();
+		}
+		@Override
+		public MatchedState deserialize(byte[] j) throws Exception{
+			if(j == null){
+				return null;
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(j);
+			final int writerCount = buffer.getInt();
+			final int artifactTupleCount = buffer.getInt();
+			if(writerCount < 0 || artifactTupleCount < 0 
+					|| j.length != Integer.BYTES * 2 + Long.BYTES * ((long)writerCount * 3 + artifactTupleCount)){
+				throw new Exception("Invalid state length: " + j.length);
+			}
+			final MatchedState state = new MatchedState();
+			state.writerHashes = new long[Math.max(1, writerCount)];
+			state.writerTupleIds = new long[Math.max(1, writerCount)];
+			state.writerLastSeenMillis = new long[Math.max(1, writerCount)];
+			for(int w = 0; w < writerCount; w++){
+				state.writerHashes[w] = buffer.getLong();
+				state.writerTupleIds[w] = buffer.getLong();
+				state.writerLastSeenMillis[w] = buffer.getLong();
+			}
+			state.writerCount = writerCount;
+			state.artifactTupleIds = new long[artifactTupleCount];
+			for(int a = 0; a < artifactTupleCount; a++){
+				state.artifactTupleIds[a] = buffer.getLong();
+			}
+			state.artifactTupleCount = artifactTupleCount;
+			return state;
+		}
+		@Override
+		public byte[] serializeObject(Object o) throws Exception{
+			return serialize((MatchedState)o);
+		}
+		@Override
+		public MatchedState deserializeObject(Object o) throws Exception{
+			return deserialize((byte[])o);
 		}
 	}
 }
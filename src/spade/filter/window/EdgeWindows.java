@@ -0,0 +1,294 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.filter.window;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractFilter;
+import spade.core.BloomFilter;
+import spade.reporter.audit.OPMConstants;
+
+/**
+ * Open windows of edges coalesced into the first edge of the window, shared by the filters which coalesce edges
+ * (spade.filter.CoalesceEdges and spade.filter.IORuns).
+ *
+ * A window is closed by the filter, or when its timeout expires, or when the number of open windows exceeds the
+ * max (the eldest is closed). On close, the first edge is put in the next filter of the filter with the annotations
+ * (only if more than one edge was coalesced):
+ * 	1. 'count' - the number of edges coalesced
+ * 	2. 'last time' - the value of the time annotation of the last edge (if any)
+ * 	3. The size annotation set to the sum of the sizes of all the edges (if a size annotation is given, and any)
+ *
+ * Windows are ordered by the start (the timeout is from the first edge), or by the last edge (the timeout is from the
+ * last edge i.e. an idle timeout).
+ *
+ * Not thread-safe. The filter must hold its lock for all calls.
+ */
+public class EdgeWindows{
+
+	public static final String ANNOTATION_COUNT = OPMConstants.EDGE_COUNT,
+			ANNOTATION_LAST_TIME = "last " + OPMConstants.EDGE_TIME;
+
+	// Window length buckets: 1, 2-10, 11-100, 101-1000, >1000
+	private static final long[] countBucketLimits = {1, 10, 100, 1000, Long.MAX_VALUE};
+
+	private final AbstractFilter filter;
+	private final boolean idle;
+	private final int maxWindows;
+	private final int overflowReason;
+	private final String sizeAnnotation;
+	private final String[] closedReasonNames;
+	private final long reportingIntervalMillis;
+
+	private final LinkedHashMap<Key, Window> windows;
+
+	private long edgesIn = 0, edgesOut = 0, windowsOpened = 0, maxCount = 0;
+	private final long[] closed;
+	private final long[] countBuckets = new long[countBucketLimits.length];
+	private long lastReportedAtMillis;
+
+	/**
+	 * @param filter the filter whose next filter gets the edges
+	 * @param idle true if the timeout is from the last edge of the window, false if from the first edge
+	 * @param maxWindows the max number of open windows
+	 * @param closedReasonNames the names of the reasons for closing the windows (used in the stats)
+	 * @param overflowReason the index of the reason for the windows closed because of 'maxWindows'
+	 * @param sizeAnnotation the annotation to sum (or null)
+	 * @param reportingIntervalMillis the interval for the stats. Non-positive to only report when forced
+	 */
+	public EdgeWindows(final AbstractFilter filter, final boolean idle, final int maxWindows,
+			final String[] closedReasonNames, final int overflowReason, final String sizeAnnotation,
+			final long reportingIntervalMillis){
+		this.filter = filter;
+		this.idle = idle;
+		this.maxWindows = maxWindows;
+		this.closedReasonNames = closedReasonNames;
+		this.overflowReason = overflowReason;
+		this.sizeAnnotation = sizeAnnotation;
+		this.reportingIntervalMillis = reportingIntervalMillis;
+		this.closed = new long[closedReasonNames.length];
+		// Access ordered for the idle timeout i.e. the eldest is the least recently seen
+		this.windows = new LinkedHashMap<Key, Window>(1024, 0.75f, idle);
+		this.lastReportedAtMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds the edge to the open window for the key, or opens a window with the edge as the first edge.
+	 *
+	 * @param time the value of the time annotation of the edge (or null)
+	 * @param size the value of the size annotation of the edge (or null)
+	 */
+	public final void put(final Key key, final AbstractEdge edge, final String time, final Long size,
+			final long nowMillis){
+		edgesIn++;
+		final Window existing = windows.get(key);
+		if(existing != null){
+			existing.add(time, size, nowMillis);
+			return;
+		}
+		windows.put(key, new Window(edge, nowMillis, size));
+		windowsOpened++;
+		final Iterator<Window> iterator = windows.values().iterator();
+		while(windows.size() > maxWindows && iterator.hasNext()){
+			final Window eldest = iterator.next();
+			iterator.remove();
+			close(eldest, overflowReason);
+		}
+	}
+
+	/**
+	 * @return true if a window is open for the key (does not change the order of the windows)
+	 */
+	public final boolean isOpen(final Key key){
+		return windows.containsKey(key);
+	}
+
+	/**
+	 * Closes the open window for the key (if any)
+	 */
+	public final void close(final Key key, final int reason){
+		final Window window = windows.remove(key);
+		if(window != null){
+			close(window, reason);
+		}
+	}
+
+	/**
+	 * Closes the windows whose timeout expired
+	 */
+	public final void closeExpired(final long nowMillis, final long timeoutMillis, final int reason){
+		final Iterator<Window> iterator = windows.values().iterator();
+		while(iterator.hasNext()){
+			final Window eldest = iterator.next();
+			if(nowMillis - (idle ? eldest.lastSeenMillis : eldest.startMillis) < timeoutMillis){
+				break; // Rest are more recent
+			}
+			iterator.remove();
+			close(eldest, reason);
+		}
+	}
+
+	public final void closeAll(final int reason){
+		final Iterator<Window> iterator = windows.values().iterator();
+		while(iterator.hasNext()){
+			final Window window = iterator.next();
+			iterator.remove();
+			close(window, reason);
+		}
+	}
+
+	/**
+	 * Must be called after removing the window
+	 */
+	private void close(final Window window, final int reason){
+		closed[reason]++;
+		maxCount = Math.max(maxCount, window.count);
+		for(int i = 0; i < countBucketLimits.length; i++){
+			if(window.count <= countBucketLimits[i]){
+				countBuckets[i]++;
+				break;
+			}
+		}
+		final AbstractEdge edge = window.edge;
+		if(window.count > 1){
+			edge.addAnnotation(ANNOTATION_COUNT, String.valueOf(window.count));
+			if(window.lastTime != null){
+				edge.addAnnotation(ANNOTATION_LAST_TIME, window.lastTime);
+			}
+			if(sizeAnnotation != null && window.totalSize != null){
+				edge.addAnnotation(sizeAnnotation, String.valueOf(window.totalSize));
+			}
+		}
+		edgesOut++;
+		filter.putInNextFilter(edge);
+	}
+
+	/**
+	 * @return the value of the size annotation of the edge as a long, or null if missing or not a long
+	 */
+	public final Long getSize(final AbstractEdge edge){
+		if(sizeAnnotation == null){
+			return null;
+		}
+		final String sizeString = edge.getAnnotation(sizeAnnotation);
+		if(sizeString == null){
+			return null;
+		}
+		try{
+			return Long.parseLong(sizeString.trim());
+		}catch(Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if forced or if the reporting interval passed since the last report (and resets the interval)
+	 */
+	public final boolean isReportDue(final boolean force){
+		final long nowMillis = System.currentTimeMillis();
+		if(force || (reportingIntervalMillis > 0 && nowMillis - lastReportedAtMillis >= reportingIntervalMillis)){
+			lastReportedAtMillis = nowMillis;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the stats of the windows in the format 'edgesIn=..., edgesOut=..., ...'
+	 */
+	public final String getStats(){
+		final long open = windows.size();
+		final StringBuilder closedString = new StringBuilder();
+		for(int i = 0; i < closedReasonNames.length; i++){
+			closedString.append(closedReasonNames[i]).append('=').append(closed[i])
+				.append(i == closedReasonNames.length - 1 ? "" : ", ");
+		}
+		return String.format("edgesIn=%d, edgesOut=%d, windowsOpened=%d, openWindows=%d, closed[%s], "
+				+ "counts[1=%d, 2-10=%d, 11-100=%d, 101-1000=%d, >1000=%d], maxCount=%d, compressionRatio=%.2f",
+				edgesIn, edgesOut, windowsOpened, open, closedString,
+				countBuckets[0], countBuckets[1], countBuckets[2], countBuckets[3], countBuckets[4], maxCount,
+				(edgesOut + open) == 0 ? 1.0 : ((double)edgesIn / (edgesOut + open)));
+	}
+
+	/**
+	 * 128-bit hash of the values which identify a window, and a tag (to tell apart windows with the same values)
+	 */
+	public static final class Key{
+		private final long high, low;
+		private final byte tag;
+		private Key(final long high, final long low, final byte tag){
+			this.high = high;
+			this.low = low;
+			this.tag = tag;
+		}
+		public static Key of(final String values, final byte tag){
+			final long[] hash128 = BloomFilter.createHash128(values);
+			return new Key(hash128[0], hash128[1], tag);
+		}
+		/**
+		 * @return the key for the same values with the tag
+		 */
+		public final Key withTag(final byte tag){
+			return new Key(high, low, tag);
+		}
+		@Override
+		public int hashCode(){
+			return (int)(high ^ (high >>> 32)) * 31 + tag;
+		}
+		@Override
+		public boolean equals(Object obj){
+			if(this == obj)
+				return true;
+			if(!(obj instanceof Key))
+				return false;
+			final Key other = (Key)obj;
+			return high == other.high && low == other.low && tag == other.tag;
+		}
+	}
+
+	private static final class Window{
+		private final AbstractEdge edge;
+		private final long startMillis;
+		private long lastSeenMillis;
+		private long count = 1;
+		private String lastTime;
+		private Long totalSize;
+
+		private Window(final AbstractEdge edge, final long nowMillis, final Long size){
+			this.edge = edge;
+			this.startMillis = nowMillis;
+			this.lastSeenMillis = nowMillis;
+			this.totalSize = size;
+		}
+
+		private void add(final String time, final Long size, final long nowMillis){
+			count++;
+			lastSeenMillis = nowMillis;
+			if(time != null){
+				lastTime = time;
+			}
+			if(size != null){
+				totalSize = (totalSize == null) ? size : (totalSize + size);
+			}
+		}
+	}
+}
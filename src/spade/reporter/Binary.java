@@ -0,0 +1,439 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractReporter;
+import spade.core.AbstractVertex;
+import spade.core.Settings;
+import spade.reporter.binary.FrameDecoder;
+import spade.reporter.binary.Protocol;
+import spade.utility.ArgumentFunctions;
+import spade.utility.HelperFunctions;
+
+/**
+ * Reporter for length-prefixed binary frames of vertices and edges (see spade.reporter.binary.Protocol) over TCP
+ * and/or Unix domain sockets.
+ *
+ * Connections are accepted on one thread and distributed round-robin over a fixed number of selector threads.
+ * Decoded elements are put into the buffer in batches.
+ *
+ * Client library: spade.reporter.binary.Client
+ * Load generator: spade.reporter.binary.LoadGenerator
+ */
+public class Binary extends AbstractReporter{
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+	private static final String
+		keyListenHost = "listenHost",
+		keyListenPort = "listenPort",
+		keyUnixSocketPath = "unixSocketPath",
+		keySelectorThreads = "selectorThreads",
+		keyBatchSize = "batchSize",
+		keyReadBufferBytes = "readBufferBytes",
+		keyMaxFrameBytes = "maxFrameBytes",
+		keyMaxDictionarySize = "maxDictionarySize",
+		keyReportingIntervalSeconds = "reportingIntervalSeconds";
+
+	private static final long selectTimeoutMillis = 500;
+
+	private String listenHost;
+	private int listenPort;
+	private String unixSocketPath;
+	private int selectorThreads;
+	private int batchSize;
+	private int readBufferBytes;
+	private int maxFrameBytes;
+	private int maxDictionarySize;
+	private long reportingIntervalMillis;
+
+	private volatile boolean shutdown = false;
+	private boolean unixSocketBound = false;
+
+	private Selector acceptSelector;
+	private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private final Object putLock = new Object();
+
+	private final AtomicLong
+		connectionsAccepted = new AtomicLong(),
+		connectionsOpen = new AtomicLong(),
+		connectionsFailed = new AtomicLong(),
+		verticesReceived = new AtomicLong(),
+		edgesReceived = new AtomicLong(),
+		elementsInvalid = new AtomicLong(),
+		batchesPut = new AtomicLong();
+
+	private long lastReportedAtMillis = 0;
+
+	@Override
+	public synchronized boolean launch(final String arguments){
+		final Map<String, String> map = new HashMap<String, String>();
+		try{
+			final String configFilePath = Settings.getDefaultConfigFilePath(this.getClass());
+			map.putAll(HelperFunctions.parseKeyValuePairsFrom(arguments, configFilePath, null));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments and/or config file", e);
+			return false;
+		}
+
+		try{
+			listenHost = ArgumentFunctions.mustParseNonNullString(keyListenHost, map);
+			listenPort = ArgumentFunctions.mustParseInteger(keyListenPort, map);
+			unixSocketPath = ArgumentFunctions.mustParseNonNullString(keyUnixSocketPath, map);
+			selectorThreads = (int)ArgumentFunctions.mustBeGreaterThanZero(keySelectorThreads, map);
+			batchSize = (int)ArgumentFunctions.mustBeGreaterThanZero(keyBatchSize, map);
+			readBufferBytes = (int)ArgumentFunctions.mustBeGreaterThanZero(keyReadBufferBytes, map);
+			maxFrameBytes = (int)ArgumentFunctions.mustBeGreaterThanZero(keyMaxFrameBytes, map);
+			maxDictionarySize = (int)ArgumentFunctions.mustBeGreaterThanZero(keyMaxDictionarySize, map);
+			reportingIntervalMillis = ArgumentFunctions.mustParseInteger(keyReportingIntervalSeconds, map) * 1000L;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Invalid arguments", e);
+			return false;
+		}
+
+		if(listenPort <= 0 && unixSocketPath.isEmpty()){
+			logger.log(Level.SEVERE, "Must specify at least one of '" + keyListenPort + "' (> 0) or '" + keyUnixSocketPath + "'");
+			return false;
+		}
+		if(listenPort > 65535){
+			logger.log(Level.SEVERE, "Invalid '" + keyListenPort + "': " + listenPort);
+			return false;
+		}
+		if(readBufferBytes < Protocol.HANDSHAKE_BYTES){
+			logger.log(Level.SEVERE, "'" + keyReadBufferBytes + "' must be at least " + Protocol.HANDSHAKE_BYTES);
+			return false;
+		}
+
+		try{
+			acceptSelector = Selector.open();
+			if(listenPort > 0){
+				final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannels.add(serverChannel);
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				serverChannel.bind(listenHost.isEmpty() ? new InetSocketAddress(listenPort) : new InetSocketAddress(listenHost, listenPort));
+				serverChannel.configureBlocking(false);
+				serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+			}
+			if(!unixSocketPath.isEmpty()){
+				if(new File(unixSocketPath).exists()){
+					throw new Exception("A filesystem entry already exists at path: '" + unixSocketPath + "'. "
+							+ "Please specify a path with no filesystem entry.");
+				}
+				final ServerSocketChannel serverChannel = Protocol.openUnixDomainServerSocketChannel();
+				serverChannels.add(serverChannel);
+				serverChannel.bind(Protocol.createUnixDomainSocketAddress(unixSocketPath));
+				unixSocketBound = true;
+				serverChannel.configureBlocking(false);
+				serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+			}
+			for(int i = 0; i < selectorThreads; i++){
+				workers.add(new Worker(Selector.open()));
+			}
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to open sockets", e);
+			closeAll();
+			return false;
+		}
+
+		for(int i = 0; i < workers.size(); i++){
+			final Thread thread = new Thread(workers.get(i), this.getClass().getSimpleName() + "-selector-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		final Thread acceptThread = new Thread(acceptor, this.getClass().getSimpleName() + "-acceptor");
+		threads.add(acceptThread);
+		acceptThread.start();
+
+		logger.log(Level.INFO, "Arguments {"
+				+ keyListenHost + "=" + listenHost + ", "
+				+ keyListenPort + "=" + listenPort + ", "
+				+ keyUnixSocketPath + "=" + unixSocketPath + ", "
+				+ keySelectorThreads + "=" + selectorThreads + ", "
+				+ keyBatchSize + "=" + batchSize + ", "
+				+ keyReadBufferBytes + "=" + readBufferBytes + ", "
+				+ keyMaxFrameBytes + "=" + maxFrameBytes + ", "
+				+ keyMaxDictionarySize + "=" + maxDictionarySize + ", "
+				+ keyReportingIntervalSeconds + "=" + (reportingIntervalMillis / 1000)
+				+ "}");
+		return true;
+	}
+
+	@Override
+	public boolean shutdown(){
+		shutdown = true;
+		if(acceptSelector != null){
+			acceptSelector.wakeup();
+		}
+		for(final Worker worker : workers){
+			worker.selector.wakeup();
+		}
+		for(final Thread thread : threads){
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				// ignore
+			}
+		}
+		closeAll();
+		printStats(true);
+		return true;
+	}
+
+	private final void closeAll(){
+		for(final ServerSocketChannel serverChannel : serverChannels){
+			try{
+				serverChannel.close();
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to close server socket", e);
+			}
+		}
+		if(unixSocketBound){
+			new File(unixSocketPath).delete();
+		}
+		try{
+			if(acceptSelector != null){
+				acceptSelector.close();
+			}
+		}catch(Exception e){
+			// ignore
+		}
+		for(final Worker worker : workers){
+			worker.close();
+		}
+	}
+
+	private final void printStats(final boolean force){
+		if(force || (reportingIntervalMillis > 0 && System.currentTimeMillis() - lastReportedAtMillis >= reportingIntervalMillis)){
+			logger.log(Level.INFO, "Connections [Accepted=" + connectionsAccepted.get() + ", Open=" + connectionsOpen.get()
+				+ ", Failed=" + connectionsFailed.get() + "], Vertices=" + verticesReceived.get() + ", Edges=" + edgesReceived.get()
+				+ ", Invalid=" + elementsInvalid.get() + ", Batches=" + batchesPut.get() + ", Buffer size=" + getBuffer().size());
+			lastReportedAtMillis = System.currentTimeMillis();
+		}
+	}
+
+	private final void putBatch(final List<Object> batch){
+		if(batch.isEmpty()){
+			return;
+		}
+		// One lock per batch instead of per element since the put functions are shared by all selector threads
+		synchronized(putLock){
+			for(final Object element : batch){
+				if(element instanceof AbstractVertex){
+					putVertex((AbstractVertex)element);
+					verticesReceived.incrementAndGet();
+				}else if(element instanceof AbstractEdge){
+					putEdge((AbstractEdge)element);
+					edgesReceived.incrementAndGet();
+				}
+			}
+		}
+		batchesPut.incrementAndGet();
+		batch.clear();
+	}
+
+	private final Runnable acceptor = new Runnable(){
+		@Override
+		public void run(){
+			int nextWorker = 0;
+			lastReportedAtMillis = System.currentTimeMillis();
+			while(!shutdown){
+				try{
+					acceptSelector.select(selectTimeoutMillis);
+				}catch(Exception e){
+					logger.log(Level.SEVERE, "Failed to select on server sockets. Stopped accepting connections", e);
+					break;
+				}
+				final Iterator<SelectionKey> iterator = acceptSelector.selectedKeys().iterator();
+				while(iterator.hasNext()){
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+					if(!key.isValid() || !key.isAcceptable()){
+						continue;
+					}
+					try{
+						final SocketChannel channel = ((ServerSocketChannel)key.channel()).accept();
+						if(channel != null){
+							channel.configureBlocking(false);
+							connectionsAccepted.incrementAndGet();
+							workers.get(nextWorker).add(channel);
+							nextWorker = (nextWorker + 1) % workers.size();
+						}
+					}catch(Exception e){
+						logger.log(Level.WARNING, "Failed to accept connection", e);
+					}
+				}
+				printStats(false);
+			}
+		}
+	};
+
+	private final class Connection{
+		private final SocketChannel channel;
+		private final FrameDecoder decoder = new FrameDecoder(maxFrameBytes, maxDictionarySize);
+		private ByteBuffer buffer = ByteBuffer.allocate(readBufferBytes);
+		private Connection(final SocketChannel channel){
+			this.channel = channel;
+		}
+	}
+
+	private final class Worker implements Runnable{
+		private final Selector selector;
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+		private final List<Object> batch = new ArrayList<Object>();
+
+		private Worker(final Selector selector){
+			this.selector = selector;
+		}
+
+		private final void add(final SocketChannel channel){
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run(){
+			while(!shutdown){
+				SocketChannel newChannel;
+				while((newChannel = pending.poll()) != null){
+					try{
+						newChannel.register(selector, SelectionKey.OP_READ, new Connection(newChannel));
+						connectionsOpen.incrementAndGet();
+					}catch(Exception e){
+						connectionsFailed.incrementAndGet();
+						logger.log(Level.WARNING, "Failed to register connection", e);
+						closeChannel(newChannel);
+					}
+				}
+				try{
+					selector.select(selectTimeoutMillis);
+				}catch(Exception e){
+					logger.log(Level.SEVERE, "Failed to select on connections. Stopped reading", e);
+					break;
+				}
+				final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while(iterator.hasNext()){
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+					if(key.isValid() && key.isReadable()){
+						read(key, (Connection)key.attachment());
+					}
+				}
+			}
+		}
+
+		private final void read(final SelectionKey key, final Connection connection){
+			try{
+				final int read = connection.channel.read(connection.buffer);
+				connection.buffer.flip();
+				int neededBytes;
+				do{
+					neededBytes = connection.decoder.decode(connection.buffer, batch, batchSize);
+					if(batch.size() >= batchSize){
+						putBatch(batch);
+					}
+				}while(connection.buffer.remaining() >= Protocol.FRAME_HEADER_BYTES && neededBytes == 0 && !connection.decoder.isClosed());
+				putBatch(batch);
+				connection.buffer.compact();
+				if(neededBytes > connection.buffer.capacity()){
+					final ByteBuffer bigger = ByteBuffer.allocate(neededBytes);
+					connection.buffer.flip();
+					bigger.put(connection.buffer);
+					connection.buffer = bigger;
+				}
+				if(read < 0 || connection.decoder.isClosed()){
+					if(read < 0 && !connection.decoder.isClosed()){
+						logger.log(Level.INFO, "Connection closed without a close frame: " + getRemoteAddress(connection.channel));
+					}
+					closeConnection(key, connection);
+				}
+			}catch(Exception e){
+				// The elements decoded before the error are from complete and valid frames
+				putBatch(batch);
+				connectionsFailed.incrementAndGet();
+				logger.log(Level.WARNING, "Closing connection '" + getRemoteAddress(connection.channel) + "' because of error", e);
+				closeConnection(key, connection);
+			}
+		}
+
+		private final void closeConnection(final SelectionKey key, final Connection connection){
+			key.cancel();
+			closeChannel(connection.channel);
+			connectionsOpen.decrementAndGet();
+			elementsInvalid.addAndGet(connection.decoder.getInvalidCount());
+		}
+
+		private final void close(){
+			try{
+				for(final SelectionKey key : selector.keys()){
+					final Object attachment = key.attachment();
+					if(attachment instanceof Connection){
+						closeConnection(key, (Connection)attachment);
+					}
+				}
+				selector.close();
+			}catch(Exception e){
+				// ignore
+			}
+			SocketChannel channel;
+			while((channel = pending.poll()) != null){
+				closeChannel(channel);
+			}
+		}
+	}
+
+	private static final String getRemoteAddress(final SocketChannel channel){
+		try{
+			return String.valueOf(channel.getRemoteAddress());
+		}catch(Exception e){
+			return "(unknown)";
+		}
+	}
+
+	private static final void closeChannel(final SocketChannel channel){
+		try{
+			channel.close();
+		}catch(Exception e){
+			// ignore
+		}
+	}
+}
@@ -26,15 +26,12 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractReporter;
 import spade.core.AbstractVertex;
-import spade.core.Edge;
 import spade.core.Settings;
-import spade.core.Vertex;
+import spade.utility.DotParser;
 import spade.utility.FileUtility;
 import spade.utility.HelperFunctions;
 import spade.utility.Result;
@@ -46,15 +43,18 @@ import spade.utility.Result;
 public class Graphviz extends AbstractReporter{
 
 	private static final Logger logger = Logger.getLogger(Graphviz.class.getName());
-	private static final Pattern nodePattern = Pattern.compile("\"(.*)\" \\[label=\"(.*)\" shape=\"(\\w*)\" fillcolor=\"(\\w*)\"", Pattern.DOTALL);
-	private static final Pattern edgePattern = Pattern.compile("\"(.*)\" -> \"(.*)\" \\[label=\"(.*)\" color=\"(\\w*)\"", Pattern.DOTALL);
 
 	//
 
-	private static final String keyInput = "input", keyReportingIntervalSeconds = "reportingIntervalSeconds";
+	private static final String keyInput = "input", keyReportingIntervalSeconds = "reportingIntervalSeconds",
+			keyParallelism = "parallelism", keyIdToHashTableSize = "idToHashTableSize";
+
+	private static final int defaultParallelism = 1, defaultIdToHashTableSize = 100000;
 
 	private String inputFilePath = null;
 	private Long reportingIntervalMillis = null;
+	private int parallelism = defaultParallelism;
+	private int idToHashTableSize = defaultIdToHashTableSize;
 
 	private boolean reportingEnabled = false;
 	
@@ -69,12 +69,13 @@ public class Graphviz extends AbstractReporter{
 	private final Object shutdownLock = new Object();
 	private volatile boolean shutdown = false;
 	private volatile BufferedReader reader = null; 
+	private final Object putLock = new Object();
 	private volatile boolean mainRunning = false;
 	
 	private volatile boolean mainStopped = false;
 
-	private long linesCountInterval = 0;
-	private long linesCountOverall = 0;
+	private long statementsCountInterval = 0;
+	private long statementsCountOverall = 0;
 
 	private long vertexCountInterval = 0;
 	private long vertexCountOverall = 0;
@@ -82,9 +83,9 @@ public class Graphviz extends AbstractReporter{
 	private long edgeCountInterval = 0;
 	private long edgeCountOverall = 0;
 
-	private final void lineCountIncrement(){
-		linesCountInterval++;
-		linesCountOverall++;
+	private final void statementsCountIncrement(final long count){
+		statementsCountInterval += count;
+		statementsCountOverall += count;
 	}
 
 	private final void vertexCountIncrement(){
@@ -114,12 +115,12 @@ public class Graphviz extends AbstractReporter{
 	private final void printStats(boolean force){
 		long currentMillis = System.currentTimeMillis();
 		if(force || (reportingEnabled && currentMillis - lastReportedAtMillis >= reportingIntervalMillis)){
-			log(Level.INFO, "Lines [Overall=" + linesCountOverall + ", Interval=" + linesCountInterval + "]");
+			log(Level.INFO, "Statements [Overall=" + statementsCountOverall + ", Interval=" + statementsCountInterval + "]");
 			log(Level.INFO, "Vertices [Overall=" + vertexCountOverall + ", Interval=" + vertexCountInterval + "]");
 			log(Level.INFO, "Edges [Overall=" + edgeCountOverall + ", Interval=" + edgeCountInterval + "]");
 			log(Level.INFO, "Current Buffer Size=" + getBuffer().size());
 
-			linesCountInterval = vertexCountInterval = edgeCountInterval = 0;
+			statementsCountInterval = vertexCountInterval = edgeCountInterval = 0;
 			lastReportedAtMillis = System.currentTimeMillis();
 		}
 	}
@@ -132,28 +133,11 @@ public class Graphviz extends AbstractReporter{
 				mainRunning = true;
 	
 				lastReportedAtMillis = System.currentTimeMillis();
-	
-				String line = null;
-				while(!isShutdown()){
-					printStats(false);
-	
-					try{
-						line = reader.readLine();
-						lineCountIncrement();
-					}catch(Exception e){
-						log(Level.SEVERE, "Failed to read line", e);
-						break;
-					}
-					if(line == null || line.trim().equals("}")){ // EOF or end of dot object
-						log(Level.INFO, "Finished reading input file");
-						break;
-					}
-					try{
-						processImportLine(line);
-					}catch(Exception e){
-						log(Level.SEVERE, "Failed to process line: " + line, e);
-						break;
-					}
+
+				if(reader == null){
+					readInChunks();
+				}else{
+					readSequentially();
 				}
 			}finally{
 				mainRunning = false;
@@ -164,6 +148,62 @@ public class Graphviz extends AbstractReporter{
 
 	};
 
+	private final void readSequentially(){
+		final DotParser parser = new DotParser(reader, idToHashTableSize);
+		long lastStatementCount = 0;
+		while(!isShutdown()){
+			printStats(false);
+
+			final Object element;
+			try{
+				element = parser.next();
+			}catch(Exception e){
+				log(Level.SEVERE, "Failed to parse statement after " + parser.getStatementCount() + " statement(s)", e);
+				break;
+			}
+			statementsCountIncrement(parser.getStatementCount() - lastStatementCount);
+			lastStatementCount = parser.getStatementCount();
+			if(element == null){ // EOF or end of dot object
+				log(Level.INFO, "Finished reading input file");
+				break;
+			}
+			putElement(element);
+		}
+		log(Level.INFO, "Parser stats: " + parser.getStats());
+	}
+
+	private final void readInChunks(){
+		try{
+			final long elements = DotParser.parseFileInChunks(inputFilePath, parallelism, idToHashTableSize,
+					new DotParser.ElementConsumer(){
+						@Override
+						public void accept(final Object element) throws Exception{
+							if(isShutdown()){
+								throw new Exception("Reporter shutdown");
+							}
+							synchronized(putLock){
+								statementsCountIncrement(1);
+								printStats(false);
+								putElement(element);
+							}
+						}
+					});
+			log(Level.INFO, "Finished reading input file using " + parallelism + " chunk(s). Elements=" + elements);
+		}catch(Exception e){
+			log(Level.SEVERE, "Failed to read input file in chunks", e);
+		}
+	}
+
+	private final void putElement(final Object element){
+		if(element instanceof AbstractVertex){
+			vertexCountIncrement();
+			putVertex((AbstractVertex)element);
+		}else if(element instanceof AbstractEdge){
+			edgeCountIncrement();
+			putEdge((AbstractEdge)element);
+		}
+	}
+
 	@Override
 	public final synchronized boolean launch(String arguments){
 		final Map<String, String> map = new HashMap<String, String>();
@@ -177,13 +217,31 @@ public class Graphviz extends AbstractReporter{
 
 		final String inputFilePathString = map.remove(keyInput);
 		final String reportingIntervalSecondsString = map.remove(keyReportingIntervalSeconds);
+		final String parallelismString = map.remove(keyParallelism);
+		final String idToHashTableSizeString = map.remove(keyIdToHashTableSize);
 		
 		try{
+			if(parallelismString != null){
+				final Result<Long> parallelismResult = HelperFunctions.parseLong(parallelismString, 10, 1, Integer.MAX_VALUE);
+				if(parallelismResult.error){
+					throw new Exception("Invalid value for '" + keyParallelism + "'. " + parallelismResult.errorMessage);
+				}
+				this.parallelism = parallelismResult.result.intValue();
+			}
+			if(idToHashTableSizeString != null){
+				final Result<Long> idToHashTableSizeResult = HelperFunctions.parseLong(idToHashTableSizeString, 10, 0, Integer.MAX_VALUE);
+				if(idToHashTableSizeResult.error){
+					throw new Exception("Invalid value for '" + keyIdToHashTableSize + "'. " + idToHashTableSizeResult.errorMessage);
+				}
+				this.idToHashTableSize = idToHashTableSizeResult.result.intValue();
+			}
+
 			final boolean blocking = false;
 			final boolean closeReaderOnShutdown = true;
 			final boolean logAll = true;
 			launch(inputFilePathString, reportingIntervalSecondsString, blocking, closeReaderOnShutdown, logAll);
-			log(Level.INFO, "Arguments ["+keyInput+"="+inputFilePathString+", "+keyReportingIntervalSeconds+"="+reportingIntervalSecondsString+"]");
+			log(Level.INFO, "Arguments ["+keyInput+"="+inputFilePathString+", "+keyReportingIntervalSeconds+"="+reportingIntervalSecondsString
+					+", "+keyParallelism+"="+parallelism+", "+keyIdToHashTableSize+"="+idToHashTableSize+"]");
 
 			if(!map.isEmpty()){
 				log(Level.INFO, "Unused key-value pairs in the arguments and/or config file: " + map);
@@ -227,6 +285,12 @@ public class Graphviz extends AbstractReporter{
 			if(this.reportingIntervalMillis > 0){
 				this.reportingEnabled = true;
 			}
+
+			if(this.parallelism > 1){
+				// The file is split and read by the chunk threads
+				launchThread(blocking, true, logAll);
+				return;
+			}
 			
 			reader = new BufferedReader(new FileReader(new File(this.inputFilePath)));
 		}catch(Exception e){
@@ -253,7 +317,15 @@ public class Graphviz extends AbstractReporter{
 			throw new Exception("Reporter already launched");
 		}
 		
+		if(reader == null){
+			throw new Exception("NULL reader");
+		}
+		
 		this.reader = reader;
+		launchThread(blocking, closeReaderOnShutdown, logAll);
+	}
+
+	private final void launchThread(final boolean blocking, final boolean closeReaderOnShutdown, final boolean logAll) throws Exception{
 		this.closeReaderOnShutdown = closeReaderOnShutdown;
 		this.logAll = logAll;
 		
@@ -276,53 +348,6 @@ public class Graphviz extends AbstractReporter{
 		}
 	}
 
-	private void processImportLine(String line) throws Exception{
-		Matcher nodeMatcher = nodePattern.matcher(line);
-		Matcher edgeMatcher = edgePattern.matcher(line);
-		if(nodeMatcher.find()){
-			final String key = nodeMatcher.group(1);
-			final String label = nodeMatcher.group(2);
-			
-			final Map<String, String> annotations = new HashMap<String, String>();
-			
-			String[] pairs = label.split("\\\\n");
-			for(String pair : pairs){
-				String key_value[] = pair.split(":", 2);
-				if(key_value.length == 2){
-					annotations.put(key_value[0], key_value[1]);
-				}
-			}
-			
-			AbstractVertex vertex = new Vertex(key);
-			vertex.addAnnotations(annotations);
-
-			vertexCountIncrement();
-			putVertex(vertex);
-		}else if(edgeMatcher.find()){
-			final String childKey = edgeMatcher.group(1);
-			final String parentKey = edgeMatcher.group(2);
-			final String label = edgeMatcher.group(3);
-
-			final Map<String, String> annotations = new HashMap<String, String>();
-
-			if((label != null) && (label.length() > 2)){
-				String[] pairs = label.split("\\\\n");
-				for(String pair : pairs){
-					String key_value[] = pair.split(":", 2);
-					if(key_value.length == 2){
-						annotations.put(key_value[0], key_value[1]);
-					}
-				}
-			}
-
-			AbstractEdge edge = new Edge(new Vertex(childKey), new Vertex(parentKey));
-			edge.addAnnotations(annotations);
-			
-			edgeCountIncrement();
-			putEdge(edge);
-		}
-	}
-
 	@Override
 	public boolean shutdown(){
 		if(!isShutdown()){
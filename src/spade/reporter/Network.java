@@ -19,166 +19,417 @@
  */
 package spade.reporter;
 
-import spade.core.AbstractReporter;
-import spade.edge.opm.Used;
-import spade.edge.opm.WasGeneratedBy;
-
 import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.File;
+import java.io.FileReader;
 import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import spade.core.AbstractReporter;
+import spade.core.Settings;
+import spade.edge.opm.Used;
+import spade.edge.opm.WasGeneratedBy;
+import spade.utility.ArgumentFunctions;
+import spade.utility.HelperFunctions;
+
+/**
+ * Reports network connections of processes by scanning the socket tables in '/proc/net' and resolving the owners of
+ * sockets using '/proc/[pid]/fd'.
+ *
+ * Connections are keyed by socket inode, and only the changes since the last scan are processed i.e. the fd
+ * directories are only scanned if new socket inodes appeared in the socket tables.
+ *
+ * The socket inodes found in the fd directories are cached per process between scans (and dropped when the process
+ * exits). A new socket inode is looked up in the cache first, then the fd directories of the processes not seen before
+ * are scanned, and only if still unresolved the fd directories of all the other processes are scanned again. A socket
+ * inode which is still unresolved (i.e. the fd not visible yet, or the process not readable) is retried in the next
+ * 'unresolvedRetryScans' scans before it is counted as unresolved.
+ */
 public class Network extends AbstractReporter implements Runnable {
 
-    PrintStream outputStream = System.out;
-    PrintStream errorStream = System.err;
-    java.lang.Process process;
-    boolean shutdown = false;
-    HashMap<String, HashSet<String>> currentPidConnectionMap = new HashMap<>();
-    HashMap<String, HashSet<String>> nextPidConnectionMap = new HashMap<>();
+    private static final Logger logger = Logger.getLogger(Network.class.getName());
+
+    private static final String
+            keyProcRoot = "procRoot",
+            keyScanIntervalMillis = "scanIntervalMillis",
+            keyUnresolvedRetryScans = "unresolvedRetryScans",
+            keyReportingIntervalSeconds = "reportingIntervalSeconds";
+
+    // Socket tables (relative to the proc root) and the address family of each
+    private static final String[][] socketTables = {
+            {"net/tcp", "tcp4"}, {"net/tcp6", "tcp6"}, {"net/udp", "udp4"}, {"net/udp6", "udp6"}
+    };
+
+    private static final String socketLinkPrefix = "socket:[";
+
+    private String procRoot;
+    private long scanIntervalMillis;
+    private int unresolvedRetryScans;
+    private long reportingIntervalMillis;
+
+    private volatile boolean shutdown = false;
+    private Thread thread;
+
+    /**
+     * Connections seen in the last scan (socket inode -> connection)
+     */
+    private final Map<Long, Connection> knownConnections = new HashMap<>();
+
+    /**
+     * Socket inodes in the fd directory of each process when last scanned (pid -> socket inodes), and the reverse
+     */
+    private final Map<String, Set<Long>> pidToInodes = new HashMap<>();
+    private final Map<Long, Set<String>> inodeToPids = new HashMap<>();
+
+    /**
+     * Number of scans that a new connection has been unresolved in (socket inode -> scans)
+     */
+    private final Map<Long, Integer> unresolvedScans = new HashMap<>();
+
+    private long scans = 0, fdScans = 0, pidScans = 0, connectionsOpened = 0, connectionsClosed = 0, connectionsUnresolved = 0;
+    private long scanMillis = 0;
+    private long lastReportedAtMillis = 0;
+
+    private static final class Connection {
+        private final String protocol;
+        private final String localHost, localPort, remoteHost, remotePort;
+
+        private Connection(final String protocol, final String localHost, final String localPort,
+                final String remoteHost, final String remotePort) {
+            this.protocol = protocol;
+            this.localHost = localHost;
+            this.localPort = localPort;
+            this.remoteHost = remoteHost;
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public String toString() {
+            return protocol + " " + localHost + ":" + localPort + "->" + remoteHost + ":" + remotePort;
+        }
+    }
 
     @Override
     public boolean launch(String arguments) {
+        try {
+            final String configFilePath = Settings.getDefaultConfigFilePath(this.getClass());
+            final Map<String, String> map = HelperFunctions.parseKeyValuePairsFrom(arguments, configFilePath, null);
+            procRoot = ArgumentFunctions.mustParseNonEmptyString(keyProcRoot, map);
+            scanIntervalMillis = ArgumentFunctions.mustBeGreaterThanZero(keyScanIntervalMillis, map);
+            unresolvedRetryScans = ArgumentFunctions.mustParseInteger(keyUnresolvedRetryScans, map);
+            reportingIntervalMillis = ArgumentFunctions.mustParseInteger(keyReportingIntervalSeconds, map) * 1000L;
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Failed to parse arguments and/or config file", exception);
+            return false;
+        }
+
+        if (!new File(procRoot).isDirectory()) {
+            logger.log(Level.SEVERE, "Not a directory: '" + procRoot + "'");
+            return false;
+        }
 
-        boolean started = false;
+        logger.log(Level.INFO, "Arguments [" + keyProcRoot + "=" + procRoot + ", " + keyScanIntervalMillis + "="
+                + scanIntervalMillis + ", " + keyUnresolvedRetryScans + "=" + unresolvedRetryScans + ", "
+                + keyReportingIntervalSeconds + "=" + (reportingIntervalMillis / 1000) + "]");
 
         try {
-            new Thread(this).start();
-            started = true;
+            thread = new Thread(this, "Network-reporter-thread");
+            thread.start();
+            return true;
         } catch (Exception exception) {
-            exception.printStackTrace(errorStream);
+            logger.log(Level.SEVERE, "Failed to start thread", exception);
+            return false;
         }
-        return started;
     }
 
     @Override
     public void run() {
-
-        BufferedReader lsofBufferedReader = initialize();
-
-        if (lsofBufferedReader != null) {
-            while (!shutdown) {
-                scanList(lsofBufferedReader);
+        lastReportedAtMillis = System.currentTimeMillis();
+        while (!shutdown) {
+            final long startMillis = System.currentTimeMillis();
+            try {
+                scan();
+            } catch (Exception exception) {
+                logger.log(Level.WARNING, "Failed to scan connections", exception);
+            }
+            final long elapsedMillis = System.currentTimeMillis() - startMillis;
+            scanMillis += elapsedMillis;
+            printStats(false);
+            // Sleep for the rest of the interval only so that the scan cost does not push the next scan further
+            if (elapsedMillis < scanIntervalMillis) {
+                HelperFunctions.sleepSafe(scanIntervalMillis - elapsedMillis);
             }
-            process.destroy();
         }
     }
 
-    BufferedReader initialize() {
+    /**
+     * Reads the socket tables, and emits provenance for the connections that were not present in the last scan.
+     */
+    void scan() throws Exception {
+        scans++;
 
-        BufferedReader lsofBufferedReader = null;
-
-        try {
-            process = Runtime.getRuntime().exec("lsof -F pn -i -r 1");
-            InputStream inputStream = process.getInputStream();
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-            lsofBufferedReader = new BufferedReader(inputStreamReader);
-        } catch (Exception exception) {
-            exception.printStackTrace(errorStream);
+        final Map<Long, Connection> currentConnections = new HashMap<>();
+        for (final String[] socketTable : socketTables) {
+            readSocketTable(Paths.get(procRoot, socketTable[0]), socketTable[1], currentConnections);
         }
 
-        return lsofBufferedReader;
-    }
-
-    void scanList(BufferedReader lsofBufferedReader) {
+        // Closed connections
+        final Iterator<Map.Entry<Long, Connection>> iterator = knownConnections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Long inode = iterator.next().getKey();
+            if (!currentConnections.containsKey(inode)) {
+                iterator.remove();
+                forgetInode(inode);
+                connectionsClosed++;
+            }
+        }
+        unresolvedScans.keySet().retainAll(currentConnections.keySet());
 
-        String pid;
-        boolean done = false;
+        // New connections
+        final Map<Long, Connection> newConnections = new HashMap<>();
+        for (final Map.Entry<Long, Connection> entry : currentConnections.entrySet()) {
+            if (!knownConnections.containsKey(entry.getKey())) {
+                newConnections.put(entry.getKey(), entry.getValue());
+            }
+        }
 
-        do {
-            pid = scanProcess(lsofBufferedReader);
+        if (newConnections.isEmpty()) {
+            return;
+        }
 
-            if (pid != null) {
-                scanConnections(lsofBufferedReader, pid);
+        final Map<Long, Set<String>> owners = resolveOwners(newConnections.keySet());
+        for (final Map.Entry<Long, Connection> entry : newConnections.entrySet()) {
+            final Set<String> pids = owners.get(entry.getKey());
+            if (pids == null) {
+                final int scansUnresolved = unresolvedScans.merge(entry.getKey(), 1, Integer::sum);
+                if (scansUnresolved <= unresolvedRetryScans) {
+                    continue; // Retried in the next scan as a new connection
+                }
+                // Added to known so that the fd directories are not rescanned for it
+                unresolvedScans.remove(entry.getKey());
+                knownConnections.put(entry.getKey(), entry.getValue());
+                connectionsUnresolved++;
+                continue;
             }
+            unresolvedScans.remove(entry.getKey());
+            knownConnections.put(entry.getKey(), entry.getValue());
+            connectionsOpened++;
+            for (final String pid : pids) {
+                emitOPM(pid, entry.getValue());
+            }
+        }
+    }
 
-            if (peekString(lsofBufferedReader, "m")) {
-
-                currentPidConnectionMap = nextPidConnectionMap;
-                nextPidConnectionMap = new HashMap<>();
+    /**
+     * Adds connected sockets (i.e. the ones with a remote endpoint) from the socket table to the map. Malformed lines
+     * are skipped.
+     */
+    private void readSocketTable(final Path path, final String protocol, final Map<Long, Connection> connections) throws Exception {
+        if (!Files.isReadable(path)) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(path.toFile()))) {
+            String line = reader.readLine(); // header
+            while ((line = reader.readLine()) != null) {
+                // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ...
+                final String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 10) {
+                    continue;
+                }
                 try {
-                    lsofBufferedReader.readLine();
+                    final long inode = Long.parseLong(tokens[9]);
+                    if (inode == 0) { // TIME_WAIT and such. No owner
+                        continue;
+                    }
+                    final String[] local = tokens[1].split(":");
+                    final String[] remote = tokens[2].split(":");
+                    if (local.length != 2 || remote.length != 2) {
+                        continue;
+                    }
+                    final int remotePort = Integer.parseInt(remote[1], 16);
+                    if (remotePort == 0) { // Listening or unconnected
+                        continue;
+                    }
+                    connections.put(inode, new Connection(protocol,
+                            decodeAddress(local[0]), String.valueOf(Integer.parseInt(local[1], 16)),
+                            decodeAddress(remote[0]), String.valueOf(remotePort)));
                 } catch (Exception exception) {
-                    exception.printStackTrace(errorStream);
+                    logger.log(Level.FINE, "Skipped malformed line in '" + path + "': " + line, exception);
                 }
-                done = true;
             }
-
-        } while (!done);
+        }
     }
 
-    String scanProcess(BufferedReader lsofBufferedReader) {
-
-        String pid = null;
+    /**
+     * Decodes the hex address in the socket table. The address is in network byte order but printed as 32-bit words
+     * in host (little-endian) byte order.
+     */
+    static String decodeAddress(final String hex) throws Exception {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int word = 0; word < bytes.length / 4; word++) {
+            for (int i = 0; i < 4; i++) {
+                final int offset = (word * 8) + ((3 - i) * 2);
+                bytes[(word * 4) + i] = (byte) Integer.parseInt(hex.substring(offset, offset + 2), 16);
+            }
+        }
+        return InetAddress.getByAddress(bytes).getHostAddress();
+    }
 
-        try {
-            HashSet<String> connectionSet;
-            String line;
+    /**
+     * Resolves the owners of the given socket inodes using the cache, then the fd directories of the new processes,
+     * and then (only if still unresolved) the fd directories of the rest of the processes.
+     *
+     * @return socket inode -> pids for the resolved socket inodes
+     */
+    private Map<Long, Set<String>> resolveOwners(final Set<Long> inodes) {
+        final Set<String> pids = new HashSet<>();
+        final File[] pidDirectories = new File(procRoot).listFiles();
+        if (pidDirectories != null) {
+            for (final File pidDirectory : pidDirectories) {
+                if (isNumeric(pidDirectory.getName())) {
+                    pids.add(pidDirectory.getName());
+                }
+            }
+        }
+        // Exited processes
+        for (final String pid : new HashSet<>(pidToInodes.keySet())) {
+            if (!pids.contains(pid)) {
+                forgetPid(pid);
+            }
+        }
 
-            line = lsofBufferedReader.readLine();
+        final Map<Long, Set<String>> owners = new HashMap<>();
+        if (lookupOwners(inodes, owners)) {
+            return owners;
+        }
+        fdScans++;
+        final Set<String> knownPids = new HashSet<>(pidToInodes.keySet());
+        for (final String pid : pids) {
+            if (!knownPids.contains(pid)) {
+                scanPid(pid);
+            }
+        }
+        if (lookupOwners(inodes, owners)) {
+            return owners;
+        }
+        // Sockets opened by the processes seen before
+        for (final String pid : knownPids) {
+            scanPid(pid);
+        }
+        lookupOwners(inodes, owners);
+        return owners;
+    }
 
-            if (line.startsWith("p")) {
-                pid = line.substring(1);
+    /**
+     * @return true if all the inodes have owners in the cache
+     */
+    private boolean lookupOwners(final Set<Long> inodes, final Map<Long, Set<String>> owners) {
+        for (final Long inode : inodes) {
+            final Set<String> pids = inodeToPids.get(inode);
+            if (pids != null && !pids.isEmpty()) {
+                owners.put(inode, new HashSet<>(pids));
+            }
+        }
+        return owners.size() == inodes.size();
+    }
 
-                if (currentPidConnectionMap.containsKey(pid)) {
-                    connectionSet = currentPidConnectionMap.get(pid);
-                } else {
-                    connectionSet = new HashSet<>();
+    /**
+     * Reads the socket inodes in the fd directory of the process into the cache (replacing the ones from before).
+     */
+    private void scanPid(final String pid) {
+        pidScans++;
+        final Set<Long> inodes = new HashSet<>();
+        final File[] fds = Paths.get(procRoot, pid, "fd").toFile().listFiles();
+        if (fds != null) { // Null if exited or not permitted
+            for (final File fd : fds) {
+                final String target;
+                try {
+                    target = Files.readSymbolicLink(fd.toPath()).toString();
+                } catch (Exception exception) {
+                    continue;
+                }
+                if (!target.startsWith(socketLinkPrefix) || !target.endsWith("]")) {
+                    continue;
+                }
+                try {
+                    inodes.add(Long.parseLong(target.substring(socketLinkPrefix.length(), target.length() - 1)));
+                } catch (NumberFormatException nfe) {
+                    continue;
                 }
-                nextPidConnectionMap.put(pid, connectionSet);
-            } else {
-                errorStream.println("Expected line to start with 'p':\n" + "\t" + line);
             }
-        } catch (Exception exception) {
-            exception.printStackTrace(errorStream);
         }
-
-        return pid;
+        forgetPid(pid);
+        pidToInodes.put(pid, inodes);
+        for (final Long inode : inodes) {
+            inodeToPids.computeIfAbsent(inode, k -> new HashSet<>()).add(pid);
+        }
     }
 
-    void scanConnections(BufferedReader lsofBufferedReader, String pid) {
-
-        try {
-            String line, connection;
-            HashSet<String> connectionSet;
-            boolean done = false;
-
-            connectionSet = nextPidConnectionMap.get(pid);
-            do {
-                if (peekString(lsofBufferedReader, "n")) {
-
-                    line = lsofBufferedReader.readLine();
-                    connection = line.substring(1);
-
-                    if (connection.matches(".*:.*->.*:.*")) {
-                        if (!connectionSet.contains(connection)) {
-                            connectionSet.add(connection);
-                            emitOPM(pid, connection);
-                        }
+    private void forgetPid(final String pid) {
+        final Set<Long> inodes = pidToInodes.remove(pid);
+        if (inodes != null) {
+            for (final Long inode : inodes) {
+                final Set<String> pids = inodeToPids.get(inode);
+                if (pids != null) {
+                    pids.remove(pid);
+                    if (pids.isEmpty()) {
+                        inodeToPids.remove(inode);
                     }
-                } else {
-                    done = true;
                 }
-            } while (!done);
-        } catch (Exception exception) {
-            exception.printStackTrace(errorStream);
+            }
+        }
+    }
+
+    private void forgetInode(final Long inode) {
+        final Set<String> pids = inodeToPids.remove(inode);
+        if (pids != null) {
+            for (final String pid : pids) {
+                final Set<Long> inodes = pidToInodes.get(pid);
+                if (inodes != null) {
+                    inodes.remove(inode);
+                }
+            }
         }
     }
 
-    void emitString(String pid, String connection) {
-        outputStream.println("PID: " + pid + "\t\tConnection: " + connection);
+    private static boolean isNumeric(final String string) {
+        if (string.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (!Character.isDigit(string.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    void emitOPM(String pid, String connection) {
+    private void printStats(final boolean force) {
+        final long currentMillis = System.currentTimeMillis();
+        if (force || (reportingIntervalMillis > 0 && currentMillis - lastReportedAtMillis >= reportingIntervalMillis)) {
+            logger.log(Level.INFO, "Scans=" + scans + ", FdScans=" + fdScans + ", PidScans=" + pidScans
+                    + ", ScanMillis=" + scanMillis + ", KnownConnections=" + knownConnections.size()
+                    + ", CachedPids=" + pidToInodes.size() + ", Opened=" + connectionsOpened
+                    + ", Closed=" + connectionsClosed + ", Retrying=" + unresolvedScans.size()
+                    + ", Unresolved=" + connectionsUnresolved);
+            lastReportedAtMillis = currentMillis;
+        }
+    }
+
+    private void emitOPM(String pid, Connection connection) {
 
         try {
-            String source, destination, port;
-            String[] endPoint, endPoints;
             LinkedHashMap<String, String> annotations;
             boolean endPointMatched = false;
             Date currentTime;
@@ -195,106 +446,70 @@ public class Network extends AbstractReporter implements Runnable {
             processVertex.addAnnotations(annotations);
 
             if (!putVertex(processVertex)) {
-                errorStream.println("Buffer did not accept process artifact:" + "\n\t pid" + pid);
+                logger.log(Level.WARNING, "Buffer did not accept process artifact: pid " + pid);
             }
 
             // Create network artifact.
             annotations = new LinkedHashMap<>();
-            endPoints = connection.split("->");
-
-            endPoint = endPoints[0].split(":");
-            source = endPoint[0];
-            annotations.put("source host", source);
-            port = endPoint[1];
-            annotations.put("source port", port);
-
-            endPoint = endPoints[1].split(":");
-            destination = endPoint[0];
-            annotations.put("destination host", destination);
-            port = endPoint[1];
-            annotations.put("destination port", port);
+            annotations.put("source host", connection.localHost);
+            annotations.put("source port", connection.localPort);
+            annotations.put("destination host", connection.remoteHost);
+            annotations.put("destination port", connection.remotePort);
 
             networkVertex = new spade.vertex.opm.Artifact();
             networkVertex.addAnnotations(annotations);
 
             if (!putVertex(networkVertex)) {
-                errorStream.println("Buffer did not accept connection artifact:" + "\n\t " + connection);
+                logger.log(Level.WARNING, "Buffer did not accept connection artifact: " + connection);
             }
 
             // Create an outgoing edge.
-            if (InetAddress.getByName(destination).isSiteLocalAddress()) {
+            if (InetAddress.getByName(connection.remoteHost).isSiteLocalAddress()) {
                 annotations = new LinkedHashMap<>();
                 currentTime = new Date();
                 annotations.put("time", currentTime.toString());
                 usedEdge = new Used(processVertex, networkVertex);
                 usedEdge.addAnnotations(annotations);
                 if (!putEdge(usedEdge)) {
-                    errorStream.println("Buffer did not accept outgoing "
-                            + "connection edge:\n\t pid: " + pid
-                            + "\n\t connection: " + connection
-                            + "\n\t time: " + currentTime.toString());
+                    logger.log(Level.WARNING, "Buffer did not accept outgoing connection edge: pid " + pid
+                            + ", connection " + connection + ", time " + currentTime);
                 }
                 endPointMatched = true;
             }
 
             // Create an incoming edge.
-            if (InetAddress.getByName(source).isSiteLocalAddress()) {
+            if (InetAddress.getByName(connection.localHost).isSiteLocalAddress()) {
                 annotations = new LinkedHashMap<>();
                 currentTime = new Date();
                 annotations.put("time", currentTime.toString());
-                wasGeneratedByEdge
-                        = new WasGeneratedBy(networkVertex, processVertex);
+                wasGeneratedByEdge = new WasGeneratedBy(networkVertex, processVertex);
                 wasGeneratedByEdge.addAnnotations(annotations);
                 if (!putEdge(wasGeneratedByEdge)) {
-                    errorStream.println("Buffer did not accept incoming "
-                            + "connection edge:\n\t pid: " + pid
-                            + "\n\t connection: " + connection
-                            + "\n\t time: " + currentTime.toString());
+                    logger.log(Level.WARNING, "Buffer did not accept incoming connection edge: pid " + pid
+                            + ", connection " + connection + ", time " + currentTime);
                 }
-
                 endPointMatched = true;
             }
 
             if (!endPointMatched) {
-                errorStream.println("Neither endpoint is local:\n\t"
-                        + connection);
+                logger.log(Level.FINE, "Neither endpoint is local: " + connection);
             }
         } catch (Exception exception) {
-            exception.printStackTrace(errorStream);
+            logger.log(Level.WARNING, "Failed to emit provenance for connection: " + connection, exception);
         }
     }
 
-    boolean peekString(BufferedReader bufferedReader, String nextString) {
-
-        boolean match = false;
-
-        try {
-            int charactersRead, nextStringLength = nextString.length();
-            char[] peekBuffer = new char[nextStringLength];
-            String peekString;
-
-            bufferedReader.mark(nextStringLength);
-            charactersRead = bufferedReader.read(peekBuffer, 0,
-                    nextStringLength);
-            bufferedReader.reset();
-
-            if (charactersRead == nextStringLength) {
-                peekString = new String(peekBuffer);
-                if (peekString.equals(nextString)) {
-                    match = true;
-                }
-            }
-        } catch (Exception exception) {
-            exception.printStackTrace(errorStream);
-        }
-
-        return match;
-    }
-
     @Override
     public boolean shutdown() {
-
         shutdown = true;
+        if (thread != null) {
+            try {
+                thread.join(scanIntervalMillis + 1000);
+            } catch (InterruptedException exception) {
+                // ignore
+            }
+        }
+        printStats(true);
         return true;
     }
 }
@@ -0,0 +1,152 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractReporter;
+import spade.core.AbstractVertex;
+import spade.core.Settings;
+import spade.reporter.workload.Generator;
+import spade.utility.ArgumentFunctions;
+import spade.utility.HelperFunctions;
+
+/**
+ * Reporter for synthetic provenance generated by spade.reporter.workload.Generator.
+ *
+ * Used to benchmark storages, filters, and query executors against the same (seeded) workload.
+ */
+public class Workload extends AbstractReporter{
+
+	private static final Logger logger = Logger.getLogger(Workload.class.getName());
+
+	private static final String
+		keyEvents = "events",
+		keyRate = "rate",
+		keyReportingIntervalSeconds = "reportingIntervalSeconds";
+
+	private long events;
+	private long rate;
+	private long reportingIntervalMillis;
+
+	private Generator generator;
+
+	private volatile boolean shutdown = false;
+	private Thread mainThread;
+
+	@Override
+	public boolean launch(final String arguments){
+		final Map<String, String> map = Generator.getDefaultArguments();
+		try{
+			map.putAll(HelperFunctions.parseKeyValuePairsFrom(arguments, Settings.getDefaultConfigFilePath(this.getClass()), null));
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to parse arguments and/or config file", e);
+			return false;
+		}
+
+		try{
+			this.events = ArgumentFunctions.mustParseLong(keyEvents, map);
+			this.rate = ArgumentFunctions.mustParseLong(keyRate, map);
+			this.reportingIntervalMillis = ArgumentFunctions.mustParseLong(keyReportingIntervalSeconds, map) * 1000;
+			this.generator = Generator.create(map);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Invalid arguments", e);
+			return false;
+		}
+
+		logger.log(Level.INFO, "Arguments: " + map);
+
+		mainThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				generate();
+			}
+		}, Workload.class.getSimpleName() + "-thread");
+		mainThread.start();
+		return true;
+	}
+
+	private final void generate(){
+		final List<Object> elements = new ArrayList<Object>();
+		final long startMillis = System.currentTimeMillis();
+		long lastReportedAtMillis = startMillis;
+		long elementsPut = 0;
+		try{
+			while(!shutdown && (events <= 0 || generator.getEventCount() < events)){
+				elements.clear();
+				generator.next(elements);
+				for(final Object element : elements){
+					if(element instanceof AbstractVertex){
+						putVertex((AbstractVertex)element);
+					}else{
+						putEdge((AbstractEdge)element);
+					}
+				}
+				elementsPut += elements.size();
+
+				if(rate > 0){
+					final long expectedMillis = (elementsPut * 1000) / rate;
+					final long actualMillis = System.currentTimeMillis() - startMillis;
+					if(expectedMillis > actualMillis){
+						HelperFunctions.sleepSafe(expectedMillis - actualMillis);
+					}
+				}
+
+				if(reportingIntervalMillis > 0){
+					final long nowMillis = System.currentTimeMillis();
+					if(nowMillis - lastReportedAtMillis >= reportingIntervalMillis){
+						printStats(startMillis);
+						lastReportedAtMillis = nowMillis;
+					}
+				}
+			}
+			logger.log(Level.INFO, "Finished generating workload");
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to generate workload", e);
+		}finally{
+			printStats(startMillis);
+		}
+	}
+
+	private final void printStats(final long startMillis){
+		final long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+		final long elements = generator.getVertexCount() + generator.getEdgeCount();
+		logger.log(Level.INFO, generator.getStats() + String.format(", Rate=%.1f elements/sec", (elements * 1000.0) / elapsedMillis));
+	}
+
+	@Override
+	public boolean shutdown(){
+		shutdown = true;
+		if(mainThread != null){
+			try{
+				mainThread.join();
+			}catch(InterruptedException e){
+				// ignore
+			}
+			mainThread = null;
+		}
+		return true;
+	}
+}
@@ -141,6 +141,7 @@ public class OPMConstants {
 			SUBTYPE_POSIX_MSG_Q = "posix message queue",
 			
 			// General edge annotations
+			EDGE_COUNT = "count", // Number of events represented by the edge (aggregated by a filter)
 			EDGE_EVENT_ID = "event id",
 			EDGE_FLAGS = "flags",
 			EDGE_LSEEK_WHENCE = "whence",
@@ -0,0 +1,244 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.binary;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.HashHelper;
+
+/**
+ * Client for the Binary reporter.
+ *
+ * Annotation keys are always sent as dictionary references. Annotation values are sent as dictionary references only
+ * for the keys in the set 'dictionaryValueKeys' (i.e. low cardinality values like 'type', and 'operation'), and as
+ * literals otherwise.
+ *
+ * Not thread-safe. Use one client per producer thread.
+ */
+public class Client implements Closeable{
+
+	public static final Set<String> defaultDictionaryValueKeys = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList(AbstractVertex.typeKey, "operation", "subtype", "source", "uid", "euid", "gid", "egid", "name")));
+
+	public static final int defaultBufferSize = 64 * 1024;
+	public static final int defaultMaxDictionarySize = 1 << 20;
+
+	private final Socket socket;
+	private final SocketChannel channel;
+	private final DataOutputStream output;
+
+	private final Set<String> dictionaryValueKeys;
+	private final int maxDictionarySize;
+	private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+	private final ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(1024);
+	private final DataOutputStream frame = new DataOutputStream(frameBytes);
+
+	private boolean closed = false;
+
+	private Client(final Socket socket, final SocketChannel channel, final OutputStream outputStream,
+			final int bufferSize, final Set<String> dictionaryValueKeys, final int maxDictionarySize) throws Exception{
+		this.socket = socket;
+		this.channel = channel;
+		this.output = new DataOutputStream(new BufferedOutputStream(outputStream, bufferSize));
+		this.dictionaryValueKeys = dictionaryValueKeys == null ? defaultDictionaryValueKeys : dictionaryValueKeys;
+		this.maxDictionarySize = maxDictionarySize;
+		this.output.writeInt(Protocol.MAGIC);
+		this.output.writeShort(Protocol.VERSION);
+	}
+
+	public static Client connectTCP(final String host, final int port) throws Exception{
+		return connectTCP(host, port, defaultBufferSize, defaultDictionaryValueKeys, defaultMaxDictionarySize);
+	}
+
+	public static Client connectTCP(final String host, final int port, final int bufferSize,
+			final Set<String> dictionaryValueKeys, final int maxDictionarySize) throws Exception{
+		final Socket socket = new Socket();
+		try{
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port));
+			return new Client(socket, null, socket.getOutputStream(), bufferSize, dictionaryValueKeys, maxDictionarySize);
+		}catch(Exception e){
+			try{ socket.close(); }catch(Exception closeException){}
+			throw new Exception("Failed to connect to '" + host + ":" + port + "'", e);
+		}
+	}
+
+	public static Client connectUnix(final String path) throws Exception{
+		return connectUnix(path, defaultBufferSize, defaultDictionaryValueKeys, defaultMaxDictionarySize);
+	}
+
+	public static Client connectUnix(final String path, final int bufferSize,
+			final Set<String> dictionaryValueKeys, final int maxDictionarySize) throws Exception{
+		if(!Protocol.isUnixDomainSocketSupported()){
+			throw new Exception("Unix domain sockets not supported by the JVM. Requires Java 16 or later");
+		}
+		final SocketChannel channel = Protocol.openUnixDomainSocketChannel();
+		try{
+			channel.connect(Protocol.createUnixDomainSocketAddress(path));
+			return new Client(null, channel, Channels.newOutputStream(channel), bufferSize, dictionaryValueKeys, maxDictionarySize);
+		}catch(Exception e){
+			try{ channel.close(); }catch(Exception closeException){}
+			throw new Exception("Failed to connect to unix domain socket '" + path + "'", e);
+		}
+	}
+
+	public final int getDictionarySize(){
+		return dictionary.size();
+	}
+
+	public final void putVertex(final AbstractVertex vertex) throws Exception{
+		putVertex(vertex.bigHashCodeBytes(), vertex.getCopyOfAnnotations());
+	}
+
+	public final void putEdge(final AbstractEdge edge) throws Exception{
+		putEdge(edge.getChildVertex().bigHashCodeBytes(), edge.getParentVertex().bigHashCodeBytes(), edge.getCopyOfAnnotations());
+	}
+
+	public final void putVertex(final byte[] hash, final Map<String, String> annotations) throws Exception{
+		mustBeValidHash(hash);
+		prepareAnnotations(annotations);
+		frameBytes.reset();
+		frame.writeByte(Protocol.FRAME_VERTEX);
+		frame.write(hash);
+		writeAnnotations(annotations);
+		writeFrame();
+	}
+
+	public final void putEdge(final byte[] childHash, final byte[] parentHash, final Map<String, String> annotations) throws Exception{
+		mustBeValidHash(childHash);
+		mustBeValidHash(parentHash);
+		prepareAnnotations(annotations);
+		frameBytes.reset();
+		frame.writeByte(Protocol.FRAME_EDGE);
+		frame.write(childHash);
+		frame.write(parentHash);
+		writeAnnotations(annotations);
+		writeFrame();
+	}
+
+	public final void flush() throws Exception{
+		output.flush();
+	}
+
+	@Override
+	public final void close(){
+		if(closed){
+			return;
+		}
+		closed = true;
+		try{
+			output.writeInt(1);
+			output.writeByte(Protocol.FRAME_CLOSE);
+			output.flush();
+		}catch(Exception e){
+			// ignore. Server would treat it as an abrupt disconnect
+		}
+		try{
+			if(socket != null){
+				socket.close();
+			}
+			if(channel != null){
+				channel.close();
+			}
+		}catch(Exception e){
+			// ignore
+		}
+	}
+
+	private final void mustBeValidHash(final byte[] hash) throws Exception{
+		if(!HashHelper.defaultInstance.isValidHashByteArray(hash)){
+			throw new Exception("Invalid hash. Must be " + Protocol.HASH_BYTES + " bytes");
+		}
+	}
+
+	private final void prepareAnnotations(final Map<String, String> annotations) throws Exception{
+		if(annotations.size() > Protocol.MAX_ANNOTATIONS){
+			throw new Exception("Too many annotations: " + annotations.size() + ". Max: " + Protocol.MAX_ANNOTATIONS);
+		}
+		// Dictionary definitions must precede the frame that uses them
+		for(final Map.Entry<String, String> entry : annotations.entrySet()){
+			if(defineString(entry.getKey()) == null){
+				throw new Exception("Dictionary full. Failed to define key: '" + entry.getKey() + "'");
+			}
+			if(dictionaryValueKeys.contains(entry.getKey())){
+				defineString(entry.getValue() == null ? "" : entry.getValue());
+			}
+		}
+	}
+
+	private final Integer defineString(final String string) throws Exception{
+		Integer id = dictionary.get(string);
+		if(id == null){
+			if(dictionary.size() >= maxDictionarySize){
+				return null;
+			}
+			id = dictionary.size();
+			final byte[] bytes = string.getBytes(Protocol.CHARSET);
+			output.writeInt(1 + Integer.BYTES + Integer.BYTES + bytes.length);
+			output.writeByte(Protocol.FRAME_STRING);
+			output.writeInt(id);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+			dictionary.put(string, id);
+		}
+		return id;
+	}
+
+	private final void writeAnnotations(final Map<String, String> annotations) throws Exception{
+		frame.writeShort(annotations.size());
+		for(final Map.Entry<String, String> entry : annotations.entrySet()){
+			final String value = entry.getValue() == null ? "" : entry.getValue();
+			frame.writeInt(dictionary.get(entry.getKey()));
+			final Integer valueId = dictionaryValueKeys.contains(entry.getKey()) ? dictionary.get(value) : null;
+			if(valueId != null){
+				frame.writeByte(Protocol.VALUE_REFERENCE);
+				frame.writeInt(valueId);
+			}else{
+				final byte[] bytes = value.getBytes(Protocol.CHARSET);
+				frame.writeByte(Protocol.VALUE_LITERAL);
+				frame.writeInt(bytes.length);
+				frame.write(bytes);
+			}
+		}
+	}
+
+	private final void writeFrame() throws Exception{
+		frame.flush();
+		output.writeInt(frameBytes.size());
+		frameBytes.writeTo(output);
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.binary;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.HashHelper;
+import spade.core.Vertex;
+
+/**
+ * Decodes the frames (as described in spade.reporter.binary.Protocol) of a single connection.
+ *
+ * Not thread-safe. One instance per connection.
+ */
+public final class FrameDecoder{
+
+	private final int maxFrameBytes;
+	private final int maxDictionarySize;
+
+	private final List<String> dictionary = new ArrayList<String>();
+	private final byte[] hashBytes = new byte[Protocol.HASH_BYTES];
+
+	private boolean handshakeDone = false;
+	private boolean closed = false;
+
+	private long vertexCount = 0, edgeCount = 0, stringCount = 0, invalidCount = 0;
+
+	public FrameDecoder(final int maxFrameBytes, final int maxDictionarySize){
+		this.maxFrameBytes = maxFrameBytes;
+		this.maxDictionarySize = maxDictionarySize;
+	}
+
+	public final boolean isClosed(){
+		return closed;
+	}
+
+	public final long getVertexCount(){
+		return vertexCount;
+	}
+
+	public final long getEdgeCount(){
+		return edgeCount;
+	}
+
+	public final long getStringCount(){
+		return stringCount;
+	}
+
+	public final long getInvalidCount(){
+		return invalidCount;
+	}
+
+	/**
+	 * Decodes as many complete frames as available in the buffer (which must be in read mode), up to the limit of
+	 * elements to decode. The buffer position is advanced past the decoded frames only.
+	 *
+	 * @param buffer buffer in read mode
+	 * @param elements list to add the decoded vertices and edges to
+	 * @param maxElements max number of vertices and edges to decode in this call
+	 * @return the number of bytes needed by the next frame (including the header) or 0 if unknown
+	 * @throws Exception on any protocol violation. Connection must be closed.
+	 */
+	public final int decode(final ByteBuffer buffer, final List<Object> elements, final int maxElements) throws Exception{
+		if(!handshakeDone){
+			if(buffer.remaining() < Protocol.HANDSHAKE_BYTES){
+				return Protocol.HANDSHAKE_BYTES;
+			}
+			final int magic = buffer.getInt();
+			if(magic != Protocol.MAGIC){
+				throw new Exception("Invalid magic in handshake: " + Integer.toHexString(magic));
+			}
+			final short version = buffer.getShort();
+			if(version != Protocol.VERSION){
+				throw new Exception("Unsupported protocol version: " + version + ". Expected: " + Protocol.VERSION);
+			}
+			handshakeDone = true;
+		}
+
+		int decoded = 0;
+		while(!closed && decoded < maxElements){
+			if(buffer.remaining() < Protocol.FRAME_HEADER_BYTES){
+				return 0;
+			}
+			final int frameLength = buffer.getInt(buffer.position());
+			if(frameLength < 1 || frameLength > maxFrameBytes){
+				throw new Exception("Invalid frame length: " + frameLength + ". Must be in range [1, " + maxFrameBytes + "]");
+			}
+			if(buffer.remaining() < Protocol.FRAME_HEADER_BYTES + frameLength){
+				return Protocol.FRAME_HEADER_BYTES + frameLength;
+			}
+			buffer.position(buffer.position() + Protocol.FRAME_HEADER_BYTES);
+			final int frameEnd = buffer.position() + frameLength;
+			final int originalLimit = buffer.limit();
+			buffer.limit(frameEnd);
+			try{
+				final Object element = decodeFrame(buffer);
+				if(element != null){
+					elements.add(element);
+					decoded++;
+				}
+				if(buffer.hasRemaining()){
+					throw new Exception("Unconsumed " + buffer.remaining() + " byte(s) in frame");
+				}
+			}catch(java.nio.BufferUnderflowException e){
+				throw new Exception("Truncated frame of length: " + frameLength);
+			}finally{
+				buffer.limit(originalLimit);
+			}
+			buffer.position(frameEnd);
+		}
+		return 0;
+	}
+
+	private final Object decodeFrame(final ByteBuffer buffer) throws Exception{
+		final byte frameType = buffer.get();
+		switch(frameType){
+			case Protocol.FRAME_STRING:{
+				final int id = buffer.getInt();
+				if(id != dictionary.size()){
+					throw new Exception("Out of order dictionary id: " + id + ". Expected: " + dictionary.size());
+				}
+				if(dictionary.size() >= maxDictionarySize){
+					throw new Exception("Dictionary size limit exceeded: " + maxDictionarySize);
+				}
+				dictionary.add(readString(buffer));
+				stringCount++;
+				return null;
+			}
+			case Protocol.FRAME_VERTEX:{
+				final AbstractVertex vertex = new Vertex(readHash(buffer));
+				readAnnotations(buffer, vertex, null);
+				if(!AbstractVertex.isVertexType(vertex.type())){
+					invalidCount++;
+					return null;
+				}
+				vertexCount++;
+				return vertex;
+			}
+			case Protocol.FRAME_EDGE:{
+				final AbstractVertex childVertex = new Vertex(readHash(buffer));
+				final AbstractVertex parentVertex = new Vertex(readHash(buffer));
+				final AbstractEdge edge = new Edge(childVertex, parentVertex);
+				readAnnotations(buffer, null, edge);
+				if(!AbstractEdge.isEdgeType(edge.type())){
+					invalidCount++;
+					return null;
+				}
+				edgeCount++;
+				return edge;
+			}
+			case Protocol.FRAME_CLOSE:{
+				closed = true;
+				return null;
+			}
+			default: throw new Exception("Unexpected frame type: " + Protocol.getFrameTypeName(frameType));
+		}
+	}
+
+	private final String readHash(final ByteBuffer buffer){
+		buffer.get(hashBytes);
+		return HashHelper.defaultInstance.convertHashByteArrayToHashHexString(hashBytes);
+	}
+
+	private final String readString(final ByteBuffer buffer) throws Exception{
+		final int length = buffer.getInt();
+		if(length < 0 || length > buffer.remaining()){
+			throw new Exception("Invalid string length: " + length);
+		}
+		final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Protocol.CHARSET);
+		buffer.position(buffer.position() + length);
+		return string;
+	}
+
+	private final String lookup(final int id) throws Exception{
+		if(id < 0 || id >= dictionary.size()){
+			throw new Exception("Undefined dictionary id: " + id);
+		}
+		return dictionary.get(id);
+	}
+
+	private final void readAnnotations(final ByteBuffer buffer, final AbstractVertex vertex, final AbstractEdge edge) throws Exception{
+		final short count = buffer.getShort();
+		if(count < 0){
+			throw new Exception("Invalid annotations count: " + count);
+		}
+		for(int i = 0; i < count; i++){
+			final String key = lookup(buffer.getInt());
+			final byte valueKind = buffer.get();
+			final String value;
+			switch(valueKind){
+				case Protocol.VALUE_REFERENCE: value = lookup(buffer.getInt()); break;
+				case Protocol.VALUE_LITERAL: value = readString(buffer); break;
+				default: throw new Exception("Unexpected annotation value kind: " + valueKind);
+			}
+			if(vertex != null){
+				vertex.addAnnotation(key, value);
+			}else{
+				edge.addAnnotation(key, value);
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.binary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spade.core.AbstractVertex;
+import spade.edge.opm.Used;
+import spade.edge.opm.WasGeneratedBy;
+import spade.utility.ArgumentFunctions;
+import spade.utility.HelperFunctions;
+import spade.vertex.opm.Artifact;
+import spade.vertex.opm.Process;
+
+/**
+ * Load generator for the Binary reporter.
+ *
+ * Usage:
+ * 	java -cp 'build:lib/*' spade.reporter.binary.LoadGenerator [host=localhost] [port=N | unixSocketPath=path]
+ * 		[producers=1] [elements=1000000] [rate=0] [processes=1000] [artifacts=10000] [seed=0]
+ *
+ * Each producer first sends its pool of process and artifact vertices, and then random read/write edges between them
+ * until 'elements' elements have been sent. The 'rate' is the max elements per second per producer (0 = unlimited).
+ */
+public class LoadGenerator{
+
+	private static final String
+		keyHost = "host",
+		keyPort = "port",
+		keyUnixSocketPath = "unixSocketPath",
+		keyProducers = "producers",
+		keyElements = "elements",
+		keyRate = "rate",
+		keyProcesses = "processes",
+		keyArtifacts = "artifacts",
+		keySeed = "seed";
+
+	public static void main(final String[] args) throws Exception{
+		final Map<String, String> map = new TreeMap<String, String>();
+		map.put(keyHost, "localhost");
+		map.put(keyPort, "0");
+		map.put(keyUnixSocketPath, "");
+		map.put(keyProducers, "1");
+		map.put(keyElements, "1000000");
+		map.put(keyRate, "0");
+		map.put(keyProcesses, "1000");
+		map.put(keyArtifacts, "10000");
+		map.put(keySeed, "0");
+		map.putAll(HelperFunctions.parseKeyValuePairsFrom(String.join(" ", args), null));
+
+		final String host = ArgumentFunctions.mustParseNonNullString(keyHost, map);
+		final int port = ArgumentFunctions.mustParseInteger(keyPort, map);
+		final String unixSocketPath = ArgumentFunctions.mustParseNonNullString(keyUnixSocketPath, map);
+		final int producers = (int)ArgumentFunctions.mustBeGreaterThanZero(keyProducers, map);
+		final long elements = ArgumentFunctions.mustBeGreaterThanZero(keyElements, map);
+		final long rate = ArgumentFunctions.mustParseLong(keyRate, map);
+		final int processes = (int)ArgumentFunctions.mustBeGreaterThanZero(keyProcesses, map);
+		final int artifacts = (int)ArgumentFunctions.mustBeGreaterThanZero(keyArtifacts, map);
+		final long seed = ArgumentFunctions.mustParseLong(keySeed, map);
+
+		if(port <= 0 && unixSocketPath.isEmpty()){
+			throw new Exception("Must specify one of '" + keyPort + "' or '" + keyUnixSocketPath + "'");
+		}
+
+		System.out.println("Arguments: " + map);
+
+		final AtomicLong sent = new AtomicLong();
+		final List<Thread> threads = new ArrayList<Thread>();
+		final List<Exception> errors = new ArrayList<Exception>();
+		final long startMillis = System.currentTimeMillis();
+		for(int i = 0; i < producers; i++){
+			final int producerId = i;
+			final Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try(final Client client = unixSocketPath.isEmpty()
+							? Client.connectTCP(host, port) : Client.connectUnix(unixSocketPath)){
+						produce(client, producerId, elements, rate, processes, artifacts, new Random(seed + producerId), sent);
+						client.flush();
+					}catch(Exception e){
+						synchronized(errors){
+							errors.add(e);
+						}
+					}
+				}
+			}, "producer-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		for(final Thread thread : threads){
+			thread.join();
+		}
+		final long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+		for(final Exception error : errors){
+			error.printStackTrace();
+		}
+		System.out.println(String.format("Sent %d elements in %d millis (%.1f elements/sec) using %d producer(s)",
+				sent.get(), elapsedMillis, (sent.get() * 1000.0) / elapsedMillis, producers));
+	}
+
+	private static void produce(final Client client, final int producerId, final long elements, final long rate,
+			final int processCount, final int artifactCount, final Random random, final AtomicLong sent) throws Exception{
+		final List<AbstractVertex> processes = new ArrayList<AbstractVertex>(processCount);
+		final List<AbstractVertex> artifacts = new ArrayList<AbstractVertex>(artifactCount);
+		for(int i = 0; i < processCount; i++){
+			final Process process = new Process();
+			process.addAnnotation("pid", String.valueOf(i));
+			process.addAnnotation("name", "process-" + (i % 50));
+			process.addAnnotation("producer", String.valueOf(producerId));
+			processes.add(process);
+		}
+		for(int i = 0; i < artifactCount; i++){
+			final Artifact artifact = new Artifact();
+			artifact.addAnnotation("subtype", "file");
+			artifact.addAnnotation("path", "/tmp/producer-" + producerId + "/file-" + i);
+			artifacts.add(artifact);
+		}
+
+		final byte[][] processHashes = new byte[processCount][];
+		final byte[][] artifactHashes = new byte[artifactCount][];
+
+		long count = 0;
+		final long startMillis = System.currentTimeMillis();
+		for(int i = 0; i < processCount && count < elements; i++, count++){
+			processHashes[i] = processes.get(i).bigHashCodeBytes();
+			client.putVertex(processes.get(i));
+		}
+		for(int i = 0; i < artifactCount && count < elements; i++, count++){
+			artifactHashes[i] = artifacts.get(i).bigHashCodeBytes();
+			client.putVertex(artifacts.get(i));
+		}
+		final Map<String, String> annotations = new TreeMap<String, String>();
+		while(count < elements){
+			final int processIndex = random.nextInt(processCount);
+			final int artifactIndex = random.nextInt(artifactCount);
+			if(processHashes[processIndex] == null || artifactHashes[artifactIndex] == null){
+				break; // Not enough elements to send all vertices
+			}
+			annotations.clear();
+			annotations.put("time", String.valueOf(System.nanoTime()));
+			annotations.put("size", String.valueOf(random.nextInt(65536)));
+			if(random.nextBoolean()){
+				annotations.put(AbstractVertex.typeKey, Used.typeValue);
+				annotations.put("operation", "read");
+				client.putEdge(processHashes[processIndex], artifactHashes[artifactIndex], annotations);
+			}else{
+				annotations.put(AbstractVertex.typeKey, WasGeneratedBy.typeValue);
+				annotations.put("operation", "write");
+				client.putEdge(artifactHashes[artifactIndex], processHashes[processIndex], annotations);
+			}
+			count++;
+			if(rate > 0 && (count % 1000) == 0){
+				final long expectedMillis = (count * 1000) / rate;
+				final long actualMillis = System.currentTimeMillis() - startMillis;
+				if(expectedMillis > actualMillis){
+					HelperFunctions.sleepSafe(expectedMillis - actualMillis);
+				}
+			}
+		}
+		sent.addAndGet(count);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.binary;
+
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import spade.core.HashHelper;
+
+/**
+ * Wire format shared by the Binary reporter and its client.
+ *
+ * All integers are big-endian.
+ *
+ * A connection starts with a handshake (not framed):
+ * 	int magic, short version
+ *
+ * Followed by zero or more frames:
+ * 	int length (length of everything after this int), byte frame type, payload
+ *
+ * Payloads:
+ * 	STRING: int id, int length, utf-8 bytes
+ * 		Adds a string to the per-connection dictionary. Ids must be sequential starting from 0.
+ * 	VERTEX: hash bytes, annotations
+ * 	EDGE: child vertex hash bytes, parent vertex hash bytes, annotations
+ * 	CLOSE: (empty)
+ *
+ * Annotations:
+ * 	short count, and then for each annotation:
+ * 		int key id (from the dictionary), byte value kind, value
+ * 		where value is an int id (from the dictionary) if the value kind is VALUE_REFERENCE,
+ * 		or int length followed by utf-8 bytes if the value kind is VALUE_LITERAL.
+ *
+ * The hash bytes are the raw bytes of the hash as computed by spade.core.HashHelper (default instance).
+ * If the 'type' annotation is missing then the generic Vertex/Edge type is used. Elements with an unknown type are dropped.
+ */
+public final class Protocol{
+
+	public static final int MAGIC = 0x53504442; // 'SPDB'
+	public static final short VERSION = 1;
+
+	public static final int HANDSHAKE_BYTES = Integer.BYTES + Short.BYTES;
+	public static final int FRAME_HEADER_BYTES = Integer.BYTES;
+
+	public static final byte
+		FRAME_STRING = 1,
+		FRAME_VERTEX = 2,
+		FRAME_EDGE = 3,
+		FRAME_CLOSE = 4;
+
+	public static final byte
+		VALUE_REFERENCE = 0,
+		VALUE_LITERAL = 1;
+
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	public static final int HASH_BYTES = HashHelper.defaultInstance.bytesInHash;
+
+	public static final int MAX_ANNOTATIONS = Short.MAX_VALUE;
+
+	private Protocol(){}
+
+	public static final String getFrameTypeName(final byte frameType){
+		switch(frameType){
+			case FRAME_STRING: return "STRING";
+			case FRAME_VERTEX: return "VERTEX";
+			case FRAME_EDGE: return "EDGE";
+			case FRAME_CLOSE: return "CLOSE";
+			default: return "UNKNOWN(" + frameType + ")";
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// Unix domain sockets are only available in Java 16+. Resolved using reflection to keep building with 11.
+
+	public static final boolean isUnixDomainSocketSupported(){
+		try{
+			getUnixProtocolFamily();
+			Class.forName("java.net.UnixDomainSocketAddress");
+			return true;
+		}catch(Throwable t){
+			return false;
+		}
+	}
+
+	private static final ProtocolFamily getUnixProtocolFamily() throws Exception{
+		return StandardProtocolFamily.valueOf("UNIX");
+	}
+
+	public static final SocketAddress createUnixDomainSocketAddress(final String path) throws Exception{
+		try{
+			final Class<?> clazz = Class.forName("java.net.UnixDomainSocketAddress");
+			final Method method = clazz.getMethod("of", String.class);
+			return (SocketAddress)method.invoke(null, path);
+		}catch(ClassNotFoundException e){
+			throw new Exception("Unix domain sockets not supported by the JVM. Requires Java 16 or later");
+		}
+	}
+
+	public static final ServerSocketChannel openUnixDomainServerSocketChannel() throws Exception{
+		final Method method = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+		return (ServerSocketChannel)method.invoke(null, getUnixProtocolFamily());
+	}
+
+	public static final SocketChannel openUnixDomainSocketChannel() throws Exception{
+		final Method method = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+		return (SocketChannel)method.invoke(null, getUnixProtocolFamily());
+	}
+}
@@ -0,0 +1,554 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.workload;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.edge.opm.Used;
+import spade.edge.opm.WasDerivedFrom;
+import spade.edge.opm.WasGeneratedBy;
+import spade.edge.opm.WasTriggeredBy;
+import spade.reporter.audit.OPMConstants;
+import spade.utility.ArgumentFunctions;
+import spade.utility.DotConfiguration;
+import spade.utility.HelperFunctions;
+import spade.vertex.opm.Artifact;
+import spade.vertex.opm.Process;
+
+/**
+ * Deterministic generator of synthetic OPM provenance modelled on the Audit reporter's output (see OPMConstants).
+ *
+ * The same seed and arguments always produce the same sequence of vertices and edges (including the 'time' and
+ * 'event id' annotations which come from a simulated clock).
+ *
+ * Model:
+ * 	1. Process tree with fork fan-out by preferential attachment i.e. power-law number of children per process
+ * 	2. Execve creates a new process vertex for the same pid
+ * 	3. File reads and writes choose files by a Zipf distribution. Writes create a new version of the file
+ * 	4. Network flows i.e. a connect to a (Zipf chosen) remote host followed by a burst of sends and receives
+ * 	5. Reads of /proc files
+ * 	6. Exits which remove processes from the live set
+ *
+ * Vertices are always returned before the edges which reference them.
+ *
+ * Not thread-safe.
+ *
+ * Standalone usage (writes the graph to a file):
+ * 	java -cp 'build:lib/*' spade.reporter.workload.Generator output=path [format=json|dot] [events=N] [other keys]
+ */
+public class Generator{
+
+	public static final String
+		keySeed = "seed",
+		keyMaxProcesses = "maxProcesses",
+		keyFiles = "files",
+		keyRemoteHosts = "remoteHosts",
+		keyZipfExponent = "zipfExponent",
+		keyForkWeight = "forkWeight",
+		keyExecveWeight = "execveWeight",
+		keyReadWeight = "readWeight",
+		keyWriteWeight = "writeWeight",
+		keyNetworkWeight = "networkWeight",
+		keyProcReadWeight = "procReadWeight",
+		keyExitWeight = "exitWeight",
+		keyMeanEventMicros = "meanEventMicros",
+		keyStartTimeSeconds = "startTimeSeconds";
+
+	private static final String[] processNames = {
+			"bash", "sshd", "python3", "java", "gcc", "make", "ls", "cat", "grep", "sed", "vim", "curl", "wget", "git",
+			"systemd", "cron", "nginx", "postgres", "firefox", "tar"};
+	private static final String[] fileDirectories = {
+			"/etc", "/usr/lib", "/usr/bin", "/var/log", "/tmp", "/home/user0", "/home/user1", "/home/user2", "/opt/app"};
+	private static final String[] fileExtensions = {".conf", ".so", "", ".log", ".tmp", ".txt", ".py", ".c", ".dat"};
+	private static final String[] procFileNames = {"stat", "status", "maps", "cmdline", "environ", "fd"};
+	private static final int[] remotePorts = {443, 80, 22, 53, 8080, 5432, 3306, 25};
+	private static final int[] uids = {0, 1000, 1001, 33, 999};
+
+	private static final int
+		EVENT_FORK = 0, EVENT_EXECVE = 1, EVENT_READ = 2, EVENT_WRITE = 3, EVENT_NETWORK = 4, EVENT_PROC_READ = 5,
+		EVENT_EXIT = 6;
+
+	private static final class ProcessState{
+		final int pid, ppid, uid;
+		AbstractVertex vertex;
+		boolean alive = true;
+		ProcessState(final int pid, final int ppid, final int uid){
+			this.pid = pid;
+			this.ppid = ppid;
+			this.uid = uid;
+		}
+	}
+
+	private final Random random;
+	private final int maxProcesses;
+	private final double meanEventMicros;
+
+	private final int[] eventWeights;
+	private final int eventWeightsTotal;
+
+	// Processes in the order of arrival. Each fork adds the parent and the child again so that a uniform sample is a
+	// preferential attachment sample. Dead processes removed lazily.
+	private final List<ProcessState> attachmentList = new ArrayList<ProcessState>();
+	private int deadInAttachmentList = 0;
+	private final List<ProcessState> liveProcesses = new ArrayList<ProcessState>();
+	private int nextPid = 2;
+
+	private final String[] filePaths;
+	private final int[] fileVersions;
+	private final AbstractVertex[] fileVertices;
+	private final ZipfSampler fileSampler;
+
+	private final String[] remoteAddresses;
+	private final ZipfSampler remoteHostSampler;
+	private int nextLocalPort = 32768;
+
+	private long simulatedMicros;
+	private long eventId = 0;
+	private long vertexCount = 0, edgeCount = 0;
+
+	public Generator(final long seed, final int maxProcesses, final int files, final int remoteHosts,
+			final double zipfExponent, final int forkWeight, final int execveWeight, final int readWeight,
+			final int writeWeight, final int networkWeight, final int procReadWeight, final int exitWeight,
+			final double meanEventMicros, final long startTimeSeconds){
+		if(maxProcesses < 1 || files < 1 || remoteHosts < 1){
+			throw new IllegalArgumentException("Processes, files, and remote hosts must be greater than zero");
+		}
+		this.random = new Random(seed);
+		this.maxProcesses = maxProcesses;
+		this.meanEventMicros = meanEventMicros;
+		this.simulatedMicros = startTimeSeconds * 1000L * 1000L;
+
+		this.eventWeights = new int[]{forkWeight, execveWeight, readWeight, writeWeight, networkWeight, procReadWeight,
+				exitWeight};
+		int total = 0;
+		for(final int weight : eventWeights){
+			if(weight < 0){
+				throw new IllegalArgumentException("Negative event weight: " + weight);
+			}
+			total += weight;
+		}
+		if(total <= 0){
+			throw new IllegalArgumentException("At least one event weight must be greater than zero");
+		}
+		this.eventWeightsTotal = total;
+
+		this.filePaths = new String[files];
+		this.fileVersions = new int[files];
+		this.fileVertices = new AbstractVertex[files];
+		for(int i = 0; i < files; i++){
+			filePaths[i] = fileDirectories[i % fileDirectories.length] + "/f" + i
+					+ fileExtensions[(i / fileDirectories.length) % fileExtensions.length];
+		}
+		this.fileSampler = new ZipfSampler(files, zipfExponent);
+
+		this.remoteAddresses = new String[remoteHosts];
+		for(int i = 0; i < remoteHosts; i++){
+			remoteAddresses[i] = "93." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff);
+		}
+		this.remoteHostSampler = new ZipfSampler(remoteHosts, zipfExponent);
+	}
+
+	public static Generator create(final Map<String, String> map) throws Exception{
+		return new Generator(
+				ArgumentFunctions.mustParseLong(keySeed, map),
+				(int)ArgumentFunctions.mustBeGreaterThanZero(keyMaxProcesses, map),
+				(int)ArgumentFunctions.mustBeGreaterThanZero(keyFiles, map),
+				(int)ArgumentFunctions.mustBeGreaterThanZero(keyRemoteHosts, map),
+				mustParseDouble(keyZipfExponent, map),
+				ArgumentFunctions.mustParseInteger(keyForkWeight, map),
+				ArgumentFunctions.mustParseInteger(keyExecveWeight, map),
+				ArgumentFunctions.mustParseInteger(keyReadWeight, map),
+				ArgumentFunctions.mustParseInteger(keyWriteWeight, map),
+				ArgumentFunctions.mustParseInteger(keyNetworkWeight, map),
+				ArgumentFunctions.mustParseInteger(keyProcReadWeight, map),
+				ArgumentFunctions.mustParseInteger(keyExitWeight, map),
+				mustParseDouble(keyMeanEventMicros, map),
+				ArgumentFunctions.mustParseLong(keyStartTimeSeconds, map));
+	}
+
+	private static double mustParseDouble(final String key, final Map<String, String> map) throws Exception{
+		final String value = ArgumentFunctions.mustParseNonEmptyString(key, map);
+		try{
+			final double result = Double.parseDouble(value);
+			if(result < 0 || Double.isNaN(result) || Double.isInfinite(result)){
+				throw new Exception("Must be a non-negative number");
+			}
+			return result;
+		}catch(Exception e){
+			throw new Exception("Invalid value for '" + key + "': '" + value + "'. " + e.getMessage(), e);
+		}
+	}
+
+	public final long getEventCount(){
+		return eventId;
+	}
+
+	public final long getVertexCount(){
+		return vertexCount;
+	}
+
+	public final long getEdgeCount(){
+		return edgeCount;
+	}
+
+	public final int getLiveProcessCount(){
+		return liveProcesses.size();
+	}
+
+	public final String getStats(){
+		return "Events=" + eventId + ", Vertices=" + vertexCount + ", Edges=" + edgeCount
+				+ ", LiveProcesses=" + liveProcesses.size();
+	}
+
+	/**
+	 * Appends the vertices and edges of the next event to the list
+	 *
+	 * @param elements list to add to
+	 */
+	public final void next(final List<Object> elements){
+		if(liveProcesses.isEmpty()){
+			createInitProcess(elements);
+		}
+
+		simulatedMicros += Math.max(1, (long)(-Math.log(1 - random.nextDouble()) * meanEventMicros));
+		eventId++;
+
+		int pick = random.nextInt(eventWeightsTotal);
+		int event = 0;
+		while(pick >= eventWeights[event]){
+			pick -= eventWeights[event];
+			event++;
+		}
+		if(event == EVENT_FORK && liveProcesses.size() >= maxProcesses){
+			event = EVENT_EXIT;
+		}else if(event == EVENT_EXIT && liveProcesses.size() <= 1){
+			event = EVENT_FORK;
+		}
+
+		switch(event){
+			case EVENT_FORK: fork(elements); break;
+			case EVENT_EXECVE: execve(elements); break;
+			case EVENT_READ: read(elements); break;
+			case EVENT_WRITE: write(elements); break;
+			case EVENT_NETWORK: network(elements); break;
+			case EVENT_PROC_READ: procRead(elements); break;
+			case EVENT_EXIT: exit(); break;
+			default: throw new IllegalStateException("Unhandled event: " + event);
+		}
+	}
+
+	//////////////////////////////
+
+	private final String time(){
+		return String.format("%d.%03d", simulatedMicros / 1000000, (simulatedMicros / 1000) % 1000);
+	}
+
+	private final AbstractVertex addVertex(final List<Object> elements, final AbstractVertex vertex){
+		vertex.addAnnotation(OPMConstants.SOURCE, OPMConstants.SOURCE_AUDIT_SYSCALL);
+		elements.add(vertex);
+		vertexCount++;
+		return vertex;
+	}
+
+	private final void addEdge(final List<Object> elements, final AbstractEdge edge, final String operation){
+		edge.addAnnotation(OPMConstants.EDGE_OPERATION, operation);
+		edge.addAnnotation(OPMConstants.EDGE_TIME, time());
+		edge.addAnnotation(OPMConstants.EDGE_EVENT_ID, String.valueOf(eventId));
+		edge.addAnnotation(OPMConstants.SOURCE, OPMConstants.SOURCE_AUDIT_SYSCALL);
+		elements.add(edge);
+		edgeCount++;
+	}
+
+	private final AbstractVertex createProcessVertex(final ProcessState state, final String name){
+		final Process vertex = new Process();
+		vertex.addAnnotation(OPMConstants.PROCESS_PID, String.valueOf(state.pid));
+		vertex.addAnnotation(OPMConstants.PROCESS_PPID, String.valueOf(state.ppid));
+		vertex.addAnnotation(OPMConstants.PROCESS_NAME, name);
+		vertex.addAnnotation(OPMConstants.PROCESS_CWD, "/home/user" + (state.pid % 3));
+		vertex.addAnnotation(OPMConstants.PROCESS_COMMAND_LINE, name + " -p " + state.pid);
+		vertex.addAnnotation(OPMConstants.AGENT_UID, String.valueOf(state.uid));
+		vertex.addAnnotation(OPMConstants.AGENT_EUID, String.valueOf(state.uid));
+		vertex.addAnnotation(OPMConstants.AGENT_GID, String.valueOf(state.uid));
+		vertex.addAnnotation(OPMConstants.AGENT_EGID, String.valueOf(state.uid));
+		vertex.addAnnotation(OPMConstants.PROCESS_START_TIME, time());
+		return vertex;
+	}
+
+	private final void createInitProcess(final List<Object> elements){
+		final ProcessState init = new ProcessState(1, 0, 0);
+		init.vertex = addVertex(elements, createProcessVertex(init, "systemd"));
+		liveProcesses.add(init);
+		attachmentList.add(init);
+	}
+
+	private final ProcessState pickProcess(){
+		if(deadInAttachmentList > attachmentList.size() / 2){
+			final List<ProcessState> live = new ArrayList<ProcessState>(attachmentList.size() - deadInAttachmentList);
+			for(final ProcessState state : attachmentList){
+				if(state.alive){
+					live.add(state);
+				}
+			}
+			attachmentList.clear();
+			attachmentList.addAll(live);
+			deadInAttachmentList = 0;
+		}
+		while(true){
+			final ProcessState state = attachmentList.get(random.nextInt(attachmentList.size()));
+			if(state.alive){
+				return state;
+			}
+		}
+	}
+
+	private final void fork(final List<Object> elements){
+		final ProcessState parent = pickProcess();
+		final ProcessState child = new ProcessState(nextPid++, parent.pid,
+				random.nextInt(4) == 0 ? uids[random.nextInt(uids.length)] : parent.uid);
+		child.vertex = addVertex(elements, createProcessVertex(child, parent.vertex.getAnnotation(OPMConstants.PROCESS_NAME)));
+		addEdge(elements, new WasTriggeredBy((Process)child.vertex, (Process)parent.vertex),
+				random.nextInt(5) == 0 ? OPMConstants.OPERATION_CLONE : OPMConstants.OPERATION_FORK);
+		liveProcesses.add(child);
+		attachmentList.add(parent);
+		attachmentList.add(child);
+	}
+
+	private final void execve(final List<Object> elements){
+		final ProcessState state = pickProcess();
+		final Process oldVertex = (Process)state.vertex;
+		state.vertex = addVertex(elements, createProcessVertex(state, processNames[random.nextInt(processNames.length)]));
+		addEdge(elements, new WasTriggeredBy((Process)state.vertex, oldVertex), OPMConstants.OPERATION_EXECVE);
+		// The binary
+		final int fileIndex = fileSampler.sample(random);
+		addEdge(elements, new Used((Process)state.vertex, fileVertex(elements, fileIndex)), OPMConstants.OPERATION_LOAD);
+	}
+
+	private final Artifact fileVertex(final List<Object> elements, final int fileIndex){
+		if(fileVertices[fileIndex] == null){
+			final Artifact artifact = new Artifact();
+			artifact.addAnnotation(OPMConstants.ARTIFACT_SUBTYPE, OPMConstants.SUBTYPE_FILE);
+			artifact.addAnnotation(OPMConstants.ARTIFACT_PATH, filePaths[fileIndex]);
+			artifact.addAnnotation(OPMConstants.ARTIFACT_VERSION, String.valueOf(fileVersions[fileIndex]));
+			fileVertices[fileIndex] = addVertex(elements, artifact);
+		}
+		return (Artifact)fileVertices[fileIndex];
+	}
+
+	private final void read(final List<Object> elements){
+		final ProcessState state = pickProcess();
+		final Artifact file = fileVertex(elements, fileSampler.sample(random));
+		final Used edge = new Used((Process)state.vertex, file);
+		edge.addAnnotation(OPMConstants.EDGE_SIZE, String.valueOf(1 + random.nextInt(65536)));
+		addEdge(elements, edge, OPMConstants.OPERATION_READ);
+	}
+
+	private final void write(final List<Object> elements){
+		final ProcessState state = pickProcess();
+		final int fileIndex = fileSampler.sample(random);
+		final Artifact oldVersion = fileVertex(elements, fileIndex);
+		fileVersions[fileIndex]++;
+		fileVertices[fileIndex] = null;
+		final Artifact newVersion = fileVertex(elements, fileIndex);
+		final WasGeneratedBy edge = new WasGeneratedBy(newVersion, (Process)state.vertex);
+		edge.addAnnotation(OPMConstants.EDGE_SIZE, String.valueOf(1 + random.nextInt(65536)));
+		addEdge(elements, edge, OPMConstants.OPERATION_WRITE);
+		addEdge(elements, new WasDerivedFrom(newVersion, oldVersion), OPMConstants.OPERATION_UPDATE);
+	}
+
+	private final void procRead(final List<Object> elements){
+		final ProcessState state = pickProcess();
+		final ProcessState target = pickProcess();
+		// Not tracked in the versioned file set because /proc files are not written to
+		final Artifact file = new Artifact();
+		file.addAnnotation(OPMConstants.ARTIFACT_SUBTYPE, OPMConstants.SUBTYPE_FILE);
+		file.addAnnotation(OPMConstants.ARTIFACT_PATH,
+				"/proc/" + target.pid + "/" + procFileNames[random.nextInt(procFileNames.length)]);
+		file.addAnnotation(OPMConstants.ARTIFACT_VERSION, "0");
+		addVertex(elements, file);
+		final Used edge = new Used((Process)state.vertex, file);
+		edge.addAnnotation(OPMConstants.EDGE_SIZE, String.valueOf(1 + random.nextInt(4096)));
+		addEdge(elements, edge, OPMConstants.OPERATION_READ);
+	}
+
+	private final void network(final List<Object> elements){
+		final ProcessState state = pickProcess();
+		final int remoteIndex = remoteHostSampler.sample(random);
+		final int remotePort = remotePorts[remoteIndex % remotePorts.length];
+		final boolean tcp = remotePort != 53;
+		final int localPort = nextLocalPort;
+		nextLocalPort = nextLocalPort >= 60999 ? 32768 : nextLocalPort + 1;
+
+		final Artifact socket = new Artifact();
+		socket.addAnnotation(OPMConstants.ARTIFACT_SUBTYPE, OPMConstants.SUBTYPE_NETWORK_SOCKET);
+		socket.addAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS, "10.0.0." + (1 + (state.pid % 254)));
+		socket.addAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT, String.valueOf(localPort));
+		socket.addAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS, remoteAddresses[remoteIndex]);
+		socket.addAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT, String.valueOf(remotePort));
+		socket.addAnnotation(OPMConstants.ARTIFACT_PROTOCOL, tcp ? "tcp" : "udp");
+		socket.addAnnotation(OPMConstants.ARTIFACT_VERSION, "0");
+		addVertex(elements, socket);
+		addEdge(elements, new WasGeneratedBy(socket, (Process)state.vertex), OPMConstants.OPERATION_CONNECT);
+
+		// Geometric number of messages
+		int messages = 1;
+		while(messages < 64 && random.nextInt(4) != 0){
+			messages++;
+		}
+		for(int i = 0; i < messages; i++){
+			final AbstractEdge edge;
+			final String operation;
+			if(random.nextBoolean()){
+				edge = new WasGeneratedBy(socket, (Process)state.vertex);
+				operation = OPMConstants.OPERATION_SEND;
+			}else{
+				edge = new Used((Process)state.vertex, socket);
+				operation = OPMConstants.OPERATION_RECV;
+			}
+			edge.addAnnotation(OPMConstants.EDGE_SIZE, String.valueOf(1 + random.nextInt(1500)));
+			addEdge(elements, edge, operation);
+		}
+	}
+
+	private final void exit(){
+		final ProcessState state = liveProcesses.get(1 + random.nextInt(liveProcesses.size() - 1)); // Never init
+		state.alive = false;
+		// Swap remove
+		final int index = liveProcesses.indexOf(state);
+		liveProcesses.set(index, liveProcesses.get(liveProcesses.size() - 1));
+		liveProcesses.remove(liveProcesses.size() - 1);
+		for(final ProcessState entry : attachmentList){
+			if(entry == state){
+				deadInAttachmentList++;
+			}
+		}
+	}
+
+	//////////////////////////////
+
+	/**
+	 * Samples ranks [0, n) with probability proportional to 1/(rank+1)^exponent using a precomputed CDF
+	 */
+	private static final class ZipfSampler{
+		private final double[] cdf;
+		private ZipfSampler(final int n, final double exponent){
+			cdf = new double[n];
+			double sum = 0;
+			for(int i = 0; i < n; i++){
+				sum += 1.0 / Math.pow(i + 1, exponent);
+				cdf[i] = sum;
+			}
+			for(int i = 0; i < n; i++){
+				cdf[i] /= sum;
+			}
+		}
+		private int sample(final Random random){
+			final double value = random.nextDouble();
+			int low = 0, high = cdf.length - 1;
+			while(low < high){
+				final int mid = (low + high) >>> 1;
+				if(cdf[mid] < value){
+					low = mid + 1;
+				}else{
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	//////////////////////////////
+
+	public static final Map<String, String> getDefaultArguments(){
+		final Map<String, String> map = new TreeMap<String, String>();
+		map.put(keySeed, "0");
+		map.put(keyMaxProcesses, "1000");
+		map.put(keyFiles, "100000");
+		map.put(keyRemoteHosts, "1000");
+		map.put(keyZipfExponent, "1.0");
+		map.put(keyForkWeight, "4");
+		map.put(keyExecveWeight, "3");
+		map.put(keyReadWeight, "50");
+		map.put(keyWriteWeight, "20");
+		map.put(keyNetworkWeight, "5");
+		map.put(keyProcReadWeight, "10");
+		map.put(keyExitWeight, "3");
+		map.put(keyMeanEventMicros, "100");
+		map.put(keyStartTimeSeconds, "1600000000");
+		return map;
+	}
+
+	public static void main(final String[] args) throws Exception{
+		final String keyOutput = "output", keyFormat = "format", keyEvents = "events";
+		final Map<String, String> map = getDefaultArguments();
+		map.put(keyFormat, "json");
+		map.put(keyEvents, "100000");
+		map.putAll(HelperFunctions.parseKeyValuePairsFrom(String.join(" ", args), null));
+
+		final String output = ArgumentFunctions.mustParseWritableFilePath(keyOutput, map);
+		final String format = ArgumentFunctions.mustParseNonEmptyString(keyFormat, map);
+		final long events = ArgumentFunctions.mustBeGreaterThanZero(keyEvents, map);
+		final Generator generator = create(map);
+
+		System.out.println("Arguments: " + map);
+
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(output), 1 << 20);
+		final AbstractStorage storage;
+		if(format.equalsIgnoreCase("json")){
+			final spade.storage.JSON json = new spade.storage.JSON();
+			json.initializeUnsafe(writer, true, true, true, System.lineSeparator(), true);
+			storage = json;
+		}else if(format.equalsIgnoreCase("dot")){
+			final spade.storage.Graphviz dot = new spade.storage.Graphviz();
+			dot.initializeUnsafe(writer, DotConfiguration.getDefaultConfigFilePath(), true, true, System.lineSeparator(), true);
+			storage = dot;
+		}else{
+			writer.close();
+			throw new Exception("Unknown '" + keyFormat + "': '" + format + "'. Expected: 'json' or 'dot'");
+		}
+
+		final long startMillis = System.currentTimeMillis();
+		final List<Object> elements = new ArrayList<Object>();
+		try{
+			for(long i = 0; i < events; i++){
+				elements.clear();
+				generator.next(elements);
+				for(final Object element : elements){
+					if(element instanceof AbstractVertex){
+						storage.putVertex((AbstractVertex)element);
+					}else{
+						storage.putEdge((AbstractEdge)element);
+					}
+				}
+			}
+		}finally{
+			storage.shutdown();
+		}
+		System.out.println(generator.getStats() + ". Millis=" + (System.currentTimeMillis() - startMillis));
+	}
+}
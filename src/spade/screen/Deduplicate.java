@@ -24,6 +24,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -32,11 +35,17 @@ import java.util.logging.Logger;
 import spade.core.AbstractEdge;
 import spade.core.AbstractScreen;
 import spade.core.AbstractVertex;
+import spade.core.MappedBloomFilter;
+import spade.core.ProbabilisticSet;
+import spade.core.ScalableBloomFilter;
 import spade.core.Settings;
 import spade.utility.FileUtility;
 import spade.utility.HelperFunctions;
 import spade.utility.Result;
+import spade.utility.map.external.cache.Cache;
+import spade.utility.map.external.cache.CacheName;
 import spade.utility.map.external.cache.LRUCache;
+import spade.utility.map.external.cache.TinyLFUCache;
 
 public final class Deduplicate extends AbstractScreen{
 
@@ -45,22 +54,39 @@ public final class Deduplicate extends AbstractScreen{
 	private final String keyLoadSavePathVertex = "vertex.bloomFilter.path";
 	private final String keyExpectedElementsVertex = "vertex.bloomFilter.expectedElements";
 	private final String keyFalsePositiveProbabilityVertex = "vertex.bloomFilter.falsePositiveProbability";
+	private final String keyScalableVertex = "vertex.bloomFilter.scalable";
+	private final String keyGrowthFactorVertex = "vertex.bloomFilter.growthFactor";
+	private final String keyMemoryMappedVertex = "vertex.bloomFilter.memoryMapped";
 	private final String keyCacheSizeVertex = "vertex.cache.size";
 	private final String keyLoadSavePathEdge = "edge.bloomFilter.path";
 	private final String keyExpectedElementsEdge = "edge.bloomFilter.expectedElements";
 	private final String keyFalsePositiveProbabilityEdge = "edge.bloomFilter.falsePositiveProbability";
+	private final String keyScalableEdge = "edge.bloomFilter.scalable";
+	private final String keyGrowthFactorEdge = "edge.bloomFilter.growthFactor";
+	private final String keyMemoryMappedEdge = "edge.bloomFilter.memoryMapped";
+	private final String keyCheckpointIntervalSeconds = "bloomFilter.checkpointIntervalSeconds";
+	
+	private final String memoryMappedCacheFileSuffix = ".cache";
 	private final String keyCacheSizeEdge = "edge.cache.size";
 	private final String keyReportingIntervalSeconds = "reportingIntervalSeconds";
+	private final String keyCacheName = "cacheName";
 
 	private final Object blankObject = new Object();
 	private final Object lockObject = new Object();
 	
 	private String loadSavePathVertex = null;
-	private spade.core.BloomFilter<String> bloomFilterVertex = null;
-	private LRUCache<String, Object> cacheVertex;
+	private ProbabilisticSet<String> bloomFilterVertex = null;
+	private Cache<String, Object> cacheVertex;
 	private String loadSavePathEdge = null;
-	private spade.core.BloomFilter<String> bloomFilterEdge = null;
-	private LRUCache<String, Object> cacheEdge;
+	private ProbabilisticSet<String> bloomFilterEdge = null;
+	private Cache<String, Object> cacheEdge;
+	
+	private boolean memoryMappedVertex = false;
+	private boolean memoryMappedEdge = false;
+	private long checkpointIntervalMillis = 0;
+	private Thread checkpointThread = null;
+	private volatile boolean checkpointThreadShutdown = false;
+	private CacheName cacheName = CacheName.LRU;
 	
 	private boolean reportingEnabled;
 	private long reportingIntervalMillis;
@@ -86,12 +112,40 @@ public final class Deduplicate extends AbstractScreen{
 			final String edgeBloomFilterExpectedElementsString = map.get(keyExpectedElementsEdge);
 			final String edgeBloomFilterFalsePositiveProbabilityString = map.get(keyFalsePositiveProbabilityEdge);
 			final String edgeCacheSizeString = map.get(keyCacheSizeEdge);
+			final String vertexScalableString = map.get(keyScalableVertex);
+			final String vertexGrowthFactorString = map.get(keyGrowthFactorVertex);
+			final String edgeScalableString = map.get(keyScalableEdge);
+			final String edgeGrowthFactorString = map.get(keyGrowthFactorEdge);
+
+			final String cacheNameString = map.get(keyCacheName);
+			if(!HelperFunctions.isNullOrEmpty(cacheNameString)){
+				final Result<CacheName> cacheNameResult = HelperFunctions.parseEnumValue(CacheName.class, cacheNameString.trim(), true);
+				if(cacheNameResult.error){
+					throw new Exception("Invalid value for '"+keyCacheName+"'. " + cacheNameResult.errorMessage);
+				}
+				this.cacheName = cacheNameResult.result;
+			}
+
+			this.memoryMappedVertex = parseOptionalBoolean(map.get(keyMemoryMappedVertex), keyMemoryMappedVertex);
+			this.memoryMappedEdge = parseOptionalBoolean(map.get(keyMemoryMappedEdge), keyMemoryMappedEdge);
+			final String checkpointIntervalSecondsString = map.get(keyCheckpointIntervalSeconds);
+			if(checkpointIntervalSecondsString != null){
+				final Result<Long> checkpointIntervalSecondsResult = 
+						HelperFunctions.parseLong(checkpointIntervalSecondsString, 10, Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if(checkpointIntervalSecondsResult.error){
+					throw new Exception("Invalid value for '"+keyCheckpointIntervalSeconds+"'='"+checkpointIntervalSecondsString+"'. "
+							+ checkpointIntervalSecondsResult.errorMessage);
+				}
+				this.checkpointIntervalMillis = checkpointIntervalSecondsResult.result * 1000;
+			}
 
 			initialize(reportingIntervalSecondsString, 
 					vertexLoadSavePathString, 
 					vertexBloomFilterExpectedElementsString, vertexBloomFilterFalsePositiveProbabilityString, vertexCacheSizeString, 
+					vertexScalableString, vertexGrowthFactorString,
 					edgeLoadSavePathString, 
-					edgeBloomFilterExpectedElementsString, edgeBloomFilterFalsePositiveProbabilityString, edgeCacheSizeString);
+					edgeBloomFilterExpectedElementsString, edgeBloomFilterFalsePositiveProbabilityString, edgeCacheSizeString,
+					edgeScalableString, edgeGrowthFactorString);
 
 			printStats(true);
 
@@ -108,6 +162,28 @@ public final class Deduplicate extends AbstractScreen{
 			final String edgeLoadSavePathString, 
 			final String edgeBloomFilterExpectedElementsString, final String edgeBloomFilterFalsePositiveProbabilityString, final String edgeCacheSizeString)
 		throws Exception{
+		initialize(reportingIntervalSecondsString, 
+				vertexLoadSavePathString, 
+				vertexBloomFilterExpectedElementsString, vertexBloomFilterFalsePositiveProbabilityString, vertexCacheSizeString, 
+				null, null,
+				edgeLoadSavePathString, 
+				edgeBloomFilterExpectedElementsString, edgeBloomFilterFalsePositiveProbabilityString, edgeCacheSizeString,
+				null, null);
+	}
+
+	/**
+	 * If scalable is 'true' then the expected elements is the capacity of the first slice of the scalable Bloom filter,
+	 * and the false positive probability is the max for all slices. NULL scalable and growth factor mean 'false' and
+	 * the default growth factor respectively.
+	 */
+	public final void initialize(final String reportingIntervalSecondsString, 
+			final String vertexLoadSavePathString, 
+			final String vertexBloomFilterExpectedElementsString, final String vertexBloomFilterFalsePositiveProbabilityString, final String vertexCacheSizeString,
+			final String vertexScalableString, final String vertexGrowthFactorString,
+			final String edgeLoadSavePathString, 
+			final String edgeBloomFilterExpectedElementsString, final String edgeBloomFilterFalsePositiveProbabilityString, final String edgeCacheSizeString,
+			final String edgeScalableString, final String edgeGrowthFactorString)
+		throws Exception{
 		
 		final Result<Long> reportingIntervalSecondsResult = HelperFunctions.parseLong(reportingIntervalSecondsString, 10, Integer.MIN_VALUE, Integer.MAX_VALUE);
 		if(reportingIntervalSecondsResult.error){
@@ -129,10 +205,117 @@ public final class Deduplicate extends AbstractScreen{
 		}
 		
 		loadBloomFilterAndCache(vertexLoadSavePathString, vertexBloomFilterExpectedElementsString, vertexBloomFilterFalsePositiveProbabilityString, 
-				vertexCacheSizeString, true);
+				vertexCacheSizeString, vertexScalableString, vertexGrowthFactorString, true);
 		loadBloomFilterAndCache(edgeLoadSavePathString, edgeBloomFilterExpectedElementsString, edgeBloomFilterFalsePositiveProbabilityString,
-				edgeCacheSizeString, false);
+				edgeCacheSizeString, edgeScalableString, edgeGrowthFactorString, false);
 		
+		if(checkpointIntervalMillis > 0
+				&& (bloomFilterVertex instanceof MappedBloomFilter || bloomFilterEdge instanceof MappedBloomFilter)){
+			startCheckpointThread();
+		}
+	}
+
+	/**
+	 * Syncs the memory-mapped Bloom filters, and saves their caches, every 'checkpointIntervalMillis'
+	 */
+	private final void startCheckpointThread(){
+		checkpointThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				while(!checkpointThreadShutdown){
+					HelperFunctions.sleepSafe(checkpointIntervalMillis);
+					if(!checkpointThreadShutdown){
+						checkpointMemoryMappedBloomFilters();
+					}
+				}
+			}
+		}, Deduplicate.class.getSimpleName() + "-checkpoint");
+		checkpointThread.setDaemon(true);
+		checkpointThread.start();
+	}
+
+	@SuppressWarnings("unchecked")
+	private final void checkpointMemoryMappedBloomFilters(){
+		if(bloomFilterVertex instanceof MappedBloomFilter){
+			checkpointMemoryMappedBloomFilterAndSaveCache((MappedBloomFilter<String>)bloomFilterVertex, cacheVertex, "Vertex");
+		}
+		if(bloomFilterEdge instanceof MappedBloomFilter){
+			checkpointMemoryMappedBloomFilterAndSaveCache((MappedBloomFilter<String>)bloomFilterEdge, cacheEdge, "Edge");
+		}
+	}
+
+	/**
+	 * The cache keys are copied before the Bloom filter is synced so that all the saved keys are in the synced Bloom
+	 * filter (the keys are added to the Bloom filter first)
+	 */
+	private final void checkpointMemoryMappedBloomFilterAndSaveCache(final MappedBloomFilter<String> bloomFilter,
+			final Cache<String, Object> cache, final String logName){
+		final int cacheSize;
+		final List<String> cacheKeys;
+		synchronized(lockObject){
+			if(bloomFilter.isClosed()){
+				return;
+			}
+			cacheSize = cache.getMaximumSize();
+			cacheKeys = getKeysInRetentionOrder(cache);
+		}
+		try{
+			bloomFilter.checkpoint();
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to sync "+logName+" BloomFilter: " + bloomFilter.getPath(), e);
+			return;
+		}
+		saveMemoryMappedCache(bloomFilter.getPath() + memoryMappedCacheFileSuffix, cacheSize, cacheKeys, logName);
+	}
+
+	/**
+	 * Writes to a temporary file first and then replaces the file so that a crash doesn't leave a partial file
+	 */
+	private final boolean saveMemoryMappedCache(final String cachePath, final int cacheSize, final List<String> cacheKeys,
+			final String logName){
+		final String tempPath = cachePath + ".tmp";
+		try{
+			try(final ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(tempPath))){
+				objectOutputStream.writeObject(cacheSize);
+				objectOutputStream.writeObject(cacheKeys);
+			}
+			Files.move(Paths.get(tempPath), Paths.get(cachePath),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to save "+logName+" cache at path: " + cachePath, e);
+			return false;
+		}
+	}
+
+	private final Cache<String, Object> createCache(final int maximumSize) throws Exception{
+		switch(cacheName){
+			case LRU: return new LRUCache<String, Object>(maximumSize);
+			case TinyLFU: return new TinyLFUCache<String, Object>(maximumSize);
+			default: throw new Exception("Unhandled value for '"+keyCacheName+"': " + cacheName);
+		}
+	}
+
+	/**
+	 * @return keys with the ones to keep the most first
+	 */
+	private final List<String> getKeysInRetentionOrder(final Cache<String, Object> cache){
+		if(cache instanceof TinyLFUCache){
+			return ((TinyLFUCache<String, Object>)cache).getKeysInRetentionOrder();
+		}else{
+			return ((LRUCache<String, Object>)cache).getKeysInLRUAccessOrder();
+		}
+	}
+
+	private final boolean parseOptionalBoolean(final String value, final String key) throws Exception{
+		if(value == null){
+			return false;
+		}
+		final Result<Boolean> result = HelperFunctions.parseBoolean(value);
+		if(result.error){
+			throw new Exception("Invalid value for '"+key+"'. " + result.errorMessage);
+		}
+		return result.result;
 	}
 
 	private final String getLoadSavePathKeyFor(final boolean isForVertex){
@@ -159,6 +342,22 @@ public final class Deduplicate extends AbstractScreen{
 		}
 	}
 
+	private final String getScalableKeyFor(final boolean isForVertex){
+		if(isForVertex){
+			return keyScalableVertex;
+		}else{
+			return keyScalableEdge;
+		}
+	}
+
+	private final String getGrowthFactorKeyFor(final boolean isForVertex){
+		if(isForVertex){
+			return keyGrowthFactorVertex;
+		}else{
+			return keyGrowthFactorEdge;
+		}
+	}
+
 	private final String getCacheSizeKeyFor(final boolean isForVertex){
 		if(isForVertex){
 			return keyCacheSizeVertex;
@@ -170,6 +369,7 @@ public final class Deduplicate extends AbstractScreen{
 	@SuppressWarnings("unchecked")
 	private final void loadBloomFilterAndCache(String loadSavePathString,
 			final String expectedElementsString, final String falsePositiveString, final String cacheSizeString,
+			final String scalableString, final String growthFactorString,
 			final boolean isForVertex) throws Exception{
 		final String logName = isForVertex ? "Vertex" : "Edge";
 
@@ -178,6 +378,10 @@ public final class Deduplicate extends AbstractScreen{
 		if(loadSavePathString != null && loadSavePathString.trim().isEmpty()){
 			loadSavePathString = null;
 		}
+		if(isForVertex ? memoryMappedVertex : memoryMappedEdge){
+			loadMemoryMappedBloomFilterAndCache(loadSavePathString, expectedElementsString, falsePositiveString, cacheSizeString, isForVertex);
+			return;
+		}
 		if(loadSavePathString != null){
 			try{
 				final File file = new File(loadSavePathString);
@@ -200,20 +404,19 @@ public final class Deduplicate extends AbstractScreen{
 			}
 		}
 
-		spade.core.BloomFilter<String> bloomFilter = null;
+		ProbabilisticSet<String> bloomFilter = null;
 		List<String> cacheEntries = null;
 		Integer cacheSize = null;
 		
 		if(loadFromFile){
 			try(final ObjectInputStream objectInputStream = new ObjectInputStream(
 					new FileInputStream(new File(loadSavePathString).getAbsolutePath()))){
-				bloomFilter = (spade.core.BloomFilter<String>)objectInputStream.readObject();
+				bloomFilter = (ProbabilisticSet<String>)objectInputStream.readObject();
 				if(bloomFilter != null){
 					logger.log(Level.INFO,
-							logName + " BloomFilter initialized from file: " + loadSavePathString + " [falsePositiveProbability="
-									+ bloomFilter.getFalsePositiveProbability() + ", " + "expectedElements="
-									+ bloomFilter.getExpectedBitsPerElement() + "]");
-					logger.log(Level.INFO, "Keys ignored: ['"+getExpectedElementsKeyFor(isForVertex)+"', '"+getFalsePositiveKeyFor(isForVertex)+"']");
+							logName + " BloomFilter initialized from file: " + loadSavePathString + " " + bloomFilter.getStats());
+					logger.log(Level.INFO, "Keys ignored: ['"+getExpectedElementsKeyFor(isForVertex)+"', '"+getFalsePositiveKeyFor(isForVertex)+"', "
+							+ "'"+getScalableKeyFor(isForVertex)+"', '"+getGrowthFactorKeyFor(isForVertex)+"']");
 					cacheSize = (Integer)objectInputStream.readObject();
 					if(cacheSize != null){
 						cacheEntries = (List<String>)objectInputStream.readObject();
@@ -248,23 +451,52 @@ public final class Deduplicate extends AbstractScreen{
 						+ "Must be between 0 and 1 (inclusive) but is '"+falsePositiveString+"'");
 			}
 
-			bloomFilter = new spade.core.BloomFilter<String>(falsePositiveResult.result, expectedElementsResult.result.intValue());
+			final boolean scalable;
+			if(scalableString == null){
+				scalable = false;
+			}else{
+				final Result<Boolean> scalableResult = HelperFunctions.parseBoolean(scalableString);
+				if(scalableResult.error){
+					throw new Exception("Invalid "+logName+" BloomFilter scalable value with key '"+getScalableKeyFor(isForVertex)+"'. "
+							+ scalableResult.errorMessage);
+				}
+				scalable = scalableResult.result;
+			}
+
+			if(scalable){
+				final double growthFactor;
+				if(growthFactorString == null){
+					growthFactor = ScalableBloomFilter.defaultGrowthFactor;
+				}else{
+					final Result<Double> growthFactorResult = HelperFunctions.parseDouble(growthFactorString, 1, 16);
+					if(growthFactorResult.error){
+						throw new Exception("Invalid "+logName+" BloomFilter growth factor value with key '"+getGrowthFactorKeyFor(isForVertex)+"'. "
+								+ "Must be between 1 and 16 (inclusive) but is '"+growthFactorString+"'");
+					}
+					growthFactor = growthFactorResult.result;
+				}
+				bloomFilter = new ScalableBloomFilter<String>(falsePositiveResult.result, expectedElementsResult.result.intValue(),
+						growthFactor, ScalableBloomFilter.defaultTighteningRatio);
+			}else{
+				bloomFilter = new spade.core.BloomFilter<String>(falsePositiveResult.result, expectedElementsResult.result.intValue());
+			}
 			logger.log(Level.INFO,
 					logName + " BloomFilter initialized from arguments: " + "[falsePositiveProbability="
 							+ String.format("%.9f", falsePositiveResult.result) + ", "
-							+ "expectedElements=" + expectedElementsResult.result.intValue() + "]");
+							+ "expectedElements=" + expectedElementsResult.result.intValue() + ", "
+							+ "scalable=" + scalable + "]");
 		}
 
-		LRUCache<String, Object> cache = null;
+		Cache<String, Object> cache = null;
 
 		if(cacheEntries == null){
 			final Result<Long> cacheSizeResult = HelperFunctions.parseLong(cacheSizeString, 10, 0, Integer.MAX_VALUE);
 			if(cacheSizeResult.error){
 				throw new Exception("Invalid "+logName+" '"+getCacheSizeKeyFor(isForVertex)+"' value. Must be non-negative: " + cacheSizeResult.errorMessage);
 			}
-			cache = new LRUCache<String, Object>(cacheSizeResult.result.intValue());
+			cache = createCache(cacheSizeResult.result.intValue());
 		}else{
-			cache = new LRUCache<String, Object>(cacheSize);
+			cache = createCache(cacheSize);
 			for(int x = cacheEntries.size() - 1; x >= 0; x--){
 				final String cacheEntryKey = cacheEntries.get(x);
 				if(cacheEntryKey != null){
@@ -296,6 +528,91 @@ public final class Deduplicate extends AbstractScreen{
 		logger.log(Level.INFO, logName + " cache created with max size '"+cache.getMaximumSize()+"'");
 	}
 
+	/**
+	 * The Bloom filter is opened from (or created at) the path, and only its header is read. The cache is loaded from
+	 * (and saved to) the path with the suffix '.cache'.
+	 */
+	@SuppressWarnings("unchecked")
+	private final void loadMemoryMappedBloomFilterAndCache(final String loadSavePathString,
+			final String expectedElementsString, final String falsePositiveString, final String cacheSizeString,
+			final boolean isForVertex) throws Exception{
+		final String logName = isForVertex ? "Vertex" : "Edge";
+		final String memoryMappedKey = isForVertex ? keyMemoryMappedVertex : keyMemoryMappedEdge;
+		if(loadSavePathString == null){
+			throw new Exception("Must specify '"+getLoadSavePathKeyFor(isForVertex)+"' when '"+memoryMappedKey+"' is 'true'");
+		}
+
+		final MappedBloomFilter<String> bloomFilter;
+		if(new File(loadSavePathString).exists()){
+			bloomFilter = MappedBloomFilter.open(loadSavePathString, 0); // Synced by the checkpoint thread of this screen
+			logger.log(Level.INFO, logName + " BloomFilter opened from file: " + bloomFilter.getStats());
+			logger.log(Level.INFO, "Keys ignored: ['"+getExpectedElementsKeyFor(isForVertex)+"', '"+getFalsePositiveKeyFor(isForVertex)+"', "
+					+ "'"+getScalableKeyFor(isForVertex)+"', '"+getGrowthFactorKeyFor(isForVertex)+"']");
+		}else{
+			final Result<Long> expectedElementsResult = HelperFunctions.parseLong(expectedElementsString, 10, 1, Long.MAX_VALUE);
+			if(expectedElementsResult.error){
+				throw new Exception("Invalid "+logName+" BloomFilter expected elements count value with key '"+getExpectedElementsKeyFor(isForVertex)+"'. "
+						+ "Must be a positive integer but is '"+expectedElementsString+"'");
+			}
+			final Result<Double> falsePositiveResult = HelperFunctions.parseDouble(falsePositiveString, 0, 1);
+			if(falsePositiveResult.error){
+				throw new Exception("Invalid "+logName+" BloomFilter false positive probability value with key '"+getFalsePositiveKeyFor(isForVertex)+"'. "
+						+ "Must be between 0 and 1 (inclusive) but is '"+falsePositiveString+"'");
+			}
+			FileUtility.pathMustBeAWritableFile(loadSavePathString);
+			bloomFilter = MappedBloomFilter.create(loadSavePathString, falsePositiveResult.result, expectedElementsResult.result,
+					0); // Synced by the checkpoint thread of this screen
+			logger.log(Level.INFO, logName + " BloomFilter created at file: " + bloomFilter.getStats());
+			logger.log(Level.INFO, "Keys ignored: ['"+getScalableKeyFor(isForVertex)+"', '"+getGrowthFactorKeyFor(isForVertex)+"']");
+		}
+
+		Cache<String, Object> cache = null;
+		final File cacheFile = new File(loadSavePathString + memoryMappedCacheFileSuffix);
+		if(cacheFile.exists()){
+			try(final ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(cacheFile))){
+				final Integer cacheSize = (Integer)objectInputStream.readObject();
+				final List<String> cacheEntries = (List<String>)objectInputStream.readObject();
+				cache = createCache(cacheSize);
+				for(int x = cacheEntries.size() - 1; x >= 0; x--){
+					final String cacheEntryKey = cacheEntries.get(x);
+					if(cacheEntryKey != null){
+						cache.put(cacheEntryKey, blankObject);
+						if(cache.hasExceededMaximumSize()){
+							cache.evict();
+							break;
+						}
+					}
+				}
+				logger.log(Level.INFO, logName + " Cache initialized from file: " + cacheFile.getAbsolutePath() + " [cacheSize=" + cacheSize + "]");
+				logger.log(Level.INFO, "Key ignored: ['"+getCacheSizeKeyFor(isForVertex)+"']");
+			}catch(Exception e){
+				bloomFilter.close();
+				throw new Exception("Invalid "+logName+" cache file format: " + cacheFile.getAbsolutePath(), e);
+			}
+		}else{
+			final Result<Long> cacheSizeResult = HelperFunctions.parseLong(cacheSizeString, 10, 0, Integer.MAX_VALUE);
+			if(cacheSizeResult.error){
+				bloomFilter.close();
+				throw new Exception("Invalid "+logName+" '"+getCacheSizeKeyFor(isForVertex)+"' value. Must be non-negative: " + cacheSizeResult.errorMessage);
+			}
+			cache = createCache(cacheSizeResult.result.intValue());
+		}
+
+		if(isForVertex){
+			this.cacheVertex = cache;
+			this.loadSavePathVertex = loadSavePathString;
+			this.bloomFilterVertex = bloomFilter;
+		}else{
+			this.cacheEdge = cache;
+			this.loadSavePathEdge = loadSavePathString;
+			this.bloomFilterEdge = bloomFilter;
+		}
+
+		logger.log(Level.INFO, logName + " BloomFilter and cache would be synced to file " 
+				+ (checkpointIntervalMillis > 0 ? ("every " + checkpointIntervalMillis + " millis and ") : "") + "on shutdown");
+		logger.log(Level.INFO, logName + " cache created with max size '"+cache.getMaximumSize()+"'");
+	}
+
 	@Override
 	public boolean blockVertex(final AbstractVertex vertex){
 		if(vertex != null){
@@ -337,7 +654,7 @@ public final class Deduplicate extends AbstractScreen{
 	}
 	
 	private final synchronized boolean block(final String hashCode, 
-			final spade.core.BloomFilter<String> bloomFilter, final LRUCache<String, Object> cache){
+			final ProbabilisticSet<String> bloomFilter, final Cache<String, Object> cache){
 		printStats(false);
 		
 		if(bloomFilter.contains(hashCode)){
@@ -396,7 +713,7 @@ public final class Deduplicate extends AbstractScreen{
 	
 	public final void unsetAllVertexCacheValuesForStorage(){
 		synchronized(lockObject){
-			final List<String> keyList = cacheVertex.getKeysInLRUAccessOrder();
+			final List<String> keyList = getKeysInRetentionOrder(cacheVertex);
 			for(int x = keyList.size() - 1; x >= 0; x--){
 				final String key = keyList.get(x);
 				cacheVertex.put(key, blankObject);
@@ -404,7 +721,7 @@ public final class Deduplicate extends AbstractScreen{
 		}
 	}
 	
-	private final Object getCacheValueForStorage(final LRUCache<String, Object> cache, final String hashCode){
+	private final Object getCacheValueForStorage(final Cache<String, Object> cache, final String hashCode){
 		if(hashCode == null){
 			return null;
 		}
@@ -419,7 +736,7 @@ public final class Deduplicate extends AbstractScreen{
 	}
 	
 	private final void setCacheValueForStorage(
-			final spade.core.BloomFilter<String> bloomFilter, final LRUCache<String, Object> cache, final String hashCode, final Object value){
+			final ProbabilisticSet<String> bloomFilter, final Cache<String, Object> cache, final String hashCode, final Object value){
 		if(hashCode == null){
 			return;
 		}
@@ -440,18 +757,39 @@ public final class Deduplicate extends AbstractScreen{
 		if(force || (reportingEnabled && (System.currentTimeMillis() - lastReportedAtMillis >= reportingIntervalMillis))){
 			logger.log(Level.INFO, "verticesBlocked=" + verticesBlocked + ", verticesNotBlocked=" + verticesNotBlocked + ", "
 					+ "edgesBlocked=" + edgeBlocked + ", edgesNotBlocked=" + edgesNotBlocked);
+			if(bloomFilterVertex != null && bloomFilterEdge != null){
+				logger.log(Level.INFO, "Vertex " + bloomFilterVertex.getStats() + ", Edge " + bloomFilterEdge.getStats());
+			}
+			if(cacheVertex instanceof TinyLFUCache && cacheEdge instanceof TinyLFUCache){
+				logger.log(Level.INFO, "Vertex " + ((TinyLFUCache<String, Object>)cacheVertex).getStats() 
+						+ ", Edge " + ((TinyLFUCache<String, Object>)cacheEdge).getStats());
+			}
 			lastReportedAtMillis = System.currentTimeMillis();
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public boolean shutdown(){
+		if(checkpointThread != null){
+			checkpointThreadShutdown = true;
+			checkpointThread.interrupt();
+			try{
+				checkpointThread.join();
+			}catch(InterruptedException e){
+				logger.log(Level.WARNING, "Interrupted while waiting for the checkpoint thread to stop", e);
+			}
+		}
 		synchronized(lockObject){
-			if(this.loadSavePathVertex != null){
+			if(this.bloomFilterVertex instanceof MappedBloomFilter){
+				closeMemoryMappedBloomFilterAndSaveCache((MappedBloomFilter<String>)this.bloomFilterVertex, this.cacheVertex, "Vertex");
+			}else if(this.loadSavePathVertex != null){
 				saveBloomFilterAndCache(this.bloomFilterVertex, this.cacheVertex, this.loadSavePathVertex, "Vertex");
 				this.bloomFilterVertex.clear();
 			}
-			if(this.loadSavePathEdge != null){
+			if(this.bloomFilterEdge instanceof MappedBloomFilter){
+				closeMemoryMappedBloomFilterAndSaveCache((MappedBloomFilter<String>)this.bloomFilterEdge, this.cacheEdge, "Edge");
+			}else if(this.loadSavePathEdge != null){
 				saveBloomFilterAndCache(this.bloomFilterEdge, this.cacheEdge, this.loadSavePathEdge, "Edge");
 				this.bloomFilterEdge.clear();
 			}
@@ -468,15 +806,30 @@ public final class Deduplicate extends AbstractScreen{
 		return true;
 	}
 	
-	private final void saveBloomFilterAndCache(final spade.core.BloomFilter<String> bloomFilter, 
-			final LRUCache<String, Object> cache,
+	private final void closeMemoryMappedBloomFilterAndSaveCache(final MappedBloomFilter<String> bloomFilter,
+			final Cache<String, Object> cache, final String logName){
+		final String stats = bloomFilter.getStats();
+		try{
+			bloomFilter.close();
+			logger.log(Level.INFO, logName+" BloomFilter synced and closed: " + stats);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to close "+logName+" BloomFilter: " + stats, e);
+		}
+		final String cachePath = bloomFilter.getPath() + memoryMappedCacheFileSuffix;
+		if(saveMemoryMappedCache(cachePath, cache.getMaximumSize(), getKeysInRetentionOrder(cache), logName)){
+			logger.log(Level.INFO, logName+" cache saved to path: " + cachePath);
+		}
+	}
+	
+	private final void saveBloomFilterAndCache(final ProbabilisticSet<String> bloomFilter, 
+			final Cache<String, Object> cache,
 			final String path, final String logName){
 		ObjectOutputStream objectOutputStream = null;
 		try{
 			objectOutputStream = new ObjectOutputStream(new FileOutputStream(path));
 			objectOutputStream.writeObject(bloomFilter);
 			objectOutputStream.writeObject(cache.getMaximumSize());
-			objectOutputStream.writeObject(cache.getKeysInLRUAccessOrder());
+			objectOutputStream.writeObject(getKeysInRetentionOrder(cache));
 			logger.log(Level.INFO, logName+" BloomFilter saved to path: " + path);
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to save "+logName+" BloomFilter at path: " + path, e);
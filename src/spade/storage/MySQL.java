@@ -19,6 +19,7 @@ package spade.storage;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -32,6 +33,7 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractVertex;
 import spade.core.Cache;
 import spade.core.Settings;
+import spade.storage.sql.BatchInserter;
 import spade.utility.HelperFunctions;
 
 public class MySQL extends SQL
@@ -90,6 +92,8 @@ public class MySQL extends SQL
             Class.forName(databaseConfigs.getProperty("databaseDriver")).newInstance();
             dbConnection = DriverManager.getConnection(databaseURL, databaseUsername, databasePassword);
             dbConnection.setAutoCommit(false);
+            // Rows are queued only after the columns are loaded below
+            startBatchInserter(databaseURL, databaseUsername, databasePassword, BatchInserter.Dialect.MYSQL);
         }
         catch(Exception ex)
         {
@@ -155,6 +159,7 @@ public class MySQL extends SQL
     @Override
     public boolean shutdown()
     {
+        stopBatchInserter();
         try
         {
             dbConnection.commit();
@@ -178,6 +183,21 @@ public class MySQL extends SQL
      */
     @Override
     protected boolean addColumn(String table_name, String column_name)
+    {
+        return addColumn(dbConnection, table_name, column_name);
+    }
+
+    /**
+     * adds a new column in the database table using the given connection,
+     * if it is not already present.
+     *
+     * @param connection  The connection to alter the table with. Committed after.
+     * @param table_name  The name of table in database to add column to.
+     * @param column_name The name of column to add in the table.
+     * @return returns true if column creation in the database has been successful.
+     */
+    @Override
+    protected boolean addColumn(Connection connection, String table_name, String column_name)
     {
         // If this column has already been added before for this table, then return
         if ((table_name.equalsIgnoreCase(VERTEX_TABLE)) && vertexAnnotations.contains(column_name))
@@ -191,14 +211,14 @@ public class MySQL extends SQL
 
         try
         {
-            Statement columnStatement = dbConnection.createStatement();
+            Statement columnStatement = connection.createStatement();
             String statement = "ALTER TABLE "
                     + table_name
                     + " ADD COLUMN `"
                     + column_name
                     + "` VARCHAR(256);";
             columnStatement.execute(statement);
-            dbConnection.commit();
+            connection.commit();
             columnStatement.close();
 
             if (table_name.equalsIgnoreCase(VERTEX_TABLE))
@@ -236,8 +256,8 @@ public class MySQL extends SQL
     }
 
     /**
-     * This function inserts the given edge into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * This function queues the given edge for insertion into the underlying storage(s) and
+     * updates the cache(s) accordingly. The edge is inserted by the loader thread in a batch.
      *
      * @param incomingEdge edge to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
@@ -250,98 +270,18 @@ public class MySQL extends SQL
         if(Cache.isEdgePresent(edgeHash))
             return true;
 
-        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-
-        // Use StringBuilder to build the MySQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder(200);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(EDGE_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        if(!incomingEdge.getCopyOfAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append(CHILD_VERTEX_KEY);
-            insertStringBuilder.append(", ");
-        }
-        if(!incomingEdge.getCopyOfAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append(PARENT_VERTEX_KEY);
-            insertStringBuilder.append(", ");
-        }
-        for (String annotationKey : incomingEdge.getCopyOfAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table_name if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(", ");
-        }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
-        // Add the hash code, and source and destination vertex Ids
-        insertStringBuilder.append(edgeHash);
-        insertStringBuilder.append("', ");
-        if(!incomingEdge.getCopyOfAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(childVertexHash);
-            insertStringBuilder.append("', ");
-        }
-        if(!incomingEdge.getCopyOfAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(parentVertexHash);
-            insertStringBuilder.append("', ");
-        }
-
-        // Add the annotation values
-        for (String annotationKey : incomingEdge.getCopyOfAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationKey).replace("'", "\"") : incomingEdge.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            if(BUILD_SCAFFOLD)
-            {
-                insertScaffoldEntry(incomingEdge);
-            }
-            s.close();
-        }
-        catch (Exception e)
+        insertEdge(incomingEdge);
+        if(BUILD_SCAFFOLD)
         {
-            logger.log(Level.SEVERE, null, e);
+            insertScaffoldEntry(incomingEdge);
         }
 
         return true;
     }
 
     /**
-     * This function inserts the given vertex into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * This function queues the given vertex for insertion into the underlying storage(s) and
+     * updates the cache(s) accordingly. The vertex is inserted by the loader thread in a batch.
      *
      * @param incomingVertex vertex to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
@@ -354,78 +294,16 @@ public class MySQL extends SQL
         if(Cache.isVertexPresent(vertexHash))
             return true;
 
-        // Use StringBuilder to build the MySQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder( 100);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(VERTEX_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        for (String annotationKey : incomingVertex.getCopyOfAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table if they do not already exist
-            addColumn(VERTEX_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(", ");
-        }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
-
-        // Add the hash code primary key
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(vertexHash);
-        insertStringBuilder.append("', ");
-
-        // Add the annotation values
-        for (String annotationKey : incomingVertex.getCopyOfAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingVertex.getAnnotation(annotationKey).replace("'", "\"") :
-                    incomingVertex.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            dbConnection.commit();
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
-            return false;
-        }
-
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-
-
+        // cached by the loader thread after the vertex is committed
+        insertVertex(incomingVertex);
         return true;
     }
 
     @Override
     public ResultSet executeQuery(String query)
     {
+        flushBatchInserter();
+
         ResultSet result = null;
         try
         {
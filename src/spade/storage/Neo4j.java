@@ -23,13 +23,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,7 +48,6 @@ import spade.query.quickgrail.core.QueryInstructionExecutor;
 import spade.storage.neo4j.CacheManager;
 import spade.storage.neo4j.Configuration;
 import spade.storage.neo4j.Configuration.IndexMode;
-import spade.storage.neo4j.Configuration.VertexCacheMode;
 import spade.storage.neo4j.DatabaseManager;
 import spade.storage.neo4j.Neo4jInstructionExecutor;
 import spade.storage.neo4j.Neo4jQueryEnvironment;
@@ -58,6 +58,7 @@ import spade.storage.neo4j.TaskCreateIndex;
 import spade.storage.neo4j.TaskExecuteQuery;
 import spade.storage.neo4j.TaskGetHashToVertexMap;
 import spade.storage.neo4j.TaskGetQueriedEdgeSet;
+import spade.storage.neo4j.TaskPutBatch;
 import spade.storage.neo4j.TaskPutEdge;
 import spade.storage.neo4j.TaskPutVertex;
 import spade.utility.HelperFunctions;
@@ -324,35 +325,68 @@ public class Neo4j extends AbstractStorage{
 
 	//////////////////////////////////
 
-	private final LinkedList<StorageTask<?>> neo4jDbTasksPending = new LinkedList<StorageTask<?>>();
+	// Lock-free so that the producers and the task runner don't contend. Size tracked separately because
+	// 'ConcurrentLinkedDeque.size' is not constant time
+	private final ConcurrentLinkedDeque<StorageTask<?>> neo4jDbTasksPending = new ConcurrentLinkedDeque<StorageTask<?>>();
+	private final AtomicInteger neo4jDbTasksPendingSize = new AtomicInteger(0);
 
 	public final int getPendingTasksSize(){
-		synchronized(neo4jDbTasksPending){
-			return neo4jDbTasksPending.size();
+		return neo4jDbTasksPendingSize.get();
+	}
+
+	private final StorageTask<?> pollFirstPendingTask(){
+		final StorageTask<?> task = neo4jDbTasksPending.pollFirst();
+		if(task != null){
+			neo4jDbTasksPendingSize.decrementAndGet();
+			getStorageStats().pendingTasksOutgoing.increment();
+		}
+		return task;
+	}
+
+	private final void clearPendingTasks(){
+		while(neo4jDbTasksPending.pollFirst() != null){
+			neo4jDbTasksPendingSize.decrementAndGet();
 		}
 	}
 
-	private final StorageTask<?> removeFirstPendingTask(){
-		if(isMainThreadRunning()){
-			synchronized(neo4jDbTasksPending){
-				final StorageTask<?> task = neo4jDbTasksPending.pollFirst();
-				if(task != null){
-					getStorageStats().pendingTasksOutgoing.increment();
+	/*
+	 * Returns the first pending task. Consecutive put tasks (up to 'putBatchSize') are returned as one batch task.
+	 */
+	private final StorageTask<?> removeNextPendingTask(){
+		if(!isMainThreadRunning()){
+			return null;
+		}
+		final StorageTask<?> first = pollFirstPendingTask();
+		if(getConfiguration().putBatchSize < 2
+				|| !(first instanceof TaskPutVertex || first instanceof TaskPutEdge)){
+			return first;
+		}
+		final TaskPutBatch batch = new TaskPutBatch();
+		batch.add(first);
+		while(batch.size() < getConfiguration().putBatchSize){
+			final StorageTask<?> next = neo4jDbTasksPending.peekFirst();
+			if(!(next instanceof TaskPutVertex || next instanceof TaskPutEdge)){
+				break;
+			}
+			final StorageTask<?> polled = pollFirstPendingTask();
+			if(!batch.add(polled)){
+				// A task was prepended in between the peek and the poll
+				if(polled != null){
+					prependPendingTask(polled);
 				}
-				return task;
+				break;
 			}
 		}
-		return null;
+		return batch.size() == 1 ? first : batch;
 	}
 
 	private final void appendPendingTask(final StorageTask<?> task){
 		if(task != null){
 			if(isMainThreadRunning()){
 				enforceBufferLimit();
-				synchronized(neo4jDbTasksPending){
-					getStorageStats().pendingTasksIncoming.increment();
-					neo4jDbTasksPending.addLast(task);
-				}
+				getStorageStats().pendingTasksIncoming.increment();
+				neo4jDbTasksPendingSize.incrementAndGet();
+				neo4jDbTasksPending.offerLast(task);
 			}
 		}
 	}
@@ -361,10 +395,9 @@ public class Neo4j extends AbstractStorage{
 		if(task != null){
 			if(isMainThreadRunning()){
 				// Don't enforce limit here because of high priority
-				synchronized(neo4jDbTasksPending){
-					getStorageStats().pendingTasksIncoming.increment();
-					neo4jDbTasksPending.addFirst(task);
-				}
+				getStorageStats().pendingTasksIncoming.increment();
+				neo4jDbTasksPendingSize.incrementAndGet();
+				neo4jDbTasksPending.offerFirst(task);
 			}
 		}
 	}
@@ -422,9 +455,11 @@ public class Neo4j extends AbstractStorage{
 
 		private final Transaction getANewTransaction(Transaction tx, final boolean commit) throws Exception{
 			if(tx != null){
+				boolean committed = false;
 				try{
 					if(commit){
 						getDatabaseManager().timedCommit(tx);
+						committed = true;
 					}else{
 						tx.rollback();
 					}
@@ -435,10 +470,7 @@ public class Neo4j extends AbstractStorage{
 				try{ tx.close(); }catch(Throwable t){ }
 				tx = null;
 				
-				if(VertexCacheMode.NODE.equals(getConfiguration().vertexCacheMode)){
-					// Clear out the cache because the transaction has been closed and the any nodes in the cache are not usable
-					getCacheManager().vertexCacheReset();
-				}
+				getCacheManager().transactionClosed(committed);
 			}
 			tasksExecutedSinceLastFlush = 0;
 			timeInMillisOfLastFlush = System.currentTimeMillis();
@@ -458,6 +490,13 @@ public class Neo4j extends AbstractStorage{
 
 			try(final Transaction tempTx = getDatabaseManager().beginANewTransaction()){
 				loadGlobalPropertyKeysAndIndexedKeys(tempTx); // Only read
+				if(getConfiguration().nodeIdCacheWarmStart){
+					try{
+						getCacheManager().nodeIdCacheWarmStart(tempTx); // Only read
+					}catch(Exception e){
+						logger.log(Level.WARNING, "Failed to warm start node id cache. Continuing with a partially filled cache", e);
+					}
+				}
 				// No error
 				runTheMainLoop = true;
 			}catch(Exception e){
@@ -497,7 +536,7 @@ public class Neo4j extends AbstractStorage{
 							}
 						}
 
-						task = removeFirstPendingTask();
+						task = removeNextPendingTask();
 						if(task != null){
 							Timer timer = null;
 							try{
@@ -540,7 +579,11 @@ public class Neo4j extends AbstractStorage{
 									}
 								}
 								getStorageStats().stopActionTimer("EXECUTE-" + task.getClass().getSimpleName());
-								tasksExecutedSinceLastFlush++;
+								if(task instanceof TaskPutBatch){
+									tasksExecutedSinceLastFlush += ((TaskPutBatch)task).size();
+								}else{
+									tasksExecutedSinceLastFlush++;
+								}
 								task.completed();
 							}
 						}
@@ -558,9 +601,7 @@ public class Neo4j extends AbstractStorage{
 						if(fatalErrorCount >= getConfiguration().maxRetries){
 							logger.log(Level.SEVERE, "Max retries (" + getConfiguration().maxRetries + ") exhausted. " + "Discarding "
 									+ getPendingTasksSize() + " tasks and shutting down.");
-							synchronized(neo4jDbTasksPending){
-								neo4jDbTasksPending.clear();
-							}
+							clearPendingTasks();
 							break;
 						}
 					}
@@ -582,6 +623,9 @@ public class Neo4j extends AbstractStorage{
 			}
 
 			getStorageStats().print(logger, true);
+			if(getCacheManager().getNodeIdCache() != null){
+				logger.log(Level.INFO, getCacheManager().getNodeIdCache().toString());
+			}
 
 			setMainThreadRunning(false);
 
@@ -607,9 +651,7 @@ public class Neo4j extends AbstractStorage{
 			}
 			logger.log(Level.INFO, "Pending tasks going to be discarded: '" + getPendingTasksSize() + "'. Continuing with shutdown ...");
 
-			synchronized(neo4jDbTasksPending){
-				neo4jDbTasksPending.clear();
-			}
+			clearPendingTasks();
 			
 			try{
 				getDatabaseManager().shutdown();
@@ -19,30 +19,37 @@
  */
 package spade.storage;
 
-import java.io.BufferedReader;
-import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import org.postgresql.copy.CopyManager;
+import org.json.JSONObject;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.postgresql.core.BaseConnection;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractVertex;
 import spade.core.Settings;
 import spade.query.quickgrail.core.QueryInstructionExecutor;
+import spade.storage.postgresql.BinaryCopyEncoder;
 import spade.storage.postgresql.Configuration;
+import spade.storage.postgresql.HybridSchema;
+import spade.storage.postgresql.Partitioning;
 import spade.storage.postgresql.PostgreSQLInstructionExecutor;
 import spade.storage.postgresql.PostgreSQLQueryEnvironment;
 import spade.utility.GraphBuffer;
@@ -51,6 +58,26 @@ import spade.utility.GraphBuffer.GraphSnapshot;
 /**
  * Basic PostgreSQL storage implementation.
  *
+ * The settings are read from the config file. Key-value pairs in the arguments override the ones in the config file.
+ *
+ * Buffered vertices and edges are written with 'copy ... from stdin (format binary)' streamed through
+ * PGCopyOutputStream (hashes as native uuid). A full buffer is handed to one of 'flushConnections' background threads
+ * (each with its own connection) which copies and commits it while the next buffer fills. If 'flushConnections' is 0
+ * then the buffer is written on the calling thread.
+ *
+ * Annotation keys in 'hotVertexAnnotations' and 'hotEdgeAnnotations' (and the ones promoted before) are stored in
+ * real columns. All other keys are stored in a jsonb overflow column so that new keys never require a schema change
+ * on the ingest path. Keys seen 'promotionThreshold' times in the overflow column are promoted to real columns by a
+ * background thread every 'promotionIntervalSeconds'. See HybridSchema. The number of rows with each key in the
+ * overflow column is kept in the table 'spade_overflow_keys' (updated in the batch transactions) so that the keys are
+ * known on startup without scanning the overflow column.
+ *
+ * If 'partitionIntervalHours' is greater than 0 then the vertex, edge, and base graph tables are range partitioned on
+ * the time (ingest time, or the event time in the edge annotation 'partitionAnnotation'). Partitions are created before
+ * the batches which need them, and the edge partitions older than 'retentionHours' are dropped by a background thread
+ * (vertex partitions are kept). Event times more than 'partitionFutureHours' (if greater than 0) after the ingest time
+ * are replaced by the ingest time. See Partitioning. An existing unpartitioned database stays unpartitioned.
+ *
  * @author Dawood Tariq, Hasanat Kazmi and Raza Ahmad
  */
 public class PostgreSQL extends SQL{
@@ -62,22 +89,42 @@ public class PostgreSQL extends SQL{
 	private final String tableNameBaseVertex = PostgreSQLQueryEnvironment.getVertexTableName(baseGraphName);
 	private final String tableNameBaseEdge = PostgreSQLQueryEnvironment.getEdgeTableName(baseGraphName);
 
-	/*
-	 * Using LinkedHashSet to keep unique elements in their insertion order
-	 */
-	private final Set<String> vertexColumnNames = new LinkedHashSet<>();
-	private final Set<String> edgeColumnNames = new LinkedHashSet<>();
+	private final HybridSchema vertexSchema = new HybridSchema(VERTEX_TABLE);
+	private final HybridSchema edgeSchema = new HybridSchema(EDGE_TABLE);
 
 	private final Configuration configuration = new Configuration();
 	private final GraphBuffer graphBuffer = new GraphBuffer();
 
 	private Connection connection = null;
 
+	// Hand-off of full buffers to the flush threads. The caller waits until a flush thread is free
+	private final SynchronousQueue<Batch> flushQueue = new SynchronousQueue<Batch>();
+	private final List<Thread> flushThreads = new ArrayList<Thread>();
+	private final List<Connection> flushConnections = new ArrayList<Connection>();
+	private volatile boolean flushThreadsStopped = false;
+	// Batches submitted but not yet committed. Guarded by 'flushQueue'
+	private final List<Batch> pendingBatches = new ArrayList<Batch>();
+	private final Object scaffoldLock = new Object();
+
+	private Thread promotionThread = null;
+	private Connection promotionConnection = null;
+	private volatile boolean promotionThreadStopped = false;
+	// Number of ranges of the primary key to move the promoted keys in (one transaction per range)
+	private static final int promotionUpdateRanges = 16;
+
+	private static final long partitionMaintenanceIntervalMillis = 60 * 1000;
+	// Null if not partitioned
+	private Partitioning partitioning = null;
+	// Auto-commit connection to create partitions outside of the batch transactions
+	private Connection partitionConnection = null;
+	private Thread partitionThread = null;
+	private volatile boolean partitionThreadStopped = false;
+
 	@Override
 	public boolean initialize(String arguments){
 		try{
 			final String configPath = Settings.getDefaultConfigFilePath(this.getClass());
-			this.configuration.load(configPath);
+			this.configuration.load(configPath, arguments);
 
 			graphBuffer.setMaxSize(this.configuration.getBufferSize());
 
@@ -90,7 +137,25 @@ public class PostgreSQL extends SQL{
 				resetDatabase(connection);
 			}
 
+			if(configuration.isPartitioned()){
+				partitioning = new Partitioning(configuration.getPartitionIntervalHours() * 60 * 60 * 1000,
+						configuration.getPartitionAnnotation(), configuration.getRetentionHours() * 60 * 60 * 1000,
+						configuration.getPartitionFutureHours() * 60 * 60 * 1000,
+						Arrays.asList(getVertexTableName(), getEdgeTableName(), getBaseVertexTableName(), getBaseEdgeTableName()),
+						Arrays.asList(getEdgeTableName(), getBaseEdgeTableName()));
+			}
+
 			setupDatabase(connection, configuration.isSecondaryIndexes());
+			checkPartitioning(connection);
+
+			if(partitioning != null){
+				startPartitionThread(connectionURL);
+			}
+
+			startFlushThreads(configuration.getFlushConnections(), connectionURL);
+			if(configuration.getPromotionIntervalSeconds() > 0){
+				startPromotionThread(connectionURL);
+			}
 
 			return true;
 		}catch(Exception e){
@@ -101,7 +166,10 @@ public class PostgreSQL extends SQL{
 
 	@Override
 	public boolean shutdown(){
-		flush();
+		stopPromotionThread();
+		flushAndWait();
+		stopFlushThreads();
+		stopPartitionThread();
 		try{
 			closeConnection();
 		}catch(Exception e){
@@ -110,12 +178,233 @@ public class PostgreSQL extends SQL{
 		return true;
 	}
 
-	private void setConnection(final Connection connection){
-		this.connection = connection;
+	private void startFlushThreads(final int count, final String connectionURL) throws Exception{
+		for(int i = 0; i < count; i++){
+			final Connection flushConnection = DriverManager.getConnection(
+					connectionURL, configuration.getDbUser(), configuration.getDbPassword());
+			flushConnection.setAutoCommit(false);
+			flushConnections.add(flushConnection);
+			final Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					while(!flushThreadsStopped){
+						final Batch batch;
+						try{
+							batch = flushQueue.poll(1, TimeUnit.SECONDS);
+						}catch(InterruptedException e){
+							continue;
+						}
+						if(batch != null){
+							try{
+								persist(batch, flushConnection);
+							}finally{
+								removePendingBatch(batch);
+							}
+						}
+					}
+				}
+			}, PostgreSQL.class.getSimpleName() + "-flush-thread-" + i);
+			thread.setDaemon(true);
+			flushThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	private void stopFlushThreads(){
+		flushThreadsStopped = true;
+		for(final Thread thread : flushThreads){
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				logger.log(Level.WARNING, "Interrupted while waiting for flush thread to stop", e);
+			}
+		}
+		flushThreads.clear();
+		for(final Connection flushConnection : flushConnections){
+			try{
+				flushConnection.close();
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to close flush connection", e);
+			}
+		}
+		flushConnections.clear();
+	}
+
+	private void startPromotionThread(final String connectionURL) throws Exception{
+		promotionConnection = DriverManager.getConnection(
+				connectionURL, configuration.getDbUser(), configuration.getDbPassword());
+		promotionThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				final long sleepMillis = configuration.getPromotionIntervalSeconds() * 1000L;
+				while(!promotionThreadStopped){
+					try{
+						Thread.sleep(sleepMillis);
+					}catch(InterruptedException e){
+						continue;
+					}
+					for(final HybridSchema schema : new HybridSchema[]{vertexSchema, edgeSchema}){
+						try{
+							promoteOverflowKeys(promotionConnection, schema);
+						}catch(Exception e){
+							logger.log(Level.WARNING, "Failed to promote overflow annotations of table '" + schema.getTableName() + "'", e);
+						}
+					}
+				}
+			}
+		}, PostgreSQL.class.getSimpleName() + "-promotion-thread");
+		promotionThread.setDaemon(true);
+		promotionThread.start();
+	}
+
+	private void stopPromotionThread(){
+		if(promotionThread == null){
+			return;
+		}
+		promotionThreadStopped = true;
+		promotionThread.interrupt();
+		try{
+			promotionThread.join();
+		}catch(InterruptedException e){
+			logger.log(Level.WARNING, "Interrupted while waiting for promotion thread to stop", e);
+		}
+		promotionThread = null;
+		try{
+			promotionConnection.close();
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to close promotion connection", e);
+		}
+		promotionConnection = null;
+	}
+
+	/**
+	 * Creates the partitions for now and the next interval (before the thread starts so that the first batches don't
+	 * have to), and then repeats that along with dropping the expired partitions periodically
+	 */
+	private void startPartitionThread(final String connectionURL) throws Exception{
+		partitionConnection = DriverManager.getConnection(
+				connectionURL, configuration.getDbUser(), configuration.getDbPassword());
+		partitioning.maintain(partitionConnection, System.currentTimeMillis());
+		partitionThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				while(!partitionThreadStopped){
+					try{
+						Thread.sleep(partitionMaintenanceIntervalMillis);
+					}catch(InterruptedException e){
+						continue;
+					}
+					try{
+						partitioning.maintain(partitionConnection, System.currentTimeMillis());
+					}catch(Exception e){
+						logger.log(Level.WARNING, "Failed to maintain partitions", e);
+					}
+				}
+			}
+		}, PostgreSQL.class.getSimpleName() + "-partition-thread");
+		partitionThread.setDaemon(true);
+		partitionThread.start();
+	}
+
+	private void stopPartitionThread(){
+		if(partitionThread != null){
+			partitionThreadStopped = true;
+			partitionThread.interrupt();
+			try{
+				partitionThread.join();
+			}catch(InterruptedException e){
+				logger.log(Level.WARNING, "Interrupted while waiting for partition thread to stop", e);
+			}
+			partitionThread = null;
+		}
+		if(partitionConnection != null){
+			try{
+				partitionConnection.close();
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to close partition connection", e);
+			}
+			partitionConnection = null;
+		}
+	}
+
+	/**
+	 * Promotes the keys seen at least 'promotionThreshold' times in the overflow column to real columns.
+	 * 
+	 * The rows already written keep the keys in the overflow column until all the batches taken with the old columns
+	 * are committed, after which the values are moved to the new columns in a single update.
+	 */
+	private void promoteOverflowKeys(final Connection connection, final HybridSchema schema) throws Exception{
+		final List<String> keys = schema.takePromotionCandidates(configuration.getPromotionThreshold());
+		if(keys.isEmpty()){
+			return;
+		}
+		final StringBuilder alterQuery = new StringBuilder("alter table " + schema.getTableName());
+		final StringBuilder setClause = new StringBuilder();
+		final StringBuilder keysArray = new StringBuilder("array[");
+		for(int i = 0; i < keys.size(); i++){
+			final String column = formatColumnName(keys.get(i));
+			final String literal = HybridSchema.formatStringLiteral(keys.get(i));
+			alterQuery.append(i == 0 ? " " : ", ").append("add column if not exists ").append(column).append(" varchar");
+			setClause.append(column).append(" = coalesce(").append(column).append(", ")
+				.append(formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME)).append("->>").append(literal).append("), ");
+			keysArray.append(i == 0 ? "" : ", ").append(literal);
+		}
+		keysArray.append("]::text[]");
+
+		try(final Statement statement = connection.createStatement()){
+			statement.execute(alterQuery.toString());
+		}
+		final long version;
+		// Atomic with the snapshot and registration of batches in 'flush' so that a batch is either taken with the new
+		// columns or waited for
+		synchronized(flushQueue){
+			schema.addColumns(keys);
+			version = schema.getVersion();
+		}
+		waitForPendingBatches(schema, version);
+
+		final String overflowColumn = formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME);
+		final String updateQuery = "update " + schema.getTableName() + " set " + setClause
+				+ overflowColumn + " = nullif(" + overflowColumn + " - " + keysArray + ", '{}'::jsonb)"
+				+ " where jsonb_exists_any(" + overflowColumn + ", " + keysArray + ")";
+		final String primaryKeyColumn = formatColumnName(getPrimaryKeyName());
+		int updated = 0;
+		try(final Statement statement = connection.createStatement()){
+			// In auto-commit mode so that each range is a short transaction instead of one over the whole table
+			for(int i = 0; i < promotionUpdateRanges; i++){
+				final String lower = (i == 0) ? null : getUuidRangeBound(i);
+				final String upper = (i == promotionUpdateRanges - 1) ? null : getUuidRangeBound(i + 1);
+				String rangeClause = "";
+				if(lower == null){
+					rangeClause += " and (" + primaryKeyColumn + " is null or " + primaryKeyColumn + " < '" + upper + "')";
+				}else{
+					rangeClause += " and " + primaryKeyColumn + " >= '" + lower + "'";
+					if(upper != null){
+						rangeClause += " and " + primaryKeyColumn + " < '" + upper + "'";
+					}
+				}
+				updated += statement.executeUpdate(updateQuery + rangeClause);
+			}
+			statement.execute("delete from " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME
+					+ " where " + formatColumnName(HybridSchema.OVERFLOW_KEYS_TABLE_COLUMN) + " = "
+					+ HybridSchema.formatStringLiteral(schema.getTableName())
+					+ " and " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN) + " = any(" + keysArray + ")");
+		}
+		schema.removeOverflowKeys(keys);
+		logger.log(Level.INFO, "Promoted annotations " + keys + " of table '" + schema.getTableName() + "' to columns"
+				+ " (moved from " + updated + " rows)");
 	}
 
-	private CopyManager createCopyManager() throws Exception{
-		return new CopyManager((BaseConnection)connection);
+	/**
+	 * @return the smallest UUID in the range 'index' when the UUIDs are split into 'promotionUpdateRanges' ranges
+	 */
+	private static String getUuidRangeBound(final int index){
+		final long prefix = (index * 0x100000000L) / promotionUpdateRanges;
+		return String.format("%08x-0000-0000-0000-000000000000", prefix);
+	}
+
+	private void setConnection(final Connection connection){
+		this.connection = connection;
 	}
 
 	private Statement createStatement() throws Exception{
@@ -158,12 +447,23 @@ public class PostgreSQL extends SQL{
 		return PARENT_VERTEX_KEY;
 	}
 
-	private Set<String> getVertexColumnNames(){
-		return vertexColumnNames;
+	public int getFrontierArrayLimit(){
+		return configuration.getFrontierArrayLimit();
+	}
+
+	public HybridSchema getVertexSchema(){
+		return vertexSchema;
 	}
 
-	private Set<String> getEdgeColumnNames(){
-		return edgeColumnNames;
+	public HybridSchema getEdgeSchema(){
+		return edgeSchema;
+	}
+
+	/**
+	 * @return null if the tables are not partitioned
+	 */
+	public Partitioning getPartitioning(){
+		return partitioning;
 	}
 
 	private void dropTable(final Statement statement, final String tableName) throws Exception{
@@ -177,6 +477,7 @@ public class PostgreSQL extends SQL{
 					, getEdgeTableName()
 					, getBaseVertexTableName()
 					, getBaseEdgeTableName()
+					, HybridSchema.OVERFLOW_KEYS_TABLE_NAME
 					}){
 				dropTable(statement, tableName);
 			}
@@ -186,7 +487,15 @@ public class PostgreSQL extends SQL{
 	}
 
 	private String formatColumnName(final String columnName){
-		return '"' + columnName + '"';
+		return HybridSchema.formatColumnName(columnName);
+	}
+
+	private String getPartitionColumnDefinition(){
+		return partitioning == null ? "" : ", " + Partitioning.getColumnDefinition();
+	}
+
+	private String getPartitionByClause(){
+		return partitioning == null ? "" : Partitioning.getPartitionByClause();
 	}
 
 	private String getQueryCreateVertexTable(){
@@ -195,7 +504,10 @@ public class PostgreSQL extends SQL{
 				+ "(" 
 				+ formatColumnName(getPrimaryKeyName()) + " UUID"
 				+ ", " + formatColumnName("type") + " VARCHAR(32) not null"
-				+ ")";
+				+ ", " + formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME) + " jsonb"
+				+ getPartitionColumnDefinition()
+				+ ")"
+				+ getPartitionByClause();
 		return query;
 	}
 
@@ -207,6 +519,20 @@ public class PostgreSQL extends SQL{
 				+ ", " + formatColumnName("type") + " VARCHAR(32) not null"
 				+ ", " + formatColumnName(getChildVertexKeyName()) + " UUID not null"
 				+ ", " + formatColumnName(getParentVertexKeyName()) + " UUID not null"
+				+ ", " + formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME) + " jsonb"
+				+ getPartitionColumnDefinition()
+				+ ")"
+				+ getPartitionByClause();
+		return query;
+	}
+
+	private String getQueryCreateOverflowKeysTable(){
+		final String query = 
+				"create table if not exists " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME
+				+ "(" 
+				+ formatColumnName(HybridSchema.OVERFLOW_KEYS_TABLE_COLUMN) + " VARCHAR not null"
+				+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN) + " VARCHAR not null"
+				+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_COUNT_COLUMN) + " BIGINT not null"
 				+ ")";
 		return query;
 	}
@@ -216,7 +542,9 @@ public class PostgreSQL extends SQL{
 				"create table if not exists " + getBaseVertexTableName()
 				+ "(" 
 				+ formatColumnName(getPrimaryKeyName()) + " UUID"
-				+ ")";
+				+ getPartitionColumnDefinition()
+				+ ")"
+				+ getPartitionByClause();
 		return query;
 	}
 
@@ -225,7 +553,9 @@ public class PostgreSQL extends SQL{
 				"create table if not exists " + getBaseEdgeTableName()
 				+ "(" 
 				+ formatColumnName(getPrimaryKeyName()) + " UUID"
-				+ ")";
+				+ getPartitionColumnDefinition()
+				+ ")"
+				+ getPartitionByClause();
 		return query;
 	}
 
@@ -246,45 +576,89 @@ public class PostgreSQL extends SQL{
 		}
 	}
 
-	private void addToVertexColumn(final String columnName){
-		getVertexColumnNames().add(columnName);
-	}
-
-	private void addToVertexColumn(final Set<String> columnNames){
-		for(final String columnName : columnNames){
-			addToVertexColumn(columnName);
-		}
-	}
+	/**
+	 * Adds the overflow column (in case of a table from before) and the hot columns if missing, and then loads the
+	 * columns and the keys in the overflow column into the schema.
+	 * 
+	 * The keys in the overflow column are read from the overflow keys table. The overflow column is only scanned if the
+	 * overflow keys table did not exist before i.e. once for a database from before.
+	 */
+	private void setupSchema(final Statement statement, final HybridSchema schema, final List<String> hotColumnNames,
+			final boolean scanOverflowColumn) throws Exception{
+		try{
+			String query = "alter table " + schema.getTableName()
+				+ " add column if not exists " + formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME) + " jsonb";
+			for(final String hotColumnName : hotColumnNames){
+				query += ", add column if not exists " + formatColumnName(hotColumnName) + " varchar";
+			}
+			statement.execute(query);
 
-	private void addToEdgeColumn(final String columnName){
-		getEdgeColumnNames().add(columnName);
-	}
-	
-	private void addToEdgeColumn(final Set<String> columnNames){
-		for(final String columnName : columnNames){
-			addToEdgeColumn(columnName);
-		}
-	}
+			schema.addColumns(getColumnNamesInTable(statement, schema.getTableName()));
+
+			final String tableNameLiteral = HybridSchema.formatStringLiteral(schema.getTableName());
+			final String overflowKeysColumns = " (" + formatColumnName(HybridSchema.OVERFLOW_KEYS_TABLE_COLUMN)
+					+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN)
+					+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_COUNT_COLUMN) + ")";
+			if(scanOverflowColumn){
+				statement.execute("insert into " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME + overflowKeysColumns
+						+ " select " + tableNameLiteral + ", overflow_key, count(*)"
+						+ " from " + schema.getTableName()
+						+ ", jsonb_object_keys(" + formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME) + ") as overflow_key"
+						+ " group by overflow_key");
+			}
 
-	private void populateVertexColumnNames(final Statement statement) throws Exception{
-		try{
-			final List<String> columnNames = getColumnNamesInTable(statement, getVertexTableName());
-			for(final String columnName : columnNames){
-				addToVertexColumn(columnName);
+			// Batches append a row per key. Compact those into one row per key while reading the keys
+			final List<String> overflowKeys = new ArrayList<>();
+			try(final ResultSet result = statement.executeQuery(
+					"with deleted as (delete from " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME
+					+ " where " + formatColumnName(HybridSchema.OVERFLOW_KEYS_TABLE_COLUMN) + " = " + tableNameLiteral
+					+ " returning " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN)
+					+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_COUNT_COLUMN) + ")"
+					+ " insert into " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME + overflowKeysColumns
+					+ " select " + tableNameLiteral + ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN)
+					+ ", sum(" + formatColumnName(HybridSchema.OVERFLOW_KEYS_COUNT_COLUMN) + ") from deleted"
+					+ " group by " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN)
+					+ " returning " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN))){
+				while(result.next()){
+					overflowKeys.add(result.getString(1));
+				}
 			}
+			schema.addOverflowKeys(overflowKeys);
 		}catch(Exception e){
-			throw e;
+			throw new Exception("Failed to setup schema for table '" + schema.getTableName() + "'", e);
 		}
 	}
 
-	private void populateEdgeColumnNames(final Statement statement) throws Exception{
-		try{
-			final List<String> columnNames = getColumnNamesInTable(statement, getEdgeTableName());
-			for(final String columnName : columnNames){
-				addToEdgeColumn(columnName);
+	/**
+	 * Disables partitioning if configured but all the tables are from before without partitioning. Fails if only some
+	 * of the tables are partitioned or if partitioned tables exist without partitioning configured.
+	 */
+	private void checkPartitioning(final Connection connection) throws Exception{
+		final List<String> tableNames = Arrays.asList(
+				getVertexTableName(), getEdgeTableName(), getBaseVertexTableName(), getBaseEdgeTableName());
+		final Set<String> partitionedTableNames = new HashSet<String>();
+		try(final Statement statement = connection.createStatement();
+				final ResultSet result = statement.executeQuery(
+						"select relname from pg_class where relkind = 'p' and relname in ('"
+						+ String.join("', '", tableNames) + "')")){
+			while(result.next()){
+				partitionedTableNames.add(result.getString(1));
 			}
 		}catch(Exception e){
-			throw e;
+			throw new Exception("Failed to check partitioning of tables: " + tableNames, e);
+		}
+		if(partitioning == null){
+			if(!partitionedTableNames.isEmpty()){
+				throw new Exception("Tables " + partitionedTableNames + " are partitioned but partitioning not configured");
+			}
+		}else{
+			if(partitionedTableNames.isEmpty()){
+				logger.log(Level.WARNING, "Partitioning disabled because the tables " + tableNames
+						+ " exist without partitioning. Reset the database to partition");
+				partitioning = null;
+			}else if(partitionedTableNames.size() != tableNames.size()){
+				throw new Exception("Only some of the tables " + tableNames + " are partitioned: " + partitionedTableNames);
+			}
 		}
 	}
 
@@ -310,10 +684,16 @@ public class PostgreSQL extends SQL{
 
 	private void setupDatabase(final Connection connection, final boolean secondaryIndexes) throws Exception{
 		try(final Statement statement = connection.createStatement()){
+			final boolean overflowKeysTableExists;
+			try(final ResultSet result = statement.executeQuery(
+					"select to_regclass(" + HybridSchema.formatStringLiteral(HybridSchema.OVERFLOW_KEYS_TABLE_NAME) + ") is not null")){
+				overflowKeysTableExists = result.next() && result.getBoolean(1);
+			}
+			statement.execute(getQueryCreateOverflowKeysTable());
 			statement.execute(getQueryCreateVertexTable());
-			populateVertexColumnNames(statement);
+			setupSchema(statement, getVertexSchema(), configuration.getHotVertexAnnotations(), !overflowKeysTableExists);
 			statement.execute(getQueryCreateEdgeTable());
-			populateEdgeColumnNames(statement);
+			setupSchema(statement, getEdgeSchema(), configuration.getHotEdgeAnnotations(), !overflowKeysTableExists);
 			statement.execute(getQueryCreateVertexBaseTable());
 			statement.execute(getQueryCreateEdgeBaseTable());
 			if(secondaryIndexes){
@@ -324,48 +704,12 @@ public class PostgreSQL extends SQL{
 		}
 	}
 
-	private Set<String> getNewVertexColumns(final Set<String> columnNames){
-		final Set<String> newColumnNames = new HashSet<String>(columnNames);
-		newColumnNames.removeAll(getVertexColumnNames());
-		return newColumnNames;
-	}
-
-	private Set<String> getNewEdgeColumns(final Set<String> columnNames){
-		final Set<String> newColumnNames = new HashSet<String>(columnNames);
-		newColumnNames.removeAll(getEdgeColumnNames());
-		return newColumnNames;
-	}
-
-	private void updateTableColumns(
-			final Set<String> newColumnNames, final String tableName) throws Exception{
-		try(final Statement statement = createStatement()){
-			String query = "";
-			for(final String newColumnName : newColumnNames){
-				query += "alter table " + tableName + " add column " + formatColumnName(newColumnName) + " varchar;";
-			}
-			statement.execute(query);
-		}catch(Exception e0){
-			throw new Exception("Failed to add columns to " + tableName + " table", e0);
-		}
-	}
-
 	@Override
 	public boolean storeVertex(final AbstractVertex vertex){
 		if(vertex == null){
 			return false;
 		}
-		final Set<String> newColumnNames = getNewVertexColumns(vertex.getAnnotationKeys());
-		if(!newColumnNames.isEmpty()){
-			// Flush existing data because schema needs to be updated
-			flush();
-			try{
-				updateTableColumns(newColumnNames, getVertexTableName());
-				addToVertexColumn(newColumnNames);
-			}catch(Exception e){
-				logger.log(Level.WARNING, "Vertex discarded because of PostgreSQL error", e);
-				return false;
-			}
-		}
+		getVertexSchema().countOverflowKeys(vertex.getAnnotationKeys());
 		addToBuffer(vertex);
 		return true;
 	}
@@ -375,18 +719,7 @@ public class PostgreSQL extends SQL{
 		if(edge == null || edge.getChildVertex() == null || edge.getParentVertex() == null){
 			return false;
 		}
-		final Set<String> newColumnNames = getNewEdgeColumns(edge.getAnnotationKeys());
-		if(!newColumnNames.isEmpty()){
-			// Flush existing data because schema needs to be updated
-			flush();
-			try{
-				updateTableColumns(newColumnNames, getEdgeTableName());
-				addToEdgeColumn(newColumnNames);
-			}catch(Exception e){
-				logger.log(Level.WARNING, "Edge discarded because of PostgreSQL error", e);
-				return false;
-			}
-		}
+		getEdgeSchema().countOverflowKeys(edge.getAnnotationKeys());
 		addToBuffer(edge);
 		return true;
 	}
@@ -405,135 +738,264 @@ public class PostgreSQL extends SQL{
 		}
 	}
 
-	private void persist(final GraphSnapshot graph){
-		if(graph.vertexSize() > 0){
-			final int vertexBufferSize = graph.vertexSize();
-			try{
-				final StringBuffer csvHashes = new StringBuffer();
-				csvHashes.append(getCSVLine(Arrays.asList(getPrimaryKeyName())));
-	
-				final StringBuffer csvVertices = new StringBuffer();
-				csvVertices.append(getCSVLine(getVertexColumnNames()));
-	
-				final List<String> vertexValues = new ArrayList<>();
-				final Iterator<AbstractVertex> vertices = graph.vertices();
-				while(vertices.hasNext()){
-					final AbstractVertex vertex = vertices.next();
-					for(final String vertexColumnName : getVertexColumnNames()){
-						final String vertexValue;
-						switch(vertexColumnName){
-							case PRIMARY_KEY:{
-								vertexValue = vertex.bigHashCode();
-								csvHashes.append(getCSVLine(Arrays.asList(vertexValue)));
-								break;
-							}
-							default: vertexValue = vertex.getAnnotation(vertexColumnName); break;
-						}
-						vertexValues.add(vertexValue);
-					}
-					csvVertices.append(getCSVLine(vertexValues));
-					vertexValues.clear();
+	private String getCopyQuery(final String tableName, final List<String> columnNames, final boolean withOverflow){
+		final StringBuilder query = new StringBuilder();
+		query.append("copy ").append(tableName).append(" (");
+		for(int i = 0; i < columnNames.size(); i++){
+			if(i > 0){
+				query.append(", ");
+			}
+			query.append(formatColumnName(columnNames.get(i)));
+		}
+		if(withOverflow){
+			query.append(", ").append(formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME));
+		}
+		query.append(") from stdin (format binary)");
+		return query.toString();
+	}
+
+	/**
+	 * @param overflowKeyCounts incremented for each annotation key added to the JSON object
+	 * @return JSON object of the annotations which are not columns or null if none
+	 */
+	private String getOverflowJson(final Iterable<String> annotationKeys, final HybridSchema.Columns columns,
+			final AbstractVertex vertex, final AbstractEdge edge, final Map<String, long[]> overflowKeyCounts){
+		JSONObject json = null;
+		for(final String annotationKey : annotationKeys){
+			if(!columns.set.contains(annotationKey)){
+				if(json == null){
+					json = new JSONObject();
+				}
+				final long[] count = overflowKeyCounts.get(annotationKey);
+				if(count == null){
+					overflowKeyCounts.put(annotationKey, new long[]{1});
+				}else{
+					count[0]++;
+				}
+				try{
+					json.put(annotationKey, vertex != null ? vertex.getAnnotation(annotationKey) : edge.getAnnotation(annotationKey));
+				}catch(Exception e){
+					throw new RuntimeException("Failed to add annotation '" + annotationKey + "' to overflow", e);
 				}
-	
-				final CopyManager copyManager = createCopyManager();
-				copyManager.copyIn(
-						"copy " + getVertexTableName() + " from stdin (format csv, header)", 
-						new BufferedReader(new StringReader(csvVertices.toString()))
-						);
-	
-				copyManager.copyIn(
-						"copy " + getBaseVertexTableName() + " from stdin (format csv, header)", 
-						new BufferedReader(new StringReader(csvHashes.toString()))
-						);
-			}catch(Exception e){
-				logger.log(Level.WARNING, "Failed to persist " + vertexBufferSize + " vertices", e);
 			}
 		}
-		
-		if(graph.edgeSize() > 0){
-			final int edgeBufferSize = graph.edgeSize();
-			try{
-				final StringBuffer csvHashes = new StringBuffer();
-				csvHashes.append(getCSVLine(Arrays.asList(getPrimaryKeyName())));
-	
-				final StringBuffer csvData = new StringBuffer();
-				csvData.append(getCSVLine(getEdgeColumnNames()));
-	
-				final List<String> edgesValues = new ArrayList<>();
-				final Iterator<AbstractEdge> edges = graph.edges();
-				while(edges.hasNext()){
-					final AbstractEdge edge = edges.next();
-					for(final String edgeColumnName : getEdgeColumnNames()){
-						final String edgeValue;
-						switch(edgeColumnName){
-							case PRIMARY_KEY:{
-								edgeValue = edge.bigHashCode();
-								csvHashes.append(getCSVLine(Arrays.asList(edgeValue)));
-								break;
-							}
-							case CHILD_VERTEX_KEY: edgeValue = edge.getChildVertex().bigHashCode(); break;
-							case PARENT_VERTEX_KEY: edgeValue = edge.getParentVertex().bigHashCode(); break;
-							default: edgeValue = edge.getAnnotation(edgeColumnName); break;
-						}
-						edgesValues.add(edgeValue);
+		return json == null ? null : json.toString();
+	}
+
+	/**
+	 * Copies all the vertices in the batch to the vertex table and their hashes to the base vertex table
+	 */
+	private void copyVertices(final BaseConnection baseConnection, final Batch batch) throws Exception{
+		final Map<String, long[]> overflowKeyCounts = new HashMap<String, long[]>();
+		final String[] hashes = new String[batch.graph.vertexSize()];
+		final PGCopyOutputStream dataStream = new PGCopyOutputStream(
+				baseConnection, getCopyQuery(getVertexTableName(), batch.vertexColumns.names, true));
+		try{
+			final BinaryCopyEncoder encoder = new BinaryCopyEncoder(dataStream);
+			encoder.writeHeader();
+			int i = 0;
+			final Iterator<AbstractVertex> vertices = batch.graph.vertices();
+			while(vertices.hasNext()){
+				final AbstractVertex vertex = vertices.next();
+				hashes[i] = vertex.bigHashCode();
+				encoder.startRow(batch.vertexColumns.names.size() + 1);
+				for(final String vertexColumnName : batch.vertexColumns.names){
+					switch(vertexColumnName){
+						case PRIMARY_KEY: encoder.writeUuid(hashes[i]); break;
+						case Partitioning.PARTITION_COLUMN_NAME: encoder.writeBigint(batch.ingestMillis); break;
+						default: encoder.writeText(vertex.getAnnotation(vertexColumnName)); break;
 					}
-					csvData.append(getCSVLine(edgesValues));
-					edgesValues.clear();
 				}
-	
-				final CopyManager copyManager = createCopyManager();
-				copyManager.copyIn(
-						"copy " + getEdgeTableName() + " from stdin (format csv, header)", 
-						new BufferedReader(new StringReader(csvData.toString()))
-						);
-	
-				copyManager.copyIn(
-						"copy " + getBaseEdgeTableName() + " from stdin (format csv, header)", 
-						new BufferedReader(new StringReader(csvHashes.toString()))
-						);
-	
-				if(BUILD_SCAFFOLD){
-					try{
-						final Iterator<AbstractEdge> edgesForScaffold = graph.edges();
-						while(edgesForScaffold.hasNext()){
-							final AbstractEdge edge = edgesForScaffold.next();
-							insertScaffoldEntry(edge);
-						}
-					}catch(Exception e){
-						logger.log(Level.WARNING, "Failed to update scaffold", e);
+				encoder.writeJsonb(getOverflowJson(vertex.getAnnotationKeys(), batch.vertexColumns, vertex, null, overflowKeyCounts));
+				i++;
+			}
+			encoder.writeTrailer();
+			dataStream.endCopy();
+		}finally{
+			if(dataStream.isActive()){
+				dataStream.cancelCopy();
+			}
+		}
+		final long[] timesMillis = new long[hashes.length];
+		Arrays.fill(timesMillis, batch.ingestMillis);
+		copyHashes(baseConnection, getBaseVertexTableName(), hashes, timesMillis);
+		insertOverflowKeyCounts(baseConnection, getVertexTableName(), overflowKeyCounts);
+	}
+
+	/**
+	 * Copies all the edges in the batch to the edge table and their hashes to the base edge table
+	 */
+	private void copyEdges(final BaseConnection baseConnection, final Batch batch, final long[] timesMillis) throws Exception{
+		final Map<String, long[]> overflowKeyCounts = new HashMap<String, long[]>();
+		final String[] hashes = new String[batch.graph.edgeSize()];
+		final PGCopyOutputStream dataStream = new PGCopyOutputStream(
+				baseConnection, getCopyQuery(getEdgeTableName(), batch.edgeColumns.names, true));
+		try{
+			final BinaryCopyEncoder encoder = new BinaryCopyEncoder(dataStream);
+			encoder.writeHeader();
+			int i = 0;
+			final Iterator<AbstractEdge> edges = batch.graph.edges();
+			while(edges.hasNext()){
+				final AbstractEdge edge = edges.next();
+				hashes[i] = edge.bigHashCode();
+				encoder.startRow(batch.edgeColumns.names.size() + 1);
+				for(final String edgeColumnName : batch.edgeColumns.names){
+					switch(edgeColumnName){
+						case PRIMARY_KEY: encoder.writeUuid(hashes[i]); break;
+						case CHILD_VERTEX_KEY: encoder.writeUuid(edge.getChildVertex().bigHashCode()); break;
+						case PARENT_VERTEX_KEY: encoder.writeUuid(edge.getParentVertex().bigHashCode()); break;
+						case Partitioning.PARTITION_COLUMN_NAME: encoder.writeBigint(timesMillis[i]); break;
+						default: encoder.writeText(edge.getAnnotation(edgeColumnName)); break;
 					}
 				}
-			}catch(Exception e){
-				logger.log(Level.WARNING, "Failed to persist " + edgeBufferSize + " edges", e);
+				encoder.writeJsonb(getOverflowJson(edge.getAnnotationKeys(), batch.edgeColumns, null, edge, overflowKeyCounts));
+				i++;
+			}
+			encoder.writeTrailer();
+			dataStream.endCopy();
+		}finally{
+			if(dataStream.isActive()){
+				dataStream.cancelCopy();
+			}
+		}
+		copyHashes(baseConnection, getBaseEdgeTableName(), hashes, timesMillis);
+		insertOverflowKeyCounts(baseConnection, getEdgeTableName(), overflowKeyCounts);
+	}
+
+	/**
+	 * Appends a row per key to the overflow keys table (in the batch transaction). Appending instead of updating a row
+	 * per key so that the flush threads never wait on each other. Compacted on startup.
+	 */
+	private void insertOverflowKeyCounts(final Connection connection, final String tableName,
+			final Map<String, long[]> overflowKeyCounts) throws Exception{
+		if(overflowKeyCounts.isEmpty()){
+			return;
+		}
+		try(final PreparedStatement statement = connection.prepareStatement(
+				"insert into " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME
+				+ " (" + formatColumnName(HybridSchema.OVERFLOW_KEYS_TABLE_COLUMN)
+				+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN)
+				+ ", " + formatColumnName(HybridSchema.OVERFLOW_KEYS_COUNT_COLUMN) + ") values (?, ?, ?)")){
+			for(final Map.Entry<String, long[]> entry : overflowKeyCounts.entrySet()){
+				statement.setString(1, tableName);
+				statement.setString(2, entry.getKey());
+				statement.setLong(3, entry.getValue()[0]);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+
+	/**
+	 * @param timesMillis time of the elements written to the partition column (if partitioned)
+	 */
+	private void copyHashes(final BaseConnection baseConnection, final String tableName, final String[] hashes,
+			final long[] timesMillis) throws Exception{
+		final List<String> columnNames = (partitioning == null)
+				? Collections.singletonList(getPrimaryKeyName())
+				: Arrays.asList(getPrimaryKeyName(), Partitioning.PARTITION_COLUMN_NAME);
+		final PGCopyOutputStream hashStream = new PGCopyOutputStream(
+				baseConnection, getCopyQuery(tableName, columnNames, false));
+		try{
+			final BinaryCopyEncoder encoder = new BinaryCopyEncoder(hashStream);
+			encoder.writeHeader();
+			for(int i = 0; i < hashes.length; i++){
+				encoder.startRow(columnNames.size());
+				encoder.writeUuid(hashes[i]);
+				if(partitioning != null){
+					encoder.writeBigint(timesMillis[i]);
+				}
+			}
+			encoder.writeTrailer();
+			hashStream.endCopy();
+		}finally{
+			if(hashStream.isActive()){
+				hashStream.cancelCopy();
 			}
 		}
-		graph.clear();
 	}
 
-	private String getCSVLine(final Iterable<String> iterable){
-		final StringBuffer str = new StringBuffer();
-		for(String item : iterable){
-			item = formatToCSV(item);
-			str.append(item).append(",");
+	/**
+	 * @return time of each edge in the batch (in iteration order) to partition by
+	 */
+	private long[] getEdgeTimesMillis(final Batch batch){
+		final long[] timesMillis = new long[batch.graph.edgeSize()];
+		int i = 0;
+		final Iterator<AbstractEdge> edges = batch.graph.edges();
+		while(edges.hasNext()){
+			final AbstractEdge edge = edges.next();
+			timesMillis[i++] = (partitioning == null) ? batch.ingestMillis : partitioning.getEdgeTimeMillis(edge, batch.ingestMillis);
 		}
-		if(str.length() > 0){
-			str.setCharAt(str.length() - 1, '\n');
+		return timesMillis;
+	}
+
+	/**
+	 * Creates the partitions for the batch (if partitioned) which don't exist on the partition connection so that the
+	 * batch transaction doesn't lock the partitioned tables
+	 */
+	private void ensurePartitions(final Batch batch, final long[] edgeTimesMillis) throws Exception{
+		if(partitioning == null){
+			return;
+		}
+		final Set<Long> timesMillis = new HashSet<Long>();
+		timesMillis.add(batch.ingestMillis);
+		for(final long edgeTimeMillis : edgeTimesMillis){
+			timesMillis.add(partitioning.getPartitionStart(edgeTimeMillis));
 		}
-		return str.toString();
+		partitioning.ensurePartitions(partitionConnection, timesMillis);
 	}
 
-	private String formatToCSV(String item){
-		if(item == null){
-			return ""; // NULL
+	/**
+	 * Copies the batch in a single transaction if the connection is not in auto-commit mode
+	 */
+	private void persist(final Batch batch, final Connection connection){
+		final int vertexBufferSize = batch.graph.vertexSize();
+		final int edgeBufferSize = batch.graph.edgeSize();
+		try{
+			final long[] edgeTimesMillis = getEdgeTimesMillis(batch);
+			ensurePartitions(batch, edgeTimesMillis);
+			final BaseConnection baseConnection = (BaseConnection)connection;
+			if(vertexBufferSize > 0){
+				copyVertices(baseConnection, batch);
+			}
+			if(edgeBufferSize > 0){
+				copyEdges(baseConnection, batch, edgeTimesMillis);
+			}
+			if(!connection.getAutoCommit()){
+				connection.commit();
+			}
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to persist " + vertexBufferSize + " vertices and " + edgeBufferSize + " edges", e);
+			try{
+				if(!connection.getAutoCommit()){
+					connection.rollback();
+				}
+			}catch(Exception e1){
+				logger.log(Level.WARNING, "Failed to rollback", e1);
+			}
+			batch.graph.clear();
+			return;
+		}
+
+		if(edgeBufferSize > 0 && BUILD_SCAFFOLD){
+			try{
+				synchronized(scaffoldLock){
+					final Iterator<AbstractEdge> edgesForScaffold = batch.graph.edges();
+					while(edgesForScaffold.hasNext()){
+						final AbstractEdge edge = edgesForScaffold.next();
+						insertScaffoldEntry(edge);
+					}
+				}
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to update scaffold", e);
+			}
 		}
-		item = item.replace('"', '\"');
-		item = '"' + item + '"';
-		return item;
+		batch.graph.clear();
 	}
 
 	@Override
 	public ResultSet executeQuery(String query){
-		flush();
+		flushAndWait();
 
 		ResultSet result = null;
 		try(final Statement queryStatement = createStatement()){
@@ -548,12 +1010,88 @@ public class PostgreSQL extends SQL{
 		return result;
 	}
 
+	/**
+	 * Hands off the buffered elements to a flush thread (waiting for one to be free) or persists them on the calling
+	 * thread if there are no flush threads
+	 */
 	private void flush(){
-		persist(graphBuffer.flush());
+		final GraphSnapshot graph = graphBuffer.flush();
+		if(graph.size() == 0){
+			return;
+		}
+		final Batch batch;
+		// Atomic with the addition of columns in 'promoteOverflowKeys'
+		synchronized(flushQueue){
+			batch = new Batch(graph, getVertexSchema().snapshot(), getEdgeSchema().snapshot());
+			pendingBatches.add(batch);
+		}
+		if(flushThreads.isEmpty()){
+			try{
+				persist(batch, connection);
+			}finally{
+				removePendingBatch(batch);
+			}
+			return;
+		}
+		boolean handedOff = false;
+		while(!handedOff){
+			try{
+				flushQueue.put(batch);
+				handedOff = true;
+			}catch(InterruptedException e){
+				// Retry to not lose the batch
+			}
+		}
 	}
 
-	public List<List<String>> executeQueryForResult(String query, boolean addColumnNames){
+	/**
+	 * Flushes and waits for all the batches handed off so far to be committed
+	 */
+	private void flushAndWait(){
 		flush();
+		synchronized(flushQueue){
+			while(!pendingBatches.isEmpty()){
+				try{
+					flushQueue.wait();
+				}catch(InterruptedException e){
+					logger.log(Level.WARNING, "Interrupted while waiting for pending batches to be persisted", e);
+					return;
+				}
+			}
+		}
+	}
+
+	private void removePendingBatch(final Batch batch){
+		synchronized(flushQueue){
+			pendingBatches.remove(batch);
+			flushQueue.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the pending batches taken with the columns of the schema older than the version
+	 */
+	private void waitForPendingBatches(final HybridSchema schema, final long version) throws InterruptedException{
+		synchronized(flushQueue){
+			while(true){
+				boolean found = false;
+				for(final Batch batch : pendingBatches){
+					final HybridSchema.Columns columns = (schema == vertexSchema) ? batch.vertexColumns : batch.edgeColumns;
+					if(columns.version < version){
+						found = true;
+						break;
+					}
+				}
+				if(!found){
+					return;
+				}
+				flushQueue.wait();
+			}
+		}
+	}
+
+	public List<List<String>> executeQueryForResult(String query, boolean addColumnNames){
+		flushAndWait();
 
 		try(final Statement queryStatement = createStatement()){
 			if(configuration.useFetchSize()){
@@ -629,4 +1167,18 @@ public class PostgreSQL extends SQL{
 		// TODO Auto-generated method stub
 		return false;
 	}
+
+	private static final class Batch{
+		private final GraphSnapshot graph;
+		// Columns (in the order of values) at the time of the hand-off
+		private final HybridSchema.Columns vertexColumns;
+		private final HybridSchema.Columns edgeColumns;
+		// Time of the hand-off. Partition time of the vertices, and of the edges without an event time
+		private final long ingestMillis = System.currentTimeMillis();
+		private Batch(final GraphSnapshot graph, final HybridSchema.Columns vertexColumns, final HybridSchema.Columns edgeColumns){
+			this.graph = graph;
+			this.vertexColumns = vertexColumns;
+			this.edgeColumns = edgeColumns;
+		}
+	}
 }
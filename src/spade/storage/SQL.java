@@ -20,13 +20,21 @@
 package spade.storage;
 
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
+import spade.core.Cache;
+import spade.storage.sql.BatchInserter;
 
 
 /**
@@ -37,20 +45,23 @@ import spade.core.AbstractVertex;
 public abstract class SQL extends AbstractStorage
 {
     protected Connection dbConnection;
-    protected HashSet<String> vertexAnnotations;
-    protected HashSet<String> edgeAnnotations;
+    // Concurrent because columns are added on the loader thread and checked on the others
+    protected Set<String> vertexAnnotations;
+    protected Set<String> edgeAnnotations;
     protected boolean ENABLE_SANITIZATION = true;
     protected static final String VERTEX_TABLE = "vertex";
     protected static final String EDGE_TABLE = "edge";
     protected String DUPLICATE_COLUMN_ERROR_CODE;
     protected int CURSOR_FETCH_SIZE = 0;
     public int MAX_COLUMN_VALUE_LENGTH = 256;
+    // Inserts vertices and edges on a separate thread and connection. Null if not started
+    protected BatchInserter batchInserter = null;
 
     public SQL()
     {
         logger = Logger.getLogger(SQL.class.getName());
-        vertexAnnotations = new HashSet<>();
-        edgeAnnotations = new HashSet<>();
+        vertexAnnotations = ConcurrentHashMap.newKeySet();
+        edgeAnnotations = ConcurrentHashMap.newKeySet();
     }
 
     public int getCursorFetchSize()
@@ -141,6 +152,21 @@ public abstract class SQL extends AbstractStorage
      */
     protected abstract boolean addColumn(String table_name, String column_name);
 
+    /**
+     *  adds a new column in the database table using the given connection,
+     * if it is not already present. Used by the loader thread with its own connection.
+     *
+     * @param connection The connection to alter the table with.
+     * @param table_name The name of table in database to add column to.
+     * @param column_name The name of column to add in the table.
+     *
+     * @return  returns true if column creation in the database has been successful.
+     */
+    protected boolean addColumn(Connection connection, String table_name, String column_name)
+    {
+        return addColumn(table_name, column_name);
+    }
+
 
     /**
      * This function inserts the given edge into the underlying storage(s) and
@@ -167,6 +193,132 @@ public abstract class SQL extends AbstractStorage
     @Override
     public abstract ResultSet executeQuery(String query);
 
+    /**
+     * Starts the loader thread for vertices and edges with its own connection to the database.
+     * Batching is configured by 'batchSize', 'flushIntervalMillis' and 'loaderQueueSize' in the config file.
+     *
+     * @param databaseURL URL of the database
+     * @param databaseUsername username for the database
+     * @param databasePassword password for the database
+     * @param dialect quoting of the column names and the insert statement of the database
+     */
+    protected final void startBatchInserter(String databaseURL, String databaseUsername, String databasePassword,
+                                            BatchInserter.Dialect dialect) throws Exception
+    {
+        int batchSize = Integer.parseInt(databaseConfigs.getProperty("batchSize", "1000").trim());
+        long flushIntervalMillis = Long.parseLong(databaseConfigs.getProperty("flushIntervalMillis", "1000").trim());
+        int loaderQueueSize = Integer.parseInt(databaseConfigs.getProperty("loaderQueueSize", "10000").trim());
+        Connection loaderConnection = DriverManager.getConnection(databaseURL, databaseUsername, databasePassword);
+        batchInserter = new BatchInserter(getClass().getSimpleName() + "-loader-thread", loaderConnection, dialect,
+                PRIMARY_KEY, new BatchInserter.Columns()
+                {
+                    @Override
+                    public boolean isColumn(String tableName, String columnName)
+                    {
+                        if(tableName.equalsIgnoreCase(VERTEX_TABLE))
+                            return vertexAnnotationIsPresent(columnName);
+                        return edgeAnnotationIsPresent(columnName);
+                    }
+
+                    @Override
+                    public boolean addColumn(Connection connection, String tableName, String columnName)
+                    {
+                        return SQL.this.addColumn(connection, tableName, columnName);
+                    }
+                }, batchSize, flushIntervalMillis, loaderQueueSize);
+    }
+
+    /**
+     * Waits for all the vertices and edges inserted so far to be committed.
+     */
+    protected final void flushBatchInserter()
+    {
+        if(batchInserter != null)
+            batchInserter.flush();
+    }
+
+    /**
+     * Commits all the vertices and edges inserted so far and stops the loader thread.
+     */
+    protected final void stopBatchInserter()
+    {
+        if(batchInserter != null)
+        {
+            batchInserter.shutdown();
+            try
+            {
+                batchInserter.getConnection().close();
+            }
+            catch(Exception ex)
+            {
+                logger.log(Level.WARNING, "Failed to close loader connection", ex);
+            }
+            batchInserter = null;
+        }
+    }
+
+    /**
+     * Queues the vertex for insertion with its hash as the primary key and an annotation per column.
+     * The vertex is added to the cache after it is committed.
+     */
+    protected final void insertVertex(final AbstractVertex incomingVertex)
+    {
+        List<String> columnNames = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        columnNames.add(PRIMARY_KEY);
+        values.add(incomingVertex.bigHashCode());
+        addAnnotationColumns(incomingVertex.getCopyOfAnnotations().entrySet(), columnNames, values);
+        batchInserter.put(VERTEX_TABLE, columnNames, values, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Cache.addItem(incomingVertex);
+            }
+        });
+    }
+
+    /**
+     * Queues the edge for insertion with its hash as the primary key, the hashes of its endpoints (unless annotations),
+     * and an annotation per column.
+     */
+    protected final void insertEdge(AbstractEdge incomingEdge)
+    {
+        List<String> columnNames = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        columnNames.add(PRIMARY_KEY);
+        values.add(incomingEdge.bigHashCode());
+        Map<String, String> annotations = incomingEdge.getCopyOfAnnotations();
+        if(!annotations.containsKey(CHILD_VERTEX_KEY))
+        {
+            columnNames.add(CHILD_VERTEX_KEY);
+            values.add(incomingEdge.getChildVertex().bigHashCode());
+        }
+        if(!annotations.containsKey(PARENT_VERTEX_KEY))
+        {
+            columnNames.add(PARENT_VERTEX_KEY);
+            values.add(incomingEdge.getParentVertex().bigHashCode());
+        }
+        addAnnotationColumns(annotations.entrySet(), columnNames, values);
+        batchInserter.put(EDGE_TABLE, columnNames, values);
+    }
+
+    private void addAnnotationColumns(Iterable<Map.Entry<String, String>> annotations,
+                                      List<String> columnNames, List<String> values)
+    {
+        for(Map.Entry<String, String> annotation : annotations)
+        {
+            // Sanitize column name to remove special characters
+            String columnName = ENABLE_SANITIZATION ? sanitizeColumn(annotation.getKey()) : annotation.getKey();
+            // Keys which are the same after sanitization go to the first one's column
+            if(!columnNames.contains(columnName))
+            {
+                columnNames.add(columnName);
+                values.add(annotation.getValue());
+            }
+        }
+    }
+
     public boolean vertexAnnotationIsPresent(String annotation)
     {
         if(vertexAnnotations.contains(annotation))
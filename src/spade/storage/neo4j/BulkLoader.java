@@ -0,0 +1,537 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.neo4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.neo4j.batchinsert.BatchInserter;
+import org.neo4j.batchinsert.BatchInserters;
+import org.neo4j.configuration.Config;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.IndexType;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.io.layout.DatabaseLayout;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Settings;
+import spade.storage.Neo4j;
+import spade.utility.DotParser;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+
+/**
+ * Offline tool which builds a new Neo4j database (as used by spade.storage.Neo4j) from the output of spade.storage.JSON
+ * or spade.storage.Graphviz without going through transactions.
+ *
+ * The input is read in passes:
+ * 	1. Nodes: every vertex hash (including the edge endpoints) gets a dense node id in the order first seen. The vertices
+ * 		are written with the batch inserter using that id. Endpoints never seen as vertices are written with only the hash
+ * 		(same as spade.storage.Neo4j).
+ * 	2. Relationships: the edges are written between the node ids from the first pass.
+ * 	3. Indexes: the database is started and the indexes (as per 'index.vertex' and 'index.edge') are created for all the
+ * 		property names seen. Population is waited for.
+ *
+ * The location, the schema names, and the indexing modes are read from the Neo4j storage config file (overridable in the
+ * arguments). The database must not exist and the Neo4j storage must not be using the database home directory.
+ *
+ * The vertex hash to node id table is kept in memory. Duplicate vertices are written once. Duplicate edges are written
+ * as many times as in the input (same as spade.storage.Neo4j without the 'Deduplicate' screen).
+ *
+ * Progress is logged every 'progressIntervalSeconds' (default 10). Disabled if 0. The format is deduced from the file
+ * extension ('.dot' or '.gv' for DOT, and JSON otherwise) if not given.
+ *
+ * Usage: BulkLoader input=&lt;path&gt; [format=json|dot] [progressIntervalSeconds=&lt;n&gt;] [&lt;Neo4j storage key&gt;=&lt;value&gt; ...]
+ */
+public class BulkLoader{
+
+	private static final Logger logger = Logger.getLogger(BulkLoader.class.getName());
+
+	public static final String
+		keyInput = "input",
+		keyFormat = "format",
+		keyProgressIntervalSeconds = "progressIntervalSeconds";
+
+	public enum Format{ JSON, DOT };
+
+	private static final long defaultProgressIntervalSeconds = 10;
+
+	private final Configuration configuration;
+	private final File inputFile;
+	private final Format format;
+	private final long progressIntervalMillis;
+
+	private final Map<String, Long> hashToNodeId = new HashMap<String, Long>();
+	private final BitSet writtenNodeIds = new BitSet();
+	private final BitSet discardedNodeIds = new BitSet();
+	private long nextNodeId = 0;
+
+	private final Set<String> nodePropertyNames = new HashSet<String>();
+	private final Set<String> relationshipPropertyNames = new HashSet<String>();
+
+	private long verticesRead = 0, edgesRead = 0;
+	private long nodesWritten = 0, endpointNodesWritten = 0, duplicateVertices = 0, discardedVertices = 0;
+	private long relationshipsWritten = 0, discardedEdges = 0;
+
+	public BulkLoader(final Configuration configuration, final File inputFile, final Format format,
+			final long progressIntervalSeconds){
+		this.configuration = configuration;
+		this.inputFile = inputFile;
+		this.format = format;
+		this.progressIntervalMillis = progressIntervalSeconds * 1000;
+	}
+
+	public final void load() throws Exception{
+		if(configuration.finalConstructedDbPath.exists()){
+			final String[] children = configuration.finalConstructedDbPath.list();
+			if(children == null || children.length > 0){
+				throw new Exception("Database already exists: '" + configuration.finalConstructedDbPath.getAbsolutePath() + "'");
+			}
+		}
+
+		final long startMillis = System.currentTimeMillis();
+		final BatchInserter inserter = BatchInserters.inserter(DatabaseLayout.of(getNeo4jConfig()));
+		try{
+			logger.log(Level.INFO, "Pass 1/3: Writing nodes");
+			read("Pass 1/3 (nodes)", new DotParser.ElementConsumer(){
+				@Override
+				public void accept(final Object element) throws Exception{
+					if(element instanceof AbstractVertex){
+						verticesRead++;
+						writeNode(inserter, (AbstractVertex)element);
+					}else if(element instanceof AbstractEdge){
+						edgesRead++;
+						final AbstractEdge edge = (AbstractEdge)element;
+						getOrAssignNodeId(edge.getChildVertex().bigHashCode());
+						getOrAssignNodeId(edge.getParentVertex().bigHashCode());
+					}
+				}
+			});
+			writeEndpointNodes(inserter);
+			logger.log(Level.INFO, "Pass 1/3 done. Vertices read=" + verticesRead + ", Nodes written=" + nodesWritten
+					+ ", Endpoint nodes written=" + endpointNodesWritten + ", Duplicate vertices=" + duplicateVertices
+					+ ", Discarded vertices=" + discardedVertices);
+
+			logger.log(Level.INFO, "Pass 2/3: Writing relationships");
+			final long edgesInInput = edgesRead;
+			edgesRead = 0;
+			read("Pass 2/3 (relationships)", new DotParser.ElementConsumer(){
+				@Override
+				public void accept(final Object element) throws Exception{
+					if(element instanceof AbstractEdge){
+						edgesRead++;
+						writeRelationship(inserter, (AbstractEdge)element);
+					}
+				}
+			});
+			if(edgesRead != edgesInInput){
+				logger.log(Level.WARNING, "Input changed between passes. Edges in pass 1=" + edgesInInput + ", pass 2=" + edgesRead);
+			}
+			logger.log(Level.INFO, "Pass 2/3 done. Edges read=" + edgesRead + ", Relationships written="
+					+ relationshipsWritten + ", Discarded edges=" + discardedEdges);
+		}finally{
+			logger.log(Level.INFO, "Flushing stores");
+			inserter.shutdown();
+		}
+
+		logger.log(Level.INFO, "Pass 3/3: Creating indexes");
+		createIndexes();
+
+		logger.log(Level.INFO, "Bulk load done in " + ((System.currentTimeMillis() - startMillis) / 1000) + " seconds. "
+				+ "Database: '" + configuration.finalConstructedDbPath.getAbsolutePath() + "'");
+	}
+
+	private final Config getNeo4jConfig(){
+		final Config.Builder builder = Config.newBuilder();
+		if(configuration.neo4jConfigFilePath != null){
+			builder.fromFile(configuration.neo4jConfigFilePath);
+		}
+		return builder
+				.set(GraphDatabaseSettings.neo4j_home, configuration.dbHomeDirectoryFile.getAbsoluteFile().toPath())
+				.set(GraphDatabaseSettings.data_directory, Paths.get(configuration.dbDataDirectoryName))
+				.set(GraphDatabaseSettings.default_database, configuration.dbName)
+				.build();
+	}
+
+	private final long getOrAssignNodeId(final String hashCode) throws Exception{
+		final Long existing = hashToNodeId.get(hashCode);
+		if(existing != null){
+			return existing;
+		}
+		if(nextNodeId > Integer.MAX_VALUE){
+			throw new Exception("Too many vertices. Max: " + Integer.MAX_VALUE);
+		}
+		final long nodeId = nextNodeId++;
+		hashToNodeId.put(hashCode, nodeId);
+		return nodeId;
+	}
+
+	/*
+	 * Same as Neo4j.validateUpdateHashKeyAndKeysInAnnotationMap. Returns false if to be discarded
+	 */
+	private final boolean validateUpdateHashKeyAndKeysInAnnotationMap(final Object vertexOrEdgeObject,
+			final String objectName, final Map<String, String> annotationsMap){
+		for(final String key : Arrays.asList(configuration.hashPropertyName, configuration.edgeSymbolsPropertyName)){
+			if(annotationsMap.containsKey(key)){
+				switch(configuration.hashKeyCollisionAction){
+					case REMOVE:
+						annotationsMap.remove(key);
+						break;
+					case DISCARD:
+					default:
+						logger.log(Level.WARNING, objectName + " contains the reserved annotation key '" + key
+								+ "'. Discarded: " + vertexOrEdgeObject);
+						return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private final Map<String, Object> getProperties(final String hashCode, final Map<String, String> annotationsMap){
+		final Map<String, Object> properties = new HashMap<String, Object>(annotationsMap);
+		properties.put(configuration.hashPropertyName, hashCode);
+		return properties;
+	}
+
+	private final void writeNode(final BatchInserter inserter, final AbstractVertex vertex) throws Exception{
+		final String hashCode = vertex.bigHashCode();
+		final int nodeId = (int)getOrAssignNodeId(hashCode);
+		if(writtenNodeIds.get(nodeId) || discardedNodeIds.get(nodeId)){
+			duplicateVertices++;
+			return;
+		}
+		final Map<String, String> annotationsMap = vertex.getCopyOfAnnotations();
+		if(!validateUpdateHashKeyAndKeysInAnnotationMap(vertex, "Vertex", annotationsMap)){
+			discardedNodeIds.set(nodeId);
+			discardedVertices++;
+			return;
+		}
+		final Map<String, Object> properties = getProperties(hashCode, annotationsMap);
+		inserter.createNode(nodeId, properties, configuration.neo4jVertexLabel);
+		nodePropertyNames.addAll(properties.keySet());
+		writtenNodeIds.set(nodeId);
+		nodesWritten++;
+	}
+
+	private final void writeEndpointNodes(final BatchInserter inserter){
+		for(final Map.Entry<String, Long> entry : hashToNodeId.entrySet()){
+			final int nodeId = entry.getValue().intValue();
+			if(!writtenNodeIds.get(nodeId) && !discardedNodeIds.get(nodeId)){
+				inserter.createNode(nodeId, getProperties(entry.getKey(), new HashMap<String, String>()),
+						configuration.neo4jVertexLabel);
+				writtenNodeIds.set(nodeId);
+				endpointNodesWritten++;
+			}
+		}
+		if(endpointNodesWritten > 0){
+			nodePropertyNames.add(configuration.hashPropertyName);
+		}
+	}
+
+	private final void writeRelationship(final BatchInserter inserter, final AbstractEdge edge){
+		final Long childNodeId = hashToNodeId.get(edge.getChildVertex().bigHashCode());
+		final Long parentNodeId = hashToNodeId.get(edge.getParentVertex().bigHashCode());
+		if(childNodeId == null || parentNodeId == null
+				|| !writtenNodeIds.get(childNodeId.intValue()) || !writtenNodeIds.get(parentNodeId.intValue())){
+			discardedEdges++;
+			return;
+		}
+		final Map<String, String> annotationsMap = edge.getCopyOfAnnotations();
+		if(!validateUpdateHashKeyAndKeysInAnnotationMap(edge, "Edge", annotationsMap)){
+			discardedEdges++;
+			return;
+		}
+		final Map<String, Object> properties = getProperties(edge.bigHashCode(), annotationsMap);
+		inserter.createRelationship(childNodeId, parentNodeId, configuration.neo4jEdgeRelationshipType, properties);
+		relationshipPropertyNames.addAll(properties.keySet());
+		relationshipsWritten++;
+	}
+
+	private final void createIndexes() throws Exception{
+		final List<String> nodeKeys = new ArrayList<String>();
+		if(Configuration.IndexMode.ALL.equals(configuration.indexVertexMode)){
+			nodeKeys.addAll(nodePropertyNames);
+		}
+		final List<String> relationshipKeys = new ArrayList<String>();
+		if(Configuration.IndexMode.ALL.equals(configuration.indexEdgeMode)){
+			relationshipKeys.addAll(relationshipPropertyNames);
+		}
+		if(nodeKeys.isEmpty() && relationshipKeys.isEmpty()){
+			logger.log(Level.INFO, "No indexes to create");
+			return;
+		}
+
+		DatabaseManagementServiceBuilder dbServiceBuilder = new DatabaseManagementServiceBuilder(
+				new File(configuration.dbHomeDirectoryFile.getAbsolutePath()));
+		if(configuration.neo4jConfigFilePath != null){
+			dbServiceBuilder = dbServiceBuilder.loadPropertiesFromFile(configuration.neo4jConfigFilePath.getAbsolutePath());
+		}
+		dbServiceBuilder = dbServiceBuilder
+				.setConfig(GraphDatabaseSettings.data_directory, Paths.get(configuration.dbDataDirectoryName))
+				.setConfig(GraphDatabaseSettings.default_database, configuration.dbName);
+		final DatabaseManagementService dbManagementService = dbServiceBuilder.build();
+		try{
+			final List<String> indexNames = new ArrayList<String>();
+			try(final Transaction tx = dbManagementService.database(configuration.dbName).beginTx()){
+				final Schema schema = tx.schema();
+				// Same indexes as TaskCreateIndex
+				for(final String key : nodeKeys){
+					indexNames.add(schema.indexFor(configuration.neo4jVertexLabel).on(key).create().getName());
+				}
+				for(final String key : relationshipKeys){
+					indexNames.add(schema.indexFor(configuration.neo4jEdgeRelationshipType).withIndexType(IndexType.FULLTEXT)
+							.on(key).create().getName());
+				}
+				tx.commit();
+			}
+			logger.log(Level.INFO, "Created " + nodeKeys.size() + " node index(es) and " + relationshipKeys.size()
+					+ " relationship index(es). Waiting for population");
+
+			boolean online = false;
+			while(!online){
+				try(final Transaction tx = dbManagementService.database(configuration.dbName).beginTx()){
+					final Schema schema = tx.schema();
+					try{
+						schema.awaitIndexesOnline(
+								progressIntervalMillis > 0 ? progressIntervalMillis : defaultProgressIntervalSeconds * 1000,
+								TimeUnit.MILLISECONDS);
+						online = true;
+					}catch(IllegalStateException e){
+						// Timed out or failed
+					}
+					float percentageSum = 0;
+					for(final String indexName : indexNames){
+						final IndexDefinition indexDefinition = schema.getIndexByName(indexName);
+						if(Schema.IndexState.FAILED.equals(schema.getIndexState(indexDefinition))){
+							throw new Exception("Index '" + indexName + "' failed: " + schema.getIndexFailure(indexDefinition));
+						}
+						percentageSum += online ? 100 : schema.getIndexPopulationProgress(indexDefinition).getCompletedPercentage();
+					}
+					if(progressIntervalMillis > 0){
+						logger.log(Level.INFO, String.format("Pass 3/3 (indexes): %1.0f%%", percentageSum / indexNames.size()));
+					}
+				}
+			}
+		}finally{
+			dbManagementService.shutdown();
+		}
+	}
+
+	private final void read(final String passName, final DotParser.ElementConsumer consumer) throws Exception{
+		final ProgressReader progressReader = new ProgressReader(
+				new InputStreamReader(new FileInputStream(inputFile), StandardCharsets.UTF_8), passName, inputFile.length());
+		try(final BufferedReader reader = new BufferedReader(progressReader)){
+			switch(format){
+				case DOT:{
+					final DotParser parser = new DotParser(reader);
+					Object element;
+					while((element = parser.next()) != null){
+						consumer.accept(element);
+					}
+					break;
+				}
+				case JSON:{
+					final JSONReader jsonReader = new JSONReader(consumer);
+					jsonReader.launchUnsafe(reader, true, false, false);
+					jsonReader.shutdown();
+					if(jsonReader.error != null){
+						throw jsonReader.error;
+					}
+					break;
+				}
+				default:
+					throw new Exception("Unhandled format: " + format);
+			}
+		}
+		if(progressIntervalMillis > 0){
+			progressReader.log();
+		}
+	}
+
+	/*
+	 * Reuses the parsing (and the vertex and edge construction) of the JSON reporter
+	 */
+	private static final class JSONReader extends spade.reporter.JSON{
+		private final DotParser.ElementConsumer consumer;
+		private Exception error = null;
+
+		private JSONReader(final DotParser.ElementConsumer consumer){
+			this.consumer = consumer;
+		}
+
+		private final void accept(final Object element){
+			if(error != null){
+				return;
+			}
+			try{
+				consumer.accept(element);
+			}catch(Exception e){
+				error = e;
+				throw new RuntimeException("Failed to load element", e);
+			}
+		}
+
+		@Override
+		protected void putVertexToBuffer(final AbstractVertex vertex){
+			accept(vertex);
+		}
+
+		@Override
+		protected void putEdgeToBuffer(final AbstractEdge edge){
+			accept(edge);
+		}
+
+		@Override
+		protected boolean printStats(final boolean force){
+			// No buffer
+			return false;
+		}
+	}
+
+	private final class ProgressReader extends FilterReader{
+		private final String passName;
+		private final long totalBytes;
+		private final long startMillis = System.currentTimeMillis();
+		private long charactersRead = 0;
+		private long lastLoggedMillis = startMillis;
+
+		private ProgressReader(final Reader reader, final String passName, final long totalBytes){
+			super(reader);
+			this.passName = passName;
+			this.totalBytes = totalBytes;
+		}
+
+		@Override
+		public int read() throws IOException{
+			final int c = super.read();
+			if(c != -1){
+				read(1);
+			}
+			return c;
+		}
+
+		@Override
+		public int read(final char[] buffer, final int offset, final int length) throws IOException{
+			final int count = super.read(buffer, offset, length);
+			if(count > 0){
+				read(count);
+			}
+			return count;
+		}
+
+		private final void read(final int count){
+			charactersRead += count;
+			if(progressIntervalMillis > 0 && System.currentTimeMillis() - lastLoggedMillis >= progressIntervalMillis){
+				log();
+			}
+		}
+
+		private final void log(){
+			final long nowMillis = System.currentTimeMillis();
+			final double seconds = Math.max(1, nowMillis - startMillis) / 1000.0;
+			logger.log(Level.INFO, String.format("%s: %1.0f%% of input. Vertices=%d, Edges=%d (%1.0f per second), "
+					+ "Nodes=%d, Relationships=%d",
+					passName, totalBytes <= 0 ? 100.0 : Math.min(100.0, (charactersRead * 100.0) / totalBytes),
+					verticesRead, edgesRead, (verticesRead + edgesRead) / seconds,
+					nodesWritten + endpointNodesWritten, relationshipsWritten));
+			lastLoggedMillis = nowMillis;
+		}
+	}
+
+	public static void main(final String[] args) throws Exception{
+		final String arguments = String.join(" ", args);
+		final Result<HashMap<String, String>> argumentsResult = HelperFunctions.parseKeysValuesInString(arguments);
+		if(argumentsResult.error){
+			throw new Exception("Failed to parse arguments: " + argumentsResult.toErrorString());
+		}
+		final Map<String, String> map = argumentsResult.result;
+
+		final String inputPath = map.get(keyInput);
+		if(HelperFunctions.isNullOrEmpty(inputPath)){
+			System.err.println("Usage: " + BulkLoader.class.getName() + " " + keyInput + "=<path> [" + keyFormat + "=json|dot] ["
+					+ keyProgressIntervalSeconds + "=<n>] [<Neo4j storage key>=<value> ...]");
+			System.exit(1);
+		}
+		final File inputFile = new File(inputPath);
+		if(!inputFile.isFile() || !inputFile.canRead()){
+			throw new Exception("Input must be a readable file: '" + inputFile.getAbsolutePath() + "'");
+		}
+
+		final Format format;
+		final String formatString = map.get(keyFormat);
+		if(HelperFunctions.isNullOrEmpty(formatString)){
+			final String lowerCaseName = inputFile.getName().toLowerCase();
+			format = (lowerCaseName.endsWith(".dot") || lowerCaseName.endsWith(".gv")) ? Format.DOT : Format.JSON;
+		}else{
+			final Result<Format> formatResult = HelperFunctions.parseEnumValue(Format.class, formatString, true);
+			if(formatResult.error){
+				throw new Exception("Invalid value for '" + keyFormat + "': " + formatResult.toErrorString());
+			}
+			format = formatResult.result;
+		}
+
+		final long progressIntervalSeconds;
+		final String progressIntervalSecondsString = map.get(keyProgressIntervalSeconds);
+		if(HelperFunctions.isNullOrEmpty(progressIntervalSecondsString)){
+			progressIntervalSeconds = defaultProgressIntervalSeconds;
+		}else{
+			final Result<Long> progressResult = HelperFunctions.parseLong(progressIntervalSecondsString, 10, 0, Integer.MAX_VALUE);
+			if(progressResult.error){
+				throw new Exception("Invalid value for '" + keyProgressIntervalSeconds + "': " + progressResult.toErrorString());
+			}
+			progressIntervalSeconds = progressResult.result;
+		}
+
+		// The keys above are ignored by the configuration
+		final Result<Configuration> configurationResult = Configuration.initialize(arguments,
+				Settings.getDefaultConfigFilePath(Neo4j.class));
+		if(configurationResult.error){
+			throw new Exception("Invalid Neo4j storage configuration: " + configurationResult.toErrorString());
+		}
+
+		logger.log(Level.INFO, "Loading '" + inputFile.getAbsolutePath() + "' (" + format + ") into '"
+				+ configurationResult.result.finalConstructedDbPath.getAbsolutePath() + "'");
+		new BulkLoader(configurationResult.result, inputFile, format, progressIntervalSeconds).load();
+	}
+}
@@ -19,22 +19,35 @@
  */
 package spade.storage.neo4j;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 
 import spade.core.AbstractScreen;
 import spade.screen.Deduplicate;
 import spade.storage.Neo4j;
+import spade.storage.neo4j.Configuration.VertexCacheMode;
 
 public class CacheManager{
 
+	private static final Logger logger = Logger.getLogger(CacheManager.class.getName());
+
 	private final Object screenLock = new Object();
 	private Deduplicate deduplicateScreen = null;
 	
 	private final Neo4j storage;
+
+	// Replaces the vertex cache in the Deduplicate screen if not null
+	private final NodeIdCache nodeIdCache;
 	
 	public CacheManager(final Neo4j storage){
 		this.storage = storage;
+		this.nodeIdCache = storage.getConfiguration().nodeIdCacheSize > 0
+				? new NodeIdCache(storage.getConfiguration().nodeIdCacheSize) : null;
 		
 		synchronized(screenLock){
 			final AbstractScreen screen = this.storage.findScreen(spade.screen.Deduplicate.class);
@@ -110,6 +123,110 @@ public class CacheManager{
 		}
 	}
 
+	public final NodeIdCache getNodeIdCache(){
+		return nodeIdCache;
+	}
+
+	/**
+	 * Must be called after the transaction in which the vertex cache was updated is closed
+	 * 
+	 * @param committed true if the transaction was committed otherwise false
+	 */
+	public final void transactionClosed(final boolean committed){
+		if(nodeIdCache != null){
+			if(committed){
+				nodeIdCache.committed();
+			}else{
+				nodeIdCache.rolledBack();
+			}
+		}else if(VertexCacheMode.NODE.equals(storage.getConfiguration().vertexCacheMode)){
+			// Clear out the cache because the transaction has been closed and the any nodes in the cache are not usable
+			vertexCacheReset();
+		}
+	}
+
+	/*
+	 * Fills the node id cache with the most recently created vertices i.e. by going down from the highest node id
+	 * (until twice the cache size ids are tried to bound the time spent on deleted ids). Continues with a scan of the
+	 * vertex label if the cache is not full (highest node id not available, or ids of deleted nodes reused).
+	 */
+	public final void nodeIdCacheWarmStart(final Transaction tx){
+		if(nodeIdCache == null){
+			return;
+		}
+		final Configuration configuration = storage.getConfiguration();
+		final long startMillis = System.currentTimeMillis();
+		long nodesRead = 0;
+		final long highId = storage.getDatabaseManager().getNodeHighId();
+		if(highId >= 0){
+			final long lowestNodeId = Math.max(0, highId - 2L * nodeIdCache.getMaximumSize());
+			for(long nodeId = highId - 1; nodeId >= lowestNodeId && !nodeIdCache.isFull(); nodeId--){
+				final Node node;
+				try{
+					node = tx.getNodeById(nodeId);
+				}catch(NotFoundException nfe){
+					continue; // Deleted or never used
+				}
+				nodesRead++;
+				if(node.hasLabel(configuration.neo4jVertexLabel)){
+					final Object hashCode = node.getProperty(configuration.hashPropertyName, null);
+					if(hashCode instanceof String){
+						nodeIdCache.putCommitted((String)hashCode, nodeId);
+					}
+				}
+			}
+		}
+		final boolean labelScanned = !nodeIdCache.isFull();
+		if(labelScanned){
+			try(final ResourceIterator<Node> nodes = tx.findNodes(configuration.neo4jVertexLabel)){
+				while(nodes.hasNext() && !nodeIdCache.isFull()){
+					final Node node = nodes.next();
+					nodesRead++;
+					final Object hashCode = node.getProperty(configuration.hashPropertyName, null);
+					if(hashCode instanceof String && !nodeIdCache.contains((String)hashCode)){
+						nodeIdCache.putCommitted((String)hashCode, node.getId());
+					}
+				}
+			}
+		}
+		logger.log(Level.INFO, "Node id cache warm start: " + nodeIdCache.getCurrentSize() + " vertices cached from "
+				+ nodesRead + " nodes read in " + (System.currentTimeMillis() - startMillis) + " millis"
+				+ " (node high id: " + highId + ", label scanned: " + labelScanned + ")");
+	}
+
+	/**
+	 * @return the node in the current transaction if the vertex is in the cache (and the node has the same hash)
+	 * otherwise null
+	 */
+	public final Node vertexCacheGetCachedNode(final String hashCode, final Transaction tx){
+		if(hashCode == null){
+			return null;
+		}
+		final Object value = vertexCacheGet(hashCode);
+		if(value instanceof Node){
+			return (Node)value;
+		}else if(value instanceof Long){
+			final Node node;
+			try{
+				node = tx.getNodeById((Long)value);
+			}catch(NotFoundException nfe){
+				// Deleted by a query since
+				vertexCacheRemove(hashCode);
+				return null;
+			}
+			// The id can be reused by another node after the cached one is deleted
+			if(!hashCode.equals(node.getProperty(storage.getConfiguration().hashPropertyName, null))){
+				vertexCacheRemove(hashCode);
+				return null;
+			}
+			return node;
+		}else if(value != null){
+			throw new RuntimeException(
+					"Invalid object ("+value+") type in cache. Expected '"+Node.class+"' or '"+Long.class+"' but is '"+value.getClass()+"'");
+		}
+		return null;
+	}
+
 	public final Node executeTaskGetNodeByHashCode(final String hashCode, final Transaction tx){
 		final TaskGetNodeByProperty storageTask = new TaskGetNodeByProperty(
 				storage.getConfiguration().neo4jVertexLabel, storage.getConfiguration().hashPropertyName, hashCode);
@@ -121,6 +238,17 @@ public class CacheManager{
 			return null;
 		}
 
+		if(nodeIdCache != null){
+			Node node = vertexCacheGetCachedNode(hashCode, tx);
+			if(node == null){
+				node = executeTaskGetNodeByHashCode(hashCode, tx);
+				if(node != null){
+					nodeIdCache.put(hashCode, node.getId());
+				}
+			}
+			return node;
+		}
+
 		final Object value = vertexCacheGet(hashCode);
 		if(value != null){
 			try{
@@ -147,6 +275,11 @@ public class CacheManager{
 			return null;
 		}
 
+		if(nodeIdCache != null){
+			final Node node = vertexCacheGetNode(hashCode, tx);
+			return node == null ? null : node.getId();
+		}
+
 		final Object value = vertexCacheGet(hashCode);
 		if(value != null){
 			try{
@@ -170,6 +303,9 @@ public class CacheManager{
 
 	public final Object vertexCacheGet(final String hashCode){
 		if(hashCode != null){
+			if(nodeIdCache != null){
+				return nodeIdCache.get(hashCode);
+			}
 			synchronized(screenLock){
 				if(deduplicateScreen != null){
 					return deduplicateScreen.getVertexCacheValueForStorage(hashCode);
@@ -180,11 +316,31 @@ public class CacheManager{
 	}
 
 	public final void vertexCachePutNode(final String hashCode, final Node value){
-		vertexCachePut(hashCode, value);
+		if(nodeIdCache != null){
+			nodeIdCache.put(hashCode, value.getId());
+		}else{
+			vertexCachePut(hashCode, value);
+		}
 	}
 
 	public final void vertexCachePutNodeId(final String hashCode, final long value){
-		vertexCachePut(hashCode, value);
+		if(nodeIdCache != null){
+			nodeIdCache.put(hashCode, value);
+		}else{
+			vertexCachePut(hashCode, value);
+		}
+	}
+
+	private final void vertexCacheRemove(final String hashCode){
+		if(nodeIdCache != null){
+			nodeIdCache.remove(hashCode);
+		}else{
+			synchronized(screenLock){
+				if(deduplicateScreen != null){
+					deduplicateScreen.setVertexCacheValueForStorage(hashCode, null);
+				}
+			}
+		}
 	}
 
 	public final void vertexCachePut(final String hashCode, final Object value){
@@ -50,11 +50,14 @@ public class Configuration{
 		// Cache management
 		keyVertexCacheMode = "vertexCacheMode",
 		keyEdgeCacheFindMode = "edgeCacheFindMode",
+		keyNodeIdCacheSize = "nodeIdCacheSize",
+		keyNodeIdCacheWarmStart = "nodeIdCacheWarmStart",
 		// Storage buffer management
 		keyFlushBufferSize = "flushBufferSize", 
 		keyFlushAfterSeconds = "flushAfterSeconds",
 		keyBufferLimit = "bufferLimit",
 		keyTransactionTimeoutInSeconds = "transactionTimeoutInSeconds",
+		keyPutBatchSize = "putBatchSize",
 		// Storage and database interaction management
 		keyForceShutdown = "forceShutdown",
 		keyReset = "reset",
@@ -94,11 +97,14 @@ public class Configuration{
 	// Cache management
 	public final VertexCacheMode vertexCacheMode;
 	public final EdgeCacheFindMode edgeCacheFindMode;
+	public final int nodeIdCacheSize;
+	public final boolean nodeIdCacheWarmStart;
 	// Storage buffer management
 	public final int flushBufferSize;
 	public final int flushAfterSeconds;
 	public final int bufferLimit;
 	public final int transactionTimeoutInSeconds;
+	public final int putBatchSize;
 	// Storage and database interaction management
 	public final boolean forceShutdown;
 	public final boolean reset;
@@ -145,11 +151,14 @@ public class Configuration{
 			// Cache management
 			final VertexCacheMode vertexCacheMode,
 			final EdgeCacheFindMode edgeCacheFindMode,
+			final int nodeIdCacheSize,
+			final boolean nodeIdCacheWarmStart,
 			// Storage buffer management
 			final int flushBufferSize, 
 			final int flushAfterSeconds, 
 			final int bufferLimit, 
 			final int transactionTimeoutInSeconds,
+			final int putBatchSize,
 			// Storage and database interaction management
 			final boolean forceShutdown,
 			final boolean reset,
@@ -196,11 +205,14 @@ public class Configuration{
 		// Cache management
 		this.vertexCacheMode = vertexCacheMode;
 		this.edgeCacheFindMode = edgeCacheFindMode;
+		this.nodeIdCacheSize = nodeIdCacheSize;
+		this.nodeIdCacheWarmStart = nodeIdCacheWarmStart;
 		// Storage buffer management
 		this.flushBufferSize = flushBufferSize;
 		this.flushAfterSeconds = flushAfterSeconds;
 		this.bufferLimit = bufferLimit;
 		this.transactionTimeoutInSeconds = transactionTimeoutInSeconds;
+		this.putBatchSize = putBatchSize;
 		// Storage and database interaction management
 		this.forceShutdown = forceShutdown;
 		this.reset = reset;
@@ -409,6 +421,20 @@ public class Configuration{
 			return Result.failed("Invalid value for '" + keyEdgeCacheFindMode + "': '"+edgeCacheFindModeString+"'", null, edgeCacheFindModeResult);
 		}
 		final EdgeCacheFindMode edgeCacheFindMode = edgeCacheFindModeResult.result;
+
+		final String nodeIdCacheSizeString = map.remove(keyNodeIdCacheSize);
+		final Result<Long> nodeIdCacheSizeResult = HelperFunctions.parseLong(nodeIdCacheSizeString, 10, 0, Integer.MAX_VALUE);
+		if(nodeIdCacheSizeResult.error){
+			return Result.failed("Invalid value for '" + keyNodeIdCacheSize + "': '"+nodeIdCacheSizeString+"'", null, nodeIdCacheSizeResult);
+		}
+		final int nodeIdCacheSize = nodeIdCacheSizeResult.result.intValue();
+
+		final String nodeIdCacheWarmStartString = map.remove(keyNodeIdCacheWarmStart);
+		final Result<Boolean> nodeIdCacheWarmStartResult = HelperFunctions.parseBoolean(nodeIdCacheWarmStartString);
+		if(nodeIdCacheWarmStartResult.error){
+			return Result.failed("Invalid value for '" + keyNodeIdCacheWarmStart + "': '"+nodeIdCacheWarmStartString+"'", null, nodeIdCacheWarmStartResult);
+		}
+		final boolean nodeIdCacheWarmStart = nodeIdCacheWarmStartResult.result;
 		// End - Cache management
 
 		// Start - Storage buffer management
@@ -439,6 +465,13 @@ public class Configuration{
 			return Result.failed("Invalid value for '" + keyTransactionTimeoutInSeconds + "': '"+transactionTimeoutInSecondsString+"'", null, transactionTimeoutInSecondsResult);
 		}
 		final int transactionTimeoutInSeconds = transactionTimeoutInSecondsResult.result.intValue();
+
+		final String putBatchSizeString = map.remove(keyPutBatchSize);
+		final Result<Long> putBatchSizeResult = HelperFunctions.parseLong(putBatchSizeString, 10, 1, Integer.MAX_VALUE);
+		if(putBatchSizeResult.error){
+			return Result.failed("Invalid value for '" + keyPutBatchSize + "': '"+putBatchSizeString+"'", null, putBatchSizeResult);
+		}
+		final int putBatchSize = putBatchSizeResult.result.intValue();
 		// End - Storage buffer management
 
 		// Start - Storage and database interaction management
@@ -667,11 +700,14 @@ public class Configuration{
 						// Cache management
 						vertexCacheMode, 
 						edgeCacheFindMode,
+						nodeIdCacheSize,
+						nodeIdCacheWarmStart,
 						// Storage buffer management
 						flushBufferSize, 
 						flushAfterSeconds, 
 						bufferLimit,
 						transactionTimeoutInSeconds,
+						putBatchSize,
 						// Storage and database interaction management
 						forceShutdown, 
 						reset, 
@@ -724,11 +760,14 @@ public class Configuration{
 				// Cache management
 				+ ", " + keyVertexCacheMode + "=" + vertexCacheMode + newLine
 				+ ", " + keyEdgeCacheFindMode + "=" + edgeCacheFindMode + newLine
+				+ ", " + keyNodeIdCacheSize + "=" + nodeIdCacheSize + " (enabled:" + ((nodeIdCacheSize > 0) ? ("yes") : ("no") )+ ")" + newLine
+				+ ", " + keyNodeIdCacheWarmStart + "=" + nodeIdCacheWarmStart + newLine
 				// Storage buffer management
 				+ ", " + keyFlushBufferSize + "=" + flushBufferSize + newLine
 				+ ", " + keyFlushAfterSeconds + "=" + flushAfterSeconds + newLine
 				+ ", " + keyBufferLimit + "=" + bufferLimit + " (buffering:" + ((bufferLimit < 0) ? ("disabled") : ("enabled") )+ ")" + newLine
 				+ ", " + keyTransactionTimeoutInSeconds + "=" + transactionTimeoutInSeconds + " (limited:" + ((transactionTimeoutInSeconds < 0) ? ("no") : ("yes") )+ ")" + newLine
+				+ ", " + keyPutBatchSize + "=" + putBatchSize + newLine
 				// Storage and database interaction management
 				+ ", " + keyForceShutdown + "=" + forceShutdown + newLine
 				+ ", " + keyReset + "=" + reset + newLine
@@ -38,6 +38,9 @@ import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.internal.id.IdGeneratorFactory;
+import org.neo4j.internal.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
 import spade.storage.Neo4j;
 import spade.utility.HelperFunctions;
@@ -378,6 +381,27 @@ public class DatabaseManager{
 		return getGraphDatabaseService().beginTx();
 	}
 	
+	/**
+	 * Uses the internal API because the public API has no way to get the node id range without a scan
+	 * 
+	 * @return one more than the highest node id allocated or -1 if not available
+	 */
+	public final long getNodeHighId(){
+		if(!isUsable()){
+			throw new RuntimeException("Database not initialized or already shutdown");
+		}
+		try{
+			final GraphDatabaseService graphDb = getGraphDatabaseService();
+			if(graphDb instanceof GraphDatabaseAPI){
+				return ((GraphDatabaseAPI)graphDb).getDependencyResolver().resolveDependency(IdGeneratorFactory.class)
+						.get(IdType.NODE).getHighId();
+			}
+		}catch(Throwable t){
+			// ignore
+		}
+		return -1;
+	}
+
 	public final Set<String> getAllLabels(){
 		try(final Transaction tx = beginANewTransaction()){
 			final Iterable<Label> labelIterable = tx.getAllLabelsInUse();
@@ -932,88 +932,38 @@ public class Neo4jInstructionExecutor extends QueryInstructionExecutor{
 	
 	@Override
 	public void getLineage(Graph targetGraph, Graph subjectGraph, Graph startGraph, int depth, Direction direction){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
+		final List<org.neo4j.graphdb.Direction> directions = new ArrayList<org.neo4j.graphdb.Direction>();
 		if(direction.equals(GetLineage.Direction.kAncestor) || direction.equals(GetLineage.Direction.kBoth)){
-			String query = "match ";
-			query += "p=(a:"+startGraph.name+":"+subjectGraph.name+")"
-					+ "-[e0*0.."+depth+"]->"
-					+ "(b:"+subjectGraph.name+") ";
-			if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-				query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-			}
-			query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-			query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-			storage.executeQuery(query);
+			directions.add(org.neo4j.graphdb.Direction.OUTGOING);
 		}
-		
 		if(direction.equals(GetLineage.Direction.kDescendant) || direction.equals(GetLineage.Direction.kBoth)){
-			String query = "match ";
-			query += "p=(a:"+subjectGraph.name+")"
-					+ "-[e0*0.."+depth+"]->"
-					+ "(b:"+startGraph.name+":"+subjectGraph.name+") ";
-			if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-				query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-			}
-			query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-			query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-			storage.executeQuery(query);
+			directions.add(org.neo4j.graphdb.Direction.INCOMING);
 		}
+		storage.executeQueryAndBlockForResult(TaskTraversal.lineage(targetGraph.name, subjectGraph.name,
+				neo4jQueryEnvironment.isBaseGraph(subjectGraph), startGraph.name, depth, directions,
+				neo4jQueryEnvironment.edgeLabelsPropertyName));
+	}
+
+	private void getPath(TaskTraversal.Type type, Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph,
+			int maxDepth){
+		storage.executeQueryAndBlockForResult(TaskTraversal.path(type, targetGraph.name, subjectGraph.name,
+				neo4jQueryEnvironment.isBaseGraph(subjectGraph), srcGraph.name, dstGraph.name, maxDepth,
+				neo4jQueryEnvironment.edgeLabelsPropertyName));
 	}
 
 	@Override
 	public void getSimplePath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match ";
-		query += "p=(a:"+srcGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+dstGraph.name+":"+subjectGraph.name+") ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
+		getPath(TaskTraversal.Type.SIMPLE_PATH, targetGraph, subjectGraph, srcGraph, dstGraph, maxDepth);
 	}
 	
 	@Override
 	public void getLink(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match ";
-		query += "p=(a:"+srcGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+dstGraph.name+":"+subjectGraph.name+") ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
-		
-		query = "match ";
-		query += "p=(a:"+dstGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+srcGraph.name+":"+subjectGraph.name+") ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
+		getPath(TaskTraversal.Type.LINK, targetGraph, subjectGraph, srcGraph, dstGraph, maxDepth);
 	}
 
 	@Override
 	public void getShortestPath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		final String edgeProperty = "e1.`"+neo4jQueryEnvironment.edgeLabelsPropertyName+"`";
-		String query = "match ";
-		query += "p=shortestPath((a:"+srcGraph.name+":"+subjectGraph.name+")"
-				+ "-[e0*0.."+maxDepth+"]->"
-				+ "(b:"+dstGraph.name+":"+subjectGraph.name+")) ";
-		if(!neo4jQueryEnvironment.isBaseGraph(subjectGraph)){
-			query += " where all(e1 in relationships(p) where " + edgeProperty + " contains '," + subjectGraph.name + ",') ";
-		}
-		query += " foreach (n in nodes(p) | set n:" + targetGraph.name + ") ";
-		query += " foreach (e in relationships(p) | " + buildSubqueryForUpdatingEdgeSymbols("e", targetGraph.name) + ");";
-		storage.executeQuery(query);
+		getPath(TaskTraversal.Type.SHORTEST_PATH, targetGraph, subjectGraph, srcGraph, dstGraph, maxDepth);
 	}
 
 	@Override
@@ -0,0 +1,134 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.neo4j;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import spade.utility.map.external.cache.TinyLFUCache;
+
+/*
+ * Vertex hash to Neo4j internal node id.
+ * 
+ * Independent of the Deduplicate screen and valid across transactions because only the ids are kept (the node is
+ * fetched by id in the current transaction). Backed by a W-TinyLFU cache so that the endpoints resolved repeatedly
+ * (like long-running processes) are retained over the ones seen once.
+ * 
+ * Node ids are reused by Neo4j after a rollback. Therefore, the hashes put since the last commit are removed if the
+ * transaction is rolled back.
+ * 
+ * Thread-safe.
+ */
+public class NodeIdCache{
+
+	private final TinyLFUCache<String, Long> cache;
+
+	private final Object uncommittedLock = new Object();
+	private final Set<String> uncommittedHashCodes = new HashSet<String>();
+
+	public NodeIdCache(final int maximumSize){
+		if(maximumSize < 1){
+			throw new IllegalArgumentException("Maximum size must be greater than zero: " + maximumSize);
+		}
+		this.cache = new TinyLFUCache<String, Long>(maximumSize);
+	}
+
+	public final Long get(final String hashCode){
+		if(hashCode == null){
+			return null;
+		}
+		return cache.get(hashCode);
+	}
+
+	/**
+	 * Doesn't count as an access
+	 */
+	public final boolean contains(final String hashCode){
+		return hashCode != null && cache.contains(hashCode);
+	}
+
+	public final void put(final String hashCode, final long nodeId){
+		if(hashCode == null){
+			return;
+		}
+		synchronized(uncommittedLock){
+			uncommittedHashCodes.add(hashCode);
+		}
+		putCommitted(hashCode, nodeId);
+	}
+
+	/**
+	 * For the nodes known to be committed (i.e. read from the store outside of the current transaction)
+	 */
+	public final void putCommitted(final String hashCode, final long nodeId){
+		if(hashCode == null){
+			return;
+		}
+		cache.put(hashCode, nodeId);
+		while(cache.hasExceededMaximumSize()){
+			cache.evict();
+		}
+	}
+
+	public final void remove(final String hashCode){
+		if(hashCode != null){
+			cache.remove(hashCode);
+		}
+	}
+
+	public final void committed(){
+		synchronized(uncommittedLock){
+			uncommittedHashCodes.clear();
+		}
+	}
+
+	public final void rolledBack(){
+		synchronized(uncommittedLock){
+			for(final String hashCode : uncommittedHashCodes){
+				cache.remove(hashCode);
+			}
+			uncommittedHashCodes.clear();
+		}
+	}
+
+	public final void clear(){
+		synchronized(uncommittedLock){
+			uncommittedHashCodes.clear();
+		}
+		cache.clear();
+	}
+
+	public final int getCurrentSize(){
+		return cache.getCurrentSize();
+	}
+
+	public final int getMaximumSize(){
+		return cache.getMaximumSize();
+	}
+
+	public final boolean isFull(){
+		return cache.getCurrentSize() >= cache.getMaximumSize();
+	}
+
+	@Override
+	public String toString(){
+		return "NodeIdCache [" + cache.getStats() + "]";
+	}
+}
@@ -41,6 +41,9 @@ public class StorageStats{
 	public final StorageStat pendingTasksIncoming = new StorageStat("Pending Tasks Incoming");
 	public final StorageStat pendingTasksOutgoing = new StorageStat("Pending Tasks Outgoing");
 
+	public final BatchStat putBatches = new BatchStat("Put Batches");
+	public final BatchStat traversals = new BatchStat("Traversals");
+
 	private final boolean timeMe;
 	private final boolean reportingEnabled;
 	private final long reportingStartedAtMillis;
@@ -85,6 +88,9 @@ public class StorageStats{
 				logger.log(Level.INFO,
 						pendingTasksOutgoing.format(elapsedTimeSinceStartMillis, elapsedTimeSinceIntervalMillis));
 
+				logger.log(Level.INFO, putBatches.format());
+				logger.log(Level.INFO, traversals.format());
+
 				logger.log(Level.INFO,
 						String.format("JVM Heap Size In Use: %.3f GB",
 								((double)(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()))
@@ -116,6 +122,9 @@ public class StorageStats{
 
 				pendingTasksIncoming.newInterval();
 				pendingTasksOutgoing.newInterval();
+
+				putBatches.newInterval();
+				traversals.newInterval();
 				
 				this.lastReportedAtMillis = System.currentTimeMillis();
 			}
@@ -189,6 +198,52 @@ public class StorageStats{
 		}
 	}
 	
+	/*
+	 * Count, size and time of batches. Always on (unlike the action timers) because the cost is per batch.
+	 */
+	public final static class BatchStat{
+		private final String name;
+		private long batchesSinceEpoch = 0, elementsSinceEpoch = 0, millisSinceEpoch = 0;
+		private long batchesSinceLastInterval = 0, elementsSinceLastInterval = 0, millisSinceLastInterval = 0;
+		private long maxMillisSinceLastInterval = 0;
+
+		private BatchStat(final String name){
+			this.name = name;
+		}
+
+		public synchronized final void record(final int elements, final long millis){
+			batchesSinceEpoch++;
+			elementsSinceEpoch += elements;
+			millisSinceEpoch += millis;
+			batchesSinceLastInterval++;
+			elementsSinceLastInterval += elements;
+			millisSinceLastInterval += millis;
+			maxMillisSinceLastInterval = Math.max(maxMillisSinceLastInterval, millis);
+		}
+
+		synchronized final void newInterval(){
+			batchesSinceLastInterval = 0;
+			elementsSinceLastInterval = 0;
+			millisSinceLastInterval = 0;
+			maxMillisSinceLastInterval = 0;
+		}
+
+		private static double getElementsPerSecond(final long elements, final long millis){
+			return millis <= 0 ? Double.NaN : ((double)elements) / (((double)millis) / 1000.0);
+		}
+
+		synchronized String format(){
+			return String.format("%s. Overall [batches=%s, elements=%s, seconds=%.3f, elements per second=%.3f]. "
+					+ "Interval [batches=%s, elements=%s, seconds=%.3f, max batch seconds=%.3f, elements per second=%.3f]",
+					this.name,
+					batchesSinceEpoch, elementsSinceEpoch, ((double)millisSinceEpoch) / 1000.0,
+					getElementsPerSecond(elementsSinceEpoch, millisSinceEpoch),
+					batchesSinceLastInterval, elementsSinceLastInterval, ((double)millisSinceLastInterval) / 1000.0,
+					((double)maxMillisSinceLastInterval) / 1000.0,
+					getElementsPerSecond(elementsSinceLastInterval, millisSinceLastInterval));
+		}
+	}
+
 	public final static class ActionTimer{
 		private long count = 0;
 		private long sum = 0;
@@ -0,0 +1,253 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.storage.Neo4j;
+import spade.storage.neo4j.Configuration.VertexCacheMode;
+
+/*
+ * Consecutive vertex and edge puts executed together in the current transaction:
+ * 	1. Vertices (and edge endpoints) not in the vertex cache are deduplicated and then looked up in the database
+ * 	2. Vertices not found are created
+ * 	3. Edges not in the edge cache are created between the resolved nodes
+ * 	4. The property names seen are updated once (for indexing)
+ * 
+ * A vertex or edge which collides with the reserved keys is discarded (as per 'hashKeyCollisionAction') without
+ * failing the rest of the batch. Edges with a discarded endpoint are discarded too.
+ */
+public class TaskPutBatch extends StorageTask<Void>{
+
+	private final List<AbstractVertex> vertices = new ArrayList<AbstractVertex>();
+	private final List<AbstractEdge> edges = new ArrayList<AbstractEdge>();
+
+	@Override
+	public String toString(){
+		return "TaskPutBatch [vertices=" + vertices.size() + ", edges=" + edges.size() + "]";
+	}
+
+	public TaskPutBatch(){
+		super(false, false);
+	}
+
+	/**
+	 * @return true if the task was a put task and added otherwise false
+	 */
+	public final boolean add(final StorageTask<?> task){
+		if(task instanceof TaskPutVertex){
+			vertices.add(((TaskPutVertex)task).getVertex());
+			return true;
+		}else if(task instanceof TaskPutEdge){
+			edges.add(((TaskPutEdge)task).getEdge());
+			return true;
+		}
+		return false;
+	}
+
+	public final int size(){
+		return vertices.size() + edges.size();
+	}
+
+	private final void addVertexToPut(final Map<String, AbstractVertex> hashToVertex, final AbstractVertex vertex) throws Exception{
+		if(vertex == null){
+			throw new Exception("NULL vertex to put");
+		}
+		final String hashCode = vertex.bigHashCode();
+		if(hashCode == null){
+			throw new Exception("NULL hash code for vertex to put: " + vertex);
+		}
+		if(!hashToVertex.containsKey(hashCode)){
+			hashToVertex.put(hashCode, vertex);
+		}
+	}
+
+	private final void putCachedNode(final Neo4j storage, final String hashCode, final Node node){
+		if(VertexCacheMode.ID.equals(storage.getConfiguration().vertexCacheMode)){
+			storage.getCacheManager().vertexCachePutNodeId(hashCode, node.getId());
+		}else{
+			storage.getCacheManager().vertexCachePutNode(hashCode, node);
+		}
+	}
+
+	/*
+	 * Finds the nodes (by hash) in the database. Index lookups with the core API instead of an 'unwind' query
+	 * because the database is embedded (no round trips to save) and the query adds planning and conversion overhead
+	 */
+	private final Map<String, Node> findNodes(final Neo4j storage, final Transaction tx, final Set<String> hashCodes){
+		final Map<String, Node> hashToNode = new HashMap<String, Node>();
+		if(hashCodes.isEmpty()){
+			return hashToNode;
+		}
+		final Configuration configuration = storage.getConfiguration();
+		storage.getStorageStats().startActionTimer("BATCH-NODE-FIND");
+		try{
+			for(final String hashCode : hashCodes){
+				final Node node = tx.findNode(configuration.neo4jVertexLabel, configuration.hashPropertyName, hashCode);
+				if(node != null){
+					hashToNode.put(hashCode, node);
+				}
+			}
+		}finally{
+			storage.getStorageStats().stopActionTimer("BATCH-NODE-FIND");
+		}
+		return hashToNode;
+	}
+
+	@Override
+	public final Void execute(final Neo4j storage, final Transaction tx) throws Exception{
+		final long startMillis = System.currentTimeMillis();
+		final Configuration configuration = storage.getConfiguration();
+
+		final Map<String, AbstractVertex> hashToVertex = new LinkedHashMap<String, AbstractVertex>();
+		for(final AbstractVertex vertex : vertices){
+			addVertexToPut(hashToVertex, vertex);
+		}
+		for(final AbstractEdge edge : edges){
+			if(edge == null){
+				throw new Exception("NULL edge to put");
+			}
+			if(edge.getChildVertex() == null){
+				throw new RuntimeException("Child vertex is NULL. Failed to put edge: " + edge);
+			}
+			if(edge.getParentVertex() == null){
+				throw new RuntimeException("Parent vertex is NULL. Failed to put edge: " + edge);
+			}
+			addVertexToPut(hashToVertex, edge.getChildVertex());
+			addVertexToPut(hashToVertex, edge.getParentVertex());
+		}
+
+		// Resolve from the cache and then from the database
+		final Map<String, Node> hashToNode = new HashMap<String, Node>();
+		final Set<String> unresolvedHashCodes = new HashSet<String>();
+		for(final String hashCode : hashToVertex.keySet()){
+			final Node node = storage.getCacheManager().vertexCacheGetCachedNode(hashCode, tx);
+			if(node == null){
+				storage.getStorageStats().vertexCacheMiss.increment();
+				unresolvedHashCodes.add(hashCode);
+			}else{
+				storage.getStorageStats().vertexCacheHit.increment();
+				hashToNode.put(hashCode, node);
+			}
+		}
+		for(final Map.Entry<String, Node> entry : findNodes(storage, tx, unresolvedHashCodes).entrySet()){
+			storage.getStorageStats().vertexDbHit.increment();
+			hashToNode.put(entry.getKey(), entry.getValue());
+			putCachedNode(storage, entry.getKey(), entry.getValue());
+		}
+
+		// Create the rest
+		final Set<String> nodePropertyNames = new HashSet<String>();
+		storage.getStorageStats().startActionTimer("BATCH-NODE-CREATE");
+		try{
+			for(final Map.Entry<String, AbstractVertex> entry : hashToVertex.entrySet()){
+				final String hashCode = entry.getKey();
+				if(hashToNode.containsKey(hashCode)){
+					continue;
+				}
+				final AbstractVertex vertex = entry.getValue();
+				final Map<String, String> annotations = vertex.getCopyOfAnnotations();
+				try{
+					storage.validateUpdateHashKeyAndKeysInAnnotationMap(vertex, "Vertex", annotations);
+				}catch(Exception e){
+					storage.debug(e.getMessage());
+					continue;
+				}
+				final Node node = tx.createNode(configuration.neo4jVertexLabel);
+				node.setProperty(configuration.hashPropertyName, hashCode);
+				for(final Map.Entry<String, String> annotation : annotations.entrySet()){
+					if(annotation.getKey() == null){
+						throw new Exception("NULL key in vertex: " + vertex);
+					}
+					node.setProperty(annotation.getKey(), annotation.getValue());
+				}
+				nodePropertyNames.addAll(annotations.keySet());
+				hashToNode.put(hashCode, node);
+				putCachedNode(storage, hashCode, node);
+				storage.getStorageStats().vertexCount.increment();
+			}
+		}finally{
+			storage.getStorageStats().stopActionTimer("BATCH-NODE-CREATE");
+		}
+		if(!nodePropertyNames.isEmpty()){
+			nodePropertyNames.add(configuration.hashPropertyName);
+			storage.updateNodePropertyNames(nodePropertyNames);
+		}
+
+		final Set<String> relationshipPropertyNames = new HashSet<String>();
+		storage.getStorageStats().startActionTimer("BATCH-RELATIONSHIP-CREATE");
+		try{
+			for(final AbstractEdge edge : edges){
+				final String hashCode = edge.bigHashCode();
+				if(hashCode == null){
+					throw new Exception("NULL hash code for edge to put: " + edge);
+				}
+				if(storage.getCacheManager().edgeCacheGet(hashCode, tx) != null){
+					continue;
+				}
+				final Node childNode = hashToNode.get(edge.getChildVertex().bigHashCode());
+				final Node parentNode = hashToNode.get(edge.getParentVertex().bigHashCode());
+				if(childNode == null || parentNode == null){
+					storage.debug("Edge discarded because of discarded endpoint(s): " + edge);
+					continue;
+				}
+				final Map<String, String> annotations = edge.getCopyOfAnnotations();
+				try{
+					storage.validateUpdateHashKeyAndKeysInAnnotationMap(edge, "Edge", annotations);
+				}catch(Exception e){
+					storage.debug(e.getMessage());
+					continue;
+				}
+				final Relationship relationship = childNode.createRelationshipTo(parentNode, configuration.neo4jEdgeRelationshipType);
+				relationship.setProperty(configuration.hashPropertyName, hashCode);
+				for(final Map.Entry<String, String> annotation : annotations.entrySet()){
+					if(annotation.getKey() == null){
+						throw new Exception("NULL key in edge: " + edge);
+					}
+					relationship.setProperty(annotation.getKey(), annotation.getValue());
+				}
+				relationshipPropertyNames.addAll(annotations.keySet());
+				storage.getCacheManager().edgeCachePut(hashCode, true);
+				storage.getStorageStats().edgeCount.increment();
+			}
+		}finally{
+			storage.getStorageStats().stopActionTimer("BATCH-RELATIONSHIP-CREATE");
+		}
+		if(!relationshipPropertyNames.isEmpty()){
+			relationshipPropertyNames.add(configuration.hashPropertyName);
+			storage.updateRelationshipPropertyNames(relationshipPropertyNames);
+		}
+
+		storage.getStorageStats().putBatches.record(size(), System.currentTimeMillis() - startMillis);
+		return null;
+	}
+}
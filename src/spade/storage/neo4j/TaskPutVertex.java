@@ -31,6 +31,10 @@ import spade.storage.neo4j.Configuration.VertexCacheMode;
 public class TaskPutVertex extends StorageTask<Node>{
 	private final AbstractVertex vertex;
 
+	public final AbstractVertex getVertex(){
+		return vertex;
+	}
+
 	@Override
 	public String toString(){
 		return "TaskPutVertex [vertex=" + vertex + "]";
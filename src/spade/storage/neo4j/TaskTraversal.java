@@ -0,0 +1,469 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PathExpander;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.BranchState;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import spade.storage.Neo4j;
+
+/*
+ * Lineage and path queries evaluated with the traversal API instead of variable-length Cypher patterns (which
+ * enumerate every path).
+ * 
+ * All traversals are breadth-first with global node uniqueness so that every vertex is visited once at its minimum
+ * depth. Only the relationships in the subject graph (by edge symbol), and the nodes in the subject graph (by label)
+ * are followed. Edge 'a -> b' means 'a' is the child, and 'b' is the parent.
+ * 
+ * 	1. Lineage: the vertices within depth of the start vertices, and the edges from the vertices at less than depth.
+ * 	2. Simple path: the vertices and edges on the paths (of at most max depth) from the source to the destination
+ * 		vertices. First pass from the smaller side records the depth of the vertices. Second pass from the other side
+ * 		follows an edge only if a path through it fits in max depth.
+ * 	3. Link: simple paths from source to destination, and from destination to source.
+ * 	4. Shortest path: one shortest path for each source and destination pair found with a bidirectional
+ * 		breadth-first search (expanding the smaller frontier). Only the destinations reachable from the sources (in
+ * 		one multi-source pass) are paired.
+ * 
+ * The traversals read in the transaction of the task (which can time out). The results are written in separate
+ * transactions of 'flushBufferSize' elements each i.e. the target label on the vertices, and the target symbol in
+ * the edge symbols property of the edges. The time of each query is recorded in the 'traversals' stat.
+ */
+public class TaskTraversal extends StorageTask<Void>{
+
+	public enum Type{ LINEAGE, SIMPLE_PATH, LINK, SHORTEST_PATH };
+
+	private final Type type;
+	private final String targetGraphName;
+	private final String subjectGraphName;
+	private final boolean subjectIsBaseGraph;
+	private final String srcGraphName;
+	private final String dstGraphName; // Null for lineage
+	private final int maxDepth;
+	private final List<Direction> lineageDirections = new ArrayList<Direction>();
+	private final String edgeSymbolsPropertyName;
+
+	private final Set<Long> resultNodeIds = new HashSet<Long>();
+	private final Set<Long> resultRelationshipIds = new HashSet<Long>();
+
+	@Override
+	public String toString(){
+		return "TaskTraversal [type=" + type + ", targetGraphName=" + targetGraphName + ", subjectGraphName="
+				+ subjectGraphName + ", srcGraphName=" + srcGraphName + ", dstGraphName=" + dstGraphName
+				+ ", maxDepth=" + maxDepth + ", lineageDirections=" + lineageDirections + "]";
+	}
+
+	private TaskTraversal(final Type type, final String targetGraphName, final String subjectGraphName,
+			final boolean subjectIsBaseGraph, final String srcGraphName, final String dstGraphName, final int maxDepth,
+			final List<Direction> lineageDirections, final String edgeSymbolsPropertyName){
+		super(true, true);
+		this.type = type;
+		this.targetGraphName = targetGraphName;
+		this.subjectGraphName = subjectGraphName;
+		this.subjectIsBaseGraph = subjectIsBaseGraph;
+		this.srcGraphName = srcGraphName;
+		this.dstGraphName = dstGraphName;
+		this.maxDepth = maxDepth;
+		if(lineageDirections != null){
+			this.lineageDirections.addAll(lineageDirections);
+		}
+		this.edgeSymbolsPropertyName = edgeSymbolsPropertyName;
+	}
+
+	/**
+	 * @param directions OUTGOING for ancestors, and INCOMING for descendants
+	 */
+	public static TaskTraversal lineage(final String targetGraphName, final String subjectGraphName,
+			final boolean subjectIsBaseGraph, final String startGraphName, final int depth,
+			final List<Direction> directions, final String edgeSymbolsPropertyName){
+		return new TaskTraversal(Type.LINEAGE, targetGraphName, subjectGraphName, subjectIsBaseGraph, startGraphName,
+				null, depth, directions, edgeSymbolsPropertyName);
+	}
+
+	public static TaskTraversal path(final Type type, final String targetGraphName, final String subjectGraphName,
+			final boolean subjectIsBaseGraph, final String srcGraphName, final String dstGraphName, final int maxDepth,
+			final String edgeSymbolsPropertyName){
+		if(type == Type.LINEAGE){
+			throw new IllegalArgumentException("Not a path type: " + type);
+		}
+		return new TaskTraversal(type, targetGraphName, subjectGraphName, subjectIsBaseGraph, srcGraphName,
+				dstGraphName, maxDepth, null, edgeSymbolsPropertyName);
+	}
+
+	private final boolean isInSubject(final Node node, final Label subjectLabel){
+		return subjectIsBaseGraph || node.hasLabel(subjectLabel);
+	}
+
+	private final boolean isInSubject(final Relationship relationship, final String subjectSymbol){
+		if(subjectIsBaseGraph){
+			return true;
+		}
+		final Object symbols = relationship.getProperty(edgeSymbolsPropertyName, null);
+		return symbols != null && String.valueOf(symbols).contains(subjectSymbol);
+	}
+
+	/*
+	 * Relationships of the node (in the direction) in the subject graph
+	 */
+	private final List<Relationship> getSubjectRelationships(final Neo4j storage, final Node node,
+			final Direction direction){
+		final Label subjectLabel = Label.label(subjectGraphName);
+		final String subjectSymbol = "," + subjectGraphName + ",";
+		final List<Relationship> relationships = new ArrayList<Relationship>();
+		for(final Relationship relationship
+				: node.getRelationships(direction, storage.getConfiguration().neo4jEdgeRelationshipType)){
+			if(isInSubject(relationship, subjectSymbol) && isInSubject(relationship.getOtherNode(node), subjectLabel)){
+				relationships.add(relationship);
+			}
+		}
+		return relationships;
+	}
+
+	private final List<Node> getNodes(final Transaction tx, final String graphName){
+		final Label label = Label.label(graphName);
+		final Label subjectLabel = Label.label(subjectGraphName);
+		final List<Node> nodes = new ArrayList<Node>();
+		try(final ResourceIterator<Node> iterator = tx.findNodes(label)){
+			while(iterator.hasNext()){
+				final Node node = iterator.next();
+				if(isInSubject(node, subjectLabel)){
+					nodes.add(node);
+				}
+			}
+		}
+		return nodes;
+	}
+
+	// The only public entry point to the traversal framework in this version of the API is deprecated
+	@SuppressWarnings("deprecation")
+	private final TraversalDescription getDescription(final Transaction tx, final int depth,
+			final PathExpander<?> expander){
+		return tx.traversalDescription()
+				.breadthFirst()
+				.uniqueness(Uniqueness.NODE_GLOBAL)
+				.expand(expander)
+				.evaluator(Evaluators.toDepth(depth));
+	}
+
+	/*
+	 * Follows the subject relationships in one direction. Records a relationship if accepted by the filter.
+	 * Only called for the paths which are not pruned (i.e. less than the max depth).
+	 */
+	private abstract class SubjectExpander implements PathExpander<Void>{
+		private final Neo4j storage;
+		private final Direction direction;
+		private final Set<Long> relationshipIds;
+		private SubjectExpander(final Neo4j storage, final Direction direction, final Set<Long> relationshipIds){
+			this.storage = storage;
+			this.direction = direction;
+			this.relationshipIds = relationshipIds;
+		}
+		abstract boolean accept(final Path path, final Relationship relationship);
+		@Override
+		public Iterable<Relationship> expand(final Path path, final BranchState<Void> state){
+			final List<Relationship> accepted = new ArrayList<Relationship>();
+			for(final Relationship relationship : getSubjectRelationships(storage, path.endNode(), direction)){
+				if(accept(path, relationship)){
+					if(relationshipIds != null){
+						relationshipIds.add(relationship.getId());
+					}
+					accepted.add(relationship);
+				}
+			}
+			return accepted;
+		}
+		@Override
+		public PathExpander<Void> reverse(){
+			final SubjectExpander forward = this;
+			return new SubjectExpander(storage, direction.reverse(), relationshipIds){
+				@Override
+				boolean accept(final Path path, final Relationship relationship){
+					return forward.accept(path, relationship);
+				}
+			};
+		}
+	}
+
+	private final void traverseLineage(final Neo4j storage, final Transaction tx, final Direction direction){
+		final SubjectExpander expander = new SubjectExpander(storage, direction, resultRelationshipIds){
+			@Override
+			boolean accept(final Path path, final Relationship relationship){
+				return true;
+			}
+		};
+		for(final Path path : getDescription(tx, maxDepth, expander).traverse(getNodes(tx, srcGraphName))){
+			resultNodeIds.add(path.endNode().getId());
+		}
+	}
+
+	/*
+	 * First pass records the depth of the vertices from the first side. Second pass from the other side only follows
+	 * the relationships (and includes the vertices) through which a path fits in the max depth.
+	 */
+	private final void traverseSimplePath(final Neo4j storage, final Transaction tx, final String fromGraphName,
+			final String toGraphName){
+		final List<Node> fromNodes = getNodes(tx, fromGraphName);
+		final List<Node> toNodes = getNodes(tx, toGraphName);
+		if(fromNodes.isEmpty() || toNodes.isEmpty()){
+			return;
+		}
+		final boolean forwardFirst = fromNodes.size() <= toNodes.size();
+		final List<Node> firstNodes = forwardFirst ? fromNodes : toNodes;
+		final List<Node> secondNodes = forwardFirst ? toNodes : fromNodes;
+		final Direction firstDirection = forwardFirst ? Direction.OUTGOING : Direction.INCOMING;
+
+		final Map<Long, Integer> firstDepths = new HashMap<Long, Integer>();
+		final SubjectExpander firstExpander = new SubjectExpander(storage, firstDirection, null){
+			@Override
+			boolean accept(final Path path, final Relationship relationship){
+				return true;
+			}
+		};
+		for(final Path path : getDescription(tx, maxDepth, firstExpander).traverse(firstNodes)){
+			firstDepths.put(path.endNode().getId(), path.length());
+		}
+
+		final List<Node> secondStartNodes = new ArrayList<Node>();
+		for(final Node node : secondNodes){
+			if(firstDepths.containsKey(node.getId())){
+				secondStartNodes.add(node);
+			}
+		}
+		if(secondStartNodes.isEmpty()){
+			return;
+		}
+		final SubjectExpander secondExpander = new SubjectExpander(storage, firstDirection.reverse(), resultRelationshipIds){
+			@Override
+			boolean accept(final Path path, final Relationship relationship){
+				final Integer firstDepth = firstDepths.get(relationship.getOtherNodeId(path.endNode().getId()));
+				return firstDepth != null && path.length() + 1 + firstDepth <= maxDepth;
+			}
+		};
+		for(final Path path : getDescription(tx, maxDepth, secondExpander).traverse(secondStartNodes)){
+			resultNodeIds.add(path.endNode().getId());
+		}
+	}
+
+	/*
+	 * Expands all the nodes in the frontier (at 'depth') by one level. Visited map is from node id to the relationship
+	 * id it was reached by (-1 for the start nodes), and depths map is from node id to its depth. Returns the next
+	 * frontier and adds the nodes visited by the other side to 'meeting'.
+	 */
+	private final List<Long> expandFrontier(final Neo4j storage, final Transaction tx, final List<Long> frontier,
+			final int depth, final Direction direction, final Map<Long, Long> visited, final Map<Long, Integer> depths,
+			final Map<Long, Long> otherVisited, final Set<Long> meeting){
+		final List<Long> next = new ArrayList<Long>();
+		for(final Long nodeId : frontier){
+			final Node node = tx.getNodeById(nodeId);
+			for(final Relationship relationship : getSubjectRelationships(storage, node, direction)){
+				final long otherNodeId = relationship.getOtherNodeId(nodeId);
+				if(!visited.containsKey(otherNodeId)){
+					visited.put(otherNodeId, relationship.getId());
+					depths.put(otherNodeId, depth + 1);
+					next.add(otherNodeId);
+					if(otherVisited.containsKey(otherNodeId)){
+						meeting.add(otherNodeId);
+					}
+				}
+			}
+		}
+		return next;
+	}
+
+	private final void addPathToStart(final Transaction tx, long nodeId, final Map<Long, Long> visited){
+		resultNodeIds.add(nodeId);
+		Long relationshipId;
+		while((relationshipId = visited.get(nodeId)) != null && relationshipId >= 0){
+			resultRelationshipIds.add(relationshipId);
+			nodeId = tx.getRelationshipById(relationshipId).getOtherNodeId(nodeId);
+			resultNodeIds.add(nodeId);
+		}
+	}
+
+	/*
+	 * Bidirectional breadth-first search between the source and the destination node (expanding the smaller frontier).
+	 * Adds one shortest path if found within the max depth. The nodes met in the last expansion can be at different
+	 * depths from the other side so the path is through the one with the smallest sum of the depths (and then the
+	 * smallest id).
+	 */
+	private final void traverseShortestPath(final Neo4j storage, final Transaction tx, final long srcNodeId,
+			final long dstNodeId){
+		final Map<Long, Long> forwardVisited = new HashMap<Long, Long>();
+		final Map<Long, Long> backwardVisited = new HashMap<Long, Long>();
+		final Map<Long, Integer> forwardDepths = new HashMap<Long, Integer>();
+		final Map<Long, Integer> backwardDepths = new HashMap<Long, Integer>();
+		List<Long> forwardFrontier = new ArrayList<Long>();
+		List<Long> backwardFrontier = new ArrayList<Long>();
+		forwardVisited.put(srcNodeId, -1L);
+		forwardDepths.put(srcNodeId, 0);
+		forwardFrontier.add(srcNodeId);
+		backwardVisited.put(dstNodeId, -1L);
+		backwardDepths.put(dstNodeId, 0);
+		backwardFrontier.add(dstNodeId);
+		final Set<Long> meeting = new HashSet<Long>();
+		if(srcNodeId == dstNodeId){
+			meeting.add(srcNodeId);
+		}
+		int forwardDepth = 0, backwardDepth = 0;
+		while(meeting.isEmpty() && forwardDepth + backwardDepth < maxDepth
+				&& !forwardFrontier.isEmpty() && !backwardFrontier.isEmpty()){
+			if(forwardFrontier.size() <= backwardFrontier.size()){
+				forwardFrontier = expandFrontier(storage, tx, forwardFrontier, forwardDepth, Direction.OUTGOING,
+						forwardVisited, forwardDepths, backwardVisited, meeting);
+				forwardDepth++;
+			}else{
+				backwardFrontier = expandFrontier(storage, tx, backwardFrontier, backwardDepth, Direction.INCOMING,
+						backwardVisited, backwardDepths, forwardVisited, meeting);
+				backwardDepth++;
+			}
+		}
+		if(!meeting.isEmpty()){
+			long meetingNodeId = -1;
+			int meetingLength = Integer.MAX_VALUE;
+			for(final Long nodeId : meeting){
+				final int length = forwardDepths.get(nodeId) + backwardDepths.get(nodeId);
+				if(length < meetingLength || (length == meetingLength && nodeId < meetingNodeId)){
+					meetingLength = length;
+					meetingNodeId = nodeId;
+				}
+			}
+			addPathToStart(tx, meetingNodeId, forwardVisited);
+			addPathToStart(tx, meetingNodeId, backwardVisited);
+		}
+	}
+
+	/*
+	 * One shortest path for each source and destination pair (like the Cypher 'shortestPath' function).
+	 * Destinations not within the max depth (in the other direction) of any source are skipped.
+	 */
+	private final void traverseShortestPaths(final Neo4j storage, final Transaction tx){
+		final List<Node> srcNodes = getNodes(tx, srcGraphName);
+		final List<Node> dstNodes = getNodes(tx, dstGraphName);
+		if(srcNodes.isEmpty() || dstNodes.isEmpty()){
+			return;
+		}
+		final Set<Long> reachableIds = new HashSet<Long>();
+		final SubjectExpander expander = new SubjectExpander(storage, Direction.OUTGOING, null){
+			@Override
+			boolean accept(final Path path, final Relationship relationship){
+				return true;
+			}
+		};
+		for(final Path path : getDescription(tx, maxDepth, expander).traverse(srcNodes)){
+			reachableIds.add(path.endNode().getId());
+		}
+		for(final Node dstNode : dstNodes){
+			if(!reachableIds.contains(dstNode.getId())){
+				continue;
+			}
+			for(final Node srcNode : srcNodes){
+				traverseShortestPath(storage, tx, srcNode.getId(), dstNode.getId());
+			}
+		}
+	}
+
+	private final void writeResult(final Neo4j storage){
+		final int batchSize = Math.max(1, storage.getConfiguration().flushBufferSize);
+		final Label targetLabel = Label.label(targetGraphName);
+		final String targetSymbol = "," + targetGraphName + ",";
+
+		final Iterator<Long> nodeIdIterator = resultNodeIds.iterator();
+		while(nodeIdIterator.hasNext()){
+			try(final Transaction writeTx = storage.getDatabaseManager().beginANewTransaction()){
+				for(int i = 0; i < batchSize && nodeIdIterator.hasNext(); i++){
+					writeTx.getNodeById(nodeIdIterator.next()).addLabel(targetLabel);
+				}
+				storage.getDatabaseManager().timedCommit(writeTx);
+			}
+		}
+
+		final Iterator<Long> relationshipIdIterator = resultRelationshipIds.iterator();
+		while(relationshipIdIterator.hasNext()){
+			try(final Transaction writeTx = storage.getDatabaseManager().beginANewTransaction()){
+				for(int i = 0; i < batchSize && relationshipIdIterator.hasNext(); i++){
+					final Relationship relationship = writeTx.getRelationshipById(relationshipIdIterator.next());
+					final Object symbols = relationship.getProperty(edgeSymbolsPropertyName, null);
+					if(symbols == null){
+						relationship.setProperty(edgeSymbolsPropertyName, targetSymbol);
+					}else if(!String.valueOf(symbols).contains(targetSymbol)){
+						relationship.setProperty(edgeSymbolsPropertyName, String.valueOf(symbols) + targetSymbol);
+					}
+				}
+				storage.getDatabaseManager().timedCommit(writeTx);
+			}
+		}
+	}
+
+	@Override
+	public final Void execute(final Neo4j storage, final Transaction tx) throws Exception{
+		final String timerKey = "TRAVERSAL-" + type;
+		storage.getStorageStats().startActionTimer(timerKey);
+		try{
+			final long startMillis = System.currentTimeMillis();
+			switch(type){
+				case LINEAGE:
+					for(final Direction direction : lineageDirections){
+						traverseLineage(storage, tx, direction);
+					}
+					break;
+				case SIMPLE_PATH:
+					traverseSimplePath(storage, tx, srcGraphName, dstGraphName);
+					break;
+				case LINK:
+					traverseSimplePath(storage, tx, srcGraphName, dstGraphName);
+					traverseSimplePath(storage, tx, dstGraphName, srcGraphName);
+					break;
+				case SHORTEST_PATH:
+					traverseShortestPaths(storage, tx);
+					break;
+				default:
+					throw new RuntimeException("Unhandled traversal type: " + type);
+			}
+			final long traversedMillis = System.currentTimeMillis();
+			writeResult(storage);
+			final long writtenMillis = System.currentTimeMillis();
+			storage.getStorageStats().traversals.record(resultNodeIds.size() + resultRelationshipIds.size(),
+					writtenMillis - startMillis);
+			storage.debug(type + " traversal: " + resultNodeIds.size() + " vertices and " + resultRelationshipIds.size()
+					+ " edges in " + (traversedMillis - startMillis) + " millis. Written in "
+					+ (writtenMillis - traversedMillis) + " millis. " + this);
+			return null;
+		}finally{
+			storage.getStorageStats().stopActionTimer(timerKey);
+		}
+	}
+}
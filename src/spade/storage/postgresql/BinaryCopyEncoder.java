@@ -0,0 +1,132 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.postgresql;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes rows in the PostgreSQL binary COPY format ('copy ... from stdin (format binary)').
+ *
+ * Usage: one call to 'writeHeader', then for each row 'startRow' followed by exactly that many values, and then
+ * 'writeTrailer'.
+ *
+ * Not thread-safe.
+ */
+public class BinaryCopyEncoder{
+
+	private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0xff, '\r', '\n', 0};
+	public static final int UUID_BYTES = 16;
+	private static final int JSONB_VERSION = 1;
+
+	private final DataOutputStream output;
+
+	public BinaryCopyEncoder(final OutputStream outputStream){
+		this.output = new DataOutputStream(outputStream);
+	}
+
+	public final void writeHeader() throws IOException{
+		output.write(SIGNATURE);
+		output.writeInt(0); // Flags
+		output.writeInt(0); // Header extension length
+	}
+
+	public final void startRow(final int fieldCount) throws IOException{
+		output.writeShort(fieldCount);
+	}
+
+	public final void writeNull() throws IOException{
+		output.writeInt(-1);
+	}
+
+	/**
+	 * @param value bigint value
+	 */
+	public final void writeBigint(final long value) throws IOException{
+		output.writeInt(8);
+		output.writeLong(value);
+	}
+
+	/**
+	 * @param value text/varchar value. NULL written if null
+	 */
+	public final void writeText(final String value) throws IOException{
+		if(value == null){
+			writeNull();
+		}else{
+			final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+
+	/**
+	 * @param json textual JSON value for a jsonb column (binary format version 1). NULL written if null
+	 */
+	public final void writeJsonb(final String json) throws IOException{
+		if(json == null){
+			writeNull();
+		}else{
+			final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+			output.writeInt(bytes.length + 1);
+			output.writeByte(JSONB_VERSION);
+			output.write(bytes);
+		}
+	}
+
+	/**
+	 * @param hashHex 32 hexadecimal characters (with or without dashes). NULL written if null
+	 * @throws IOException if not a valid uuid
+	 */
+	public final void writeUuid(final String hashHex) throws IOException{
+		if(hashHex == null){
+			writeNull();
+			return;
+		}
+		output.writeInt(UUID_BYTES);
+		int nibbles = 0;
+		int current = 0;
+		for(int i = 0; i < hashHex.length(); i++){
+			final char c = hashHex.charAt(i);
+			if(c == '-'){
+				continue;
+			}
+			final int digit = Character.digit(c, 16);
+			if(digit < 0 || nibbles >= UUID_BYTES * 2){
+				throw new IOException("Not a uuid: '" + hashHex + "'");
+			}
+			current = (current << 4) | digit;
+			if((++nibbles & 1) == 0){
+				output.write(current);
+				current = 0;
+			}
+		}
+		if(nibbles != UUID_BYTES * 2){
+			throw new IOException("Not a uuid: '" + hashHex + "'");
+		}
+	}
+
+	public final void writeTrailer() throws IOException{
+		output.writeShort(-1);
+		output.flush();
+	}
+}
@@ -19,10 +19,15 @@
  */
 package spade.storage.postgresql;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import spade.utility.ArgumentFunctions;
 import spade.utility.FileUtility;
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
 
 public class Configuration{
 
@@ -37,7 +42,17 @@ public class Configuration{
 		, keyBufferSize = "buffer"
 		, keyReset = "reset"
 		, keySecondaryIndexes = "secondaryIndexes"
-		, keyFetchSize = "fetch";
+		, keyFetchSize = "fetch"
+		, keyFlushConnections = "flushConnections"
+		, keyHotVertexAnnotations = "hotVertexAnnotations"
+		, keyHotEdgeAnnotations = "hotEdgeAnnotations"
+		, keyPromotionThreshold = "promotionThreshold"
+		, keyPromotionIntervalSeconds = "promotionIntervalSeconds"
+		, keyFrontierArrayLimit = "frontierArrayLimit"
+		, keyPartitionIntervalHours = "partitionIntervalHours"
+		, keyPartitionAnnotation = "partitionAnnotation"
+		, keyRetentionHours = "retentionHours"
+		, keyPartitionFutureHours = "partitionFutureHours";
 
 	private String driverClassName;
 	private String jdbcProtocol;
@@ -50,10 +65,34 @@ public class Configuration{
 	private boolean reset;
 	private boolean secondaryIndexes;
 	private int fetchSize;
+	private int flushConnections;
+	private final List<String> hotVertexAnnotations = new ArrayList<String>();
+	private final List<String> hotEdgeAnnotations = new ArrayList<String>();
+	private long promotionThreshold;
+	private long promotionIntervalSeconds;
+	private int frontierArrayLimit;
+	private long partitionIntervalHours;
+	private String partitionAnnotation;
+	private long retentionHours;
+	private long partitionFutureHours;
 
 	public final void load(final String path) throws Exception{
+		load(path, null);
+	}
+
+	/**
+	 * Key-value pairs in 'arguments' (if not null) override the ones in the config file
+	 */
+	public final void load(final String path, final String arguments) throws Exception{
 		try{
 			final Map<String, String> map = FileUtility.readConfigFileAsKeyValueMap(path, "=");
+			if(arguments != null){
+				final Result<HashMap<String, String>> argumentsResult = HelperFunctions.parseKeysValuesInString(arguments);
+				if(argumentsResult.error){
+					throw new Exception("Failed to parse arguments: " + argumentsResult.toErrorString());
+				}
+				map.putAll(argumentsResult.result);
+			}
 			driverClassName = ArgumentFunctions.mustParseClass(keyDriver, map);
 			jdbcProtocol = ArgumentFunctions.mustParseNonEmptyString(keyProtocol, map);
 			host = ArgumentFunctions.mustParseHost(keyHost, map);
@@ -65,11 +104,44 @@ public class Configuration{
 			reset = ArgumentFunctions.mustParseBoolean(keyReset, map);
 			secondaryIndexes = ArgumentFunctions.mustParseBoolean(keySecondaryIndexes, map);
 			fetchSize = ArgumentFunctions.mustParseInteger(keyFetchSize, map);
+			flushConnections = ArgumentFunctions.mustParseInteger(keyFlushConnections, map);
+			if(flushConnections < 0){
+				throw new Exception("'" + keyFlushConnections + "' must be non-negative: " + flushConnections);
+			}
+			hotVertexAnnotations.clear();
+			hotVertexAnnotations.addAll(parseAnnotationNames(keyHotVertexAnnotations, map));
+			hotEdgeAnnotations.clear();
+			hotEdgeAnnotations.addAll(parseAnnotationNames(keyHotEdgeAnnotations, map));
+			promotionThreshold = ArgumentFunctions.mustBeGreaterThanZero(keyPromotionThreshold, map);
+			promotionIntervalSeconds = ArgumentFunctions.mustParseLong(keyPromotionIntervalSeconds, map);
+			frontierArrayLimit = ArgumentFunctions.mustParseInteger(keyFrontierArrayLimit, map);
+			partitionIntervalHours = ArgumentFunctions.mustParseLong(keyPartitionIntervalHours, map);
+			if(partitionIntervalHours < 0){
+				throw new Exception("'" + keyPartitionIntervalHours + "' must be non-negative: " + partitionIntervalHours);
+			}
+			partitionAnnotation = map.get(keyPartitionAnnotation);
+			partitionAnnotation = (partitionAnnotation == null || partitionAnnotation.trim().isEmpty())
+					? null : partitionAnnotation.trim();
+			retentionHours = ArgumentFunctions.mustParseLong(keyRetentionHours, map);
+			if(retentionHours > 0 && partitionIntervalHours < 1){
+				throw new Exception("'" + keyRetentionHours + "' requires '" + keyPartitionIntervalHours + "' to be greater than zero");
+			}
+			partitionFutureHours = ArgumentFunctions.mustParseLong(keyPartitionFutureHours, map);
 		}catch(Exception e){
 			throw new Exception("Failed to read/parse configuration: '" + path + "'", e);
 		}
 	}
 
+	private static List<String> parseAnnotationNames(final String key, final Map<String, String> map) throws Exception{
+		final List<String> result = new ArrayList<String>();
+		for(final String value : ArgumentFunctions.mustParseCommaSeparatedValues(key, map)){
+			if(!value.isEmpty()){
+				result.add(value);
+			}
+		}
+		return result;
+	}
+
 	public String getConnectionURL(){
 		return jdbcProtocol + "://" + host + ":" + port + "/" + dbName;
 	}
@@ -122,11 +194,79 @@ public class Configuration{
 		return fetchSize > 0;
 	}
 
+	public int getFlushConnections(){
+		return flushConnections;
+	}
+
+	public List<String> getHotVertexAnnotations(){
+		return hotVertexAnnotations;
+	}
+
+	public List<String> getHotEdgeAnnotations(){
+		return hotEdgeAnnotations;
+	}
+
+	public long getPromotionThreshold(){
+		return promotionThreshold;
+	}
+
+	/**
+	 * @return seconds between promotions of overflow annotations to columns. Promotion disabled if less than 1.
+	 */
+	public long getPromotionIntervalSeconds(){
+		return promotionIntervalSeconds;
+	}
+
+	/**
+	 * @return maximum size of a traversal frontier passed as an array. Larger frontiers are joined as tables.
+	 */
+	public int getFrontierArrayLimit(){
+		return frontierArrayLimit;
+	}
+
+	/**
+	 * @return hours per partition of the vertex and edge tables. Tables not partitioned if less than 1.
+	 */
+	public long getPartitionIntervalHours(){
+		return partitionIntervalHours;
+	}
+
+	public boolean isPartitioned(){
+		return partitionIntervalHours > 0;
+	}
+
+	/**
+	 * @return edge annotation with the event time (in seconds) to partition edges by. Null if partitioned by ingest time.
+	 */
+	public String getPartitionAnnotation(){
+		return partitionAnnotation;
+	}
+
+	/**
+	 * @return hours after which partitions are dropped. Retained forever if less than 1.
+	 */
+	public long getRetentionHours(){
+		return retentionHours;
+	}
+
+	/**
+	 * @return hours after the ingest time beyond which event times are replaced by the ingest time. No limit if less
+	 * than 1.
+	 */
+	public long getPartitionFutureHours(){
+		return partitionFutureHours;
+	}
+
 	@Override
 	public String toString(){
 		return "Configuration [driverClassName=" + driverClassName + ", jdbcProtocol=" + jdbcProtocol + ", host=" + host
 				+ ", port=" + port + ", dbName=" + dbName + ", dbUser=" + dbUser + ", dbPassword=" + dbPassword
 				+ ", bufferSize=" + bufferSize + ", reset=" + reset + ", secondaryIndexes=" + secondaryIndexes
-				+ ", fetchSize=" + fetchSize + "]";
+				+ ", fetchSize=" + fetchSize + ", flushConnections=" + flushConnections
+				+ ", hotVertexAnnotations=" + hotVertexAnnotations + ", hotEdgeAnnotations=" + hotEdgeAnnotations
+				+ ", promotionThreshold=" + promotionThreshold + ", promotionIntervalSeconds=" + promotionIntervalSeconds
+				+ ", frontierArrayLimit=" + frontierArrayLimit + ", partitionIntervalHours=" + partitionIntervalHours
+				+ ", partitionAnnotation=" + partitionAnnotation + ", retentionHours=" + retentionHours
+				+ ", partitionFutureHours=" + partitionFutureHours + "]";
 	}
 }
@@ -0,0 +1,194 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.postgresql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Layout of an annotation table which has a real (varchar) column for each known key and a jsonb overflow column for
+ * all other keys.
+ *
+ * Keys are counted when they go to the overflow column. Keys seen at least 'threshold' times are candidates for
+ * promotion to real columns. A promotion:
+ * 	1. Adds the columns to the table
+ * 	2. Adds the columns here (see 'addColumns') so that the batches taken after it write the keys to the columns
+ * 	3. Moves the keys out of the overflow column after all the batches taken before it are committed
+ * 	4. Marks the keys as promoted (see 'removeOverflowKeys')
+ *
+ * Between 2 and 4 a key can be in both places for which 'getAnnotationExpression' returns a coalesce of the two.
+ *
+ * Thread-safe.
+ */
+public class HybridSchema{
+
+	public static final String OVERFLOW_COLUMN_NAME = "spade_overflow";
+
+	/*
+	 * Table with the number of rows with a key in the overflow column of a table. Rows are appended per batch so there
+	 * can be more than one row for a key until compacted.
+	 */
+	public static final String OVERFLOW_KEYS_TABLE_NAME = "spade_overflow_keys",
+			OVERFLOW_KEYS_TABLE_COLUMN = "table_name",
+			OVERFLOW_KEYS_KEY_COLUMN = "key",
+			OVERFLOW_KEYS_COUNT_COLUMN = "count";
+
+	private final String tableName;
+
+	/*
+	 * Using LinkedHashSet to keep unique elements in their insertion order
+	 */
+	private final Set<String> columnNames = new LinkedHashSet<String>();
+	// Keys which are (or might be) in the overflow column
+	private final Set<String> overflowKeys = new HashSet<String>();
+	// Count of elements with the key in the overflow column since the key was last considered for promotion
+	private final Map<String, long[]> overflowKeyCounts = new HashMap<String, long[]>();
+	private long version = 0;
+
+	public HybridSchema(final String tableName){
+		this.tableName = tableName;
+	}
+
+	public String getTableName(){
+		return tableName;
+	}
+
+	public synchronized boolean isColumn(final String key){
+		return columnNames.contains(key);
+	}
+
+	public synchronized void addColumns(final Iterable<String> keys){
+		for(final String key : keys){
+			if(!OVERFLOW_COLUMN_NAME.equals(key)){
+				columnNames.add(key);
+			}
+		}
+		version++;
+	}
+
+	public synchronized void addOverflowKeys(final Iterable<String> keys){
+		for(final String key : keys){
+			overflowKeys.add(key);
+		}
+	}
+
+	public synchronized void removeOverflowKeys(final Iterable<String> keys){
+		for(final String key : keys){
+			overflowKeys.remove(key);
+		}
+	}
+
+	/**
+	 * Counts the keys which are not columns. To be called for every element stored.
+	 */
+	public synchronized void countOverflowKeys(final Set<String> keys){
+		for(final String key : keys){
+			if(!columnNames.contains(key)){
+				overflowKeys.add(key);
+				final long[] count = overflowKeyCounts.get(key);
+				if(count == null){
+					overflowKeyCounts.put(key, new long[]{1});
+				}else{
+					count[0]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the keys with count greater than or equal to the threshold, and resets all the counts.
+	 */
+	public synchronized List<String> takePromotionCandidates(final long threshold){
+		final List<String> candidates = new ArrayList<String>();
+		for(final Map.Entry<String, long[]> entry : overflowKeyCounts.entrySet()){
+			if(entry.getValue()[0] >= threshold && !columnNames.contains(entry.getKey())){
+				candidates.add(entry.getKey());
+			}
+		}
+		overflowKeyCounts.clear();
+		return candidates;
+	}
+
+	public synchronized Columns snapshot(){
+		return new Columns(new ArrayList<String>(columnNames), version);
+	}
+
+	public synchronized long getVersion(){
+		return version;
+	}
+
+	/**
+	 * @return all the keys i.e. the columns (except the overflow column) and the keys in the overflow column
+	 */
+	public synchronized Set<String> getAnnotationKeys(){
+		final Set<String> keys = new HashSet<String>(columnNames);
+		keys.addAll(overflowKeys);
+		return keys;
+	}
+
+	/**
+	 * @param tableAlias alias of the table to qualify the columns with (or null)
+	 * @param key annotation key
+	 * @return SQL expression for the value of the annotation key
+	 */
+	public synchronized String getAnnotationExpression(final String tableAlias, final String key){
+		final String prefix = tableAlias == null ? "" : tableAlias + ".";
+		final String column = prefix + formatColumnName(key);
+		final String overflow = "(" + prefix + formatColumnName(OVERFLOW_COLUMN_NAME) + "->>" + formatStringLiteral(key) + ")";
+		final boolean isColumn = columnNames.contains(key);
+		final boolean isOverflow = overflowKeys.contains(key);
+		if(isColumn && isOverflow){
+			return "coalesce(" + column + ", " + overflow + ")";
+		}else if(isColumn){
+			return column;
+		}else{
+			return overflow;
+		}
+	}
+
+	public static String formatColumnName(final String columnName){
+		return '"' + columnName.replace("\"", "\"\"") + '"';
+	}
+
+	public static String formatStringLiteral(final String value){
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	/**
+	 * Immutable list of columns at a version
+	 */
+	public static final class Columns{
+		public final List<String> names;
+		public final Set<String> set;
+		public final long version;
+
+		private Columns(final List<String> names, final long version){
+			this.names = Collections.unmodifiableList(names);
+			this.set = Collections.unmodifiableSet(new HashSet<String>(names));
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.postgresql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.core.AbstractEdge;
+import spade.query.quickgrail.core.QuickGrailQueryResolver.PredicateOperator;
+
+/**
+ * Declarative range partitioning of the vertex, edge, and base graph tables on the column 'spade_time' (epoch
+ * milliseconds).
+ *
+ * The time of a vertex is the time its batch was handed off (ingest time). The time of an edge is the value of the
+ * 'annotation' (in seconds) if set and numeric, and the ingest time otherwise. Negative event times are stored as 0.
+ * Event times which are too large are treated like non-numeric values (ingest time) so that one bad value doesn't fail
+ * the partition creation of its batch:
+ * 	1. Times after the start of the last partition which fits in a long (always).
+ * 	2. Times more than 'futureMillis' after the ingest time (if 'futureMillis' is greater than 0).
+ * The pruning predicate on the annotation (see 'getPruningPredicate') applies the same bounds so that it always maps
+ * to the partitions which contain the matching edges.
+ *
+ * Partitions are named '<table>_p<start millis>' and created on demand (before a batch is copied) and ahead of time
+ * (the current and the next interval) by 'maintain'. Retention applies only to the expiring tables (the edge tables):
+ * their partitions which end before 'retention' are dropped as a whole. Vertex partitions are never dropped because the
+ * ingest time of a vertex says nothing about the time of the edges which reference it (a vertex is stored once and
+ * referenced by edges for as long as it is alive), so dropping them would leave retained edges dangling.
+ *
+ * Not all methods are thread-safe. The ones which use the connection are synchronized.
+ */
+public class Partitioning{
+
+	private static final Logger logger = Logger.getLogger(Partitioning.class.getName());
+
+	public static final String PARTITION_COLUMN_NAME = "spade_time";
+
+	private final long intervalMillis;
+	private final String annotation;
+	private final long retentionMillis;
+	private final long futureMillis;
+	// Largest time of which the partition ends before Long.MAX_VALUE
+	private final long maxTimeMillis;
+	private final List<String> tableNames = new ArrayList<String>();
+	private final List<String> expiringTableNames = new ArrayList<String>();
+
+	// Start of the partitions known to exist for all tables
+	private final Set<Long> knownPartitionStarts = new HashSet<Long>();
+
+	/**
+	 * @param intervalMillis size of a partition
+	 * @param annotation edge annotation with the event time in seconds. Null/empty for ingest time
+	 * @param retentionMillis partitions (of the expiring tables) older than this are dropped. Retained forever if less
+	 * than 1
+	 * @param futureMillis event times more than this after the ingest time are replaced by the ingest time. No limit
+	 * (except the largest partition) if less than 1
+	 * @param tableNames tables to partition
+	 * @param expiringTableNames subset of the tables to apply retention to. Must not be referenced by the other tables
+	 */
+	public Partitioning(final long intervalMillis, final String annotation, final long retentionMillis,
+			final long futureMillis, final Collection<String> tableNames, final Collection<String> expiringTableNames){
+		if(intervalMillis < 1){
+			throw new IllegalArgumentException("Partition interval must be greater than zero: " + intervalMillis);
+		}
+		this.intervalMillis = intervalMillis;
+		this.annotation = (annotation == null || annotation.trim().isEmpty()) ? null : annotation.trim();
+		this.retentionMillis = retentionMillis;
+		this.futureMillis = futureMillis;
+		this.maxTimeMillis = (Long.MAX_VALUE / intervalMillis) * intervalMillis - 1;
+		this.tableNames.addAll(tableNames);
+		for(final String expiringTableName : expiringTableNames){
+			if(!tableNames.contains(expiringTableName)){
+				throw new IllegalArgumentException("Expiring table '" + expiringTableName + "' is not partitioned");
+			}
+			this.expiringTableNames.add(expiringTableName);
+		}
+	}
+
+	public String getAnnotation(){
+		return annotation;
+	}
+
+	public static String getColumnDefinition(){
+		return HybridSchema.formatColumnName(PARTITION_COLUMN_NAME) + " bigint not null";
+	}
+
+	public static String getPartitionByClause(){
+		return " partition by range (" + HybridSchema.formatColumnName(PARTITION_COLUMN_NAME) + ")";
+	}
+
+	public long getPartitionStart(final long timeMillis){
+		return Math.floorDiv(Math.max(0, timeMillis), intervalMillis) * intervalMillis;
+	}
+
+	private String getPartitionName(final String tableName, final long start){
+		return tableName + "_p" + start;
+	}
+
+	/**
+	 * @return the event time in milliseconds (0 if negative). -1 if not numeric or after the largest partition
+	 */
+	private long parseEventTimeMillis(final String value){
+		final double eventMillis;
+		try{
+			eventMillis = Double.parseDouble(value.trim()) * 1000;
+		}catch(NumberFormatException e){
+			return -1;
+		}
+		if(Double.isNaN(eventMillis) || Double.isInfinite(eventMillis) || eventMillis > maxTimeMillis){
+			return -1;
+		}
+		return Math.max(0, (long)eventMillis);
+	}
+
+	public long getEdgeTimeMillis(final AbstractEdge edge, final long ingestMillis){
+		if(annotation == null){
+			return ingestMillis;
+		}
+		final String value = edge.getAnnotation(annotation);
+		if(value == null){
+			return ingestMillis;
+		}
+		final long eventMillis = parseEventTimeMillis(value);
+		if(eventMillis < 0 || (futureMillis > 0 && eventMillis - ingestMillis > futureMillis)){
+			return ingestMillis;
+		}
+		return eventMillis;
+	}
+
+	/**
+	 * Creates the partitions (for all tables) which contain the times if not known to exist
+	 */
+	public synchronized void ensurePartitions(final Connection connection, final Collection<Long> timesMillis) throws Exception{
+		final Set<Long> starts = new HashSet<Long>();
+		for(final Long timeMillis : timesMillis){
+			if(timeMillis > maxTimeMillis){
+				throw new IllegalArgumentException("Time after the largest partition: " + timeMillis);
+			}
+			final long start = getPartitionStart(timeMillis);
+			if(!knownPartitionStarts.contains(start)){
+				starts.add(start);
+			}
+		}
+		for(final Long start : starts){
+			try(final Statement statement = connection.createStatement()){
+				for(final String tableName : tableNames){
+					statement.execute("create table if not exists " + getPartitionName(tableName, start)
+						+ " partition of " + tableName + " for values from (" + start + ") to (" + (start + intervalMillis) + ")");
+				}
+			}catch(Exception e){
+				throw new Exception("Failed to create partitions starting at " + start, e);
+			}
+			knownPartitionStarts.add(start);
+		}
+	}
+
+	/**
+	 * Creates the partitions for the current and the next interval, and drops the partitions of the expiring tables
+	 * older than retention
+	 */
+	public synchronized void maintain(final Connection connection, final long nowMillis) throws Exception{
+		final List<Long> ahead = new ArrayList<Long>();
+		ahead.add(nowMillis);
+		ahead.add(nowMillis + intervalMillis);
+		ensurePartitions(connection, ahead);
+		if(retentionMillis < 1){
+			return;
+		}
+		final long oldestAllowedMillis = nowMillis - retentionMillis;
+		for(final String tableName : expiringTableNames){
+			final List<String> expired = new ArrayList<String>();
+			try(final Statement statement = connection.createStatement();
+					final ResultSet result = statement.executeQuery(
+							"select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid"
+							+ " join pg_class p on p.oid = i.inhparent where p.relname = "
+							+ HybridSchema.formatStringLiteral(tableName))){
+				final String prefix = tableName + "_p";
+				while(result.next()){
+					final String partitionName = result.getString(1);
+					if(partitionName.startsWith(prefix)){
+						try{
+							final long start = Long.parseLong(partitionName.substring(prefix.length()));
+							if(start + intervalMillis <= oldestAllowedMillis){
+								expired.add(partitionName);
+								// Recreated (for the expiring tables) if a late element needs it
+								knownPartitionStarts.remove(start);
+							}
+						}catch(NumberFormatException e){
+							// Not created by this class
+						}
+					}
+				}
+			}
+			for(final String partitionName : expired){
+				try(final Statement statement = connection.createStatement()){
+					statement.execute("drop table if exists " + partitionName);
+				}
+				logger.log(Level.INFO, "Dropped expired partition '" + partitionName + "'");
+			}
+		}
+	}
+
+	/**
+	 * Bound on the partition column implied by a predicate on the event time annotation so that the planner can prune
+	 * partitions.
+	 *
+	 * Only equality implies a bound. Annotations are compared as text by the queries so an annotation value equal to
+	 * the value parses to the same time as the value (and is in the partition of that time). The range operators don't
+	 * imply a bound because the text order is not the numeric order (e.g. '999' > '1000').
+	 *
+	 * No bound if the value is after the largest partition (stored at the ingest time). If 'futureMillis' is greater
+	 * than 0 then the edges with the value might have been stored at an ingest time more than 'futureMillis' before the
+	 * value, so the partitions before that are not pruned.
+	 *
+	 * @param tableAlias alias of the table to qualify the column with (or null)
+	 * @return empty string if no bound implied otherwise the predicate prefixed with ' and '
+	 */
+	public String getPruningPredicate(final String tableAlias, final String annotationKey,
+			final PredicateOperator operator, final String value){
+		if(annotation == null || !annotation.equals(annotationKey) || value == null
+				|| operator != PredicateOperator.EQUAL){
+			return "";
+		}
+		// Parsed and clamped the same way as the stored times
+		final long eventMillis = parseEventTimeMillis(value);
+		if(eventMillis < 0){
+			return "";
+		}
+		final double seconds = Double.parseDouble(value.trim());
+		final long lowerMillis = Math.max(0, (long)Math.floor(seconds * 1000));
+		final long upperMillis = Math.max(0, Math.min(maxTimeMillis, (long)Math.ceil(seconds * 1000)));
+		final String column = (tableAlias == null ? "" : tableAlias + ".") + HybridSchema.formatColumnName(PARTITION_COLUMN_NAME);
+		final String bound = column + " between " + lowerMillis + " and " + upperMillis;
+		if(futureMillis > 0 && lowerMillis - futureMillis > 0){
+			return " and (" + bound + " or " + column + " < " + (lowerMillis - futureMillis) + ")";
+		}
+		return " and " + bound;
+	}
+}
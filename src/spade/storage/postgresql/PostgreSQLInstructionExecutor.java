@@ -22,12 +22,15 @@ package spade.storage.postgresql;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import org.json.JSONObject;
+
 import spade.core.AbstractStorage;
 import spade.query.quickgrail.core.GraphDescription;
 import spade.query.quickgrail.core.GraphStatistic;
@@ -64,6 +67,9 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 	private final String vertexAnnotationTableName;
 	private final String edgeAnnotationTableName;
 
+	private final TraversalFunctions traversalFunctions;
+	private boolean traversalFunctionsCreated = false;
+
 	public PostgreSQLInstructionExecutor(PostgreSQL storage, PostgreSQLQueryEnvironment queryEnvironment,
 			String idColumnName, String idChildVertexColumnName, String idParentVertexColumnName,
 			String vertexAnnotationTableName, String edgeAnnotationTableName){
@@ -95,6 +101,8 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		if(HelperFunctions.isNullOrEmpty(this.edgeAnnotationTableName)){
 			throw new IllegalArgumentException("NULL/Empty edge table name: " + this.edgeAnnotationTableName);
 		}
+		this.traversalFunctions = new TraversalFunctions(
+				idColumnName, idChildVertexColumnName, idParentVertexColumnName, edgeAnnotationTableName);
 	}
 
 	@Override
@@ -130,20 +138,68 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		return queryEnvironment.getGraphEdgeTableName(graph);
 	}
 	
+	/**
+	 * @return annotation keys in the columns (except the partition column) and in the overflow column
+	 */
 	private Set<String> getColumnNamesOfVertexAnnotationTable(){
-		Set<String> columnNames = new HashSet<String>();
-		columnNames.addAll(
-				executeQueryForResult("select * from " + getVertexAnnotationTableName() + " where false", true).get(0)
-				);
-		return columnNames;
+		final Set<String> annotationKeys = storage.getVertexSchema().getAnnotationKeys();
+		annotationKeys.remove(Partitioning.PARTITION_COLUMN_NAME);
+		return annotationKeys;
 	}
-	
+
 	private Set<String> getColumnNamesOfEdgeAnnotationTable(){
-		Set<String> columnNames = new HashSet<String>();
-		columnNames.addAll(
-				executeQueryForResult("select * from " + getEdgeAnnotationTableName() + " where false", true).get(0)
-				);
-		return columnNames;
+		final Set<String> annotationKeys = storage.getEdgeSchema().getAnnotationKeys();
+		annotationKeys.remove(Partitioning.PARTITION_COLUMN_NAME);
+		return annotationKeys;
+	}
+
+	/**
+	 * @return predicate on the partition column implied by the predicate on the edge annotation (if any)
+	 */
+	private String getEdgePartitionPruningPredicate(final String annotationKey, final PredicateOperator operator,
+			final String annotationValue){
+		final Partitioning partitioning = storage.getPartitioning();
+		if(partitioning == null){
+			return "";
+		}
+		return partitioning.getPruningPredicate(null, annotationKey, operator, annotationValue);
+	}
+
+	private String getVertexAnnotation(final String tableAlias, final String annotationKey){
+		return storage.getVertexSchema().getAnnotationExpression(tableAlias, annotationKey);
+	}
+
+	private String getEdgeAnnotation(final String tableAlias, final String annotationKey){
+		return storage.getEdgeSchema().getAnnotationExpression(tableAlias, annotationKey);
+	}
+
+	private String getAnnotation(final ElementType elementType, final String annotationKey){
+		switch(elementType){
+			case VERTEX: return getVertexAnnotation(null, annotationKey);
+			case EDGE: return getEdgeAnnotation(null, annotationKey);
+			default: throw new RuntimeException("Unknown element type");
+		}
+	}
+
+	/**
+	 * Adds the annotations in the overflow column (JSON object) to the map
+	 */
+	private void putOverflowAnnotations(final String overflowJson, final Map<String, String> annotations){
+		if(overflowJson == null){
+			return;
+		}
+		try{
+			final JSONObject json = new JSONObject(overflowJson);
+			final Iterator<?> keys = json.keys();
+			while(keys.hasNext()){
+				final String key = String.valueOf(keys.next());
+				if(!json.isNull(key)){
+					annotations.put(key, json.getString(key));
+				}
+			}
+		}catch(Exception e){
+			throw new RuntimeException("Malformed overflow annotations: " + overflowJson, e);
+		}
 	}
 
 	@Override
@@ -285,14 +341,14 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 				+ sourceEdgeTable + " group by " + getIdColumnName() + ";", false);
 	}
 
-	private String buildComparison(String columnName, PredicateOperator operator, String value){
+	private String buildComparison(String columnName, String columnExpression, PredicateOperator operator, String value){
 		String query = "";
 		if(columnName.equals(getIdColumnName()) ||
 				columnName.equals(getIdColumnNameChildVertex()) ||
 				columnName.equals(getIdColumnNameParentVertex())){
-			query += "\"" + columnName + "\"::text ";
+			query += columnExpression + "::text ";
 		}else{
-			query += "\"" + columnName + "\" ";
+			query += columnExpression + " ";
 		}
 		switch(operator){
 			case EQUAL: query += "="; break;
@@ -330,7 +386,7 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		
 		for(int i = 0; i < annotationNames.size(); i++){
 			final String annotationKey = annotationNames.get(i);
-			query += "v.\""+annotationKey+"\" is not null";
+			query += getVertexAnnotation("v", annotationKey) + " is not null";
 			if(i == annotationNames.size() - 1){ // is last
 				// don't append the 'and'
 			}else{
@@ -370,17 +426,18 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 				+ "and gv2.\""+getIdColumnName()+"\" = ga2.\""+getIdColumnName()+"\" and ";
 		
 		for(int i = 0; i < annotationKeys.size(); i++){
-			String annotationKey = annotationKeys.get(i);
-			if(annotationKey.equals(getIdColumnName()) 
+			final String annotationKey = annotationKeys.get(i);
+			String annotation1 = getVertexAnnotation("ga1", annotationKey);
+			String annotation2 = getVertexAnnotation("ga2", annotationKey);
+			if(annotationKey.equals(getIdColumnName())
 					|| annotationKey.equals(getIdColumnNameChildVertex())
 					|| annotationKey.equals(getIdColumnNameParentVertex())){
-				annotationKey = "\"" + annotationKey + "\"::text";
-			}else{
-				annotationKey = "\"" + annotationKey + "\"";
+				annotation1 += "::text";
+				annotation2 += "::text";
 			}
-			query += "( " 
-					+ "ga1." + annotationKey + " = ga2." + annotationKey
-					+ "and ga1."+annotationKey+" is not null and ga2." + annotationKey + " is not null "
+			query += "( "
+					+ annotation1 + " = " + annotation2
+					+ " and " + annotation1 + " is not null and " + annotation2 + " is not null "
 					+ ")";
 			if(i == annotationKeys.size() - 1){
 				// is last so don't append 'and'
@@ -519,7 +576,7 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 				sqlQuery += " where (";
 				
 				for(String columnName : columnNames){
-					sqlQuery += buildComparison(columnName, operator, annotationValue) + " or ";	
+					sqlQuery += buildComparison(columnName, getVertexAnnotation(null, columnName), operator, annotationValue) + " or ";
 				}
 				
 				sqlQuery = sqlQuery.substring(0, sqlQuery.length() - 3); // remove the last 'or '
@@ -607,12 +664,16 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 				sqlQuery += " where (";
 				
 				for(String columnName : columnNames){
-					sqlQuery += buildComparison(columnName, operator, annotationValue) + " or ";	
+					sqlQuery += buildComparison(columnName, getEdgeAnnotation(null, columnName), operator, annotationValue) + " or ";
 				}
 				
 				sqlQuery = sqlQuery.substring(0, sqlQuery.length() - 3); // remove the last 'or '
 				sqlQuery += ")";
 				
+				if(!wildCard.equals(annotationKey)){
+					sqlQuery += getEdgePartitionPruningPredicate(annotationKey, operator, annotationValue);
+				}
+				
 				if(!queryEnvironment.isBaseGraph(subjectGraph)){
 					sqlQuery += " and " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+getEdgeTableName(subjectGraph)+")";
 				}
@@ -731,9 +792,10 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 			return 0;
 		}
 
-		final String countQuery = "SELECT count(*) FROM " + annotationTable 
+		final String annotation = getAnnotation(elementType, annotationKey);
+		final String countQuery = "SELECT count(*) FROM " + annotationTable
 				+ " WHERE "
-				+ annotationKey + " is not null and " + annotationKey + " <> '' and "
+				+ annotation + " is not null and " + annotation + " <> '' and "
 				+ idColumnName + " IN (SELECT " + idColumnName + " FROM " + targetTable + ")";
 
 		final long size = Long.parseLong(executeQueryForResult(countQuery, false).get(0).get(0));
@@ -767,7 +829,7 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 			}
 		}
 
-		final String finalAnnotationKey = "CAST(" + annotationKey + " AS NUMERIC)";
+		final String finalAnnotationKey = "CAST(" + getAnnotation(elementType, annotationKey) + " AS NUMERIC)";
 		final String minMaxQuery = "SELECT MIN(" + finalAnnotationKey + "),"
 				+ " MAX(" + finalAnnotationKey + ") FROM " + annotationTable 
 				+ " WHERE " + idColumnName
@@ -850,7 +912,7 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 			}
 		}
 
-		final String query = "select stddev(cast(" + annotationKey + " as decimal)) "
+		final String query = "select stddev(cast(" + getAnnotation(elementType, annotationKey) + " as decimal)) "
 				+ "from " + annotationTable + " where " + idColumnName
 				+ " in (select " + idColumnName + " from " + targetTable + ")";
 
@@ -886,7 +948,7 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 			}
 		}
 
-		final String query = "select avg(cast(" + annotationKey + " as decimal)) "
+		final String query = "select avg(cast(" + getAnnotation(elementType, annotationKey) + " as decimal)) "
 				+ "from " + annotationTable + " where " + idColumnName
 				+ " in (select " + idColumnName + " from " + targetTable + ")";
 
@@ -922,10 +984,11 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 			}
 		}
 
-		final String query = "select " + annotationKey + ", count(*) from " + annotationTable
+		final String annotation = getAnnotation(elementType, annotationKey);
+		final String query = "select " + annotation + ", count(*) from " + annotationTable
 				+ " where " + idColumnName
 				+ " in (select " + idColumnName + " from " + targetTable + ")"
-				+ " group by " + annotationKey
+				+ " group by " + annotation
 				+ " order by count(*)";
 		final List<List<String>> result = executeQueryForResult(query, false);
 		final SortedMap<String, Double> histogram = new TreeMap<>();
@@ -1061,6 +1124,10 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 				String annotationValue = vertexList.get(i);
 				if(annotationKey.equals(getIdColumnName())){
 					hash = annotationValue.replaceAll("\\-", "");
+				}else if(annotationKey.equals(HybridSchema.OVERFLOW_COLUMN_NAME)){
+					putOverflowAnnotations(annotationValue, annotations);
+				}else if(annotationKey.equals(Partitioning.PARTITION_COLUMN_NAME)){
+					// Not an annotation
 				}else{
 					if(annotationValue != null){
 						annotations.put(annotationKey, annotationValue);
@@ -1097,6 +1164,10 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 					childHash = annotationValue.replaceAll("\\-", "");
 				}else if(annotationKey.equals(getIdColumnNameParentVertex())){
 					parentHash = annotationValue.replaceAll("\\-", "");
+				}else if(annotationKey.equals(HybridSchema.OVERFLOW_COLUMN_NAME)){
+					putOverflowAnnotations(annotationValue, annotations);
+				}else if(annotationKey.equals(Partitioning.PARTITION_COLUMN_NAME)){
+					// Not an annotation
 				}else{
 					if(annotationValue != null){
 						annotations.put(annotationKey, annotationValue);
@@ -1117,11 +1188,11 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		String targetEdgeTable = getEdgeTableName(targetGraph);
 
 		String groupByClause = "group by ";
-		groupByClause += "\"" + getIdColumnNameChildVertex() + "\", ";
-		groupByClause += "\"" + getIdColumnNameParentVertex() + "\", ";
+		groupByClause += "e.\"" + getIdColumnNameChildVertex() + "\", ";
+		groupByClause += "e.\"" + getIdColumnNameParentVertex() + "\", ";
 
 		for(String annotationKey : fields){
-			groupByClause += "\"" + annotationKey + "\", ";
+			groupByClause += getEdgeAnnotation("e", annotationKey) + ", ";
 
 		}
 
@@ -1172,279 +1243,58 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 	private void noResultExecuteQuery(String query){
 		executeQueryForResult(query, false);
 	}
-	
-	@Override
-	public void getShortestPath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		String filter;
-		dropTable("m_conn");
-		noResultExecuteQuery("create table m_conn ("+getIdColumnNameChildVertex()+" uuid, "+getIdColumnNameParentVertex()+" uuid)");
-		if(queryEnvironment.isBaseGraph(subjectGraph)){
-			filter = "";
-			noResultExecuteQuery("insert into m_conn select \"" + getIdColumnNameChildVertex() + "\", \"" + getIdColumnNameParentVertex() + "\" "
-					+ "from " + getEdgeAnnotationTableName() + " group by \"" + getIdColumnNameChildVertex() + "\", \"" + getIdColumnNameParentVertex() + "\"");
-		}else{
-			String subjectEdgeTable = getEdgeTableName(subjectGraph);
-			filter = " and "+getEdgeAnnotationTableName()+".\""+getIdColumnName()+"\" in (select "+getIdColumnName()+" from " + subjectEdgeTable + ")";
-			dropTable("m_sgedge");
-			noResultExecuteQuery("create table m_sgedge ("+getIdColumnNameChildVertex()+" uuid, "+getIdColumnNameParentVertex()+" uuid)");
-			noResultExecuteQuery("insert into m_sgedge select \"" + getIdColumnNameChildVertex() + "\", \"" + getIdColumnNameParentVertex() + "\" "
-					+ "from " + getEdgeAnnotationTableName() + " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "
-					+ subjectEdgeTable + ")");
-			noResultExecuteQuery("insert into m_conn select "+getIdColumnNameChildVertex()+", "+getIdColumnNameParentVertex()+" from "
-					+ "m_sgedge group by " + getIdColumnNameChildVertex() + ", " + getIdColumnNameParentVertex());
-			dropTable("m_sgedge");
-		}
-		// Create subgraph edges table.
-		dropTable("m_sgconn");
-		noResultExecuteQuery("create table m_sgconn ("+getIdColumnNameChildVertex()+" uuid, "+getIdColumnNameParentVertex()+" uuid,"
-				+ "reaching uuid, depth int)");
-		
-		dropTable("m_cur"); dropTable("m_next"); dropTable("m_answer");
-		noResultExecuteQuery("create table m_cur ("+getIdColumnName()+" uuid, reaching uuid)");
-		noResultExecuteQuery("create table m_next ("+getIdColumnName()+" uuid, reaching uuid)");
-		noResultExecuteQuery("create table m_answer ("+getIdColumnName()+" uuid)");
-
-		noResultExecuteQuery("insert into m_cur select "+getIdColumnName()+", " + getIdColumnName() + " from " 
-				+ getVertexTableName(dstGraph));
-		noResultExecuteQuery("insert into m_answer select " + getIdColumnName() + " from m_cur group by " + getIdColumnName());
-		
-		for(int i = 0; i < maxDepth; ++i){
-			noResultExecuteQuery(
-					"insert into m_sgconn select " + getIdColumnNameChildVertex() + ", " + getIdColumnNameParentVertex() + ", reaching, "+String.valueOf(i + 1)+" "
-					+ "from m_cur, m_conn where " + getIdColumnName() + " = " + getIdColumnNameParentVertex());
-			dropTable("m_next");
-			noResultExecuteQuery("create table m_next ("+getIdColumnName()+" uuid, reaching uuid)");
-			noResultExecuteQuery("insert into m_next select " + getIdColumnNameChildVertex() + ", reaching from "
-				+ "m_cur, m_conn where "+getIdColumnName()+" = " + getIdColumnNameParentVertex());
-			dropTable("m_cur");
-			noResultExecuteQuery("create table m_cur ("+getIdColumnName()+" uuid, reaching uuid)");
-			noResultExecuteQuery("insert into m_cur select " + getIdColumnName() + ", reaching from m_next where "
-				+ getIdColumnName() + " not in (select "+getIdColumnName()+" from m_answer) group by " + getIdColumnName() + ", reaching");
-			noResultExecuteQuery("insert into m_answer select " + getIdColumnName() + " from m_cur group by " + getIdColumnName());
-
-			List<List<String>> countResult = executeQueryForResult("select count(*) from m_cur", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
 
-		dropTable("m_cur"); dropTable("m_next");
-		noResultExecuteQuery("create table m_cur ("+getIdColumnName()+" uuid)");
-		noResultExecuteQuery("create table m_next ("+getIdColumnName()+" uuid)");
-
-		noResultExecuteQuery("insert into m_cur select " + getIdColumnName() + " from " + getVertexTableName(srcGraph)
-				+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from m_answer)");
-
-		dropTable("m_answer");
-		noResultExecuteQuery("create table m_answer ("+getIdColumnName()+" uuid)");
-		noResultExecuteQuery("insert into m_answer select " + getIdColumnName() + " from m_cur");
-
-		for(int i = 0; i < maxDepth; ++i){
-			dropTable("m_next");
-			noResultExecuteQuery("create table m_next ("+getIdColumnName()+" uuid)");
-			noResultExecuteQuery("insert into m_next select min(" + getIdColumnNameParentVertex() + "::text)::uuid" // TODO as?
-					+ " from m_cur, m_sgconn where " + getIdColumnName() + " = " + getIdColumnNameChildVertex() + " and depth + " + String.valueOf(i) 
-					+ " <= " + String.valueOf(maxDepth) + " group by " + getIdColumnNameChildVertex() + ", reaching");
-			dropTable("m_cur");
-			noResultExecuteQuery("create table m_cur ("+getIdColumnName()+" uuid)");
-			noResultExecuteQuery("insert into m_cur select "+getIdColumnName()+" from m_next where "
-					+getIdColumnName()+" not in (select "+getIdColumnName()+" from m_answer)");
-			noResultExecuteQuery("insert into m_answer select "+getIdColumnName()+" from m_cur");
-			
-			List<List<String>> countResult = executeQueryForResult("select count(*) from m_cur", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
+	/**
+	 * Creates (or replaces) the server-side traversal functions once per executor
+	 */
+	private synchronized void createTraversalFunctions(){
+		if(!traversalFunctionsCreated){
+			for(final String query : traversalFunctions.getQueriesCreateFunctions()){
+				noResultExecuteQuery(query);
 			}
+			traversalFunctionsCreated = true;
 		}
+	}
 
-		String targetVertexTable = getVertexTableName(targetGraph);
-		String targetEdgeTable = getEdgeTableName(targetGraph);
-
-		noResultExecuteQuery("insert into " + targetVertexTable + " select " + getIdColumnName() + " from m_answer");
-		noResultExecuteQuery("insert into " + targetEdgeTable + " select \"" + getIdColumnName() + "\" from " + getEdgeAnnotationTableName()
-			+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from m_answer)"
-			+ " and \"" + getIdColumnNameParentVertex() + "\" in (select "+getIdColumnName()+" from m_answer) " + filter);
-		dropTable("m_cur");dropTable("m_next");dropTable("m_answer");dropTable("m_conn");dropTable("m_sgconn");
+	/**
+	 * @return null for the base graph otherwise the edge table of the subject graph
+	 */
+	private String getSubjectEdgeTableName(final Graph subjectGraph){
+		return queryEnvironment.isBaseGraph(subjectGraph) ? null : getEdgeTableName(subjectGraph);
+	}
+	
+	@Override
+	public void getShortestPath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
+		createTraversalFunctions();
+		noResultExecuteQuery(traversalFunctions.getQueryShortestPath(getVertexTableName(srcGraph),
+				getVertexTableName(dstGraph), getSubjectEdgeTableName(subjectGraph), maxDepth,
+				getVertexTableName(targetGraph), getEdgeTableName(targetGraph), storage.getFrontierArrayLimit()));
 	}
 	
 	@Override
 	public void getLineage(Graph targetGraph, Graph subjectGraph, Graph startGraph, int depth, Direction directionArg){
-		final List<Direction> directions = new ArrayList<Direction>();
-		if(directionArg == Direction.kBoth){
-			directions.add(Direction.kAncestor);
-			directions.add(Direction.kDescendant);
-		}else{
-			directions.add(directionArg);
+		final List<Boolean> ancestorDirections = new ArrayList<Boolean>();
+		if(directionArg == Direction.kAncestor || directionArg == Direction.kBoth){
+			ancestorDirections.add(true);
 		}
-
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String currentTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String answerEdgeTable = "m_answer_edge";
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) ? ""
-				: " and " + getEdgeAnnotationTableName() + "." + getIdColumnName() 
-				+ " in (select "+getIdColumnName()+" from "+subjectEdgeTable+")";
-
-		for(final Direction direction : directions){
-			if(direction != Direction.kAncestor && direction != Direction.kDescendant){
-				throw new RuntimeException("Unexpected direction: " + direction);
-			}
-			final String startVertexTable = getVertexTableName(startGraph);
-			final String src = direction == Direction.kAncestor ? getIdColumnNameChildVertex() : getIdColumnNameParentVertex();
-			final String dst = direction == Direction.kAncestor ? getIdColumnNameParentVertex() : getIdColumnNameChildVertex();
-			
-			createUUIDTable(currentTable, true);
-			createUUIDTable(nextTable, true);
-			createUUIDTable(answerTable, true);
-			createUUIDTable(answerEdgeTable, true);
-
-			executeQueryForResult("insert into "+currentTable+" select "+getIdColumnName()+" from " + startVertexTable + ";", false);
-			executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";", false);
-
-			for(int i = 0; i < depth; ++i){
-				createUUIDTable(nextTable, true);
-				executeQueryForResult("insert into " + nextTable + " select \"" + dst + "\" from " + getEdgeAnnotationTableName()
-					+ " where \"" + src + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-					+ " " + filter + " group by \"" + dst + "\";", false);
-				executeQueryForResult("insert into " + answerEdgeTable + " select " + getIdColumnName() + " from " + getEdgeAnnotationTableName()
-					+ " where \"" + src + "\" in (select "+getIdColumnName()+" from "+currentTable+") " + filter + ";", false);
-				createUUIDTable(currentTable, true);
-				executeQueryForResult("insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable
-						+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");", false);
-				executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";", 
-						false);
-
-				List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-				long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-				if(cursorTableCount == 0){
-					break;
-				}
-			}
-
-			executeQueryForResult("insert into " + targetVertexTable 
-					+ " select " + getIdColumnName() + " from " + answerTable + ";", false);
-			executeQueryForResult("insert into " + targetEdgeTable 
-					+ " select " + getIdColumnName() + " from " + answerEdgeTable + " group by " + getIdColumnName() + ";", false);
+		if(directionArg == Direction.kDescendant || directionArg == Direction.kBoth){
+			ancestorDirections.add(false);
 		}
-
-		dropTable(currentTable);
-		dropTable(nextTable);
-		dropTable(answerEdgeTable);
-		dropTable(answerTable);
+		if(ancestorDirections.isEmpty()){
+			throw new RuntimeException("Unexpected direction: " + directionArg);
+		}
+		createTraversalFunctions();
+		noResultExecuteQuery(traversalFunctions.getQueryLineage(getVertexTableName(startGraph),
+				getSubjectEdgeTableName(subjectGraph), depth, ancestorDirections,
+				getVertexTableName(targetGraph), getEdgeTableName(targetGraph), storage.getFrontierArrayLimit()));
 	}
 	
 	@Override
 	public void getSimplePath(Graph targetGraph, Graph subjectGraph, Graph srcGraph, Graph dstGraph, int maxDepth){
-		
-		final String depthColumnName = "depth";
-		final String currentTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String currentSubgraphTable = "m_sgconn";
-		
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String dstVertexTable = getVertexTableName(dstGraph);
-		final String srcVertexTable = getVertexTableName(srcGraph);
-		
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		createUUIDTable(answerTable, true);
-		
-		dropTable(currentSubgraphTable);
-		executeQueryForResult("create table " + currentSubgraphTable + "("
-				+ "\""+getIdColumnNameChildVertex()+"\" uuid, "
-				+ "\""+getIdColumnNameParentVertex()+"\" uuid, "
-				+ depthColumnName + " int);", false);
-
-		executeQueryForResult("insert into "+currentTable+" select "+getIdColumnName()+" from " + dstVertexTable, false);
-		executeQueryForResult("insert into "+answerTable+" select "+getIdColumnName()+" from " + currentTable, false);
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) 
-				? "" : " and "+getEdgeAnnotationTableName()+"."+getIdColumnName()+" in (select "+getIdColumnName()+" from " + subjectEdgeTable + ")";
-		
-		final String q0 = "insert into " + currentSubgraphTable + " select \"" + getIdColumnNameChildVertex() + "\", \""
-				+ getIdColumnNameParentVertex() + "\", %s from " + getEdgeAnnotationTableName() + " where \""
-				+ getIdColumnNameParentVertex() + "\" in (select " + getIdColumnName() + " from " + currentTable + ")"
-				+ " " + filter + ";";
-		final String q1 = ""; // createUUIDTable(nextTable, true);
-		final String q2 = "insert into " + nextTable + " select \"" + getIdColumnNameChildVertex() + "\" from "
-				+ getEdgeAnnotationTableName() + " where \"" + getIdColumnNameParentVertex() + "\" in (select "
-				+ getIdColumnName() + " from " + currentTable + ")" + " " + filter + " group by \""
-				+ getIdColumnNameChildVertex() + "\";";
-		final String q3 = ""; // createUUIDTable(cursorTable, true);
-		final String q4 = "insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable
-				+ " where " + getIdColumnName() + " not in (select " + getIdColumnName() + " from " + answerTable
-				+ ");";
-		final String q5 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-		
-		for(int i = 0; i < maxDepth; ++i){
-			final String formattedQ0 = String.format(q0, i+1);
-			
-			executeQueryForResult(formattedQ0, false);
-			createUUIDTable(nextTable, true);
-			executeQueryForResult(q2, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(q4, false);
-			executeQueryForResult(q5, false);
-
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		
-		executeQueryForResult("insert into " + currentTable + " select " + getIdColumnName() + " from " + srcVertexTable
-				+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+answerTable+");", false);
-
-		createUUIDTable(answerTable, true);
-		
-		executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable, false);
-
-		final String qq0 = ""; // createUUIDTable(nextTable, true);
-		final String qq1 = "insert into " + nextTable + " select \"" + getIdColumnNameParentVertex() + "\" from " + currentSubgraphTable
-				+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " and " + depthColumnName + " + %s <= " + maxDepth + " group by \""+getIdColumnNameParentVertex()+"\";";
-		final String qq2 = "insert into " + targetEdgeTable + " select " + getIdColumnName() + " from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameChildVertex()+"\" in (select " + getIdColumnName() + " from " + currentTable + ")"
-				+ " and \""+getIdColumnNameParentVertex()+"\" in (select "+getIdColumnName()+" from "+nextTable+") " + filter + ";";
-		final String qq3 = ""; // createUUIDTable(cursorTable, true);
-		final String qq4 = "insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable 
-				+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");";
-		final String qq5 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-
-		for(int i = 0; i < maxDepth; ++i){
-			createUUIDTable(nextTable, true);
-			final String formattedQq1 = String.format(qq1, i);
-			executeQueryForResult(formattedQq1, false);
-			executeQueryForResult(qq2, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(qq4, false);
-			executeQueryForResult(qq5, false);
-			
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-
-		executeQueryForResult("insert into " + targetVertexTable + " select " + getIdColumnName() + " from " + answerTable, false);
-		dropTable(currentSubgraphTable);
-		dropTable(currentTable);
-		dropTable(nextTable);
-		dropTable(answerTable);
+		createTraversalFunctions();
+		noResultExecuteQuery(traversalFunctions.getQueryPath(getVertexTableName(srcGraph), getVertexTableName(dstGraph),
+				getSubjectEdgeTableName(subjectGraph), maxDepth, false,
+				getVertexTableName(targetGraph), getEdgeTableName(targetGraph), storage.getFrontierArrayLimit()));
 	}
 	
 	@Override
@@ -1452,124 +1302,10 @@ public class PostgreSQLInstructionExecutor extends QueryInstructionExecutor{
 		if(maxDepth <= 0){
 			return;
 		}
-		
-		maxDepth = maxDepth - 1;
-		
-		final String depthColumnName = "depth";
-		final String currentTable = "m_cur";
-		final String nextTable = "m_next";
-		final String answerTable = "m_answer";
-		final String currentSubgraphTable = "m_sgconn";
-		
-		final String dstVertexTable = getVertexTableName(dstGraph);
-		final String srcVertexTable = getVertexTableName(srcGraph);
-		final String subjectEdgeTable = getEdgeTableName(subjectGraph);
-		final String targetVertexTable = getVertexTableName(targetGraph);
-		final String targetEdgeTable = getEdgeTableName(targetGraph);
-		
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		createUUIDTable(answerTable, true);
-		
-		dropTable(currentSubgraphTable);
-		executeQueryForResult("create table " + currentSubgraphTable + "("
-				+ "\""+getIdColumnNameChildVertex()+"\" uuid, "
-				+ "\""+getIdColumnNameParentVertex()+"\" uuid, "
-				+ depthColumnName + " int);", false);
-		
-		executeQueryForResult("insert into "+currentTable+" select "+getIdColumnName()+" from " + dstVertexTable, false);
-		executeQueryForResult("insert into "+answerTable+" select "+getIdColumnName()+" from " + currentTable, false);
-		
-		
-		final String filter = queryEnvironment.isBaseGraph(subjectGraph) 
-				? "" : " and "+getEdgeAnnotationTableName()+"."+getIdColumnName()+" in (select "+getIdColumnName()+" from " + subjectEdgeTable + ")";
-		final String q0 = "insert into "+currentSubgraphTable+" select \""+getIdColumnNameChildVertex()+"\", \""+getIdColumnNameParentVertex()+"\", %s from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameParentVertex()+"\" in (select "+getIdColumnName()+" from " + currentTable + ")"
-				+ " " + filter + ";";
-		final String q1 = "insert into " + currentSubgraphTable + " select \"" + getIdColumnNameChildVertex() + "\", \"" +getIdColumnNameParentVertex() + "\", %s from " + getEdgeAnnotationTableName()
-				+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " " + filter + ";";
-		final String q2 = ""; // createUUIDTable(nextTable, true);
-		final String q3 = "insert into " + nextTable + " select \"" + getIdColumnNameChildVertex() + "\" from " + getEdgeAnnotationTableName()
-				+ " where \"" + getIdColumnNameParentVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " " + filter + " group by \""+getIdColumnNameChildVertex()+"\";";
-		final String q4 = "insert into " +nextTable + " select \"" + getIdColumnNameParentVertex() + "\" from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameChildVertex()+"\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " " + filter + " group by \""+getIdColumnNameParentVertex()+"\";";
-		final String q5 = ""; // createUUIDTable(cursorTable, true);
-		final String q6 = "insert into " + currentTable + " select " + getIdColumnName() + " from " +nextTable
-				+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");";
-		final String q7 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-		
-		for(int i = 0; i < maxDepth; ++i){
-			final String formattedQ0 = String.format(q0, i+1);
-			final String formattedQ1 = String.format(q1, i+1);
-			
-			executeQueryForResult(formattedQ0, false);
-			executeQueryForResult(formattedQ1, false);
-			createUUIDTable(nextTable, true);
-			executeQueryForResult(q3, false);
-			executeQueryForResult(q4, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(q6, false);
-			executeQueryForResult(q7, false);
-
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-		
-		createUUIDTable(currentTable, true);
-		createUUIDTable(nextTable, true);
-		
-		executeQueryForResult("insert into " + currentTable + " select " + getIdColumnName() + " from " + srcVertexTable
-				+ " where " + getIdColumnName() + " in (select "+getIdColumnName()+" from "+answerTable+");", false);
-
-		createUUIDTable(answerTable, true);
-		
-		executeQueryForResult("insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable, false);
-
-		final String qq0 = ""; // createUUIDTable(nextTable, true);
-		final String qq1 = "insert into " + nextTable + " select \"" + getIdColumnNameParentVertex() + "\" from " + currentSubgraphTable
-				+ " where \"" + getIdColumnNameChildVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " and " + depthColumnName + " + %s <= " + maxDepth + " group by \""+getIdColumnNameParentVertex()+"\";";
-		final String qq2 = "insert into " + nextTable + " select \"" + getIdColumnNameChildVertex() + "\" from " + currentSubgraphTable
-				+ " where \"" + getIdColumnNameParentVertex() + "\" in (select "+getIdColumnName()+" from "+currentTable+")"
-				+ " and " + depthColumnName + " + %s <= " + maxDepth + " group by \""+getIdColumnNameChildVertex()+"\";";
-		final String qq3 = ""; // createUUIDTable(cursorTable, true);
-		final String qq4 = "insert into " + currentTable + " select " + getIdColumnName() + " from " + nextTable 
-				+ " where " + getIdColumnName() + " not in (select "+getIdColumnName()+" from "+answerTable+");";
-		final String qq5 = "insert into " + answerTable + " select " + getIdColumnName() + " from " + currentTable + ";";
-		
-		for(int i = 0; i < maxDepth; ++i){
-			createUUIDTable(nextTable, true);
-			final String formattedQq1 = String.format(qq1, i);
-			final String formattedQq2 = String.format(qq2, i);
-			executeQueryForResult(formattedQq1, false);
-			executeQueryForResult(formattedQq2, false);
-			createUUIDTable(currentTable, true);
-			executeQueryForResult(qq4, false);
-			executeQueryForResult(qq5, false);
-			
-			List<List<String>> countResult = executeQueryForResult("select count(*) from "+currentTable+";", false);
-			long cursorTableCount = Long.parseLong(countResult.get(0).get(0));
-			if(cursorTableCount == 0){
-				break;
-			}
-		}
-		
-		executeQueryForResult("insert into " + targetVertexTable + " select "+getIdColumnName()+" from "+answerTable+";", false);
-		executeQueryForResult("insert into " + targetEdgeTable + " select " +getIdColumnName() + " from " + getEdgeAnnotationTableName()
-				+ " where \""+getIdColumnNameChildVertex()+"\" in (select "+getIdColumnName()+" from "+answerTable+")"
-				+ " and \""+getIdColumnNameParentVertex()+"\" in (select "+getIdColumnName()+" from "+answerTable+")"
-				+ " " + filter + ";", false);
-
-		dropTable(currentSubgraphTable);
-		dropTable(currentTable);
-		dropTable(nextTable);
-		dropTable(answerTable);
+		createTraversalFunctions();
+		noResultExecuteQuery(traversalFunctions.getQueryPath(getVertexTableName(srcGraph), getVertexTableName(dstGraph),
+				getSubjectEdgeTableName(subjectGraph), maxDepth - 1, true,
+				getVertexTableName(targetGraph), getEdgeTableName(targetGraph), storage.getFrontierArrayLimit()));
 	}
 	
 	@Override
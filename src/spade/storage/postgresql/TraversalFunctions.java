@@ -0,0 +1,335 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.postgresql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server-side (plpgsql) breadth-first traversals for the QuickGrail lineage and path instructions.
+ *
+ * Each instruction is a single function call so the frontier never leaves the server. The work tables (m_*) are
+ * UNLOGGED since they are rebuilt on every call. The traversals switch on the frontier size per level:
+ * 	1. Small frontier (at most 'arrayLimit' vertices): lineage passes the frontier as a uuid[] parameter so that the
+ * 		planner can use index lookups on the edge table
+ * 	2. Large frontier: the frontier table is analyzed so that the planner picks a hash join instead of assuming the
+ * 		default size of an unanalyzed table
+ *
+ * Graph tables are passed as names. Subject edge table is null for the base graph.
+ */
+public class TraversalFunctions{
+
+	public static final String
+		functionGetLineage = "spade_get_lineage",
+		functionGetPath = "spade_get_path",
+		functionGetShortestPath = "spade_get_shortest_path";
+
+	private final String idColumnName;
+	private final String childVertexColumnName;
+	private final String parentVertexColumnName;
+	private final String edgeTableName;
+
+	public TraversalFunctions(final String idColumnName, final String childVertexColumnName,
+			final String parentVertexColumnName, final String edgeTableName){
+		this.idColumnName = idColumnName;
+		this.childVertexColumnName = childVertexColumnName;
+		this.parentVertexColumnName = parentVertexColumnName;
+		this.edgeTableName = edgeTableName;
+	}
+
+	private static String literal(final String value){
+		return value == null ? "null" : "'" + value.replace("'", "''") + "'";
+	}
+
+	/**
+	 * Common declarations of the names of the columns and the edge table
+	 */
+	private String getDeclarations(){
+		return "  id_column text := " + literal(idColumnName) + ";\n"
+				+ "  child_column text := " + literal(childVertexColumnName) + ";\n"
+				+ "  parent_column text := " + literal(parentVertexColumnName) + ";\n"
+				+ "  edge_table text := " + literal(edgeTableName) + ";\n"
+				+ "  edge_filter text := '';\n"
+				+ "  frontier_size bigint;\n"
+				+ "  i int := 0;\n";
+	}
+
+	private static String getEdgeFilter(){
+		return "  if subject_edge_table is not null then\n"
+				+ "    edge_filter := format(' and e.%I in (select %I from %s)', id_column, id_column, subject_edge_table);\n"
+				+ "  end if;\n";
+	}
+
+	/**
+	 * Adds the ids in m_next which are not in m_answer to m_answer and to m_cur (emptied first)
+	 */
+	private static String getAdvanceFrontier(){
+		return "    truncate m_cur;\n"
+				+ "    with added as (insert into m_answer select distinct id from m_next where id is not null"
+				+ " on conflict do nothing returning id)\n"
+				+ "      insert into m_cur select id from added;\n"
+				+ "    get diagnostics frontier_size = row_count;\n"
+				+ "    truncate m_next;\n"
+				+ "    i := i + 1;\n";
+	}
+
+	private static String getDropWorkTables(){
+		return "  drop table if exists m_cur;\n"
+				+ "  drop table if exists m_next;\n"
+				+ "  drop table if exists m_answer;\n"
+				+ "  drop table if exists m_answer_edge;\n"
+				+ "  drop table if exists m_sgconn;\n"
+				+ "  drop table if exists m_conn;\n";
+	}
+
+	/**
+	 * Vertices reachable from the start vertices within max_depth (in each direction) and the edges traversed.
+	 * Direction 'true' for ancestors and 'false' for descendants.
+	 */
+	private String getQueryCreateLineageFunction(){
+		return "create or replace function " + functionGetLineage + "(start_table text, subject_edge_table text,"
+				+ " max_depth int, directions boolean[], target_vertex_table text, target_edge_table text,"
+				+ " array_limit int) returns void as $spade$\n"
+				+ "declare\n"
+				+ getDeclarations()
+				+ "  ancestors boolean;\n"
+				+ "  src text;\n"
+				+ "  dst text;\n"
+				+ "  frontier uuid[];\n"
+				+ "  source_clause text;\n"
+				+ "begin\n"
+				+ getEdgeFilter()
+				+ "  foreach ancestors in array directions loop\n"
+				+ "    src := case when ancestors then child_column else parent_column end;\n"
+				+ "    dst := case when ancestors then parent_column else child_column end;\n"
+				+ getDropWorkTables().replace("\n  ", "\n    ").replaceFirst("^  ", "    ")
+				+ "    create unlogged table m_cur (id uuid);\n"
+				+ "    create unlogged table m_next (id uuid);\n"
+				+ "    create unlogged table m_answer (id uuid primary key);\n"
+				+ "    create unlogged table m_answer_edge (id uuid);\n"
+				+ "    execute format('insert into m_answer select %I from %s where %I is not null on conflict do nothing',"
+				+ " id_column, start_table, id_column);\n"
+				+ "    insert into m_cur select id from m_answer;\n"
+				+ "    get diagnostics frontier_size = row_count;\n"
+				+ "    i := 0;\n"
+				+ "    while i < max_depth and frontier_size > 0 loop\n"
+				+ "      if frontier_size <= array_limit then\n"
+				+ "        select array_agg(id) into frontier from m_cur;\n"
+				+ "        source_clause := format('e.%I = any($1)', src);\n"
+				+ "      else\n"
+				+ "        analyze m_cur;\n"
+				+ "        source_clause := format('e.%I in (select id from m_cur)', src);\n"
+				+ "      end if;\n"
+				+ "      execute format('insert into m_answer_edge select e.%I from %s e where ', id_column, edge_table)"
+				+ " || source_clause || edge_filter using frontier;\n"
+				+ "      execute format('insert into m_next select distinct e.%I from %s e where ', dst, edge_table)"
+				+ " || source_clause || edge_filter using frontier;\n"
+				+ getAdvanceFrontier().replace("\n    ", "\n      ").replaceFirst("^    ", "      ")
+				+ "    end loop;\n"
+				+ "    execute format('insert into %s select id from m_answer', target_vertex_table);\n"
+				+ "    execute format('insert into %s select id from m_answer_edge group by id', target_edge_table);\n"
+				+ "  end loop;\n"
+				+ getDropWorkTables()
+				+ "end;\n"
+				+ "$spade$ language plpgsql";
+	}
+
+	/**
+	 * First pass from the destination vertices records the edges (with the depth) within max_depth. Second pass from
+	 * the source vertices reached in the first pass follows the recorded edges back within the remaining depth.
+	 *
+	 * If 'undirected' then edges are followed in both directions (link), and the result edges are all the edges
+	 * between the result vertices. Otherwise (simple path) the result edges are the ones followed in the second pass.
+	 */
+	private String getQueryCreatePathFunction(){
+		return "create or replace function " + functionGetPath + "(src_table text, dst_table text,"
+				+ " subject_edge_table text, max_depth int, undirected boolean, target_vertex_table text,"
+				+ " target_edge_table text, array_limit int) returns void as $spade$\n"
+				+ "declare\n"
+				+ getDeclarations()
+				+ "begin\n"
+				+ getEdgeFilter()
+				+ getDropWorkTables()
+				+ "  create unlogged table m_cur (id uuid);\n"
+				+ "  create unlogged table m_next (id uuid);\n"
+				+ "  create unlogged table m_answer (id uuid primary key);\n"
+				+ "  create unlogged table m_sgconn (child uuid, parent uuid, depth int);\n"
+				+ "  execute format('insert into m_answer select %I from %s where %I is not null on conflict do nothing',"
+				+ " id_column, dst_table, id_column);\n"
+				+ "  insert into m_cur select id from m_answer;\n"
+				+ "  get diagnostics frontier_size = row_count;\n"
+				+ "  while i < max_depth and frontier_size > 0 loop\n"
+				+ "    if frontier_size > array_limit then\n"
+				+ "      analyze m_cur;\n"
+				+ "    end if;\n"
+				+ "    execute format('insert into m_sgconn select e.%I, e.%I, %s from %s e where e.%I in (select id from m_cur)',"
+				+ " child_column, parent_column, i + 1, edge_table, parent_column) || edge_filter;\n"
+				+ "    execute format('insert into m_next select distinct e.%I from %s e where e.%I in (select id from m_cur)',"
+				+ " child_column, edge_table, parent_column) || edge_filter;\n"
+				+ "    if undirected then\n"
+				+ "      execute format('insert into m_sgconn select e.%I, e.%I, %s from %s e where e.%I in (select id from m_cur)',"
+				+ " child_column, parent_column, i + 1, edge_table, child_column) || edge_filter;\n"
+				+ "      execute format('insert into m_next select distinct e.%I from %s e where e.%I in (select id from m_cur)',"
+				+ " parent_column, edge_table, child_column) || edge_filter;\n"
+				+ "    end if;\n"
+				+ getAdvanceFrontier()
+				+ "  end loop;\n"
+				+ "  analyze m_sgconn;\n"
+				+ "  truncate m_cur;\n"
+				+ "  execute format('insert into m_cur select s.%I from %s s where s.%I in (select id from m_answer)',"
+				+ " id_column, src_table, id_column);\n"
+				+ "  get diagnostics frontier_size = row_count;\n"
+				+ "  truncate m_answer;\n"
+				+ "  insert into m_answer select id from m_cur on conflict do nothing;\n"
+				+ "  i := 0;\n"
+				+ "  while i < max_depth and frontier_size > 0 loop\n"
+				+ "    if frontier_size > array_limit then\n"
+				+ "      analyze m_cur;\n"
+				+ "    end if;\n"
+				+ "    insert into m_next select distinct c.parent from m_sgconn c"
+				+ " where c.child in (select id from m_cur) and c.depth + i <= max_depth;\n"
+				+ "    if undirected then\n"
+				+ "      insert into m_next select distinct c.child from m_sgconn c"
+				+ " where c.parent in (select id from m_cur) and c.depth + i <= max_depth;\n"
+				+ "    else\n"
+				+ "      execute format('insert into %s select e.%I from %s e where e.%I in (select id from m_cur)"
+				+ " and e.%I in (select id from m_next)', target_edge_table, id_column, edge_table, child_column,"
+				+ " parent_column) || edge_filter;\n"
+				+ "    end if;\n"
+				+ getAdvanceFrontier()
+				+ "  end loop;\n"
+				+ "  execute format('insert into %s select id from m_answer', target_vertex_table);\n"
+				+ "  if undirected then\n"
+				+ "    execute format('insert into %s select e.%I from %s e where e.%I in (select id from m_answer)"
+				+ " and e.%I in (select id from m_answer)', target_edge_table, id_column, edge_table, child_column,"
+				+ " parent_column) || edge_filter;\n"
+				+ "  end if;\n"
+				+ getDropWorkTables()
+				+ "end;\n"
+				+ "$spade$ language plpgsql";
+	}
+
+	/**
+	 * First pass from the destination vertices records which destination (reaching) each edge leads to and at what
+	 * depth. Second pass from the source vertices reached follows one (the minimum) parent per child and destination.
+	 */
+	private String getQueryCreateShortestPathFunction(){
+		return "create or replace function " + functionGetShortestPath + "(src_table text, dst_table text,"
+				+ " subject_edge_table text, max_depth int, target_vertex_table text, target_edge_table text,"
+				+ " array_limit int) returns void as $spade$\n"
+				+ "declare\n"
+				+ getDeclarations()
+				+ "begin\n"
+				+ getEdgeFilter()
+				+ getDropWorkTables()
+				+ "  create unlogged table m_conn (child uuid, parent uuid);\n"
+				+ "  create unlogged table m_sgconn (child uuid, parent uuid, reaching uuid, depth int);\n"
+				+ "  create unlogged table m_cur (id uuid, reaching uuid);\n"
+				+ "  create unlogged table m_next (id uuid, reaching uuid);\n"
+				+ "  create unlogged table m_answer (id uuid primary key);\n"
+				+ "  execute format('insert into m_conn select e.%I, e.%I from %s e where true', child_column, parent_column,"
+				+ " edge_table) || edge_filter || ' group by 1, 2';\n"
+				+ "  analyze m_conn;\n"
+				+ "  execute format('insert into m_cur select %I, %I from %s', id_column, id_column, dst_table);\n"
+				+ "  get diagnostics frontier_size = row_count;\n"
+				+ "  insert into m_answer select id from m_cur where id is not null on conflict do nothing;\n"
+				+ "  while i < max_depth and frontier_size > 0 loop\n"
+				+ "    if frontier_size > array_limit then\n"
+				+ "      analyze m_cur;\n"
+				+ "    end if;\n"
+				+ "    insert into m_sgconn select c.child, c.parent, m.reaching, i + 1 from m_cur m, m_conn c"
+				+ " where m.id = c.parent;\n"
+				+ "    insert into m_next select c.child, m.reaching from m_cur m, m_conn c where m.id = c.parent;\n"
+				+ "    truncate m_cur;\n"
+				+ "    insert into m_cur select n.id, n.reaching from m_next n"
+				+ " where not exists (select 1 from m_answer a where a.id = n.id) group by n.id, n.reaching;\n"
+				+ "    get diagnostics frontier_size = row_count;\n"
+				+ "    insert into m_answer select id from m_cur on conflict do nothing;\n"
+				+ "    truncate m_next;\n"
+				+ "    i := i + 1;\n"
+				+ "  end loop;\n"
+				+ "  analyze m_sgconn;\n"
+				+ "  drop table m_cur;\n"
+				+ "  drop table m_next;\n"
+				+ "  create unlogged table m_cur (id uuid);\n"
+				+ "  create unlogged table m_next (id uuid);\n"
+				+ "  execute format('insert into m_cur select s.%I from %s s where s.%I in (select id from m_answer)',"
+				+ " id_column, src_table, id_column);\n"
+				+ "  get diagnostics frontier_size = row_count;\n"
+				+ "  truncate m_answer;\n"
+				+ "  insert into m_answer select id from m_cur on conflict do nothing;\n"
+				+ "  i := 0;\n"
+				+ "  while i < max_depth and frontier_size > 0 loop\n"
+				+ "    if frontier_size > array_limit then\n"
+				+ "      analyze m_cur;\n"
+				+ "    end if;\n"
+				+ "    insert into m_next select min(c.parent::text)::uuid from m_cur m, m_sgconn c"
+				+ " where m.id = c.child and c.depth + i <= max_depth group by c.child, c.reaching;\n"
+				+ getAdvanceFrontier()
+				+ "  end loop;\n"
+				+ "  execute format('insert into %s select id from m_answer', target_vertex_table);\n"
+				+ "  execute format('insert into %s select e.%I from %s e where e.%I in (select id from m_answer)"
+				+ " and e.%I in (select id from m_answer)', target_edge_table, id_column, edge_table, child_column,"
+				+ " parent_column) || edge_filter;\n"
+				+ getDropWorkTables()
+				+ "end;\n"
+				+ "$spade$ language plpgsql";
+	}
+
+	/**
+	 * @return queries to (re)create all the functions
+	 */
+	public List<String> getQueriesCreateFunctions(){
+		final List<String> queries = new ArrayList<String>();
+		queries.add(getQueryCreateLineageFunction());
+		queries.add(getQueryCreatePathFunction());
+		queries.add(getQueryCreateShortestPathFunction());
+		return queries;
+	}
+
+	public String getQueryLineage(final String startVertexTable, final String subjectEdgeTable, final int maxDepth,
+			final List<Boolean> ancestorDirections, final String targetVertexTable, final String targetEdgeTable,
+			final int arrayLimit){
+		final StringBuilder directions = new StringBuilder("array[");
+		for(int i = 0; i < ancestorDirections.size(); i++){
+			directions.append(i == 0 ? "" : ", ").append(ancestorDirections.get(i));
+		}
+		directions.append("]::boolean[]");
+		return "select " + functionGetLineage + "(" + literal(startVertexTable) + ", " + literal(subjectEdgeTable)
+				+ ", " + maxDepth + ", " + directions + ", " + literal(targetVertexTable) + ", "
+				+ literal(targetEdgeTable) + ", " + arrayLimit + ")";
+	}
+
+	public String getQueryPath(final String srcVertexTable, final String dstVertexTable, final String subjectEdgeTable,
+			final int maxDepth, final boolean undirected, final String targetVertexTable, final String targetEdgeTable,
+			final int arrayLimit){
+		return "select " + functionGetPath + "(" + literal(srcVertexTable) + ", " + literal(dstVertexTable) + ", "
+				+ literal(subjectEdgeTable) + ", " + maxDepth + ", " + undirected + ", " + literal(targetVertexTable)
+				+ ", " + literal(targetEdgeTable) + ", " + arrayLimit + ")";
+	}
+
+	public String getQueryShortestPath(final String srcVertexTable, final String dstVertexTable,
+			final String subjectEdgeTable, final int maxDepth, final String targetVertexTable,
+			final String targetEdgeTable, final int arrayLimit){
+		return "select " + functionGetShortestPath + "(" + literal(srcVertexTable) + ", " + literal(dstVertexTable)
+				+ ", " + literal(subjectEdgeTable) + ", " + maxDepth + ", " + literal(targetVertexTable) + ", "
+				+ literal(targetEdgeTable) + ", " + arrayLimit + ")";
+	}
+}
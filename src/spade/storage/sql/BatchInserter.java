@@ -0,0 +1,520 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.sql;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inserts rows with parameterized insert statements on a loader thread with its own connection.
+ *
+ * Rows are queued by the caller (blocking if 'queueCapacity' rows are queued) and added to the batch of the prepared
+ * statement for their table and columns. Prepared statements are cached per table and column list. All the pending
+ * batches are executed and committed in one transaction when 'batchSize' rows are pending, when the oldest pending row
+ * is 'flushIntervalMillis' old, before a column is added, and when requested (see 'flush').
+ *
+ * Rows with the value of the key column of a pending row in the same table are not inserted again, and rows are written
+ * as an upsert on the key column (see Dialect) so that a row already in the table (like a vertex sent again) doesn't
+ * fail the batch.
+ *
+ * If a batch fails then the failed rows are found from the update counts of the batch, discarded, and the transaction
+ * is retried without them (at most 'maxBatchAttempts' times). The rows are inserted one at a time only if the failed
+ * rows are not known. The callback of a row (if any) is called on the loader thread after the row is committed.
+ *
+ * 'put', 'flush', and 'shutdown' are thread-safe.
+ */
+public class BatchInserter{
+
+	private static final Logger logger = Logger.getLogger(BatchInserter.class.getName());
+
+	private static final int maxCachedStatements = 64;
+	private static final int maxBatchAttempts = 3;
+
+	/**
+	 * Quoting of the names and the statement used to insert a row with the key column
+	 */
+	public static enum Dialect{
+		/**
+		 * 'MERGE INTO ... KEY(key)'. The row with the key is updated with the values
+		 */
+		H2("\""),
+		/**
+		 * 'INSERT ... ON DUPLICATE KEY UPDATE key = key'. The row with the key is kept. Not 'INSERT IGNORE' because it
+		 * also turns the other errors (like a value too long for the column) into truncated values
+		 */
+		MYSQL("`");
+
+		private final String quote;
+
+		private Dialect(final String quote){
+			this.quote = quote;
+		}
+	}
+
+	/**
+	 * Columns of the tables. Called on the loader thread only.
+	 */
+	public static interface Columns{
+		public boolean isColumn(String tableName, String columnName);
+		/**
+		 * @param connection the loader connection to add the column with (no uncommitted rows)
+		 */
+		public boolean addColumn(Connection connection, String tableName, String columnName);
+	}
+
+	private final Connection connection;
+	private final Dialect dialect;
+	private final String quote;
+	private final String keyColumnName;
+	private final Columns columns;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+
+	private final BlockingQueue<Object> queue;
+	private final Thread thread;
+	private volatile boolean stopped = false;
+
+	// Loader thread state
+	private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	private final List<Row> pendingRows = new ArrayList<Row>();
+	// Table and key to the pending row with the key
+	private final Map<String, Row> pendingKeys = new HashMap<String, Row>();
+	private long oldestPendingMillis = 0;
+
+	/**
+	 * @param name name of the loader thread
+	 * @param connection connection used by the loader thread only. Auto-commit is disabled
+	 * @param dialect quoting of the names and the insert statement
+	 * @param keyColumnName unique column of the tables
+	 * @param columns columns of the tables
+	 * @param batchSize maximum number of rows in a transaction
+	 * @param flushIntervalMillis maximum time a row is pending
+	 * @param queueCapacity maximum number of queued rows
+	 */
+	public BatchInserter(final String name, final Connection connection, final Dialect dialect, final String keyColumnName,
+			final Columns columns, final int batchSize, final long flushIntervalMillis, final int queueCapacity)
+			throws Exception{
+		if(batchSize < 1){
+			throw new IllegalArgumentException("Batch size must be greater than zero: " + batchSize);
+		}
+		if(flushIntervalMillis < 1){
+			throw new IllegalArgumentException("Flush interval must be greater than zero: " + flushIntervalMillis);
+		}
+		if(queueCapacity < 1){
+			throw new IllegalArgumentException("Queue capacity must be greater than zero: " + queueCapacity);
+		}
+		this.connection = connection;
+		this.connection.setAutoCommit(false);
+		this.dialect = dialect;
+		this.quote = dialect.quote;
+		this.keyColumnName = keyColumnName;
+		this.columns = columns;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.queue = new ArrayBlockingQueue<Object>(queueCapacity);
+		this.thread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				load();
+			}
+		}, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public Connection getConnection(){
+		return connection;
+	}
+
+	/**
+	 * @param tableName table to insert into
+	 * @param columnNames unique column names
+	 * @param values values of the columns (in the same order)
+	 */
+	public void put(final String tableName, final List<String> columnNames, final List<String> values){
+		put(tableName, columnNames, values, null);
+	}
+
+	/**
+	 * @param tableName table to insert into
+	 * @param columnNames unique column names
+	 * @param values values of the columns (in the same order)
+	 * @param committed called on the loader thread after the row is committed (not called if failed). Can be null
+	 */
+	public void put(final String tableName, final List<String> columnNames, final List<String> values,
+			final Runnable committed){
+		if(columnNames.size() != values.size()){
+			throw new IllegalArgumentException("Mismatched column names and values: " + columnNames + ", " + values);
+		}
+		enqueue(new Row(tableName, columnNames, values, committed));
+	}
+
+	/**
+	 * Waits for all the rows put so far to be committed (or failed)
+	 */
+	public void flush(){
+		if(stopped){
+			return;
+		}
+		final CountDownLatch latch = new CountDownLatch(1);
+		enqueue(latch);
+		try{
+			latch.await();
+		}catch(InterruptedException e){
+			logger.log(Level.WARNING, "Interrupted while waiting for rows to be inserted", e);
+		}
+	}
+
+	/**
+	 * Inserts all the rows put so far, and stops the loader thread. The connection is not closed.
+	 */
+	public void shutdown(){
+		if(stopped){
+			return;
+		}
+		flush();
+		stopped = true;
+		thread.interrupt();
+		try{
+			thread.join();
+		}catch(InterruptedException e){
+			logger.log(Level.WARNING, "Interrupted while waiting for loader thread to stop", e);
+		}
+		for(final PreparedStatement statement : statements.values()){
+			closeStatement(statement);
+		}
+		statements.clear();
+	}
+
+	private void enqueue(final Object item){
+		boolean queued = false;
+		while(!queued){
+			try{
+				queue.put(item);
+				queued = true;
+			}catch(InterruptedException e){
+				// Retry to not lose the item
+			}
+		}
+	}
+
+	private void load(){
+		while(!stopped){
+			final Object item;
+			try{
+				if(pendingRows.isEmpty()){
+					item = queue.poll(1, TimeUnit.SECONDS);
+				}else{
+					final long waitMillis = oldestPendingMillis + flushIntervalMillis - System.currentTimeMillis();
+					item = waitMillis > 0 ? queue.poll(waitMillis, TimeUnit.MILLISECONDS) : queue.poll();
+				}
+			}catch(InterruptedException e){
+				continue;
+			}
+			try{
+				if(item instanceof Row){
+					addRow((Row)item);
+				}else if(item instanceof CountDownLatch){
+					commitPending();
+					((CountDownLatch)item).countDown();
+				}
+				if(pendingRows.size() >= batchSize
+						|| (!pendingRows.isEmpty() && System.currentTimeMillis() - oldestPendingMillis >= flushIntervalMillis)){
+					commitPending();
+				}
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to insert rows", e);
+			}
+		}
+	}
+
+	private void addRow(final Row row) throws Exception{
+		for(final String columnName : row.columnNames){
+			if(!columns.isColumn(row.tableName, columnName)){
+				// Not adding columns with uncommitted rows in the table
+				commitPending();
+				if(!columns.addColumn(connection, row.tableName, columnName)){
+					logger.log(Level.SEVERE, "Failed to add column '" + columnName + "' to table '" + row.tableName
+							+ "'. Row discarded: " + row.values);
+					return;
+				}
+			}
+		}
+		final String key = row.getKey(keyColumnName);
+		if(key != null){
+			final Row pendingRow = pendingKeys.get(key);
+			if(pendingRow != null){
+				pendingRow.addDuplicate(row);
+				return;
+			}
+			pendingKeys.put(key, row);
+		}
+		if(pendingRows.isEmpty()){
+			oldestPendingMillis = System.currentTimeMillis();
+		}
+		pendingRows.add(row);
+	}
+
+	private void setValues(final PreparedStatement statement, final Row row) throws Exception{
+		for(int i = 0; i < row.values.size(); i++){
+			statement.setString(i + 1, row.values.get(i));
+		}
+	}
+
+	private PreparedStatement getStatement(final Row row) throws Exception{
+		final String key = row.getStatementKey();
+		PreparedStatement statement = statements.get(key);
+		if(statement == null){
+			if(statements.size() >= maxCachedStatements){
+				// Batches are added and executed one statement at a time so the least recently used has no batch
+				final Iterator<PreparedStatement> iterator = statements.values().iterator();
+				closeStatement(iterator.next());
+				iterator.remove();
+			}
+			statement = connection.prepareStatement(getInsertQuery(row));
+			statements.put(key, statement);
+		}
+		return statement;
+	}
+
+	private String getInsertQuery(final Row row){
+		final StringBuilder columnsClause = new StringBuilder();
+		final StringBuilder valuesClause = new StringBuilder();
+		for(int i = 0; i < row.columnNames.size(); i++){
+			if(i > 0){
+				columnsClause.append(", ");
+				valuesClause.append(", ");
+			}
+			columnsClause.append(quote).append(row.columnNames.get(i)).append(quote);
+			valuesClause.append("?");
+		}
+		if(!row.columnNames.contains(keyColumnName)){
+			return "INSERT INTO " + row.tableName + " (" + columnsClause + ") VALUES (" + valuesClause + ")";
+		}
+		final String keyColumn = quote + keyColumnName + quote;
+		switch(dialect){
+			case H2:
+				return "MERGE INTO " + row.tableName + " (" + columnsClause + ") KEY(" + keyColumn + ") VALUES ("
+						+ valuesClause + ")";
+			case MYSQL:
+				return "INSERT INTO " + row.tableName + " (" + columnsClause + ") VALUES (" + valuesClause + ")"
+						+ " ON DUPLICATE KEY UPDATE " + keyColumn + " = " + keyColumn;
+			default:
+				throw new IllegalArgumentException("Unhandled dialect: " + dialect);
+		}
+	}
+
+	/**
+	 * Executes all the pending batches in one transaction. Retries without the failed rows if a batch fails, and
+	 * inserts the rows one at a time if the failed rows are not known.
+	 */
+	private void commitPending(){
+		if(pendingRows.isEmpty()){
+			return;
+		}
+		final List<Row> rows = new ArrayList<Row>(pendingRows);
+		pendingRows.clear();
+		pendingKeys.clear();
+		for(int attempt = 1; !rows.isEmpty(); attempt++){
+			final List<Row> failedRows = new ArrayList<Row>();
+			try{
+				executeBatches(rows, failedRows);
+				if(failedRows.isEmpty()){
+					connection.commit();
+					for(final Row row : rows){
+						row.committed();
+					}
+					return;
+				}
+			}catch(Exception e){
+				logger.log(Level.WARNING, "Failed to insert batch of " + rows.size() + " rows. Inserting one at a time", e);
+				rollback();
+				insertOneAtATime(rows);
+				return;
+			}
+			rollback();
+			for(final Row failedRow : failedRows){
+				logger.log(Level.SEVERE, "Failed to insert row into table '" + failedRow.tableName + "'. Discarded: "
+						+ failedRow.values);
+			}
+			rows.removeAll(failedRows);
+			if(attempt >= maxBatchAttempts && !rows.isEmpty()){
+				logger.log(Level.WARNING, "Failed to insert batch " + attempt + " times. Inserting " + rows.size()
+						+ " rows one at a time");
+				insertOneAtATime(rows);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds the rows to the batches of their statements and executes the batches (in the current transaction) in the
+	 * order of the first row of each. Stops at the first batch which fails.
+	 *
+	 * @param failedRows the failed rows of the batch which failed
+	 * @throws Exception if a batch failed and the failed rows are not known
+	 */
+	private void executeBatches(final List<Row> rows, final List<Row> failedRows) throws Exception{
+		final Map<String, List<Row>> batches = new LinkedHashMap<String, List<Row>>();
+		for(final Row row : rows){
+			List<Row> batch = batches.get(row.getStatementKey());
+			if(batch == null){
+				batch = new ArrayList<Row>();
+				batches.put(row.getStatementKey(), batch);
+			}
+			batch.add(row);
+		}
+		for(final List<Row> batch : batches.values()){
+			final PreparedStatement statement = getStatement(batch.get(0));
+			try{
+				for(final Row row : batch){
+					setValues(statement, row);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}catch(BatchUpdateException e){
+				clearBatch(statement);
+				final int[] updateCounts = e.getUpdateCounts();
+				if(updateCounts != null){
+					for(int i = 0; i < updateCounts.length && i < batch.size(); i++){
+						if(updateCounts[i] == Statement.EXECUTE_FAILED){
+							failedRows.add(batch.get(i));
+						}
+					}
+					// The driver stopped at the first failed row
+					if(updateCounts.length < batch.size()){
+						failedRows.add(batch.get(updateCounts.length));
+					}
+				}
+				if(failedRows.isEmpty()){
+					throw e;
+				}
+				logger.log(Level.WARNING, "Failed to insert " + failedRows.size() + " of " + batch.size()
+						+ " rows into table '" + batch.get(0).tableName + "'", e);
+				return;
+			}catch(Exception e){
+				clearBatch(statement);
+				throw e;
+			}
+		}
+	}
+
+	private void clearBatch(final PreparedStatement statement){
+		try{
+			statement.clearBatch();
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to clear batch", e);
+		}
+	}
+
+	private void insertOneAtATime(final List<Row> rows){
+		for(final Row row : rows){
+			try{
+				final PreparedStatement statement = getStatement(row);
+				setValues(statement, row);
+				statement.executeUpdate();
+				connection.commit();
+				row.committed();
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to insert row into table '" + row.tableName + "': " + row.values, e);
+				rollback();
+			}
+		}
+	}
+
+	private void rollback(){
+		try{
+			connection.rollback();
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to rollback", e);
+		}
+	}
+
+	private void closeStatement(final PreparedStatement statement){
+		try{
+			statement.close();
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to close statement", e);
+		}
+	}
+
+	private static final class Row{
+		private final String tableName;
+		private final List<String> columnNames;
+		private final List<String> values;
+		private final Runnable committed;
+		// Rows with the same key put while this one was pending
+		private List<Row> duplicates = null;
+		private Row(final String tableName, final List<String> columnNames, final List<String> values,
+				final Runnable committed){
+			this.tableName = tableName;
+			this.columnNames = columnNames;
+			this.values = values;
+			this.committed = committed;
+		}
+		private void addDuplicate(final Row row){
+			if(duplicates == null){
+				duplicates = new ArrayList<Row>();
+			}
+			duplicates.add(row);
+		}
+		private void committed(){
+			if(committed != null){
+				try{
+					committed.run();
+				}catch(Exception e){
+					logger.log(Level.WARNING, "Failed to run the committed callback of a row in table '" + tableName + "'", e);
+				}
+			}
+			if(duplicates != null){
+				for(final Row duplicate : duplicates){
+					duplicate.committed();
+				}
+			}
+		}
+		/**
+		 * @return null if the row has no value for the key column
+		 */
+		private String getKey(final String keyColumnName){
+			final int index = columnNames.indexOf(keyColumnName);
+			if(index < 0 || values.get(index) == null){
+				return null;
+			}
+			return tableName + '\u0000' + values.get(index);
+		}
+		private String getStatementKey(){
+			return tableName + '\u0000' + String.join("\u0000", columnNames);
+		}
+	}
+}
@@ -0,0 +1,512 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.HashHelper;
+import spade.core.Vertex;
+
+/**
+ * Streaming parser for DOT files in the format written by spade.storage.Graphviz.
+ *
+ * Statements are tokenized character by character (not by line) and a vertex or an edge is returned as soon as its
+ * statement ends. Statements other than node and edge statements (i.e. 'digraph', 'graph', 'node', 'edge', and
+ * comments) are skipped. Parsing stops at the brace which closes the graph.
+ *
+ * Vertex ids are resolved to hashes using a bounded table (LRU) so that repeated references to the same vertex in
+ * edges do not recompute the hash.
+ *
+ * Not thread-safe. Use one parser per reader.
+ */
+public class DotParser implements Closeable{
+
+	private static final String labelKey = "label";
+	private static final int defaultIdToHashTableSize = 100000;
+
+	private final Reader reader;
+	private final Map<String, String> idToHash;
+
+	private int peeked = -2;
+	private int braceDepth = 0;
+	private boolean braceOpened = false, finished = false;
+
+	private long statementCount = 0, vertexCount = 0, edgeCount = 0, idToHashHits = 0, idToHashMisses = 0;
+
+	/**
+	 * @param reader reader to parse from
+	 * @param idToHashTableSize max entries in the id to hash table
+	 */
+	public DotParser(final Reader reader, final int idToHashTableSize){
+		if(reader == null){
+			throw new IllegalArgumentException("NULL reader");
+		}
+		if(idToHashTableSize < 0){
+			throw new IllegalArgumentException("Negative id to hash table size: " + idToHashTableSize);
+		}
+		this.reader = reader;
+		this.idToHash = new LinkedHashMap<String, String>(16, 0.75f, true){
+			private static final long serialVersionUID = -2110405127262211355L;
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, String> eldest){
+				return size() > idToHashTableSize;
+			}
+		};
+	}
+
+	public DotParser(final Reader reader){
+		this(reader, defaultIdToHashTableSize);
+	}
+
+	public final long getStatementCount(){
+		return statementCount;
+	}
+
+	public final long getVertexCount(){
+		return vertexCount;
+	}
+
+	public final long getEdgeCount(){
+		return edgeCount;
+	}
+
+	public final String getStats(){
+		return "Statements=" + statementCount + ", Vertices=" + vertexCount + ", Edges=" + edgeCount
+				+ ", IdToHash[Size=" + idToHash.size() + ", Hits=" + idToHashHits + ", Misses=" + idToHashMisses + "]";
+	}
+
+	@Override
+	public void close() throws java.io.IOException{
+		reader.close();
+	}
+
+	/**
+	 * @return the next vertex (AbstractVertex) or edge (AbstractEdge), or null if no more
+	 * @throws Exception on read error or malformed input
+	 */
+	public final Object next() throws Exception{
+		while(true){
+			final List<String> tokens = readStatement();
+			if(tokens == null){
+				return null;
+			}
+			statementCount++;
+			final Object element = toElement(tokens);
+			if(element != null){
+				return element;
+			}
+		}
+	}
+
+	////////////////////////////////////
+
+	private static final String
+		tokenArrow = "->", tokenOpenBracket = "[", tokenCloseBracket = "]", tokenEquals = "=";
+
+	private final int peek() throws Exception{
+		if(peeked == -2){
+			peeked = reader.read();
+		}
+		return peeked;
+	}
+
+	private final int read() throws Exception{
+		final int c = peek();
+		peeked = -2;
+		return c;
+	}
+
+	/**
+	 * Quoted tokens are returned with a leading '"' to distinguish them from keywords and punctuation.
+	 * Statement ends at ';', newline outside of brackets, '{', '}', or end of input. Returns null if no more statements.
+	 */
+	private final List<String> readStatement() throws Exception{
+		final List<String> tokens = new ArrayList<String>();
+		int bracketDepth = 0;
+		while(true){
+			if(tokens.isEmpty() && finished){
+				return null;
+			}
+			final int c = read();
+			if(c == -1){
+				return tokens.isEmpty() ? null : tokens;
+			}
+			switch(c){
+				case ' ': case '\t': case '\r': break;
+				case '\n':
+					if(bracketDepth == 0 && !tokens.isEmpty()){
+						return tokens;
+					}
+					break;
+				case '{':
+					braceDepth++;
+					braceOpened = true;
+					if(!tokens.isEmpty()){
+						return tokens;
+					}
+					break;
+				case '}':
+					braceDepth--;
+					if(braceOpened && braceDepth == 0){
+						// End of the graph
+						finished = true;
+					}
+					if(!tokens.isEmpty() || finished){
+						return tokens.isEmpty() ? null : tokens;
+					}
+					break;
+				case ';':
+					if(!tokens.isEmpty()){
+						return tokens;
+					}
+					break;
+				case '[': bracketDepth++; tokens.add(tokenOpenBracket); break;
+				case ']': bracketDepth--; tokens.add(tokenCloseBracket); break;
+				case '=': tokens.add(tokenEquals); break;
+				case ',': break;
+				case '"': tokens.add(readQuoted()); break;
+				case '/':
+					if(peek() == '/'){
+						skipUntil('\n');
+					}else if(peek() == '*'){
+						read();
+						skipBlockComment();
+					}
+					break;
+				case '#':
+					if(tokens.isEmpty()){
+						skipUntil('\n');
+					}
+					break;
+				case '-':
+					if(peek() == '>'){
+						read();
+						tokens.add(tokenArrow);
+						break;
+					}
+					// fall through. Part of a bare word
+				default:
+					tokens.add(readBare((char)c));
+					break;
+			}
+		}
+	}
+
+	private final void skipUntil(final char end) throws Exception{
+		int c;
+		while((c = read()) != -1 && c != end){}
+	}
+
+	private final void skipBlockComment() throws Exception{
+		int c;
+		while((c = read()) != -1){
+			if(c == '*' && peek() == '/'){
+				read();
+				return;
+			}
+		}
+	}
+
+	private final String readQuoted() throws Exception{
+		final StringBuilder builder = new StringBuilder(64);
+		builder.append('"');
+		int c;
+		while((c = read()) != -1){
+			if(c == '\\' && peek() == '"'){
+				builder.append((char)read());
+			}else if(c == '"'){
+				return builder.toString();
+			}else{
+				builder.append((char)c);
+			}
+		}
+		throw new Exception("Unterminated quoted string");
+	}
+
+	private final String readBare(final char first) throws Exception{
+		final StringBuilder builder = new StringBuilder();
+		builder.append(first);
+		int c;
+		while((c = peek()) != -1 && (Character.isLetterOrDigit(c) || c == '_' || c == '.')){
+			builder.append((char)read());
+		}
+		return builder.toString();
+	}
+
+	private static final boolean isQuoted(final String token){
+		return token.length() > 0 && token.charAt(0) == '"';
+	}
+
+	private static final String unquote(final String token){
+		return isQuoted(token) ? token.substring(1) : token;
+	}
+
+	private final Object toElement(final List<String> tokens) throws Exception{
+		if(!isQuoted(tokens.get(0))){
+			// 'digraph', 'graph', 'node', 'edge', or anything else not a node or an edge
+			return null;
+		}
+		final String firstId = unquote(tokens.get(0));
+		if(tokens.size() >= 3 && tokenArrow.equals(tokens.get(1))){
+			final String secondId = unquote(tokens.get(2));
+			final Map<String, String> attributes = parseAttributes(tokens, 3);
+			final AbstractEdge edge = new Edge(createReferenceVertex(firstId), createReferenceVertex(secondId));
+			edge.addAnnotations(parseLabel(attributes.get(labelKey)));
+			edgeCount++;
+			return edge;
+		}else{
+			final Map<String, String> attributes = parseAttributes(tokens, 1);
+			final AbstractVertex vertex = createReferenceVertex(firstId);
+			vertex.addAnnotations(parseLabel(attributes.get(labelKey)));
+			vertexCount++;
+			return vertex;
+		}
+	}
+
+	private final Map<String, String> parseAttributes(final List<String> tokens, int index) throws Exception{
+		final Map<String, String> attributes = new HashMap<String, String>();
+		if(index >= tokens.size()){
+			return attributes;
+		}
+		if(!tokenOpenBracket.equals(tokens.get(index))){
+			throw new Exception("Unexpected token '" + unquote(tokens.get(index)) + "' in statement: " + tokens);
+		}
+		index++;
+		while(index < tokens.size() && !tokenCloseBracket.equals(tokens.get(index))){
+			final String key = unquote(tokens.get(index));
+			if(index + 2 < tokens.size() && tokenEquals.equals(tokens.get(index + 1))){
+				attributes.put(key, unquote(tokens.get(index + 2)));
+				index += 3;
+			}else{
+				index++;
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * Same as what 'new Vertex(id)' would create but with the hash from the table if present
+	 */
+	private final AbstractVertex createReferenceVertex(final String id){
+		String hash = idToHash.get(id);
+		if(hash == null){
+			idToHashMisses++;
+			if(HashHelper.defaultInstance.isValidHashHexString(id)){
+				hash = id;
+			}else{
+				hash = HashHelper.defaultInstance.hashToHexString(id);
+			}
+			idToHash.put(id, hash);
+		}else{
+			idToHashHits++;
+		}
+		final AbstractVertex vertex = new Vertex(hash);
+		if(!hash.equals(id)){
+			vertex.setId(id);
+		}
+		return vertex;
+	}
+
+	private static final Map<String, String> parseLabel(final String label){
+		final Map<String, String> annotations = new HashMap<String, String>();
+		if(label != null && label.length() > 0){
+			for(final String pair : label.split("\\\\n")){
+				final String keyValue[] = pair.split(":", 2);
+				if(keyValue.length == 2){
+					annotations.put(keyValue[0], keyValue[1]);
+				}
+			}
+		}
+		return annotations;
+	}
+
+	////////////////////////////////////
+
+	/**
+	 * Callback for the elements parsed in chunked mode. Called concurrently from multiple threads.
+	 */
+	public static interface ElementConsumer{
+		public void accept(final Object element) throws Exception;
+	}
+
+	/**
+	 * Splits the file into 'chunks' byte ranges and parses them in parallel (one thread per chunk).
+	 *
+	 * Chunk boundaries are moved forward to the start of the next statement i.e. a line beginning with a '"' outside of
+	 * quotes, comments, and brackets (node and edge statements start on a new line as written by spade.storage.Graphviz).
+	 * Each chunk is read up to the exact byte offset of the next boundary. The order of elements is only preserved
+	 * within a chunk.
+	 *
+	 * @param filePath DOT file
+	 * @param chunks number of chunks (and threads)
+	 * @param idToHashTableSize max entries in the id to hash table (per chunk)
+	 * @param consumer receives the vertices and edges
+	 * @return total number of elements parsed
+	 * @throws Exception if any chunk failed
+	 */
+	public static long parseFileInChunks(final String filePath, final int chunks, final int idToHashTableSize,
+			final ElementConsumer consumer) throws Exception{
+		if(chunks < 1){
+			throw new IllegalArgumentException("Chunks must be greater than zero: " + chunks);
+		}
+		final File file = new File(filePath);
+		final long fileLength = file.length();
+
+		final long[] offsets = new long[chunks - 1];
+		for(int i = 1; i < chunks; i++){
+			offsets[i - 1] = (fileLength * i) / chunks;
+		}
+		final long[] statementStarts = findStatementStarts(file, offsets);
+		final long[] starts = new long[chunks + 1];
+		for(int i = 1; i < chunks; i++){
+			starts[i] = statementStarts[i - 1];
+		}
+		starts[chunks] = fileLength;
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		final List<Exception> errors = new ArrayList<Exception>();
+		final long[] counts = new long[chunks];
+		for(int i = 0; i < chunks; i++){
+			final int chunk = i;
+			if(starts[chunk] >= starts[chunk + 1]){
+				continue;
+			}
+			final Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					try(final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")){
+						final FileChannel channel = randomAccessFile.getChannel();
+						channel.position(starts[chunk]);
+						// Bounded in bytes (not characters) so that the chunk ends exactly where the next one starts
+						final InputStream chunkStream =
+								new BoundedInputStream(Channels.newInputStream(channel), starts[chunk + 1] - starts[chunk]);
+						final DotParser parser = new DotParser(
+								new BufferedReader(new InputStreamReader(chunkStream, StandardCharsets.UTF_8), 1 << 20),
+								idToHashTableSize);
+						Object element;
+						while((element = parser.next()) != null){
+							consumer.accept(element);
+							counts[chunk]++;
+						}
+					}catch(Exception e){
+						synchronized(errors){
+							errors.add(new Exception("Failed to parse chunk [" + starts[chunk] + ", " + starts[chunk + 1] + ")", e));
+						}
+					}
+				}
+			}, DotParser.class.getSimpleName() + "-chunk-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		for(final Thread thread : threads){
+			thread.join();
+		}
+		if(!errors.isEmpty()){
+			throw errors.get(0);
+		}
+		long total = 0;
+		for(final long count : counts){
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the offsets of the first statements at or after the given (ascending) offsets, or the file length if none.
+	 *
+	 * A statement starts at a line beginning with '"' which is not inside quotes, a comment, or brackets. The file is
+	 * scanned from the start (in bytes) to track these the same way as the tokenizer because a quoted label can span
+	 * lines. The characters tracked are all ASCII so they never occur inside a multibyte UTF-8 sequence.
+	 */
+	private static final long[] findStatementStarts(final File file, final long[] offsets) throws Exception{
+		final long[] result = new long[offsets.length];
+		int index = 0;
+		try(final InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20)){
+			boolean quoted = false, escaped = false, lineComment = false, blockComment = false;
+			int bracketDepth = 0;
+			int previous = '\n';
+			long position = 0;
+			int c;
+			while(index < offsets.length && (c = in.read()) != -1){
+				if(quoted){
+					if(c == '"' && !escaped){
+						quoted = false;
+					}
+					escaped = (c == '\\');
+				}else if(lineComment){
+					if(c == '\n'){
+						lineComment = false;
+					}
+				}else if(blockComment){
+					if(previous == '*' && c == '/'){
+						blockComment = false;
+						c = ' ';
+					}
+				}else if(c == '"'){
+					if(previous == '\n' && bracketDepth == 0){
+						while(index < offsets.length && offsets[index] <= position){
+							result[index++] = position;
+						}
+					}
+					quoted = true;
+					escaped = false;
+				}else if(c == '['){
+					bracketDepth++;
+				}else if(c == ']'){
+					bracketDepth--;
+				}else if(previous == '/' && c == '/'){
+					lineComment = true;
+				}else if(previous == '/' && c == '*'){
+					blockComment = true;
+					c = ' '; // So that '/*/' does not end the comment
+				}else if(previous == '\n' && c == '#'){
+					lineComment = true;
+				}
+				previous = c;
+				position++;
+			}
+		}
+		while(index < offsets.length){
+			result[index++] = file.length();
+		}
+		return result;
+	}
+}
@@ -32,6 +32,7 @@ import spade.utility.FileUtility;
 import spade.utility.Result;
 import spade.utility.map.external.cache.CacheArgument;
 import spade.utility.map.external.cache.LRUCacheArgument;
+import spade.utility.map.external.cache.TinyLFUCacheArgument;
 import spade.utility.map.external.screen.BloomFilterArgument;
 import spade.utility.map.external.screen.ScreenArgument;
 import spade.utility.map.external.store.StoreArgument;
@@ -326,7 +327,7 @@ public class ExternalMapTest{
 		Set<ExternalMapConfig> set = new HashSet<ExternalMapConfig>();
 		String[] mapIds = {"validMapId", null, "", " ", "invalid space id", "invalid.dot.id"};
 		String[] screenNames = {null, "", " ", "BloomFilter"};
-		String[] cacheNames = {null, "", " ", "LRU"};
+		String[] cacheNames = {null, "", " ", "LRU", "TinyLFU"};
 		String[] storeNames = {null, "", " ", "BerkeleyDB", "LevelDB"};
 		
 		Map<String, Set<String>> screenArgs = new HashMap<String, Set<String>>();
@@ -385,6 +386,8 @@ public class ExternalMapTest{
 	private static Set<String> getCacheArguments(String cacheName){
 		if("LRU".equals(cacheName)){
 			return getLRUArguments();
+		}else if("TinyLFU".equals(cacheName)){
+			return getTinyLFUArguments();
 		}else{
 			Set<String> args = new HashSet<String>();
 			args.add(null);
@@ -466,6 +469,32 @@ public class ExternalMapTest{
 		return args;
 	}
 	
+	private static Set<String> getTinyLFUArguments(){
+		Set<String> args = new HashSet<String>();
+		String[] sizes = {null, "", "-1", "0", "1000"};
+		String[] windowPercentages = {null, "", "-1", "101", "1", "20"};
+		for(String size : sizes){
+			for(String windowPercentage : windowPercentages){
+				String arg = null;
+				if(size != null){
+					String kv = TinyLFUCacheArgument.keySize + "=" + size + " ";
+					arg = arg == null ? (kv) : (arg + kv);
+				}
+				if(windowPercentage != null){
+					String kv = TinyLFUCacheArgument.keyWindowPercentage + "=" + windowPercentage + " ";
+					arg = arg == null ? (kv) : (arg + kv);
+				}
+				
+				if(arg != null && arg.length() > 0){
+					arg = arg.substring(0, arg.length() - 1);
+				}
+				
+				args.add(arg);
+			}
+		}
+		return args;
+	}
+	
 	private static Set<String> getBerkeleyDBArguments(){
 		Set<String> args = new HashSet<String>();
 		String[] dbPaths = {null, "", " ", "berkeleydatabasedir"};
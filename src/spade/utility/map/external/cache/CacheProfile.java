@@ -19,6 +19,7 @@
  */
 package spade.utility.map.external.cache;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +29,7 @@ import spade.utility.profile.TimeProfile;
 /**
  * Profile of the cache.
  * Tracks time taken by different operations: get, put, contains, remove.
+ * Tracks hits, misses, and evictions.
  * Reports the profile at interval according to the reporting argument.
  */
 public class CacheProfile{
@@ -36,6 +38,8 @@ public class CacheProfile{
 	
 	private final TimeProfile putProfile, getProfile, containsProfile, removeProfile;
 	
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+	
 	private final Intervaler intervaler;
 	
 	private final String id;
@@ -115,6 +119,27 @@ public class CacheProfile{
 		removeProfile.stop();
 	}
 	
+	/**
+	 * Call after get returned a value
+	 */
+	protected void hit(){
+		hits.incrementAndGet();
+	}
+	
+	/**
+	 * Call after get returned null
+	 */
+	protected void miss(){
+		misses.incrementAndGet();
+	}
+	
+	/**
+	 * Call after evict returned an entry
+	 */
+	protected void evicted(){
+		evictions.incrementAndGet();
+	}
+	
 	/**
 	 * Forcefully print stats and do any other necessary cleanup
 	 */
@@ -136,9 +161,12 @@ public class CacheProfile{
 	 */
 	private void printStats(boolean force){
 		if(force || intervaler.check()){
+			final long hitCount = hits.get(), missCount = misses.get();
+			final long total = hitCount + missCount;
 			logger.log(Level.INFO, 
-					String.format("%s: GET[%s], PUT[%s], CONTAINS[%s], REMOVE[%s]",
-							id, getProfile, putProfile, containsProfile, removeProfile)
+					String.format("%s: GET[%s], PUT[%s], CONTAINS[%s], REMOVE[%s], HITS=%d, MISSES=%d, HIT_RATIO=%.4f, EVICTIONS=%d",
+							id, getProfile, putProfile, containsProfile, removeProfile,
+							hitCount, missCount, total == 0 ? 0.0 : ((double)hitCount / total), evictions.get())
 					);
 		}
 	}
@@ -0,0 +1,115 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility.map.external.cache;
+
+/**
+ * Count-min sketch with 4-bit counters (max 15) used to estimate the access frequency of keys.
+ *
+ * All counters are halved after 'sampleSize' increments so that the old popularity ages out.
+ *
+ * Not thread-safe.
+ */
+class FrequencySketch{
+
+	private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size;
+	private long resets = 0;
+
+	FrequencySketch(final int maximumSize){
+		final int capacity = (int)Math.min(Math.max(maximumSize, 16), 1 << 30);
+		this.table = new long[Integer.highestOneBit(capacity - 1) << 1];
+		this.tableMask = table.length - 1;
+		this.sampleSize = (int)Math.min(10L * Math.max(maximumSize, 1), Integer.MAX_VALUE);
+	}
+
+	private static int spread(final int hashCode){
+		int x = hashCode;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private int indexOf(final int hash, final int i){
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += (h >>> 32);
+		return ((int)h) & tableMask;
+	}
+
+	/**
+	 * @param hash spread hash
+	 * @param i hash function index (0-3)
+	 * @return the bit offset of the counter in the long
+	 */
+	private static int offsetOf(final int hash, final int i){
+		return ((hash >>> (i << 3)) & 15) << 2;
+	}
+
+	int frequency(final Object key){
+		final int hash = spread(key.hashCode());
+		int frequency = Integer.MAX_VALUE;
+		for(int i = 0; i < 4; i++){
+			final int count = (int)((table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 15L);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	void increment(final Object key){
+		final int hash = spread(key.hashCode());
+		boolean added = false;
+		for(int i = 0; i < 4; i++){
+			final int index = indexOf(hash, i);
+			final int offset = offsetOf(hash, i);
+			final long mask = 15L << offset;
+			if((table[index] & mask) != mask){
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if(added && ++size >= sampleSize){
+			reset();
+		}
+	}
+
+	private void reset(){
+		for(int i = 0; i < table.length; i++){
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = size >>> 1;
+		resets++;
+	}
+
+	void clear(){
+		for(int i = 0; i < table.length; i++){
+			table[i] = 0L;
+		}
+		size = 0;
+	}
+
+	long getResets(){
+		return resets;
+	}
+}
@@ -52,7 +52,13 @@ public class ProfiledCache<K, V> implements Cache<K, V>{
 	public V get(K key){
 		try{
 			profile.getStart();
-			return cache.get(key);
+			final V value = cache.get(key);
+			if(value == null){
+				profile.miss();
+			}else{
+				profile.hit();
+			}
+			return value;
 		}catch(Exception e){
 			throw e;
 		}finally{
@@ -86,7 +92,11 @@ public class ProfiledCache<K, V> implements Cache<K, V>{
 
 	@Override
 	public CacheEntry<K, V> evict(){
-		return cache.evict();
+		final CacheEntry<K, V> entry = cache.evict();
+		if(entry != null){
+			profile.evicted();
+		}
+		return entry;
 	}
 
 	@Override
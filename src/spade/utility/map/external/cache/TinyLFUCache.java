@@ -0,0 +1,378 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility.map.external.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent W-TinyLFU cache implementation (Einziger et al.)
+ *
+ * New entries go into a small LRU window (windowPercentage of the maximum size). Entries leaving the window compete
+ * with the LRU entry of the probation segment of the main cache, and the one with the lower estimated frequency (as
+ * per a FrequencySketch) is evicted. Entries accessed in probation move to the protected segment (80% of the main
+ * cache). One-off keys (like scans of temporary files) are therefore evicted quickly without flushing the hot keys.
+ *
+ * 'get' and 'contains' don't block. Reordering on 'get' is skipped if another thread holds the policy lock. All other
+ * operations take the policy lock.
+ *
+ * Same contract as LRUCache i.e. 'put' can exceed the maximum size and the caller must call 'evict' to get the entries
+ * to remove.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class TinyLFUCache<K, V> implements Cache<K, V>{
+
+	public static final int defaultWindowPercentage = 1;
+	private static final int protectedPercentage = 80;
+
+	private static final byte QUEUE_NONE = 0, QUEUE_WINDOW = 1, QUEUE_PROBATION = 2, QUEUE_PROTECTED = 3;
+
+	private final int maximumSize;
+	private final int maximumWindowSize;
+	private final int maximumProtectedSize;
+
+	private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// Guarded by 'lock'
+	private final AccessOrderDeque<K, V> window = new AccessOrderDeque<K, V>();
+	private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<K, V>();
+	private final AccessOrderDeque<K, V> protectedDeque = new AccessOrderDeque<K, V>();
+	private final FrequencySketch sketch;
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(),
+			candidatesRejected = new AtomicLong(), reordersSkipped = new AtomicLong();
+
+	public TinyLFUCache(int maximumSize){
+		this(maximumSize, defaultWindowPercentage);
+	}
+
+	public TinyLFUCache(int maximumSize, int windowPercentage){
+		if(maximumSize < 0){
+			throw new IllegalArgumentException("Maximum size must be non-negative: " + maximumSize);
+		}
+		if(windowPercentage < 0 || windowPercentage > 100){
+			throw new IllegalArgumentException("Window percentage must be in range [0-100]: " + windowPercentage);
+		}
+		this.maximumSize = maximumSize;
+		this.maximumWindowSize = (maximumSize == 0) ? 0 : Math.max(1, (int)((maximumSize * (long)windowPercentage) / 100));
+		final int maximumMainSize = maximumSize - maximumWindowSize;
+		this.maximumProtectedSize = (int)((maximumMainSize * (long)protectedPercentage) / 100);
+		this.sketch = new FrequencySketch(maximumSize);
+	}
+
+	@Override
+	public void put(K key, V value){
+		lock.lock();
+		try{
+			Node<K, V> node = map.get(key);
+			if(node == null){
+				node = new Node<K, V>(key, value);
+				map.put(key, node);
+				node.queue = QUEUE_WINDOW;
+				window.addFirst(node);
+			}else{
+				node.value = value; // Update value in case different
+				onAccess(node);
+			}
+			sketch.increment(key);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public V get(K key){
+		final Node<K, V> node = map.get(key);
+		if(lock.tryLock()){
+			try{
+				sketch.increment(key);
+				// Might have been evicted or cleared since
+				if(node != null && node.queue != QUEUE_NONE && map.get(key) == node){
+					onAccess(node);
+				}
+			}finally{
+				lock.unlock();
+			}
+		}else{
+			reordersSkipped.incrementAndGet();
+		}
+		if(node == null){
+			misses.incrementAndGet();
+			return null;
+		}else{
+			hits.incrementAndGet();
+			return node.value;
+		}
+	}
+
+	/**
+	 * Must be called with the lock held
+	 */
+	private void onAccess(final Node<K, V> node){
+		switch(node.queue){
+			case QUEUE_WINDOW:
+				window.moveToFirst(node);
+				break;
+			case QUEUE_PROBATION:
+				probation.remove(node);
+				node.queue = QUEUE_PROTECTED;
+				protectedDeque.addFirst(node);
+				while(protectedDeque.size > maximumProtectedSize){
+					final Node<K, V> demoted = protectedDeque.removeLast();
+					demoted.queue = QUEUE_PROBATION;
+					probation.addFirst(demoted);
+				}
+				break;
+			case QUEUE_PROTECTED:
+				protectedDeque.moveToFirst(node);
+				break;
+			default:
+				break;
+		}
+	}
+
+	// Doesn't modify access order or frequency
+	@Override
+	public boolean contains(K key){
+		return map.containsKey(key);
+	}
+
+	@Override
+	public V remove(K key){
+		lock.lock();
+		try{
+			final Node<K, V> node = map.remove(key);
+			if(node == null){
+				return null;
+			}else{
+				unlink(node);
+				return node.value;
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called with the lock held
+	 */
+	private void unlink(final Node<K, V> node){
+		switch(node.queue){
+			case QUEUE_WINDOW: window.remove(node); break;
+			case QUEUE_PROBATION: probation.remove(node); break;
+			case QUEUE_PROTECTED: protectedDeque.remove(node); break;
+			default: break;
+		}
+		node.queue = QUEUE_NONE;
+	}
+
+	/**
+	 * Moves the excess entries from the window to probation, and evicts either the last entry moved (the candidate)
+	 * or the LRU entry in probation (the victim) whichever has the lower frequency. If there is no candidate then the
+	 * LRU entry of probation, protected, or window is evicted (in that order).
+	 */
+	@Override
+	public CacheEntry<K, V> evict(){
+		lock.lock();
+		try{
+			Node<K, V> candidate = null;
+			while(window.size > maximumWindowSize){
+				candidate = window.removeLast();
+				candidate.queue = QUEUE_PROBATION;
+				probation.addFirst(candidate);
+			}
+
+			Node<K, V> evicted = null;
+			final Node<K, V> victim = probation.last;
+			if(candidate != null && victim != null && victim != candidate){
+				if(sketch.frequency(candidate.key) > sketch.frequency(victim.key)){
+					evicted = victim;
+				}else{
+					evicted = candidate;
+					candidatesRejected.incrementAndGet();
+				}
+			}else if(probation.last != null){
+				evicted = probation.last;
+			}else if(protectedDeque.last != null){
+				evicted = protectedDeque.last;
+			}else if(window.last != null){
+				evicted = window.last;
+			}
+
+			if(evicted == null){
+				return null;
+			}
+			unlink(evicted);
+			map.remove(evicted.key);
+			evictions.incrementAndGet();
+			return new CacheEntry<K, V>(evicted.key, evicted.value);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return keys in the order of most likely to be retained first i.e. protected, window, and then probation (each
+	 * from most to least recently used)
+	 */
+	public List<K> getKeysInRetentionOrder(){
+		final List<K> list = new ArrayList<K>();
+		lock.lock();
+		try{
+			protectedDeque.addKeysTo(list);
+			window.addKeysTo(list);
+			probation.addKeysTo(list);
+		}finally{
+			lock.unlock();
+		}
+		return list;
+	}
+
+	@Override
+	public int getCurrentSize(){
+		return map.size();
+	}
+
+	@Override
+	public int getMaximumSize(){
+		return maximumSize;
+	}
+
+	@Override
+	public boolean hasExceededMaximumSize(){
+		return map.size() > maximumSize;
+	}
+
+	@Override
+	public void clear(){
+		lock.lock();
+		try{
+			map.clear();
+			window.clear();
+			probation.clear();
+			protectedDeque.clear();
+			sketch.clear();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close(){}
+
+	public long getHitCount(){
+		return hits.get();
+	}
+
+	public long getMissCount(){
+		return misses.get();
+	}
+
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+
+	public String getStats(){
+		return "TinyLFUCache[size=" + map.size() + ", maximumSize=" + maximumSize + ", hits=" + hits.get()
+				+ ", misses=" + misses.get() + ", evictions=" + evictions.get()
+				+ ", candidatesRejected=" + candidatesRejected.get() + ", reordersSkipped=" + reordersSkipped.get() + "]";
+	}
+
+	private static final class Node<K, V>{
+		private final K key;
+		private volatile V value;
+		// Guarded by the lock
+		private byte queue = QUEUE_NONE;
+		private Node<K, V> previous, next;
+		private Node(final K key, final V value){
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Doubly linked list of nodes with the most recently used first. Not thread-safe.
+	 */
+	private static final class AccessOrderDeque<K, V>{
+		private Node<K, V> first, last;
+		private int size;
+
+		private void addFirst(final Node<K, V> node){
+			node.previous = null;
+			node.next = first;
+			if(first == null){
+				last = node;
+			}else{
+				first.previous = node;
+			}
+			first = node;
+			size++;
+		}
+
+		private void remove(final Node<K, V> node){
+			if(node.previous == null){
+				first = node.next;
+			}else{
+				node.previous.next = node.next;
+			}
+			if(node.next == null){
+				last = node.previous;
+			}else{
+				node.next.previous = node.previous;
+			}
+			node.previous = null;
+			node.next = null;
+			size--;
+		}
+
+		private Node<K, V> removeLast(){
+			final Node<K, V> node = last;
+			if(node != null){
+				remove(node);
+			}
+			return node;
+		}
+
+		private void moveToFirst(final Node<K, V> node){
+			if(node != first){
+				remove(node);
+				addFirst(node);
+			}
+		}
+
+		private void addKeysTo(final List<K> list){
+			for(Node<K, V> node = first; node != null; node = node.next){
+				list.add(node.key);
+			}
+		}
+
+		private void clear(){
+			first = null;
+			last = null;
+			size = 0;
+		}
+	}
+}
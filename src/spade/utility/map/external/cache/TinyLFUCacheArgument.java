@@ -0,0 +1,65 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility.map.external.cache;
+
+public class TinyLFUCacheArgument extends CacheArgument{
+	
+	public final static String keySize = "size";
+	public final static String keyWindowPercentage = "windowPercentage";
+	
+	public final int size;
+	public final int windowPercentage;
+	
+	protected TinyLFUCacheArgument(int size, int windowPercentage){
+		super(CacheName.TinyLFU);
+		this.size = size;
+		this.windowPercentage = windowPercentage;
+	}
+
+	@Override
+	public int hashCode(){
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + size;
+		result = prime * result + windowPercentage;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj){
+		if(this == obj)
+			return true;
+		if(!super.equals(obj))
+			return false;
+		if(getClass() != obj.getClass())
+			return false;
+		TinyLFUCacheArgument other = (TinyLFUCacheArgument)obj;
+		if(size != other.size)
+			return false;
+		if(windowPercentage != other.windowPercentage)
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString(){
+		return "TinyLFUCacheArgument [size=" + size + ", windowPercentage=" + windowPercentage + ", name=" + name + "]";
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility.map.external.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import spade.utility.HelperFunctions;
+import spade.utility.Result;
+
+/**
+ * W-TinyLFU cache manager for external map
+ */
+public class TinyLFUCacheManager extends CacheManager{
+
+	public static final TinyLFUCacheManager instance = new TinyLFUCacheManager();
+	private TinyLFUCacheManager(){}
+	
+	/**
+	 * Create TinyLFUCache.
+	 * Sample: "size=[1-n] windowPercentage=[0-100]"
+	 * 
+	 * @param arguments See above sample
+	 */
+	@Override
+	public Result<CacheArgument> parseArgument(String arguments){
+		if(HelperFunctions.isNullOrEmpty(arguments)){
+			return Result.failed("NULL/Empty arguments");
+		}else{
+			Result<HashMap<String, String>> mapResult = HelperFunctions.parseKeysValuesInString(arguments);
+			if(mapResult.error){
+				return Result.failed("Failed to parse arguments to map", mapResult);
+			}else{
+				return parseArgument(mapResult.result);
+			}
+		}
+	}
+
+	/**
+	 * Create TinyLFUCache.
+	 * Must contains valid values for keys: 'size'.
+	 * Optional key: 'windowPercentage'. Default is 1.
+	 * 
+	 */
+	@Override
+	public Result<CacheArgument> parseArgument(Map<String, String> arguments){
+		if(arguments == null){
+			return Result.failed("NULL arguments");
+		}else if(arguments.isEmpty()){
+			return Result.failed("Empty arguments");
+		}else{
+			Result<Long> sizeResult = HelperFunctions.parseLong(
+					arguments.get(TinyLFUCacheArgument.keySize), 10, 0, Integer.MAX_VALUE);
+			if(sizeResult.error){
+				return Result.failed("Failed to parse '"+TinyLFUCacheArgument.keySize+"'", sizeResult);
+			}
+			int windowPercentage = TinyLFUCache.defaultWindowPercentage;
+			String windowPercentageString = arguments.get(TinyLFUCacheArgument.keyWindowPercentage);
+			if(windowPercentageString != null){
+				Result<Long> windowPercentageResult = HelperFunctions.parseLong(windowPercentageString, 10, 0, 100);
+				if(windowPercentageResult.error){
+					return Result.failed("Failed to parse '"+TinyLFUCacheArgument.keyWindowPercentage+"'", windowPercentageResult);
+				}
+				windowPercentage = windowPercentageResult.result.intValue();
+			}
+			return Result.successful(new TinyLFUCacheArgument(sizeResult.result.intValue(), windowPercentage));
+		}
+	}
+	
+	/**
+	 * Validates the passed argument as the correct argument for this cache manager
+	 * 
+	 * @param genericArgument CacheArgument must be TinyLFUCacheArgument
+	 * @return TinyLFUCacheArgument object otherwise error
+	 */
+	private Result<TinyLFUCacheArgument> validateArgument(final CacheArgument genericArgument){
+		if(genericArgument == null){
+			return Result.failed("NULL argument");
+		}else if(!genericArgument.getClass().equals(TinyLFUCacheArgument.class)){
+			return Result.failed("Cache argument class must be TinyLFUCacheArgument but is '"+genericArgument.getClass()+"'");
+		}else{
+			TinyLFUCacheArgument argument = (TinyLFUCacheArgument)genericArgument;
+			return Result.successful(argument);
+		}
+	}
+
+	/**
+	 * @param CacheArgument must be TinyLFUCacheArgument
+	 * @return Cache object or error
+	 */
+	@Override
+	public <K, V> Result<Cache<K, V>> createFromArgument(CacheArgument genericArgument){
+		Result<TinyLFUCacheArgument> validResult = validateArgument(genericArgument);
+		if(validResult.error){
+			return Result.failed("Invalid cache argument", validResult);
+		}else{
+			TinyLFUCacheArgument argument = validResult.result;
+			if(argument == null){
+				return Result.failed("NULL argument");
+			}else{
+				return Result.successful(new TinyLFUCache<K, V>(argument.size, argument.windowPercentage));
+			}
+		}
+	}
+
+}
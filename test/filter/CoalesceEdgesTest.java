@@ -0,0 +1,148 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractFilter;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.filter.CoalesceEdges;
+
+/**
+ * Tests that spade.filter.CoalesceEdges is safe to call from multiple threads
+ */
+class CoalesceEdgesTest{
+
+	private static final int THREADS = 4, EDGES_PER_THREAD = 20000, VERTICES_PER_THREAD = 8;
+
+	/**
+	 * Records what the next filter sees and fails on concurrent calls
+	 */
+	private static final class RecordingFilter extends AbstractFilter{
+		private final AtomicInteger inside = new AtomicInteger();
+		private final AtomicInteger concurrentCalls = new AtomicInteger();
+		private final AtomicInteger edgesBeforeVertices = new AtomicInteger();
+		private final AtomicLong edgesCoalesced = new AtomicLong();
+		private final Set<String> vertices = ConcurrentHashMap.newKeySet();
+
+		@Override
+		public void putVertex(final AbstractVertex incomingVertex){
+			enter();
+			vertices.add(incomingVertex.bigHashCode());
+			exit();
+		}
+
+		@Override
+		public void putEdge(final AbstractEdge incomingEdge){
+			enter();
+			if(!vertices.contains(incomingEdge.getChildVertex().bigHashCode())
+					|| !vertices.contains(incomingEdge.getParentVertex().bigHashCode())){
+				edgesBeforeVertices.incrementAndGet();
+			}
+			final String count = incomingEdge.getAnnotation(CoalesceEdges.ANNOTATION_COUNT);
+			edgesCoalesced.addAndGet(count == null ? 1 : Long.parseLong(count));
+			exit();
+		}
+
+		private void enter(){
+			if(inside.incrementAndGet() != 1){
+				concurrentCalls.incrementAndGet();
+			}
+			Thread.yield();
+		}
+
+		private void exit(){
+			inside.decrementAndGet();
+		}
+	}
+
+	private static void putEdges(final CoalesceEdges filter, final int threadId){
+		final AbstractVertex[] vertices = new AbstractVertex[VERTICES_PER_THREAD];
+		for(int i = 0; i < vertices.length; i++){
+			vertices[i] = new Vertex();
+			vertices[i].addAnnotation("type", "Process");
+			vertices[i].addAnnotation("pid", threadId + ":" + i);
+			filter.putVertex(vertices[i]);
+		}
+		for(int i = 0; i < EDGES_PER_THREAD; i++){
+			final AbstractEdge edge = new Edge(vertices[i % vertices.length], vertices[(i / 3) % vertices.length]);
+			edge.addAnnotation("type", "WasTriggeredBy");
+			edge.addAnnotation("operation", "op" + (i % 5));
+			edge.addAnnotation("time", String.valueOf(i));
+			edge.addAnnotation("size", "1");
+			filter.putEdge(edge);
+		}
+	}
+
+	private static long run(final boolean shutdownWhileAdding) throws Exception{
+		final RecordingFilter next = new RecordingFilter();
+		final CoalesceEdges filter = new CoalesceEdges();
+		filter.setNextFilter(next);
+		assertTrue(filter.initialize("windowMillis=5 maxEntries=64 reportingIntervalSeconds=0"));
+
+		final CountDownLatch started = new CountDownLatch(THREADS);
+		final Thread[] threads = new Thread[THREADS];
+		for(int t = 0; t < THREADS; t++){
+			final int threadId = t;
+			threads[t] = new Thread(() -> {
+				started.countDown();
+				putEdges(filter, threadId);
+			});
+			threads[t].start();
+		}
+		started.await();
+		if(shutdownWhileAdding){
+			filter.shutdown();
+		}
+		for(final Thread thread : threads){
+			thread.join();
+		}
+		if(!shutdownWhileAdding){
+			filter.shutdown();
+		}
+
+		assertEquals(0, next.concurrentCalls.get(), "Concurrent calls to the next filter");
+		assertEquals(0, next.edgesBeforeVertices.get(), "Edges put before their vertices");
+		return next.edgesCoalesced.get();
+	}
+
+	@Test
+	void noEdgesLostWithFourThreads() throws Exception{
+		assertEquals((long)THREADS * EDGES_PER_THREAD, run(false));
+	}
+
+	@Test
+	void noEdgesLostOnShutdownWhileAdding() throws Exception{
+		assertEquals((long)THREADS * EDGES_PER_THREAD, run(true));
+	}
+}
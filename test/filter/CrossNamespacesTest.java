@@ -0,0 +1,108 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractFilter;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.filter.CrossNamespaces;
+
+/**
+ * Tests that the writers reported by spade.filter.CrossNamespaces do not depend on the bound on the report tuples
+ */
+class CrossNamespacesTest{
+
+	private static final int ARTIFACTS = 20;
+
+	private static final class DiscardingFilter extends AbstractFilter{
+		@Override
+		public void putVertex(final AbstractVertex incomingVertex){}
+		@Override
+		public void putEdge(final AbstractEdge incomingEdge){}
+	}
+
+	private static Vertex process(final String namespace, final int pid){
+		final Vertex vertex = new Vertex();
+		vertex.addAnnotation("type", "Process");
+		vertex.addAnnotation("mount namespace", namespace);
+		vertex.addAnnotation("pid", String.valueOf(pid));
+		return vertex;
+	}
+
+	private static Vertex artifact(final int i){
+		final Vertex vertex = new Vertex();
+		vertex.addAnnotation("type", "Artifact");
+		vertex.addAnnotation("path", "/tmp/f" + i);
+		return vertex;
+	}
+
+	private static Edge edge(final AbstractVertex child, final AbstractVertex parent, final String type){
+		final Edge edge = new Edge(child, parent);
+		edge.addAnnotation("type", type);
+		return edge;
+	}
+
+	@Test
+	void writersReportedWithSmallestBound() throws Exception{
+		final File output = File.createTempFile("spade-cross-namespaces", ".json");
+		try{
+			final CrossNamespaces filter = new CrossNamespaces();
+			filter.setNextFilter(new DiscardingFilter());
+			assertTrue(filter.initialize("output=" + output.getAbsolutePath() + " maxReportTuples=1 inMemory=true"
+					+ " artifactAnnotationsToReport=path processAnnotationsToReport=pid"));
+			for(int i = 0; i < ARTIFACTS; i++){
+				filter.putEdge(edge(artifact(i), process("writer" + i, i), "WasGeneratedBy"));
+			}
+			final Vertex reader = process("reader", 1000);
+			for(int i = 0; i < ARTIFACTS; i++){
+				filter.putEdge(edge(reader, artifact(i), "Used"));
+			}
+			assertTrue(filter.shutdown());
+
+			final List<String> lines = Files.readAllLines(output.toPath());
+			assertEquals(ARTIFACTS, lines.size());
+			for(int i = 0; i < ARTIFACTS; i++){
+				final JSONObject event = new JSONObject(lines.get(i));
+				final JSONArray writers = event.getJSONArray("writers");
+				assertEquals(1, writers.length());
+				assertEquals(String.valueOf(i), writers.getJSONObject(0).getString("pid"));
+				assertEquals("writer" + i, writers.getJSONObject(0).getString("mount namespace"));
+				final JSONArray artifacts = event.getJSONArray("artifacts");
+				assertEquals(1, artifacts.length());
+				assertEquals("/tmp/f" + i, artifacts.getJSONObject(0).getString("path"));
+			}
+		}finally{
+			output.delete();
+		}
+	}
+}
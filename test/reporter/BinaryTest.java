@@ -0,0 +1,190 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Buffer;
+import spade.edge.opm.Used;
+import spade.reporter.Binary;
+import spade.reporter.binary.Client;
+import spade.reporter.binary.FrameDecoder;
+import spade.reporter.binary.Protocol;
+import spade.vertex.opm.Artifact;
+import spade.vertex.opm.Process;
+
+/**
+ * Tests the framing of spade.reporter.binary (Client to FrameDecoder) and the Binary reporter
+ */
+class BinaryTest{
+
+	private static final int count = 200;
+
+	private final List<Object> sent = new ArrayList<Object>();
+
+	/**
+	 * Writes 'count' processes, artifacts, and edges between them using the client and returns the bytes written
+	 * (ending with the close frame)
+	 */
+	private byte[] encode() throws Exception{
+		try(final ServerSocket server = new ServerSocket(0)){
+			final Client client = Client.connectTCP("127.0.0.1", server.getLocalPort());
+			try(final Socket socket = server.accept()){
+				for(int i = 0; i < count; i++){
+					final Process process = new Process();
+					process.addAnnotation("pid", String.valueOf(i));
+					process.addAnnotation("name", i % 2 == 0 ? "bash" : "caf\u00e9");
+					final Artifact artifact = new Artifact();
+					artifact.addAnnotation("path", "/tmp/file" + i);
+					final Used used = new Used(process, artifact);
+					used.addAnnotation("operation", "read");
+					used.addAnnotation("size", String.valueOf(i * 4096));
+					client.putVertex(process);
+					client.putVertex(artifact);
+					client.putEdge(used);
+					sent.add(process);
+					sent.add(artifact);
+					sent.add(used);
+				}
+				client.close();
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final InputStream input = socket.getInputStream();
+				final byte[] chunk = new byte[8192];
+				int read;
+				while((read = input.read(chunk)) >= 0){
+					bytes.write(chunk, 0, read);
+				}
+				return bytes.toByteArray();
+			}
+		}
+	}
+
+	/**
+	 * Feeds the bytes to the decoder 'chunkSize' bytes at a time in the same way as the reporter
+	 */
+	private List<Object> decode(final byte[] bytes, final int chunkSize) throws Exception{
+		final FrameDecoder decoder = new FrameDecoder(1 << 20, 1 << 20);
+		final List<Object> decoded = new ArrayList<Object>();
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		int offset = 0;
+		while(offset < bytes.length && !decoder.isClosed()){
+			final int length = Math.min(Math.min(chunkSize, bytes.length - offset), buffer.remaining());
+			buffer.put(bytes, offset, length);
+			offset += length;
+			buffer.flip();
+			int neededBytes;
+			do{
+				neededBytes = decoder.decode(buffer, decoded, 7);
+			}while(buffer.remaining() >= Protocol.FRAME_HEADER_BYTES && neededBytes == 0 && !decoder.isClosed());
+			buffer.compact();
+			if(neededBytes > buffer.capacity() || !buffer.hasRemaining()){
+				final ByteBuffer bigger = ByteBuffer.allocate(Math.max(neededBytes, buffer.capacity() * 2));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+		}
+		assertTrue(decoder.isClosed(), "Close frame decoded");
+		return decoded;
+	}
+
+	private void assertSameElement(final Object expected, final Object actual){
+		if(expected instanceof AbstractVertex){
+			assertTrue(actual instanceof AbstractVertex);
+			assertEquals(((AbstractVertex)expected).bigHashCode(), ((AbstractVertex)actual).bigHashCode());
+			assertEquals(((AbstractVertex)expected).getCopyOfAnnotations(), ((AbstractVertex)actual).getCopyOfAnnotations());
+		}else{
+			assertTrue(actual instanceof AbstractEdge);
+			final AbstractEdge expectedEdge = (AbstractEdge)expected;
+			final AbstractEdge actualEdge = (AbstractEdge)actual;
+			assertEquals(expectedEdge.getChildVertex().bigHashCode(), actualEdge.getChildVertex().bigHashCode());
+			assertEquals(expectedEdge.getParentVertex().bigHashCode(), actualEdge.getParentVertex().bigHashCode());
+			assertEquals(expectedEdge.getCopyOfAnnotations(), actualEdge.getCopyOfAnnotations());
+		}
+	}
+
+	@Test
+	void decoderRoundTripAcrossReadBoundaries() throws Exception{
+		final byte[] bytes = encode();
+		for(final int chunkSize : Arrays.asList(1, 3, 7, 64, 1000, bytes.length)){
+			final List<Object> decoded = decode(bytes, chunkSize);
+			assertEquals(sent.size(), decoded.size(), "Elements decoded with chunks of " + chunkSize + " bytes");
+			for(int i = 0; i < sent.size(); i++){
+				assertSameElement(sent.get(i), decoded.get(i));
+			}
+		}
+	}
+
+	@Test
+	void elementsBeforeInvalidFrameArePut() throws Exception{
+		final byte[] bytes = encode();
+		// Replace the close frame with a frame of invalid length
+		final byte[] corrupt = Arrays.copyOf(bytes, bytes.length);
+		ByteBuffer.wrap(corrupt, bytes.length - (Protocol.FRAME_HEADER_BYTES + 1), Protocol.FRAME_HEADER_BYTES).putInt(0);
+
+		final int port;
+		try(final ServerSocket free = new ServerSocket(0)){
+			port = free.getLocalPort();
+		}
+		final Buffer buffer = new Buffer();
+		final Binary reporter = new Binary();
+		reporter.setBuffer(buffer);
+		assertTrue(reporter.launch("listenHost=127.0.0.1 listenPort=" + port + " unixSocketPath= selectorThreads=1 "
+				+ "batchSize=100000 reportingIntervalSeconds=0"));
+		try{
+			try(final Socket socket = new Socket("127.0.0.1", port)){
+				final OutputStream output = socket.getOutputStream();
+				output.write(corrupt);
+				output.flush();
+				// Closed by the reporter on the invalid frame
+				assertEquals(-1, socket.getInputStream().read());
+			}
+			final List<Object> received = new ArrayList<Object>();
+			final long deadline = System.currentTimeMillis() + 10000;
+			while(received.size() < sent.size() && System.currentTimeMillis() < deadline){
+				final Object element = buffer.getBufferElement();
+				if(element == null){
+					Thread.sleep(20);
+				}else{
+					received.add(element);
+				}
+			}
+			assertEquals(sent.size(), received.size(), "Elements decoded before the invalid frame");
+		}finally{
+			reporter.shutdown();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Buffer;
+import spade.reporter.Network;
+
+/**
+ * Tests spade.reporter.Network against a fake proc filesystem in a temporary directory
+ */
+class NetworkTest{
+
+	private static final String tcpHeader =
+			"  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode";
+
+	private Path procRoot;
+	private Network reporter;
+	private Buffer buffer;
+	private final List<Object> elements = new ArrayList<Object>();
+
+	@BeforeEach
+	void setUp() throws Exception{
+		procRoot = Files.createTempDirectory("spade-proc-test");
+		Files.createDirectories(procRoot.resolve("net"));
+		Files.write(procRoot.resolve("net/tcp"), (tcpHeader + "\n").getBytes());
+		buffer = new Buffer();
+		reporter = new Network();
+		reporter.setBuffer(buffer);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception{
+		reporter.shutdown();
+		FileUtils.deleteDirectory(procRoot.toFile());
+	}
+
+	/**
+	 * Connection from 10.0.0.1:'localPort' to 192.168.1.2:8080 (addresses as 32-bit words in little-endian)
+	 */
+	private void addTcpLine(final int localPort, final String remotePortHex, final long inode) throws Exception{
+		final String line = String.format("   0: 0100000A:%04X 0201A8C0:%s 01 00000000:00000000 00:00000000 00000000  1000        0 %d",
+				localPort, remotePortHex, inode);
+		Files.write(procRoot.resolve("net/tcp"), (line + "\n").getBytes(), StandardOpenOption.APPEND);
+	}
+
+	private void addSocketFd(final String pid, final int fd, final long inode) throws Exception{
+		final Path fdDirectory = procRoot.resolve(Paths.get(pid, "fd"));
+		Files.createDirectories(fdDirectory);
+		Files.createSymbolicLink(fdDirectory.resolve(String.valueOf(fd)), Paths.get("socket:[" + inode + "]"));
+	}
+
+	private void drainBuffer(){
+		Object element;
+		while((element = buffer.getBufferElement()) != null){
+			elements.add(element);
+		}
+	}
+
+	private boolean hasProcess(final String pid){
+		for(final Object element : elements){
+			if(element instanceof AbstractVertex && pid.equals(((AbstractVertex)element).getAnnotation("pid"))){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean hasEdgeFor(final String pid, final int localPort){
+		for(final Object element : elements){
+			if(element instanceof AbstractEdge){
+				final AbstractEdge edge = (AbstractEdge)element;
+				final AbstractVertex process = "Used".equals(edge.type()) ? edge.getChildVertex() : edge.getParentVertex();
+				final AbstractVertex artifact = "Used".equals(edge.type()) ? edge.getParentVertex() : edge.getChildVertex();
+				if(pid.equals(process.getAnnotation("pid"))
+						&& String.valueOf(localPort).equals(artifact.getAnnotation("source port"))){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean waitFor(final BooleanSupplier condition) throws Exception{
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(System.currentTimeMillis() < deadline){
+			drainBuffer();
+			if(condition.getAsBoolean()){
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return false;
+	}
+
+	@Test
+	void resolvesConnectionsOfNewAndKnownProcesses() throws Exception{
+		addTcpLine(40001, "1F90", 1001);
+		addSocketFd("100", 3, 1001);
+		// Malformed port is skipped without failing the scan
+		addTcpLine(40002, "ZZZZ", 1002);
+		// Owner appears after the connection (resolved by a retry)
+		addTcpLine(40003, "1F90", 1003);
+		// Not a process
+		Files.createDirectories(procRoot.resolve(Paths.get("self", "fd")));
+
+		assertTrue(reporter.launch("procRoot=" + procRoot + " scanIntervalMillis=50 unresolvedRetryScans=1000 reportingIntervalSeconds=0"));
+		assertTrue(waitFor(() -> hasEdgeFor("100", 40001)), "Connection of a process");
+
+		addSocketFd("200", 5, 1003);
+		assertTrue(waitFor(() -> hasEdgeFor("200", 40003)), "Connection retried until its owner appeared");
+
+		// New connection of a process scanned before
+		addSocketFd("100", 4, 1004);
+		addTcpLine(40004, "1F90", 1004);
+		assertTrue(waitFor(() -> hasEdgeFor("100", 40004)), "New connection of a known process");
+
+		assertFalse(hasProcess("self"));
+	}
+}
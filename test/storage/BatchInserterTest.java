@@ -0,0 +1,183 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import spade.storage.sql.BatchInserter;
+
+/**
+ * Tests the handling of duplicate and invalid rows by spade.storage.sql.BatchInserter on an in-memory H2 database
+ */
+class BatchInserterTest{
+
+	private static final String table = "vertex";
+	private static final List<String> columnNames = Arrays.asList("hash", "name");
+
+	private static int databaseId = 0;
+
+	// Quote for the names in the queries of the test. Names quoted with '`' are not case sensitive in the MySQL mode
+	private String quote;
+	private Connection connection;
+	private BatchInserter inserter;
+	private final AtomicInteger commits = new AtomicInteger();
+	private final AtomicInteger committedRows = new AtomicInteger();
+
+	/**
+	 * @param mode H2 compatibility mode (or null)
+	 */
+	private void start(final BatchInserter.Dialect dialect, final String mode) throws Exception{
+		final String url = "jdbc:h2:mem:batch" + (databaseId++) + (mode == null ? "" : ";MODE=" + mode);
+		quote = mode == null ? "\"" : "";
+		connection = DriverManager.getConnection(url, "sa", "");
+		try(final Statement statement = connection.createStatement()){
+			statement.execute("CREATE TABLE " + table + " (" + quote + "hash" + quote + " VARCHAR(32) PRIMARY KEY, "
+					+ quote + "name" + quote + " VARCHAR(256))");
+		}
+		inserter = new BatchInserter("test-loader-thread", countCommits(DriverManager.getConnection(url, "sa", "")),
+				dialect, "hash", new BatchInserter.Columns(){
+					@Override
+					public boolean isColumn(final String tableName, final String columnName){
+						return true;
+					}
+					@Override
+					public boolean addColumn(final Connection connection, final String tableName, final String columnName){
+						return false;
+					}
+				}, 1000, 60 * 1000, 100);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception{
+		if(inserter != null){
+			inserter.shutdown();
+			inserter.getConnection().close();
+		}
+		if(connection != null){
+			connection.close();
+		}
+	}
+
+	private Connection countCommits(final Connection connection){
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+				new InvocationHandler(){
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable{
+						if(method.getName().equals("commit")){
+							commits.incrementAndGet();
+						}
+						try{
+							return method.invoke(connection, args);
+						}catch(InvocationTargetException e){
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	private void put(final String hash, final String name){
+		inserter.put(table, columnNames, Arrays.asList(hash, name), new Runnable(){
+			@Override
+			public void run(){
+				committedRows.incrementAndGet();
+			}
+		});
+	}
+
+	private String hash(final int i){
+		return String.format("%032x", i);
+	}
+
+	private long query(final String query) throws Exception{
+		try(final Statement statement = connection.createStatement();
+				final ResultSet result = statement.executeQuery(query)){
+			result.next();
+			return result.getLong(1);
+		}
+	}
+
+	/**
+	 * @param secondRows rows expected to have the second value (depends on whether the rows in the table are updated)
+	 */
+	private void checkDuplicates(final int secondRows) throws Exception{
+		for(int i = 0; i < 10; i++){
+			put(hash(i), "first");
+		}
+		inserter.flush();
+		assertEquals(1, commits.get());
+
+		// 5 rows already in the table and 1 row twice in the batch
+		for(int i = 5; i < 1000; i++){
+			put(hash(i), "second");
+		}
+		put(hash(500), "second");
+		inserter.flush();
+		assertEquals(2, commits.get());
+		assertEquals(1006, committedRows.get());
+		assertEquals(1000, query("SELECT COUNT(*) FROM " + table));
+		assertEquals(secondRows, query("SELECT COUNT(*) FROM " + table + " WHERE " + quote + "name" + quote + " = 'second'"));
+	}
+
+	@Test
+	void duplicatesH2() throws Exception{
+		start(BatchInserter.Dialect.H2, null);
+		// Merged
+		checkDuplicates(995);
+	}
+
+	@Test
+	void duplicatesMySQL() throws Exception{
+		start(BatchInserter.Dialect.MYSQL, "MySQL");
+		// Kept
+		checkDuplicates(990);
+	}
+
+	@Test
+	void oversizedRowOnlyLosesItself() throws Exception{
+		start(BatchInserter.Dialect.H2, null);
+		final char[] longName = new char[300];
+		Arrays.fill(longName, 'x');
+		for(int i = 0; i < 999; i++){
+			put(hash(i), i == 400 ? new String(longName) : "name");
+		}
+		put(hash(999), new String(longName));
+		inserter.flush();
+		// Retried once as a batch without the failed rows instead of one at a time
+		assertEquals(1, commits.get());
+		assertEquals(998, committedRows.get());
+		assertEquals(998, query("SELECT COUNT(*) FROM " + table));
+		assertEquals(0, query("SELECT COUNT(*) FROM " + table + " WHERE " + quote + "hash" + quote + " IN ('" + hash(400) + "', '" + hash(999) + "')"));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Settings;
+import spade.core.Vertex;
+import spade.storage.Graphviz;
+import spade.storage.JSON;
+import spade.storage.Neo4j;
+import spade.storage.neo4j.BulkLoader;
+import spade.storage.neo4j.Configuration;
+import spade.utility.DotConfiguration;
+import spade.utility.Result;
+
+/**
+ * Writes a graph with the JSON and the Graphviz storages, loads the output with spade.storage.neo4j.BulkLoader, and
+ * reads it back with spade.storage.Neo4j
+ */
+class Neo4jBulkLoaderTest{
+
+	private static final int count = 50;
+	// Not ASCII to check that the input is read as UTF-8
+	private static final String name = "caf\u00e9";
+
+	private File directory;
+
+	@BeforeEach
+	void setUp() throws Exception{
+		directory = Files.createTempDirectory("spade-bulkload-test").toFile();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception{
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Chain of 'count' vertices, one duplicate vertex, and one edge to a vertex which is not in the output
+	 */
+	private void write(final AbstractStorage storage){
+		AbstractVertex previous = null;
+		for(int i = 0; i < count; i++){
+			final Vertex vertex = new Vertex();
+			vertex.addAnnotation("name", name);
+			vertex.addAnnotation("index", String.valueOf(i));
+			assertTrue(storage.storeVertex(vertex));
+			if(previous != null){
+				final Edge edge = new Edge(vertex, previous);
+				edge.addAnnotation("index", String.valueOf(i));
+				assertTrue(storage.storeEdge(edge));
+			}
+			previous = vertex;
+		}
+		assertTrue(storage.storeVertex(previous));
+		final Vertex missing = new Vertex();
+		missing.addAnnotation("name", "missing");
+		final AbstractEdge edge = new Edge(previous, missing);
+		edge.addAnnotation("index", "missing");
+		assertTrue(storage.storeEdge(edge));
+	}
+
+	private long count(final Neo4j storage, final String query){
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+		return result.isEmpty() ? 0 : ((Number)result.get(0).get("c")).longValue();
+	}
+
+	private void loadAndCheck(final File input, final BulkLoader.Format format) throws Exception{
+		final File neo4jHome = new File(directory, "neo4j-" + format);
+		final String neo4jArguments = "dbms.directories.neo4j_home=" + neo4jHome.getAbsolutePath();
+		final Result<Configuration> configurationResult = Configuration.initialize(neo4jArguments,
+				Settings.getDefaultConfigFilePath(Neo4j.class));
+		assertFalse(configurationResult.error, configurationResult.toErrorString());
+		new BulkLoader(configurationResult.result, input, format, 0).load();
+
+		final Neo4j storage = new Neo4j();
+		assertTrue(storage.initialize(neo4jArguments + " reset=false"));
+		try{
+			final String label = storage.getConfiguration().nodePrimaryLabelName;
+			// The missing vertex is written with only the hash
+			assertEquals(count + 1, count(storage, "match (n:" + label + ") return count(n) as c"));
+			assertEquals(count, count(storage, "match (n:" + label + " {name:'" + name + "'}) return count(n) as c"));
+			assertEquals(count, count(storage, "match ()-[e]->() return count(e) as c"));
+			assertEquals(1, count(storage, "match (a:" + label + " {index:'7'})-[e {index:'7'}]->(b:" + label
+					+ " {index:'6'}) return count(e) as c"));
+			assertEquals(1, count(storage, "match (a:" + label + ")-[e {index:'missing'}]->(b:" + label
+					+ ") where b.name is null return count(e) as c"));
+		}finally{
+			storage.shutdown();
+		}
+	}
+
+	/*
+	 * Written as UTF-8 (instead of the platform charset used by the storages) so that the name is not lost on write
+	 */
+	private BufferedWriter newWriter(final File file) throws Exception{
+		return Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void jsonRoundTrip() throws Exception{
+		final File output = new File(directory, "graph.json");
+		final JSON storage = new JSON();
+		storage.initializeUnsafe(newWriter(output), true, true, true, System.lineSeparator(), true);
+		write(storage);
+		assertTrue(storage.shutdown());
+		loadAndCheck(output, BulkLoader.Format.JSON);
+	}
+
+	@Test
+	void dotRoundTrip() throws Exception{
+		final File output = new File(directory, "graph.dot");
+		final Graphviz storage = new Graphviz();
+		storage.initializeUnsafe(newWriter(output), DotConfiguration.getDefaultConfigFilePath(), true, true,
+				System.lineSeparator(), true);
+		write(storage);
+		assertTrue(storage.shutdown());
+		loadAndCheck(output, BulkLoader.Format.DOT);
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.Neo4j;
+import spade.storage.neo4j.TaskTraversal;
+
+/**
+ * Compares the shortest paths found by spade.storage.neo4j.TaskTraversal with the Cypher 'shortestPath' function
+ */
+class Neo4jTraversalTest{
+
+	private static final int maxDepth = 8;
+
+	private File neo4jHome;
+	private Neo4j storage;
+	private String baseLabel;
+	private String edgeSymbols;
+
+	@BeforeEach
+	void setUp() throws Exception{
+		neo4jHome = Files.createTempDirectory("spade-neo4j-test").toFile();
+		storage = new Neo4j();
+		assertTrue(storage.initialize("dbms.directories.neo4j_home=" + neo4jHome.getAbsolutePath() + " reset=true"));
+		baseLabel = storage.getConfiguration().nodePrimaryLabelName;
+		edgeSymbols = storage.getConfiguration().edgeSymbolsPropertyName;
+	}
+
+	@AfterEach
+	void tearDown() throws Exception{
+		storage.shutdown();
+		FileUtils.deleteDirectory(neo4jHome);
+	}
+
+	private AbstractVertex putVertex(final String name){
+		final Vertex vertex = new Vertex();
+		vertex.addAnnotation("name", name);
+		storage.storeVertex(vertex);
+		return vertex;
+	}
+
+	private void putEdge(final AbstractVertex child, final AbstractVertex parent){
+		final Edge edge = new Edge(child, parent);
+		edge.addAnnotation("from", child.getAnnotation("name"));
+		edge.addAnnotation("to", parent.getAnnotation("name"));
+		storage.storeEdge(edge);
+	}
+
+	private void waitForPendingTasks() throws Exception{
+		while(storage.getPendingTasksSize() > 0){
+			Thread.sleep(10);
+		}
+	}
+
+	private long count(final String query){
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(query);
+		return result.isEmpty() ? 0 : ((Number)result.get(0).get("c")).longValue();
+	}
+
+	private void label(final String name, final String label){
+		storage.executeQueryForSmallResult("match (n:" + baseLabel + " {name:'" + name + "'}) set n:" + label);
+	}
+
+	/**
+	 * @return length of the path found by the traversal (-1 if none) after checking that it is one path
+	 */
+	private long traverseShortestPath(final String target, final String src, final String dst){
+		storage.executeQueryAndBlockForResult(TaskTraversal.path(TaskTraversal.Type.SHORTEST_PATH, target,
+				baseLabel, true, src, dst, maxDepth, edgeSymbols));
+		final long nodes = count("match (n:" + target + ") return count(n) as c");
+		final long edges = count("match ()-[e]->() where e." + edgeSymbols + " contains '," + target + ",' return count(e) as c");
+		if(nodes == 0){
+			return -1;
+		}
+		assertEquals(nodes - 1, edges, "Not a single path for " + target);
+		return edges;
+	}
+
+	/**
+	 * @return length of the path found by Cypher (-1 if none)
+	 */
+	private long cypherShortestPathLength(final String src, final String dst){
+		final List<Map<String, Object>> result = storage.executeQueryForSmallResult(
+				"match p=shortestPath((a:" + src + ")-[*0.." + maxDepth + "]->(b:" + dst + ")) return length(p) as c");
+		return result.isEmpty() ? -1 : ((Number)result.get(0).get("c")).longValue();
+	}
+
+	/*
+	 * Edges point from the child to the parent. Paths of length 3 and 4 from 'src' to 'dst' where the longer one goes
+	 * through the vertices with the smaller ids.
+	 */
+	@Test
+	void shorterPathThroughLargerIds() throws Exception{
+		final AbstractVertex src = putVertex("src"), dst = putVertex("dst");
+		final AbstractVertex c1 = putVertex("c1"), c2 = putVertex("c2"), c3 = putVertex("c3");
+		final AbstractVertex b1 = putVertex("b1");
+		final AbstractVertex a1 = putVertex("a1"), a2 = putVertex("a2");
+		putEdge(src, a1);
+		putEdge(src, a2);
+		putEdge(b1, dst);
+		putEdge(c1, b1);
+		putEdge(c2, b1);
+		putEdge(c3, b1);
+		putEdge(a1, c1);
+		putEdge(a2, b1);
+		waitForPendingTasks();
+		label("src", "SRC");
+		label("dst", "DST");
+
+		final long expected = cypherShortestPathLength("SRC", "DST");
+		assertEquals(3, expected);
+		assertEquals(expected, traverseShortestPath("RESULT", "SRC", "DST"));
+		assertEquals(0, count("match (n:RESULT) where n.name in ['a1', 'c1'] return count(n) as c"));
+	}
+
+	@Test
+	void randomGraphMatchesCypher() throws Exception{
+		final Random random = new Random(7);
+		final int vertexCount = 300;
+		final List<AbstractVertex> vertices = new ArrayList<AbstractVertex>();
+		for(int i = 0; i < vertexCount; i++){
+			vertices.add(putVertex("v" + i));
+		}
+		for(int i = 0; i < 2 * vertexCount; i++){
+			putEdge(vertices.get(random.nextInt(vertexCount)), vertices.get(random.nextInt(vertexCount)));
+		}
+		waitForPendingTasks();
+
+		for(int i = 0; i < 30; i++){
+			final String src = "S" + i, dst = "D" + i;
+			label("v" + random.nextInt(vertexCount), src);
+			label("v" + random.nextInt(vertexCount), dst);
+			assertEquals(cypherShortestPathLength(src, dst), traverseShortestPath("R" + i, src, dst), "Pair " + i);
+		}
+	}
+}
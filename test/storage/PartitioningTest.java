@@ -0,0 +1,133 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.quickgrail.core.QuickGrailQueryResolver.PredicateOperator;
+import spade.storage.postgresql.Partitioning;
+
+/**
+ * Tests the time mapping, the partition starts, and the pruning predicates of spade.storage.postgresql.Partitioning
+ * (no server needed)
+ */
+class PartitioningTest{
+
+	private static final long hourMillis = 60 * 60 * 1000;
+	private static final long ingestMillis = 1000 * hourMillis + 123;
+	private static final String annotation = "time";
+	private static final String column = "e.\"spade_time\"";
+
+	private static Partitioning newPartitioning(final long futureMillis){
+		return new Partitioning(hourMillis, annotation, 0, futureMillis, Arrays.asList("vertex", "edge"),
+				Arrays.asList("edge"));
+	}
+
+	private static long getEdgeTimeMillis(final Partitioning partitioning, final String value){
+		final Edge edge = new Edge(new Vertex(), new Vertex());
+		if(value != null){
+			edge.addAnnotation(annotation, value);
+		}
+		return partitioning.getEdgeTimeMillis(edge, ingestMillis);
+	}
+
+	@Test
+	void edgeTime(){
+		final Partitioning partitioning = newPartitioning(0);
+		assertEquals(1500000, getEdgeTimeMillis(partitioning, "1500"));
+		assertEquals(1500250, getEdgeTimeMillis(partitioning, " 1500.25 "));
+		assertEquals(0, getEdgeTimeMillis(partitioning, "-5"));
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, null));
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, "yesterday"));
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, "NaN"));
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, "Infinity"));
+		// Would overflow the end of the partition
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, "1e300"));
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, String.valueOf(Long.MAX_VALUE / 1000)));
+		// No limit on the future
+		assertEquals(1000000000000000L, getEdgeTimeMillis(partitioning, "1e12"));
+
+		final Partitioning ingestTimePartitioning = new Partitioning(hourMillis, null, 0, 0, Arrays.asList("edge"),
+				Arrays.asList("edge"));
+		assertEquals(ingestMillis, getEdgeTimeMillis(ingestTimePartitioning, "1500"));
+	}
+
+	@Test
+	void edgeTimeWithFutureLimit(){
+		final Partitioning partitioning = newPartitioning(24 * hourMillis);
+		final long limitSeconds = (ingestMillis + 24 * hourMillis) / 1000;
+		assertEquals(limitSeconds * 1000, getEdgeTimeMillis(partitioning, String.valueOf(limitSeconds)));
+		assertEquals(ingestMillis, getEdgeTimeMillis(partitioning, String.valueOf(limitSeconds + 1)));
+		assertEquals(1500000, getEdgeTimeMillis(partitioning, "1500"));
+	}
+
+	@Test
+	void partitionStart(){
+		final Partitioning partitioning = newPartitioning(0);
+		assertEquals(0, partitioning.getPartitionStart(0));
+		assertEquals(0, partitioning.getPartitionStart(hourMillis - 1));
+		assertEquals(hourMillis, partitioning.getPartitionStart(hourMillis));
+		assertEquals(0, partitioning.getPartitionStart(-1));
+		// The largest time mapped from an annotation is in a partition which ends without overflow
+		final long largestMillis = (Long.MAX_VALUE / hourMillis) * hourMillis - 1;
+		final long start = partitioning.getPartitionStart(largestMillis);
+		assertTrue(start + hourMillis > start);
+		assertThrows(IllegalArgumentException.class,
+				() -> partitioning.ensurePartitions(null, Arrays.asList(largestMillis + 1)));
+	}
+
+	@Test
+	void pruningPredicate(){
+		final Partitioning partitioning = newPartitioning(0);
+		assertEquals(" and " + column + " between 1500000 and 1500000",
+				partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "1500"));
+		assertEquals(" and " + column + " between 1500250 and 1500250",
+				partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "1500.25"));
+		assertEquals(" and " + column + " between 0 and 0",
+				partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "-5"));
+		assertEquals(" and \"spade_time\" between 1500000 and 1500000",
+				partitioning.getPruningPredicate(null, annotation, PredicateOperator.EQUAL, "1500"));
+		// Stored at the ingest time
+		assertEquals("", partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "1e300"));
+		assertEquals("", partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "yesterday"));
+		// No bound
+		assertEquals("", partitioning.getPruningPredicate("e", annotation, PredicateOperator.GREATER, "1500"));
+		assertEquals("", partitioning.getPruningPredicate("e", "operation", PredicateOperator.EQUAL, "1500"));
+		assertEquals("", partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, null));
+	}
+
+	@Test
+	void pruningPredicateWithFutureLimit(){
+		final Partitioning partitioning = newPartitioning(hourMillis);
+		// Edges with the value stored at an ingest time more than an hour before the value
+		assertEquals(" and (" + column + " between 7200000 and 7200000 or " + column + " < 3600000)",
+				partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "7200"));
+		assertEquals(" and " + column + " between 1500000 and 1500000",
+				partitioning.getPruningPredicate("e", annotation, PredicateOperator.EQUAL, "1500"));
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2021 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import spade.core.AbstractStorage;
+import spade.core.Settings;
+import spade.edge.opm.WasTriggeredBy;
+import spade.storage.PostgreSQL;
+import spade.storage.postgresql.Configuration;
+import spade.storage.postgresql.HybridSchema;
+import spade.storage.postgresql.Partitioning;
+import spade.storage.postgresql.TraversalFunctions;
+import spade.vertex.opm.Process;
+
+/**
+ * Integration tests of spade.storage.PostgreSQL against a running server. Skipped if the server is not reachable.
+ *
+ * The tables in the test database are dropped. The database is 'spade_test' (override with the system property
+ * 'spade.test.postgresql.database') and the rest of the connection settings are from the storage config file.
+ */
+class PostgreSQLTest{
+
+	private static final String databaseProperty = "spade.test.postgresql.database";
+
+	private static final int count = 300;
+	private static final String overflowKey = "test key";
+	private static final String promotionArguments = "promotionThreshold=" + (count / 2) + " promotionIntervalSeconds=1";
+
+	private final Configuration configuration = new Configuration();
+	private String database;
+	private Connection connection = null;
+	private PostgreSQL storage = null;
+
+	@BeforeEach
+	void connect() throws Exception{
+		database = System.getProperty(databaseProperty, "spade_test");
+		configuration.load(Settings.getDefaultConfigFilePath(PostgreSQL.class), "database=" + database);
+		try{
+			Class.forName(configuration.getDriverClassName());
+			DriverManager.setLoginTimeout(5);
+			connection = DriverManager.getConnection(
+					configuration.getConnectionURL(), configuration.getDbUser(), configuration.getDbPassword());
+		}catch(Exception e){
+			connection = null;
+		}
+		assumeTrue(connection != null, "PostgreSQL not reachable at '" + configuration.getConnectionURL() + "'");
+	}
+
+	@AfterEach
+	void disconnect() throws Exception{
+		if(storage != null){
+			storage.shutdown();
+			storage = null;
+		}
+		if(connection != null){
+			connection.close();
+			connection = null;
+		}
+	}
+
+	private PostgreSQL initializeStorage(final String arguments){
+		final PostgreSQL storage = new PostgreSQL();
+		assertTrue(storage.initialize("database=" + database + " reset=true buffer=50 flushConnections=2 " + arguments));
+		this.storage = storage;
+		return storage;
+	}
+
+	/**
+	 * Stores a chain of processes (each triggered by the previous one) with the overflow key in all vertices and edges
+	 *
+	 * @return the processes in the order of the chain
+	 */
+	private List<Process> storeChain(final PostgreSQL storage){
+		final List<Process> processes = new ArrayList<Process>();
+		for(int i = 0; i < count; i++){
+			final Process process = new Process();
+			process.addAnnotation("pid", String.valueOf(i));
+			process.addAnnotation(overflowKey, "v" + i);
+			assertTrue(storage.storeVertex(process));
+			if(!processes.isEmpty()){
+				final WasTriggeredBy edge = new WasTriggeredBy(process, processes.get(processes.size() - 1));
+				edge.addAnnotation(overflowKey, "e" + i);
+				assertTrue(storage.storeEdge(edge));
+			}
+			processes.add(process);
+		}
+		return processes;
+	}
+
+	private long queryLong(final String query) throws Exception{
+		try(final Statement statement = connection.createStatement();
+				final ResultSet result = statement.executeQuery(query)){
+			assertTrue(result.next());
+			return result.getLong(1);
+		}
+	}
+
+	private void execute(final String query) throws Exception{
+		try(final Statement statement = connection.createStatement()){
+			statement.execute(query);
+		}
+	}
+
+	private Set<String> getPartitionNames(final String tableName) throws Exception{
+		final Set<String> names = new HashSet<String>();
+		try(final Statement statement = connection.createStatement();
+				final ResultSet result = statement.executeQuery(
+						"select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid"
+						+ " join pg_class p on p.oid = i.inhparent where p.relname = "
+						+ HybridSchema.formatStringLiteral(tableName))){
+			while(result.next()){
+				names.add(result.getString(1));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Waits for the promotion thread to move the overflow key of the table to a column
+	 */
+	private void awaitPromotion(final String tableName) throws Exception{
+		final String keyRowsQuery = "select count(*) from " + HybridSchema.OVERFLOW_KEYS_TABLE_NAME
+				+ " where " + HybridSchema.formatColumnName(HybridSchema.OVERFLOW_KEYS_TABLE_COLUMN) + " = "
+				+ HybridSchema.formatStringLiteral(tableName)
+				+ " and " + HybridSchema.formatColumnName(HybridSchema.OVERFLOW_KEYS_KEY_COLUMN) + " = "
+				+ HybridSchema.formatStringLiteral(overflowKey);
+		final String columnQuery = "select count(*) from information_schema.columns where table_name = "
+				+ HybridSchema.formatStringLiteral(tableName) + " and column_name = "
+				+ HybridSchema.formatStringLiteral(overflowKey);
+		final long deadline = System.currentTimeMillis() + 30 * 1000;
+		while(queryLong(columnQuery) == 0 || queryLong(keyRowsQuery) != 0){
+			assertTrue(System.currentTimeMillis() < deadline, "Key not promoted in table '" + tableName + "'");
+			Thread.sleep(200);
+		}
+	}
+
+	@Test
+	void binaryCopyAndOverflowPromotion() throws Exception{
+		final PostgreSQL storage = initializeStorage(promotionArguments);
+		storeChain(storage);
+		// Flushes the buffer
+		storage.executeQueryForResult("select 1", false);
+
+		for(final String tableName : new String[]{"vertex", "edge"}){
+			awaitPromotion(tableName);
+			final String column = HybridSchema.formatColumnName(overflowKey);
+			final String overflowColumn = HybridSchema.formatColumnName(HybridSchema.OVERFLOW_COLUMN_NAME);
+			assertEquals(0, queryLong("select count(*) from " + tableName + " where " + overflowColumn + " ? "
+					+ HybridSchema.formatStringLiteral(overflowKey)));
+			final long rows = tableName.equals("vertex") ? count : count - 1;
+			assertEquals(rows, queryLong("select count(*) from " + tableName + " where " + column + " is not null"));
+		}
+		assertEquals(1, queryLong("select count(*) from vertex where "
+				+ HybridSchema.formatColumnName(overflowKey) + " = 'v7' and pid = '7'"));
+		assertEquals(1, queryLong("select count(*) from edge where "
+				+ HybridSchema.formatColumnName(overflowKey) + " = 'e7'"));
+	}
+
+	@Test
+	void traversalFunctions() throws Exception{
+		final PostgreSQL storage = initializeStorage("promotionIntervalSeconds=0");
+		final List<Process> processes = storeChain(storage);
+		final Process last = processes.get(processes.size() - 1);
+
+		final String idColumn = HybridSchema.formatColumnName(AbstractStorage.PRIMARY_KEY);
+		final String startTable = "spade_test_start", targetVertexTable = "spade_test_target_vertex",
+				targetEdgeTable = "spade_test_target_edge";
+		for(final String tableName : new String[]{startTable, targetVertexTable, targetEdgeTable}){
+			storage.executeQueryForResult("drop table if exists " + tableName, false);
+			storage.executeQueryForResult("create table " + tableName + "(" + idColumn + " uuid)", false);
+		}
+		storage.executeQueryForResult("insert into " + startTable + " values ('" + last.bigHashCode() + "')", false);
+
+		final TraversalFunctions functions = new TraversalFunctions(AbstractStorage.PRIMARY_KEY,
+				AbstractStorage.CHILD_VERTEX_KEY, AbstractStorage.PARENT_VERTEX_KEY, "edge");
+		for(final String query : functions.getQueriesCreateFunctions()){
+			storage.executeQueryForResult(query, false);
+		}
+
+		// Frontier passed as an array and through the work table
+		for(final int arrayLimit : new int[]{1000, 0}){
+			execute("truncate " + targetVertexTable);
+			execute("truncate " + targetEdgeTable);
+			storage.executeQueryForResult(functions.getQueryLineage(startTable, null, 5, Arrays.asList(true),
+					targetVertexTable, targetEdgeTable, arrayLimit), false);
+			assertEquals(6, queryLong("select count(*) from " + targetVertexTable));
+			assertEquals(5, queryLong("select count(*) from " + targetEdgeTable));
+			assertEquals(1, queryLong("select count(*) from " + targetVertexTable + " where " + idColumn + " = '"
+					+ processes.get(processes.size() - 6).bigHashCode() + "'"));
+		}
+
+		execute("truncate " + targetVertexTable);
+		execute("truncate " + targetEdgeTable);
+		storage.executeQueryForResult(functions.getQueryLineage(startTable, null, 5, Arrays.asList(false),
+				targetVertexTable, targetEdgeTable, 1000), false);
+		assertEquals(1, queryLong("select count(*) from " + targetVertexTable));
+		assertEquals(0, queryLong("select count(*) from " + targetEdgeTable));
+
+		final String dstTable = "spade_test_dst";
+		storage.executeQueryForResult("drop table if exists " + dstTable, false);
+		storage.executeQueryForResult("create table " + dstTable + "(" + idColumn + " uuid)", false);
+		storage.executeQueryForResult("insert into " + dstTable + " values ('" + processes.get(0).bigHashCode() + "')", false);
+		execute("truncate " + targetVertexTable);
+		execute("truncate " + targetEdgeTable);
+		storage.executeQueryForResult(functions.getQueryPath(startTable, dstTable, null, count, false,
+				targetVertexTable, targetEdgeTable, 1000), false);
+		assertEquals(count, queryLong("select count(*) from " + targetVertexTable));
+		assertEquals(count - 1, queryLong("select count(*) from " + targetEdgeTable));
+
+		for(final String tableName : new String[]{startTable, dstTable, targetVertexTable, targetEdgeTable}){
+			execute("drop table " + tableName);
+		}
+	}
+
+	@Test
+	void partitionedIngest() throws Exception{
+		final PostgreSQL storage = initializeStorage("promotionIntervalSeconds=0 partitionIntervalHours=1 retentionHours=0");
+		storeChain(storage);
+		storage.executeQueryForResult("select 1", false);
+
+		assertEquals(count, queryLong("select count(*) from vertex"));
+		assertEquals(count - 1, queryLong("select count(*) from edge"));
+		for(final String tableName : new String[]{"vertex", "edge"}){
+			assertFalse(getPartitionNames(tableName).isEmpty(), "No partitions of table '" + tableName + "'");
+		}
+	}
+
+	@Test
+	void partitionRetention() throws Exception{
+		final String vertexTable = "spade_test_pvertex", edgeTable = "spade_test_pedge";
+		final long hourMillis = 60 * 60 * 1000;
+		for(final String tableName : new String[]{vertexTable, edgeTable}){
+			execute("drop table if exists " + tableName);
+			execute("create table " + tableName + "(" + HybridSchema.formatColumnName(AbstractStorage.PRIMARY_KEY)
+					+ " uuid, " + Partitioning.getColumnDefinition() + ")" + Partitioning.getPartitionByClause());
+		}
+		final Partitioning partitioning = new Partitioning(hourMillis, null, 2 * hourMillis, 0,
+				Arrays.asList(vertexTable, edgeTable), Arrays.asList(edgeTable));
+
+		final long now = System.currentTimeMillis();
+		final long old = now - 10 * hourMillis;
+		partitioning.ensurePartitions(connection, Arrays.asList(old));
+		// 'if not exists'
+		partitioning.ensurePartitions(connection, Arrays.asList(old));
+		final String oldVertexPartition = vertexTable + "_p" + partitioning.getPartitionStart(old);
+		final String oldEdgePartition = edgeTable + "_p" + partitioning.getPartitionStart(old);
+		assertTrue(getPartitionNames(vertexTable).contains(oldVertexPartition));
+		assertTrue(getPartitionNames(edgeTable).contains(oldEdgePartition));
+
+		partitioning.maintain(connection, now);
+		assertTrue(getPartitionNames(vertexTable).contains(oldVertexPartition));
+		assertFalse(getPartitionNames(edgeTable).contains(oldEdgePartition));
+		for(final String tableName : new String[]{vertexTable, edgeTable}){
+			final Set<String> partitionNames = getPartitionNames(tableName);
+			assertTrue(partitionNames.contains(tableName + "_p" + partitioning.getPartitionStart(now)));
+			assertTrue(partitionNames.contains(tableName + "_p" + partitioning.getPartitionStart(now + hourMillis)));
+		}
+
+		// Late element recreates the dropped partition
+		partitioning.ensurePartitions(connection, Arrays.asList(old));
+		assertTrue(getPartitionNames(edgeTable).contains(oldEdgePartition));
+		execute("insert into " + edgeTable + " values (null, " + old + ")");
+		assertEquals(1, queryLong("select count(*) from " + oldEdgePartition));
+
+		for(final String tableName : new String[]{vertexTable, edgeTable}){
+			execute("drop table " + tableName);
+		}
+	}
+}